@@ -44,7 +44,7 @@ public class SwapRepoEmulatorTest {
     public static final String TAG = "SwapRepoEmulatorTest";
 
     /**
-     * @see org.fdroid.fdroid.nearby.WifiStateChangeService.WifiInfoThread#run()
+     * @see org.fdroid.fdroid.nearby.WifiStateChangeService
      */
     @Test
     public void testSwap() throws Exception {
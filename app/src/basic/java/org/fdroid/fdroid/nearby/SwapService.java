@@ -20,6 +20,14 @@
 package org.fdroid.fdroid.nearby;
 
 import android.content.Context;
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+
+import org.fdroid.IndexFile;
+import org.fdroid.download.Downloader;
+
+import java.io.File;
 
 /**
  * Dummy version for basic app flavor.
@@ -27,4 +35,10 @@ import android.content.Context;
 public class SwapService {
     public static void start(Context context) {
     }
+
+    @Nullable
+    public static Downloader createSwarmDownloader(Uri downloadUrl, IndexFile indexFile, File destFile)
+            throws InterruptedException {
+        return null;
+    }
 }
@@ -20,9 +20,6 @@
 package org.fdroid.fdroid.nearby;
 
 import android.content.Context;
-import android.content.Intent;
-
-import androidx.annotation.Nullable;
 
 /**
  * Dummy version for basic app flavor.
@@ -32,9 +29,6 @@ public class WifiStateChangeService {
     public static void registerReceiver(Context context) {
     }
 
-    public static void start(Context context, @Nullable Intent intent) {
-    }
-
-    public class WifiInfoThread extends Thread {
+    public static void start(Context context) {
     }
 }
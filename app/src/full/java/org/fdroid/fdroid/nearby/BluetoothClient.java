@@ -6,17 +6,51 @@ import android.bluetooth.BluetoothSocket;
 
 import androidx.annotation.RequiresPermission;
 
+import org.fdroid.fdroid.nearby.httpish.Request;
+
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 public class BluetoothClient {
     private static final String TAG = "BluetoothClient";
 
+    /**
+     * Open {@link Request#VERSION_3} connections by MAC address.
+     */
+    private static final Map<String, BluetoothConnection> MULTIPLEXED_CONNECTIONS = new HashMap<>();
+
+    private final String macAddress;
     private final BluetoothDevice device;
 
     public BluetoothClient(String macAddress) {
+        this.macAddress = macAddress;
         device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(macAddress);
     }
 
+    /**
+     * Like {@link #openConnection()}, but reuses the connection to this device if it is
+     * multiplexed, so the index, icons and APKs can all be fetched at the same time.
+     * Multiplexed connections are shared and must not be closed by the caller, they
+     * get closed when the other side goes away.
+     */
+    @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
+    public BluetoothConnection getConnection() throws IOException {
+        synchronized (MULTIPLEXED_CONNECTIONS) {
+            BluetoothConnection connection = MULTIPLEXED_CONNECTIONS.get(macAddress);
+            if (connection != null && connection.getMuxClient().isOpen()) {
+                return connection;
+            }
+            connection = openConnection();
+            if (connection.getMuxClient() != null) {
+                MULTIPLEXED_CONNECTIONS.put(macAddress, connection);
+            } else {
+                MULTIPLEXED_CONNECTIONS.remove(macAddress);
+            }
+            return connection;
+        }
+    }
+
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     public BluetoothConnection openConnection() throws IOException {
 
@@ -25,11 +59,13 @@ public class BluetoothClient {
             BluetoothSocket socket = device.createInsecureRfcommSocketToServiceRecord(BluetoothConstants.fdroidUuid());
             connection = new BluetoothConnection(socket);
             connection.open();
+            Request.negotiateVersion(connection);
             return connection;
-        } finally {
+        } catch (IOException e) {
             if (connection != null) {
                 connection.closeQuietly();
             }
+            throw e;
         }
     }
 }
@@ -7,20 +7,26 @@ import android.util.Log;
 import android.webkit.MimeTypeMap;
 
 import androidx.annotation.RequiresPermission;
+import androidx.annotation.VisibleForTesting;
 
+import org.apache.commons.io.input.BoundedInputStream;
 import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.nearby.httpish.MuxServer;
 import org.fdroid.fdroid.nearby.httpish.Request;
 import org.fdroid.fdroid.nearby.httpish.Response;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import fi.iki.elonen.NanoHTTPD;
 
@@ -33,8 +39,14 @@ public class BluetoothServer extends Thread {
 
     private static final String TAG = "BluetoothServer";
 
+    /**
+     * RFCOMM is slow enough that a few threads can keep all connections busy.
+     */
+    private static final int WORKER_THREADS = 3;
+
     private BluetoothServerSocket serverSocket;
     private final List<ClientConnection> clients = new ArrayList<>();
+    private final ExecutorService workers = Executors.newFixedThreadPool(WORKER_THREADS);
 
     private final File webRoot;
 
@@ -49,6 +61,7 @@ public class BluetoothServer extends Thread {
         }
 
         interrupt();
+        workers.shutdownNow();
 
         if (serverSocket != null) {
             Utils.closeQuietly(serverSocket);
@@ -86,7 +99,7 @@ public class BluetoothServer extends Thread {
                         Utils.debugLog(TAG, "Server stopped after socket accepted from client, but before initiating connection.");
                         break;
                     }
-                    ClientConnection client = new ClientConnection(clientSocket, webRoot);
+                    ClientConnection client = new ClientConnection(clientSocket, webRoot, workers);
                     client.start();
                     clients.add(client);
                 }
@@ -96,14 +109,25 @@ public class BluetoothServer extends Thread {
         }
     }
 
-    private static class ClientConnection extends Thread {
+    @VisibleForTesting
+    static class ClientConnection extends Thread {
 
-        private final BluetoothSocket socket;
+        private final BluetoothConnection connection;
         private final File webRoot;
+        private final Executor workers;
+
+        ClientConnection(BluetoothSocket socket, File webRoot, Executor workers) {
+            this(new BluetoothConnection(socket), webRoot, workers);
+        }
 
-        ClientConnection(BluetoothSocket socket, File webRoot) {
-            this.socket = socket;
+        /**
+         * @param workers handle the requests and send the responses of {@link Request#VERSION_3}
+         */
+        @VisibleForTesting
+        ClientConnection(BluetoothConnection connection, File webRoot, Executor workers) {
+            this.connection = connection;
             this.webRoot = webRoot;
+            this.workers = workers;
         }
 
         @Override
@@ -112,9 +136,7 @@ public class BluetoothServer extends Thread {
 
             Utils.debugLog(TAG, "Listening for incoming Bluetooth requests from client");
 
-            BluetoothConnection connection;
             try {
-                connection = new BluetoothConnection(socket);
                 connection.open();
             } catch (IOException e) {
                 Log.e(TAG, "Error listening for incoming connections over bluetooth", e);
@@ -126,7 +148,27 @@ public class BluetoothServer extends Thread {
                 try {
                     Utils.debugLog(TAG, "Listening for new Bluetooth request from client.");
                     Request incomingRequest = Request.listenForRequest(connection);
-                    handleRequest(incomingRequest).send(connection);
+                    if (incomingRequest == null) {
+                        continue;
+                    }
+                    int upgradeVersion = incomingRequest.getUpgradeVersion(Request.LATEST_VERSION);
+                    if (connection.getProtocolVersion() == Request.VERSION_1 && upgradeVersion > Request.VERSION_1) {
+                        upgrade(upgradeVersion);
+                        if (upgradeVersion >= Request.VERSION_3) {
+                            new MuxServer(connection, workers, this::handleRequest).run();
+                            break;
+                        }
+                        continue;
+                    }
+                    Response response = handleRequest(incomingRequest);
+                    try {
+                        response.send(connection);
+                    } finally {
+                        response.closeQuietly();
+                    }
+                } catch (EOFException e) {
+                    Utils.debugLog(TAG, "Client closed the Bluetooth connection.");
+                    break;
                 } catch (IOException e) {
                     Log.e(TAG, "Error receiving incoming connection over bluetooth", e);
                     break;
@@ -140,56 +182,42 @@ public class BluetoothServer extends Thread {
             connection.closeQuietly();
         }
 
+        private void upgrade(int version) throws IOException {
+            Response.createUpgrade(version).send(connection);
+            connection.setProtocolVersion(version);
+            Utils.debugLog(TAG, "Switched Bluetooth connection to protocol version " + version + ".");
+        }
+
         private Response handleRequest(Request request) {
 
             Utils.debugLog(TAG, "Received Bluetooth request from client, will process it now.");
 
-            Response.Builder builder = null;
-
             try {
-                int statusCode = HttpURLConnection.HTTP_NOT_FOUND;
-                int totalSize = -1;
-
+                Map<String, String> headers = new HashMap<>();
+                String range = request.getHeaderValue("Range");
+                if (range != null) {
+                    headers.put("range", range);
+                }
+                Response response = respond(headers, "/" + request.getPath());
                 if (request.getMethod().equals(Request.Methods.HEAD)) {
-                    builder = new Response.Builder();
-                } else {
-                    HashMap<String, String> headers = new HashMap<>();
-                    Response resp = respond(headers, "/" + request.getPath());
-
-                    builder = new Response.Builder(resp.toContentStream());
-                    statusCode = resp.getStatusCode();
-                    totalSize = resp.getFileSize();
+                    return response.toHeadResponse();
                 }
-
-                // TODO: At this stage, will need to download the file to get this info.
-                // However, should be able to make totalDownloadSize and getCacheTag work without downloading.
-                return builder
-                        .setStatusCode(statusCode)
-                        .setFileSize(totalSize)
-                        .build();
-
+                return response;
             } catch (Exception e) {
-                // throw new IOException("Error getting file " + request.getPath() + " from local repo proxy - " + e.getMessage(), e);
-
                 Log.e(TAG, "error processing request; sending 500 response", e);
-
-                if (builder == null) {
-                    builder = new Response.Builder();
-                }
-
-                return builder
+                return new Response.Builder()
                         .setStatusCode(500)
                         .setFileSize(0)
                         .build();
-
             }
-
         }
 
         private Response respond(Map<String, String> headers, String uri) {
             // Remove URL arguments
             uri = uri.trim().replace(File.separatorChar, '/');
+            boolean chunkManifest = false;
             if (uri.indexOf('?') >= 0) {
+                chunkManifest = uri.substring(uri.indexOf('?') + 1).equals(ChunkManifest.QUERY_PARAMETER);
                 uri = uri.substring(0, uri.indexOf('?'));
             }
 
@@ -231,6 +259,16 @@ public class BluetoothServer extends Thread {
                 return respond(headers, uri + indexFile);
             }
 
+            if (chunkManifest) {
+                try {
+                    return createResponse(NanoHTTPD.Response.Status.OK, NanoHTTPD.MIME_PLAINTEXT,
+                            ResponseMetadataCache.get().getChunkManifest(f).toString());
+                } catch (IOException e) {
+                    return createResponse(NanoHTTPD.Response.Status.INTERNAL_ERROR, NanoHTTPD.MIME_PLAINTEXT,
+                            "INTERNAL ERROR: could not hash " + uri);
+                }
+            }
+
             Response response = serveFile(uri, headers, f, getMimeTypeForFile(uri));
             return response != null ? response :
                     createResponse(NanoHTTPD.Response.Status.NOT_FOUND, NanoHTTPD.MIME_PLAINTEXT,
@@ -239,7 +277,8 @@ public class BluetoothServer extends Thread {
 
         /**
          * Serves file from homeDir and its' subdirectories (only). Uses only URI,
-         * ignores all headers and HTTP parameters.
+         * ignores all headers and HTTP parameters, except for a {@code Range} with
+         * a single range, so that downloads can be resumed.
          */
         Response serveFile(String uri, Map<String, String> header, File file, String mime) {
             Response res;
@@ -249,67 +288,31 @@ public class BluetoothServer extends Thread {
                         .toHexString((file.getAbsolutePath() + file.lastModified() + String.valueOf(file.length()))
                                 .hashCode());
 
-                // Support (simple) skipping:
-                long startFrom = 0;
-                long endAt = -1;
-                String range = header.get("range");
-                if (range != null && range.startsWith("bytes=")) {
-                    range = range.substring("bytes=".length());
-                    int minus = range.indexOf('-');
-                    try {
-                        if (minus > 0) {
-                            startFrom = Long.parseLong(range.substring(0, minus));
-                            endAt = Long.parseLong(range.substring(minus + 1));
-                        }
-                    } catch (NumberFormatException ignored) {
-                    }
-                }
-
-                // Change return code and add Content-Range header when skipping is
-                // requested
                 long fileLen = file.length();
-                if (range != null && startFrom >= 0) {
-                    if (startFrom >= fileLen) {
-                        res = createResponse(NanoHTTPD.Response.Status.RANGE_NOT_SATISFIABLE,
-                                NanoHTTPD.MIME_PLAINTEXT, "");
-                        res.addHeader("Content-Range", "bytes 0-0/" + fileLen);
-                        res.addHeader("ETag", etag);
-                    } else {
-                        if (endAt < 0) {
-                            endAt = fileLen - 1;
-                        }
-                        long newLen = endAt - startFrom + 1;
-                        if (newLen < 0) {
-                            newLen = 0;
-                        }
-
-                        final long dataLen = newLen;
-                        FileInputStream fis = new FileInputStream(file) {
-                            @Override
-                            public int available() throws IOException {
-                                return (int) dataLen;
-                            }
-                        };
-                        long skipped = fis.skip(startFrom);
-                        if (skipped != startFrom) {
-                            throw new IOException("unable to skip the required " + startFrom + " bytes.");
-                        }
-
-                        res = createResponse(NanoHTTPD.Response.Status.PARTIAL_CONTENT, mime, fis);
-                        res.addHeader("Content-Length", String.valueOf(dataLen));
-                        res.addHeader("Content-Range", "bytes " + startFrom + "-" + endAt + "/"
-                                + fileLen);
-                        res.addHeader("ETag", etag);
-                    }
+                String range = header.get("range");
+                List<FileRangeResponse.ByteRange> ranges =
+                        range == null ? null : FileRangeResponse.parseRanges(range, fileLen);
+                if (ranges != null && ranges.isEmpty()) {
+                    res = createResponse(NanoHTTPD.Response.Status.RANGE_NOT_SATISFIABLE,
+                            NanoHTTPD.MIME_PLAINTEXT, "");
+                    res.addHeader("Content-Range", "bytes */" + fileLen);
+                } else if (ranges != null && ranges.size() == 1) {
+                    FileRangeResponse.ByteRange byteRange = ranges.get(0);
+                    FileInputStream fis = new FileInputStream(file);
+                    fis.getChannel().position(byteRange.start);
+                    res = createResponse(NanoHTTPD.Response.Status.PARTIAL_CONTENT, mime,
+                            new BoundedInputStream(fis, byteRange.length()));
+                    res.addHeader("Content-Length", String.valueOf(byteRange.length()));
+                    res.addHeader("Content-Range", byteRange.toContentRange(fileLen));
+                } else if (etag.equals(header.get("if-none-match"))) {
+                    res = createResponse(NanoHTTPD.Response.Status.NOT_MODIFIED, mime, "");
                 } else {
-                    if (etag.equals(header.get("if-none-match"))) {
-                        res = createResponse(NanoHTTPD.Response.Status.NOT_MODIFIED, mime, "");
-                    } else {
-                        res = createResponse(NanoHTTPD.Response.Status.OK, mime, new FileInputStream(file));
-                        res.addHeader("Content-Length", String.valueOf(fileLen));
-                        res.addHeader("ETag", etag);
-                    }
+                    // several ranges are not worth the trouble here, so they get the whole file
+                    res = createResponse(NanoHTTPD.Response.Status.OK, mime, new FileInputStream(file));
+                    res.addHeader("Content-Length", String.valueOf(fileLen));
                 }
+                res.addHeader("Accept-Ranges", "bytes");
+                res.addHeader("ETag", etag);
             } catch (IOException ioe) {
                 res = createResponse(NanoHTTPD.Response.Status.FORBIDDEN, NanoHTTPD.MIME_PLAINTEXT,
                         "FORBIDDEN: Reading file failed.");
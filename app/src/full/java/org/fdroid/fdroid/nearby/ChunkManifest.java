@@ -0,0 +1,151 @@
+package org.fdroid.fdroid.nearby;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import vendored.org.apache.commons.codec.binary.Hex;
+import vendored.org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * The SHA-256 of a file and of each of its chunks, so that the chunks can be downloaded from
+ * different peers and each one can be checked as soon as it arrives.  {@link LocalHTTPD} and
+ * {@link BluetoothServer} serve it when {@code ?chunks} gets added to the path of a file:
+ * <pre>
+ * sha256 &lt;hex SHA-256 of the whole file&gt;
+ * length &lt;size of the file in bytes&gt;
+ * chunk-size &lt;size of each chunk, except the last&gt;
+ * &lt;hex SHA-256 of the first chunk&gt;
+ * &lt;hex SHA-256 of the second chunk&gt;
+ * ...
+ * </pre>
+ * A manifest is only as trustworthy as the peer it comes from, so the whole file still needs
+ * to be checked against the SHA-256 from the signed index.
+ */
+final class ChunkManifest {
+
+    static final String QUERY_PARAMETER = "chunks";
+    static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private final String sha256;
+    private final long length;
+    private final int chunkSize;
+    private final List<String> chunkHashes;
+
+    ChunkManifest(String sha256, long length, int chunkSize, List<String> chunkHashes) {
+        this.sha256 = sha256;
+        this.length = length;
+        this.chunkSize = chunkSize;
+        this.chunkHashes = chunkHashes;
+    }
+
+    /**
+     * Reads the whole file once, hashing it and its chunks at the same time.
+     */
+    static ChunkManifest create(File file, int chunkSize) throws IOException {
+        MessageDigest fileDigest = DigestUtils.getSha256Digest();
+        MessageDigest chunkDigest = DigestUtils.getSha256Digest();
+        List<String> chunkHashes = new ArrayList<>();
+        byte[] buffer = new byte[8192];
+        long length = 0;
+        int inChunk = 0;
+        try (InputStream inputStream = new FileInputStream(file)) {
+            int read = inputStream.read(buffer, 0, Math.min(buffer.length, chunkSize));
+            while (read != -1) {
+                fileDigest.update(buffer, 0, read);
+                chunkDigest.update(buffer, 0, read);
+                length += read;
+                inChunk += read;
+                if (inChunk == chunkSize) {
+                    chunkHashes.add(Hex.encodeHexString(chunkDigest.digest()));
+                    inChunk = 0;
+                }
+                read = inputStream.read(buffer, 0, Math.min(buffer.length, chunkSize - inChunk));
+            }
+        }
+        if (inChunk > 0) {
+            chunkHashes.add(Hex.encodeHexString(chunkDigest.digest()));
+        }
+        return new ChunkManifest(Hex.encodeHexString(fileDigest.digest()), length, chunkSize, chunkHashes);
+    }
+
+    /**
+     * @throws IOException if {@code manifest} is not a valid manifest
+     */
+    static ChunkManifest parse(String manifest) throws IOException {
+        String[] lines = manifest.trim().split("\n");
+        if (lines.length < 3) {
+            throw new IOException("Chunk manifest is too short");
+        }
+        String sha256 = parseValue(lines[0], "sha256");
+        List<String> chunkHashes = new ArrayList<>(lines.length - 3);
+        for (int i = 3; i < lines.length; i++) {
+            chunkHashes.add(lines[i].trim().toLowerCase(Locale.ENGLISH));
+        }
+        try {
+            long length = Long.parseLong(parseValue(lines[1], "length"));
+            int chunkSize = Integer.parseInt(parseValue(lines[2], "chunk-size"));
+            if (length < 0 || chunkSize <= 0 || chunkHashes.size() != (length + chunkSize - 1) / chunkSize) {
+                throw new IOException("Chunk manifest does not add up");
+            }
+            return new ChunkManifest(sha256, length, chunkSize, chunkHashes);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid chunk manifest", e);
+        }
+    }
+
+    private static String parseValue(String line, String key) throws IOException {
+        String[] parts = line.trim().split(" ");
+        if (parts.length != 2 || !parts[0].equals(key)) {
+            throw new IOException("Expected " + key + " in chunk manifest, got: " + line);
+        }
+        return parts[1].toLowerCase(Locale.ENGLISH);
+    }
+
+    String getSha256() {
+        return sha256;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    int getChunkCount() {
+        return chunkHashes.size();
+    }
+
+    long getChunkOffset(int chunk) {
+        return (long) chunk * chunkSize;
+    }
+
+    int getChunkLength(int chunk) {
+        return (int) Math.min(chunkSize, length - getChunkOffset(chunk));
+    }
+
+    boolean isValidChunk(int chunk, byte[] data) {
+        if (data.length != getChunkLength(chunk)) {
+            return false;
+        }
+        return DigestUtils.sha256Hex(data).equals(chunkHashes.get(chunk));
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder()
+                .append("sha256 ").append(sha256).append('\n')
+                .append("length ").append(length).append('\n')
+                .append("chunk-size ").append(chunkSize).append('\n');
+        for (String chunkHash : chunkHashes) {
+            builder.append(chunkHash).append('\n');
+        }
+        return builder.toString();
+    }
+}
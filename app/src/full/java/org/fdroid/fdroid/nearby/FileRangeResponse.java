@@ -0,0 +1,274 @@
+package org.fdroid.fdroid.nearby;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * A {@link NanoHTTPD.Response} that sends a whole file or some byte ranges of it
+ * straight from a {@link FileChannel}, instead of through NanoHTTPD's stream copying.
+ * Several ranges get sent as {@code multipart/byteranges}.
+ * <p>
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)} reads each range at its position,
+ * so nothing needs to be skipped, and lets the platform avoid copying through the Java heap
+ * where the socket supports it.  All lengths are {@code long}, so files larger than 2 GB work.
+ */
+final class FileRangeResponse extends NanoHTTPD.Response {
+
+    private static final String TAG = "FileRangeResponse";
+
+    /**
+     * More ranges than that make the response bigger than the whole file,
+     * or are an attempt at wasting server resources, so the whole file gets sent instead.
+     */
+    @VisibleForTesting
+    static final int MAX_RANGES = 32;
+
+    /**
+     * A range of bytes with the first and last byte included, like in {@code Content-Range}.
+     */
+    static final class ByteRange {
+        final long start;
+        final long end;
+
+        ByteRange(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        long length() {
+            return end - start + 1;
+        }
+
+        String toContentRange(long fileLength) {
+            return "bytes " + start + "-" + end + "/" + fileLength;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ByteRange)) return false;
+            ByteRange that = (ByteRange) o;
+            return start == that.start && end == that.end;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.valueOf(start).hashCode() * 31 + Long.valueOf(end).hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return start + "-" + end;
+        }
+    }
+
+    /**
+     * Parses the value of a {@code Range} header for a file of the given {@code fileLength}.
+     * Overlapping and adjacent ranges get merged and sorted.
+     *
+     * @return the satisfiable ranges, which is an empty list if there are none, or null if the header
+     * should be ignored, because it is invalid or asks for more than {@link #MAX_RANGES} ranges.
+     */
+    @Nullable
+    static List<ByteRange> parseRanges(String header, long fileLength) {
+        String value = header.trim();
+        if (!value.regionMatches(true, 0, "bytes=", 0, "bytes=".length())) return null;
+        String[] specs = value.substring("bytes=".length()).split(",");
+        List<ByteRange> ranges = new ArrayList<>(specs.length);
+        try {
+            for (String s : specs) {
+                String spec = s.trim();
+                int minus = spec.indexOf('-');
+                if (minus < 0) return null;
+                String first = spec.substring(0, minus).trim();
+                String last = spec.substring(minus + 1).trim();
+                if (first.isEmpty()) {
+                    // the last bytes of the file
+                    long suffixLength = Long.parseLong(last);
+                    if (suffixLength < 0) return null;
+                    if (suffixLength == 0 || fileLength == 0) continue;
+                    ranges.add(new ByteRange(Math.max(0, fileLength - suffixLength), fileLength - 1));
+                } else {
+                    long start = Long.parseLong(first);
+                    long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                    if (start < 0 || end < start) return null;
+                    if (start >= fileLength) continue;
+                    ranges.add(new ByteRange(start, Math.min(end, fileLength - 1)));
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (ranges.size() <= 1) return ranges;
+
+        Collections.sort(ranges, (r1, r2) -> Long.compare(r1.start, r2.start));
+        List<ByteRange> merged = new ArrayList<>(ranges.size());
+        ByteRange current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            ByteRange next = ranges.get(i);
+            if (next.start <= current.end + 1) {
+                current = new ByteRange(current.start, Math.max(current.end, next.end));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged.size() > MAX_RANGES ? null : merged;
+    }
+
+    private final File file;
+    private final long fileLength;
+    private final List<ByteRange> ranges;
+    /**
+     * The {@code multipart/byteranges} boundary, or null for a single part.
+     */
+    @Nullable
+    private final String boundary;
+    private final String partMimeType;
+    private final long contentLength;
+    /**
+     * {@link NanoHTTPD.Response} does not expose its headers, so they are kept here as well.
+     */
+    private final Map<String, String> headers = new LinkedHashMap<>();
+
+    private FileRangeResponse(IStatus status, String mimeType, File file, long fileLength,
+                              List<ByteRange> ranges, @Nullable String boundary, long contentLength) {
+        super(status, boundary == null ? mimeType : "multipart/byteranges; boundary=" + boundary,
+                null, contentLength);
+        this.file = file;
+        this.fileLength = fileLength;
+        this.ranges = ranges;
+        this.boundary = boundary;
+        this.partMimeType = mimeType;
+        this.contentLength = contentLength;
+    }
+
+    /**
+     * @return a response with the whole {@code file}.
+     */
+    static FileRangeResponse newFileResponse(File file, long fileLength, String mimeType) {
+        List<ByteRange> ranges = fileLength == 0
+                ? Collections.emptyList()
+                : Collections.singletonList(new ByteRange(0, fileLength - 1));
+        return new FileRangeResponse(Status.OK, mimeType, file, fileLength, ranges, null, fileLength);
+    }
+
+    /**
+     * @param ranges the non-empty result of {@link #parseRanges(String, long)}
+     * @return a {@link Status#PARTIAL_CONTENT} response with the given {@code ranges} of the {@code file}.
+     */
+    static FileRangeResponse newRangeResponse(File file, long fileLength, String mimeType, List<ByteRange> ranges) {
+        FileRangeResponse response;
+        if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            response = new FileRangeResponse(Status.PARTIAL_CONTENT, mimeType, file, fileLength, ranges, null,
+                    range.length());
+            response.addHeader("Content-Range", range.toContentRange(fileLength));
+        } else {
+            String boundary = UUID.randomUUID().toString().replace("-", "");
+            long contentLength = getLastBoundary(boundary).length;
+            for (ByteRange range : ranges) {
+                contentLength += getPartHeader(boundary, mimeType, range, fileLength).length + range.length() + 2;
+            }
+            response = new FileRangeResponse(Status.PARTIAL_CONTENT, mimeType, file, fileLength, ranges, boundary,
+                    contentLength);
+        }
+        return response;
+    }
+
+    private static byte[] getPartHeader(String boundary, String mimeType, ByteRange range, long fileLength) {
+        String header = "--" + boundary + "\r\n"
+                + "Content-Type: " + mimeType + "\r\n"
+                + "Content-Range: " + range.toContentRange(fileLength) + "\r\n"
+                + "\r\n";
+        return header.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] getLastBoundary(String boundary) {
+        return ("--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    long getContentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        super.addHeader(name, value);
+        headers.put(name, value);
+    }
+
+    @Override
+    protected void send(OutputStream outputStream) {
+        StringBuilder head = new StringBuilder("HTTP/1.1 ").append(getStatus().getDescription()).append(" \r\n");
+        appendHeader(head, "Content-Type", getMimeType());
+        if (!headers.containsKey("Date")) {
+            appendHeader(head, "Date", LocalHTTPD.formatDate(System.currentTimeMillis()));
+        }
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            appendHeader(head, entry.getKey(), entry.getValue());
+        }
+        appendHeader(head, "Content-Length", String.valueOf(contentLength));
+        head.append("\r\n");
+        try {
+            outputStream.write(head.toString().getBytes(StandardCharsets.UTF_8));
+            if (getRequestMethod() != NanoHTTPD.Method.HEAD) sendBody(outputStream);
+            outputStream.flush();
+        } catch (IOException e) {
+            // mostly clients that went away in the middle of the download
+            Log.i(TAG, "Could not send " + file.getName() + ": " + e.getMessage());
+        }
+    }
+
+    private static void appendHeader(StringBuilder head, String name, String value) {
+        head.append(name).append(": ").append(value).append("\r\n");
+    }
+
+    private void sendBody(OutputStream outputStream) throws IOException {
+        if (ranges.isEmpty()) return;
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            FileChannel channel = inputStream.getChannel();
+            WritableByteChannel target = Channels.newChannel(outputStream);
+            for (ByteRange range : ranges) {
+                if (boundary != null) outputStream.write(getPartHeader(boundary, partMimeType, range, fileLength));
+                transfer(channel, range.start, range.length(), target);
+                if (boundary != null) outputStream.write(new byte[]{'\r', '\n'});
+            }
+            if (boundary != null) outputStream.write(getLastBoundary(boundary));
+        }
+    }
+
+    private static void transfer(FileChannel channel, long position, long count, WritableByteChannel target)
+            throws IOException {
+        while (count > 0) {
+            long transferred = channel.transferTo(position, count, target);
+            if (transferred <= 0) {
+                throw new EOFException(String.format(Locale.US, "File ended %d bytes early", count));
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+}
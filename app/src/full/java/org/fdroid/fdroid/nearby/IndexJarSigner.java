@@ -0,0 +1,241 @@
+package org.fdroid.fdroid.nearby;
+
+import android.util.Base64;
+
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Signs a JAR with a v1 JAR signature while streaming its entries, so no entry
+ * is ever held in memory as a whole.  The input is read twice: once to digest
+ * each entry for the manifest, and once to copy the entries after the
+ * {@code META-INF/} signature files, which are written first.
+ * <p>
+ * The signature file uses SHA-256 to digest the manifest and its sections,
+ * and the signature block is a detached SHA256withRSA PKCS#7 signature without
+ * signed attributes, like the one {@link kellinwood.security.zipsigner.ZipSigner} made.
+ * The digest of the entries themselves is given to the constructor, since
+ * {@link org.fdroid.index.v1.IndexV1Verifier} only accepts {@link #SHA1} there
+ * while {@link org.fdroid.index.v2.EntryVerifier} does not accept it at all.
+ * <p>
+ * Any manifest and signature files that are already in the input are dropped.
+ */
+final class IndexJarSigner {
+
+    static final String SHA1 = "SHA1";
+    static final String SHA256 = "SHA-256";
+
+    private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+    private static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+    private static final String SIGNATURE_FILE_NAME = "META-INF/CERT.SF";
+    private static final String SIGNATURE_BLOCK_NAME = "META-INF/CERT.RSA";
+    private static final String CREATED_BY = "1.0 (F-Droid)";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * Manifest lines cannot be longer than this, in bytes without the line break.
+     */
+    private static final int MAX_LINE_LENGTH = 72;
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private static final BouncyCastleProvider BOUNCYCASTLE_PROVIDER = new BouncyCastleProvider();
+
+    private final X509Certificate certificate;
+    private final PrivateKey privateKey;
+    private final String entryDigestAlgorithm;
+
+    /**
+     * @param entryDigestAlgorithm the digest for each entry in the manifest,
+     *                             {@link #SHA1} or {@link #SHA256}
+     */
+    IndexJarSigner(X509Certificate certificate, PrivateKey privateKey, String entryDigestAlgorithm) {
+        this.certificate = certificate;
+        this.privateKey = privateKey;
+        this.entryDigestAlgorithm = entryDigestAlgorithm;
+    }
+
+    void sign(File input, File output) throws IOException, GeneralSecurityException {
+        try (ZipFile zipFile = new ZipFile(input)) {
+            List<ZipEntry> entries = new ArrayList<>();
+            Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
+            while (enumeration.hasMoreElements()) {
+                ZipEntry entry = enumeration.nextElement();
+                if (!isSignatureRelated(entry.getName())) {
+                    entries.add(entry);
+                }
+            }
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+            ByteArrayOutputStream signatureSections = new ByteArrayOutputStream();
+            writeAttribute(manifest, "Manifest-Version", "1.0");
+            writeAttribute(manifest, "Created-By", CREATED_BY);
+            manifest.write(CRLF);
+
+            MessageDigest entryDigest = MessageDigest.getInstance(entryDigestAlgorithm);
+            MessageDigest sectionDigest = MessageDigest.getInstance(SHA256);
+            ByteArrayOutputStream section = new ByteArrayOutputStream();
+            for (ZipEntry entry : entries) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                try (InputStream inputStream = zipFile.getInputStream(entry)) {
+                    int read;
+                    while ((read = inputStream.read(buffer)) != -1) {
+                        entryDigest.update(buffer, 0, read);
+                    }
+                }
+                section.reset();
+                writeAttribute(section, "Name", entry.getName());
+                writeAttribute(section, entryDigestAlgorithm + "-Digest", base64(entryDigest.digest()));
+                section.write(CRLF);
+                section.writeTo(manifest);
+
+                writeAttribute(signatureSections, "Name", entry.getName());
+                writeAttribute(signatureSections, SHA256 + "-Digest",
+                        base64(sectionDigest.digest(section.toByteArray())));
+                signatureSections.write(CRLF);
+            }
+            byte[] manifestBytes = manifest.toByteArray();
+
+            ByteArrayOutputStream signatureFile = new ByteArrayOutputStream();
+            writeAttribute(signatureFile, "Signature-Version", "1.0");
+            writeAttribute(signatureFile, "Created-By", CREATED_BY);
+            writeAttribute(signatureFile, SHA256 + "-Digest-Manifest", base64(sectionDigest.digest(manifestBytes)));
+            signatureFile.write(CRLF);
+            signatureSections.writeTo(signatureFile);
+            byte[] signatureFileBytes = signatureFile.toByteArray();
+            byte[] signatureBlockBytes = generateSignatureBlock(signatureFileBytes);
+
+            try (ZipOutputStream out = new ZipOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(output), BUFFER_SIZE))) {
+                writeEntry(out, MANIFEST_NAME, manifestBytes);
+                writeEntry(out, SIGNATURE_FILE_NAME, signatureFileBytes);
+                writeEntry(out, SIGNATURE_BLOCK_NAME, signatureBlockBytes);
+                for (ZipEntry entry : entries) {
+                    out.putNextEntry(copyEntry(entry));
+                    if (!entry.isDirectory()) {
+                        try (InputStream inputStream = zipFile.getInputStream(entry)) {
+                            int read;
+                            while ((read = inputStream.read(buffer)) != -1) {
+                                out.write(buffer, 0, read);
+                            }
+                        }
+                    }
+                    out.closeEntry();
+                }
+            }
+        }
+    }
+
+    /**
+     * The existing manifest and signatures cannot be kept, they would not match.
+     */
+    static boolean isSignatureRelated(String name) {
+        String upperCase = name.toUpperCase(Locale.ENGLISH);
+        if (!upperCase.startsWith("META-INF/") || upperCase.indexOf('/', "META-INF/".length()) != -1) {
+            return false;
+        }
+        return upperCase.equals(MANIFEST_NAME)
+                || upperCase.endsWith(".SF")
+                || upperCase.endsWith(".RSA")
+                || upperCase.endsWith(".DSA")
+                || upperCase.endsWith(".EC")
+                || upperCase.startsWith("META-INF/SIG-");
+    }
+
+    private byte[] generateSignatureBlock(byte[] signatureFile) throws GeneralSecurityException {
+        try {
+            ContentSigner contentSigner = new JcaContentSignerBuilder(SIGNATURE_ALGORITHM)
+                    .setProvider(BOUNCYCASTLE_PROVIDER)
+                    .build(privateKey);
+            JcaSignerInfoGeneratorBuilder signerInfoGeneratorBuilder = new JcaSignerInfoGeneratorBuilder(
+                    new JcaDigestCalculatorProviderBuilder().setProvider(BOUNCYCASTLE_PROVIDER).build());
+            // no signed attributes, so it stays verifiable by everything that verified the old signatures
+            signerInfoGeneratorBuilder.setDirectSignature(true);
+
+            CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+            generator.addSignerInfoGenerator(signerInfoGeneratorBuilder.build(contentSigner, certificate));
+            generator.addCertificates(new JcaCertStore(Collections.singletonList(certificate)));
+            return generator.generate(new CMSProcessableByteArray(signatureFile), false)
+                    .toASN1Structure()
+                    .getEncoded("DER");
+        } catch (OperatorCreationException | CMSException | IOException e) {
+            throw new GeneralSecurityException("Unable to create the signature block", e);
+        }
+    }
+
+    private static ZipEntry copyEntry(ZipEntry entry) {
+        ZipEntry copy = new ZipEntry(entry.getName());
+        copy.setTime(entry.getTime());
+        if (entry.getMethod() == ZipEntry.STORED) {
+            copy.setMethod(ZipEntry.STORED);
+            copy.setSize(entry.getSize());
+            copy.setCompressedSize(entry.getSize());
+            copy.setCrc(entry.getCrc());
+        }
+        return copy;
+    }
+
+    private static void writeEntry(ZipOutputStream out, String name, byte[] data) throws IOException {
+        out.putNextEntry(new ZipEntry(name));
+        out.write(data);
+        out.closeEntry();
+    }
+
+    /**
+     * Writes a {@code name: value} line, wrapping it into continuation lines
+     * starting with a space where it gets too long.  A multi-byte UTF-8
+     * character is never split between lines.
+     */
+    static void writeAttribute(OutputStream out, String name, String value) throws IOException {
+        byte[] line = (name + ": " + value).getBytes(StandardCharsets.UTF_8);
+        int start = 0;
+        int maxLength = MAX_LINE_LENGTH;
+        while (line.length - start > maxLength) {
+            int end = start + maxLength;
+            while ((line[end] & 0xC0) == 0x80) {
+                end--;
+            }
+            out.write(line, start, end - start);
+            out.write(CRLF);
+            out.write(' ');
+            start = end;
+            maxLength = MAX_LINE_LENGTH - 1;
+        }
+        out.write(line, start, line.length - start);
+        out.write(CRLF);
+    }
+
+    private static String base64(byte[] bytes) {
+        return Base64.encodeToString(bytes, Base64.NO_WRAP);
+    }
+}
@@ -36,17 +36,20 @@ package org.fdroid.fdroid.nearby;
 import android.content.Context;
 import android.net.Uri;
 
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
 import org.fdroid.fdroid.BuildConfig;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
 import java.net.URLEncoder;
 import java.text.DateFormat;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Collections;
@@ -110,6 +113,7 @@ public class LocalHTTPD extends NanoHTTPD {
         MIME_TYPES = new HashMap<>(); // ignore nanohttpd's list
         MIME_TYPES.put("apk", "application/vnd.android.package-archive");
         MIME_TYPES.put("html", "text/html");
+        MIME_TYPES.put("json", "application/json");
         MIME_TYPES.put("png", "image/png");
         MIME_TYPES.put("xml", "application/xml");
     }
@@ -318,6 +322,16 @@ public class LocalHTTPD extends NanoHTTPD {
         return response != null ? response : getNotFoundResponse();
     }
 
+    /**
+     * NanoHTTPD decides this after {@link #serve(IHTTPSession)} returned, overriding
+     * {@link Response#setGzipEncoding(boolean)}.  Text files already get served
+     * precompressed by {@link #serveFile}, so they must not be compressed a second time.
+     */
+    @Override
+    protected boolean useGzipWhenAccepted(Response r) {
+        return false;
+    }
+
     @Override
     public Response serve(IHTTPSession session) {
         Map<String, String> header = session.getHeaders();
@@ -358,9 +372,34 @@ public class LocalHTTPD extends NanoHTTPD {
                 return getInternalErrorResponse("given path is not a directory (" + homeDir + ").");
             }
         }
+        if (parms.containsKey(ChunkManifest.QUERY_PARAMETER)) {
+            return serveChunkManifest(uri);
+        }
         return respond(Collections.unmodifiableMap(header), session, uri);
     }
 
+    /**
+     * Serves the {@link ChunkManifest} of a file, so others can download it from
+     * several peers at the same time and still check each chunk as it arrives.
+     */
+    private Response serveChunkManifest(String uri) {
+        if (uri.contains("../")) {
+            return getForbiddenResponse("Won't serve ../ for security reasons.");
+        }
+        for (File homeDir : this.rootDirs) {
+            File file = new File(homeDir, uri);
+            if (file.isFile()) {
+                try {
+                    ChunkManifest manifest = ResponseMetadataCache.get().getChunkManifest(file);
+                    return newFixedLengthResponse(Response.Status.OK, NanoHTTPD.MIME_PLAINTEXT, manifest.toString());
+                } catch (IOException e) {
+                    return getInternalErrorResponse("could not hash " + uri + ": " + e.getMessage());
+                }
+            }
+        }
+        return getNotFoundResponse();
+    }
+
     private Response handlePost(IHTTPSession session) {
         Uri uri = Uri.parse(session.getUri());
         switch (uri.getPath()) {
@@ -377,117 +416,145 @@ public class LocalHTTPD extends NanoHTTPD {
 
     /**
      * Serves file from homeDir and its' subdirectories (only). Uses only URI,
-     * ignores all headers and HTTP parameters.
+     * ignores all HTTP parameters.  Supports {@code Range} requests with one or more ranges,
+     * {@code If-Range}, {@code If-None-Match}, {@code If-Modified-Since} and, for text files,
+     * {@code Accept-Encoding: gzip}.  What is needed for that comes from the {@link ResponseMetadataCache}.
      */
     Response serveFile(String uri, Map<String, String> header, File file, String mime) {
         Response res;
-        try {
-            // Calculate etag
-            String etag =
-                    Integer.toHexString((file.getAbsolutePath() + file.lastModified() + "" + file.length()).hashCode());
-
-            // Support (simple) skipping:
-            long startFrom = 0;
-            long endAt = -1;
-            String range = header.get("range");
-            if (range != null) {
-                if (range.startsWith("bytes=")) {
-                    range = range.substring("bytes=".length());
-                    int minus = range.indexOf('-');
-                    try {
-                        if (minus > 0) {
-                            startFrom = Long.parseLong(range.substring(0, minus));
-                            endAt = Long.parseLong(range.substring(minus + 1));
-                        }
-                    } catch (NumberFormatException ignored) {
-                    }
-                }
-            }
-
-            // get if-range header. If present, it must match etag or else we
-            // should ignore the range request
-            String ifRange = header.get("if-range");
-            boolean headerIfRangeMissingOrMatching = (ifRange == null || etag.equals(ifRange));
-
-            String ifNoneMatch = header.get("if-none-match");
-            boolean headerIfNoneMatchPresentAndMatching =
-                    ifNoneMatch != null && ("*".equals(ifNoneMatch) || ifNoneMatch.equals(etag));
-
-            // Change return code and add Content-Range header when skipping is
-            // requested
-            long fileLen = file.length();
-
-            if (headerIfRangeMissingOrMatching && range != null && startFrom >= 0 && startFrom < fileLen) {
-                // range request that matches current etag
-                // and the startFrom of the range is satisfiable
-                if (headerIfNoneMatchPresentAndMatching) {
-                    // range request that matches current etag
-                    // and the startFrom of the range is satisfiable
-                    // would return range from file
-                    // respond with not-modified
-                    res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
-                    res.addHeader("ETag", etag);
-                } else {
-                    if (endAt < 0) {
-                        endAt = fileLen - 1;
-                    }
-                    long newLen = endAt - startFrom + 1;
-                    if (newLen < 0) {
-                        newLen = 0;
-                    }
+        ResponseMetadataCache.Entry entry = ResponseMetadataCache.get().getEntry(file, mime);
+        long fileLen = entry.length;
+        long lastModified = entry.lastModified;
+
+        String range = header.get("range");
+        List<FileRangeResponse.ByteRange> ranges = null;
+        if (range != null) ranges = FileRangeResponse.parseRanges(range, fileLen);
+
+        // get if-range header. If present, it must match etag or last modified date,
+        // or else we should ignore the range request
+        String ifRange = header.get("if-range");
+        if (ifRange != null && !ifRangeMatches(ifRange, entry.etag, lastModified)) {
+            ranges = null;
+        }
 
-                    FileInputStream fis = new FileInputStream(file);
-                    fis.skip(startFrom);
+        // ranges are always about the uncompressed file, so only whole files get compressed
+        boolean gzip = ranges == null && entry.gzipped != null && acceptsGzip(header.get("accept-encoding"));
+        String etag = gzip ? entry.getGzipEtag() : entry.etag;
+
+        String ifNoneMatch = header.get("if-none-match");
+        boolean notModified;
+        if (ifNoneMatch != null) {
+            notModified = etagListMatches(ifNoneMatch, etag);
+        } else {
+            // if-modified-since is only used if there is no if-none-match
+            String ifModifiedSince = header.get("if-modified-since");
+            Date date = ifModifiedSince == null ? null : parseDate(ifModifiedSince);
+            notModified = date != null && lastModified / 1000 * 1000 <= date.getTime();
+        }
 
-                    res = newFixedLengthResponse(Response.Status.PARTIAL_CONTENT, mime, fis, newLen);
-                    res.addHeader("Accept-Ranges", "bytes");
-                    res.addHeader("Content-Length", "" + newLen);
-                    res.addHeader("Content-Range", "bytes " + startFrom + "-" + endAt + "/" + fileLen);
-                    res.addHeader("ETag", etag);
-                    res.addHeader("Last-Modified", RFC_1123.format(new Date(file.lastModified())));
-                }
+        if (ranges != null && ranges.isEmpty()) {
+            // none of the ranges can be satisfied, return the size of the file
+            // 4xx responses are not trumped by if-none-match
+            res = newFixedLengthResponse(Response.Status.RANGE_NOT_SATISFIABLE, NanoHTTPD.MIME_PLAINTEXT, "");
+            res.addHeader("Content-Range", "bytes */" + fileLen);
+            res.addHeader("ETag", etag);
+        } else if (notModified) {
+            // would return the file or the requested ranges of it, unchanged
+            // respond with not-modified, which has no body, so also no Content-Type
+            res = NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_MODIFIED, null, null, 0);
+            res.addHeader("ETag", etag);
+            res.addHeader("Last-Modified", formatDate(lastModified));
+        } else if (!file.canRead()) {
+            res = getForbiddenResponse("Reading file failed.");
+        } else {
+            if (gzip) {
+                res = NanoHTTPD.newFixedLengthResponse(Response.Status.OK, mime,
+                        new ByteArrayInputStream(entry.gzipped), entry.gzipped.length);
+                res.addHeader("Content-Encoding", "gzip");
+            } else if (ranges != null) {
+                res = FileRangeResponse.newRangeResponse(file, fileLen, mime, ranges);
             } else {
+                res = FileRangeResponse.newFileResponse(file, fileLen, mime);
+            }
+            res.addHeader("Accept-Ranges", "bytes");
+            res.addHeader("ETag", etag);
+            res.addHeader("Last-Modified", formatDate(lastModified));
+        }
+        if (entry.gzipped != null) {
+            res.addHeader("Vary", "Accept-Encoding");
+        }
+        return addResponseHeaders(res);
+    }
 
-                if (headerIfRangeMissingOrMatching && range != null && startFrom >= fileLen) {
-                    // return the size of the file
-                    // 4xx responses are not trumped by if-none-match
-                    res = newFixedLengthResponse(Response.Status.RANGE_NOT_SATISFIABLE, NanoHTTPD.MIME_PLAINTEXT, "");
-                    res.addHeader("Content-Range", "bytes */" + fileLen);
-                    res.addHeader("ETag", etag);
-                } else if (range == null && headerIfNoneMatchPresentAndMatching) {
-                    // full-file-fetch request
-                    // would return entire file
-                    // respond with not-modified
-                    res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
-                    res.addHeader("ETag", etag);
-                } else if (!headerIfRangeMissingOrMatching && headerIfNoneMatchPresentAndMatching) {
-                    // range request that doesn't match current etag
-                    // would return entire (different) file
-                    // respond with not-modified
-
-                    res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
-                    res.addHeader("ETag", etag);
-                } else {
-                    // supply the file
-                    res = newFixedFileResponse(file, mime);
-                    res.addHeader("Content-Length", "" + fileLen);
-                    res.addHeader("ETag", etag);
-                    res.addHeader("Last-Modified", RFC_1123.format(new Date(file.lastModified())));
+    /**
+     * {@code If-Range} holds either an entity tag or a date, which both need to match exactly.
+     * Weak entity tags never match.
+     */
+    private static boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+        String value = ifRange.trim();
+        if (value.startsWith("W/")) return false;
+        if (value.equals(etag)) return true;
+        Date date = parseDate(value);
+        // HTTP dates have no milliseconds
+        return date != null && date.getTime() == lastModified / 1000 * 1000;
+    }
+
+    /**
+     * Checks an {@code If-None-Match} list of entity tags with the weak comparison,
+     * so {@code W/} prefixes get ignored.
+     */
+    @VisibleForTesting
+    static boolean etagListMatches(String ifNoneMatch, String etag) {
+        for (String value : ifNoneMatch.split(",")) {
+            String tag = value.trim();
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(etag)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the {@code Accept-Encoding} header allows gzip, taking {@code q=0} into account.
+     */
+    @VisibleForTesting
+    static boolean acceptsGzip(@Nullable String acceptEncoding) {
+        if (acceptEncoding == null) return false;
+        Boolean wildcard = null;
+        for (String value : acceptEncoding.split(",")) {
+            String[] parts = value.split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ENGLISH);
+            boolean accepted = true;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        accepted = Float.parseFloat(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
                 }
             }
-        } catch (IOException ioe) {
-            res = getForbiddenResponse("Reading file failed.");
+            if (coding.equals("gzip") || coding.equals("x-gzip")) return accepted;
+            if (coding.equals("*")) wildcard = accepted;
         }
+        return wildcard != null && wildcard;
+    }
 
-        return addResponseHeaders(res);
+    static String formatDate(long time) {
+        synchronized (RFC_1123) {
+            return RFC_1123.format(new Date(time));
+        }
     }
 
-    private Response newFixedFileResponse(File file, String mime) throws FileNotFoundException {
-        Response res;
-        res = newFixedLengthResponse(Response.Status.OK, mime, new FileInputStream(file), (int) file.length());
-        addResponseHeaders(res);
-        res.addHeader("Accept-Ranges", "bytes");
-        return res;
+    @Nullable
+    static Date parseDate(String date) {
+        synchronized (RFC_1123) {
+            try {
+                return RFC_1123.parse(date);
+            } catch (ParseException e) {
+                return null;
+            }
+        }
     }
 
     private void enableHTTPS() {
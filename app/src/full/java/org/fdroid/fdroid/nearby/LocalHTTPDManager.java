@@ -62,7 +62,7 @@ public class LocalHTTPDManager {
                     LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
                 } catch (BindException e) {
                     FDroidApp.generateNewPort = true;
-                    WifiStateChangeService.start(context, null);
+                    WifiStateChangeService.start(context);
                     Intent intent = new Intent(ACTION_ERROR);
                     intent.putExtra(Intent.EXTRA_TEXT,
                             "port " + FDroidApp.port + " occupied, trying new port: ("
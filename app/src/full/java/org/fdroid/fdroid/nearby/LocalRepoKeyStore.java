@@ -50,8 +50,6 @@ import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.X509KeyManager;
 
-import kellinwood.security.zipsigner.ZipSigner;
-
 // TODO Address exception handling in a uniform way throughout
 
 @SuppressWarnings("LineLength")
@@ -204,20 +202,19 @@ public final class LocalRepoKeyStore {
         return keyManagers;
     }
 
+    /**
+     * Signs the local repo index with SHA1 entry digests, since that is the only
+     * digest that {@link org.fdroid.index.v1.IndexV1Verifier} accepts for them.
+     */
     public void signZip(File input, File output) {
         try {
-            ZipSigner zipSigner = new ZipSigner();
-
             X509Certificate cert = (X509Certificate) keyStore.getCertificate(INDEX_CERT_ALIAS);
 
             KeyPair kp = getKerplappKeypair();
             PrivateKey priv = kp.getPrivate();
 
-            zipSigner.setKeys("kerplapp", cert, priv, DEFAULT_SIG_ALG, null);
-            zipSigner.signZip(input.getAbsolutePath(), output.getAbsolutePath());
-
-        } catch (ClassNotFoundException | IllegalAccessException | InstantiationException |
-                 GeneralSecurityException | IOException e) {
+            new IndexJarSigner(cert, priv, IndexJarSigner.SHA1).sign(input, output);
+        } catch (GeneralSecurityException | IOException e) {
             Log.e(TAG, "Unable to sign local repo index", e);
         }
     }
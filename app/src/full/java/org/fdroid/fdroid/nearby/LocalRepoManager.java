@@ -10,6 +10,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.Preferences;
 import org.fdroid.fdroid.Utils;
@@ -25,15 +26,12 @@ import org.fdroid.index.v1.PackageV1;
 import org.fdroid.index.v1.RepoV1;
 
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -64,6 +62,18 @@ public final class LocalRepoManager {
     };
 
     private final List<App> apps = new ArrayList<>();
+    /**
+     * What got generated for each app, so only changed apps get processed again.
+     */
+    private final IndexV1Creator.Cache indexCache = new IndexV1Creator.Cache();
+    @Nullable
+    private String indexTemplate;
+    /**
+     * The contents of the last written {@code index.html}, so it only gets written when it changes.
+     */
+    @Nullable
+    private String indexPage;
+    private boolean repoGenerated;
 
     private final SanitizedFile indexJar;
     private final SanitizedFile indexJarUnsigned;
@@ -135,10 +145,12 @@ public final class LocalRepoManager {
         final String fdroidClientURL = writeFdroidApkToWebroot();
         try {
             File indexHtml = new File(webRoot, "index.html");
-            BufferedReader in = new BufferedReader(
-                    new InputStreamReader(assetManager.open("index.template.html"), "UTF-8"));
-            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
-                    new FileOutputStream(indexHtml)));
+            if (indexTemplate == null) {
+                try (InputStream in = assetManager.open("index.template.html")) {
+                    // the lines get joined without line breaks, as they always have been
+                    indexTemplate = IOUtils.toString(in, "UTF-8").replace("\r", "").replace("\n", "");
+                }
+            }
 
             StringBuilder builder = new StringBuilder();
             for (App app : apps) {
@@ -156,19 +168,22 @@ public final class LocalRepoManager {
                         .append("</a></li>\n");
             }
 
-            String line;
-            while ((line = in.readLine()) != null) {
-                line = line.replaceAll("\\{\\{REPO_URL\\}\\}", repoAddress);
-                line = line.replaceAll("\\{\\{CLIENT_URL\\}\\}", fdroidClientURL);
-                line = line.replaceAll("\\{\\{APP_LIST\\}\\}", builder.toString());
-                out.write(line);
+            String page = indexTemplate
+                    .replace("{{REPO_URL}}", repoAddress)
+                    .replace("{{CLIENT_URL}}", fdroidClientURL)
+                    .replace("{{APP_LIST}}", builder.toString());
+            if (page.equals(indexPage) && indexHtml.exists()) {
+                Utils.debugLog(TAG, "index.html unchanged");
+                return;
             }
-            in.close();
-            out.close();
+            FileUtils.writeStringToFile(indexHtml, page, "UTF-8");
+            indexPage = page;
 
             for (final String file : WEB_ROOT_ASSET_FILES) {
+                File assetFile = new File(webRoot, file);
+                if (assetFile.exists()) continue;
                 InputStream assetIn = assetManager.open(file);
-                OutputStream assetOut = new FileOutputStream(new File(webRoot, file));
+                OutputStream assetOut = new FileOutputStream(assetFile);
                 Utils.copy(assetIn, assetOut);
                 assetIn.close();
                 assetOut.close();
@@ -246,23 +261,49 @@ public final class LocalRepoManager {
         return webRoot;
     }
 
-    public void deleteRepo() {
+    public synchronized void deleteRepo() {
         deleteContents(repoDir);
+        indexCache.clear();
+        indexPage = null;
+        repoGenerated = false;
+        ResponseMetadataCache.get().invalidate();
     }
 
-    void generateIndex(String repoUri, String address, String[] selectedApps) throws IOException {
+    /**
+     * Updates the repo to contain exactly the {@code selectedApps}.  Only apps that were added
+     * or updated since the last run get processed, the files of removed apps get deleted.
+     * <p>
+     * If the calling thread gets interrupted, because the selection changed again,
+     * this stops before signing the index, so that only the last of a batch of changes gets signed.
+     *
+     * @throws InterruptedIOException if the calling thread got interrupted, the index is then not signed
+     */
+    synchronized void generateIndex(String repoUri, String address, String[] selectedApps) throws IOException {
         String name = Preferences.get().getLocalRepoName() + " on " + FDroidApp.ipAddressString;
         String description =
                 "A local FDroid repo generated from apps installed on " + Preferences.get().getLocalRepoName();
         RepoV1 repo = new RepoV1(System.currentTimeMillis(), 20001, 7, name, "swap-icon.png",
                 address, description, Collections.emptyList());
         Set<String> apps = new HashSet<>(Arrays.asList(selectedApps));
-        IndexV1Creator creator = new IndexV1Creator(context.getPackageManager(), repoDir, apps, repo);
+        IndexV1Creator creator = new IndexV1Creator(context.getPackageManager(), repoDir, apps, repo, indexCache);
         IndexV1 indexV1 = creator.createRepo();
+        repoGenerated = true;
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Selection changed, not signing the index of "
+                    + selectedApps.length + " apps");
+        }
         cacheApps(indexV1);
         writeIndexPage(repoUri);
         SanitizedFile indexJson = new SanitizedFile(repoDir, IndexV1VerifierKt.DATA_FILE_NAME);
         writeIndexJar(indexJson);
+        ResponseMetadataCache.get().invalidate();
+    }
+
+    /**
+     * @return whether the apps in the repo were generated by this process, so it can be updated incrementally.
+     */
+    synchronized boolean hasGeneratedRepo() {
+        return repoGenerated;
     }
 
     private void cacheApps(IndexV1 indexV1) {
@@ -12,6 +12,7 @@ import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.R;
 import org.fdroid.fdroid.Utils;
 
+import java.io.InterruptedIOException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Set;
@@ -100,12 +101,18 @@ public class LocalRepoService extends IntentService {
     public static void runProcess(Context context, String[] selectedApps) {
         try {
             final LocalRepoManager lrm = LocalRepoManager.get(context);
-            broadcast(context, STATUS_PROGRESS, R.string.deleting_repo);
-            lrm.deleteRepo();
+            if (!lrm.hasGeneratedRepo()) {
+                // left over from an earlier run, after that the repo gets updated in place
+                broadcast(context, STATUS_PROGRESS, R.string.deleting_repo);
+                lrm.deleteRepo();
+            }
             broadcast(context, STATUS_PROGRESS, R.string.linking_apks);
             String urlString = Utils.getSharingUri(FDroidApp.repo).toString();
             lrm.generateIndex(urlString, FDroidApp.repo.getAddress(), selectedApps);
             broadcast(context, STATUS_STARTED, null);
+        } catch (InterruptedIOException e) {
+            // replaced by a run for a newer selection of apps, which reports the status
+            Utils.debugLog(TAG, "Cancelled creating repo: " + e.getMessage());
         } catch (Exception e) {
             broadcast(context, STATUS_ERROR, e.getLocalizedMessage());
             Log.e(TAG, "Error creating repo", e);
@@ -0,0 +1,138 @@
+package org.fdroid.fdroid.nearby;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Tracks which IPv4 address swap should use, based on the events of a
+ * {@link android.net.ConnectivityManager.NetworkCallback} and on hotspot changes.
+ * An address of a Wi-Fi or Ethernet network is preferred over a hotspot address.
+ * <p>
+ * The {@link Listener} only hears about it when the chosen address actually changes.
+ * Events that repeat what is already known, like the duplicate {@code CONNECTED} events
+ * that some devices send, or a DHCP renewal that keeps the same lease, do not cause
+ * the swap services to be set up again.
+ * <p>
+ * This is not thread-safe, all events need to come from the same thread.
+ */
+final class NetworkStateMachine {
+
+    static final class Address {
+        final String interfaceName;
+        final String hostAddress;
+        final int prefixLength;
+
+        Address(String interfaceName, String hostAddress, int prefixLength) {
+            this.interfaceName = interfaceName;
+            this.hostAddress = hostAddress;
+            this.prefixLength = prefixLength;
+        }
+
+        String getCidr() {
+            return String.format(Locale.ENGLISH, "%s/%d", hostAddress, prefixLength);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Address)) return false;
+            Address address = (Address) o;
+            return prefixLength == address.prefixLength
+                    && hostAddress.equals(address.hostAddress)
+                    && Objects.equals(interfaceName, address.interfaceName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(interfaceName, hostAddress, prefixLength);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return interfaceName + " " + getCidr();
+        }
+    }
+
+    interface Listener {
+        /**
+         * @param address the new address, or {@code null} if there is none anymore
+         */
+        void onAddressChanged(@Nullable Address address);
+    }
+
+    private final Listener listener;
+    /**
+     * The address of each network, {@code null} for connected networks that do not
+     * have an IPv4 address yet.  In the order they connected, so the address does not
+     * jump between networks when one of them changes.
+     */
+    private final Map<Object, Address> networks = new LinkedHashMap<>();
+    @Nullable
+    private Address hotspot;
+    @Nullable
+    private Address current;
+
+    NetworkStateMachine(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Nullable
+    Address getAddress() {
+        return current;
+    }
+
+    /**
+     * @param network e.g. a {@link android.net.Network}
+     * @param address the IPv4 address of {@code network}, {@code null} if it has none yet
+     */
+    void onLinkPropertiesChanged(Object network, @Nullable Address address) {
+        networks.put(network, address);
+        update();
+    }
+
+    void onLost(Object network) {
+        networks.remove(network);
+        update();
+    }
+
+    /**
+     * @param address the address of the hotspot, {@code null} if it is off
+     */
+    void onHotspotChanged(@Nullable Address address) {
+        hotspot = address;
+        update();
+    }
+
+    /**
+     * @return whether {@code interfaceName} belongs to a network that is already tracked,
+     * so its address cannot be a hotspot
+     */
+    boolean isNetworkInterface(String interfaceName) {
+        for (Address address : networks.values()) {
+            if (address != null && interfaceName.equals(address.interfaceName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void update() {
+        Address address = hotspot;
+        for (Address networkAddress : networks.values()) {
+            if (networkAddress != null) {
+                address = networkAddress;
+                break;
+            }
+        }
+        if (!Objects.equals(address, current)) {
+            current = address;
+            listener.onAddressChanged(address);
+        }
+    }
+}
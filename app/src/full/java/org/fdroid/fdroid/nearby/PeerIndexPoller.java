@@ -0,0 +1,84 @@
+package org.fdroid.fdroid.nearby;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import org.fdroid.database.Repository;
+import org.fdroid.download.Downloader;
+import org.fdroid.download.HttpDownloader;
+import org.fdroid.download.NotFoundException;
+import org.fdroid.fdroid.Utils;
+import org.fdroid.index.SigningException;
+import org.fdroid.index.v1.IndexV1;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Fetches the {@code index-v1.jar} of a connected swap peer over and over again, but only
+ * downloads, verifies and parses it when it actually changed since the last successful poll.
+ * <p>
+ * {@link LocalHTTPD} gives every file a strong {@code ETag}, so over HTTP this just needs the
+ * {@code HEAD} request that {@link HttpDownloader} does anyway when it has a
+ * {@link Downloader#getCacheTag() cache tag}.  Like for any other repo, the {@code ETag} is
+ * never sent to the peer.  Other transports, like Bluetooth, always fetch the whole index.
+ */
+class PeerIndexPoller {
+
+    private static final String TAG = "PeerIndexPoller";
+
+    private final Repository repo;
+    private final String expectedSigningFingerprint;
+    private final File cacheDir;
+
+    /**
+     * The {@code ETag} of the last index that was successfully verified, if any.
+     */
+    @Nullable
+    private String cacheTag;
+
+    PeerIndexPoller(Repository repo, String expectedSigningFingerprint, File cacheDir) {
+        this.repo = repo;
+        this.expectedSigningFingerprint = expectedSigningFingerprint;
+        this.cacheDir = cacheDir;
+    }
+
+    Repository getRepo() {
+        return repo;
+    }
+
+    /**
+     * @return the verified index, or null, if it has not changed since the last call
+     */
+    @Nullable
+    @SuppressWarnings("deprecation") // swap repos are v1 repos
+    IndexV1 poll() throws IOException, InterruptedException, SigningException, NotFoundException {
+        File swapJarFile = File.createTempFile("swap", "", cacheDir);
+        try {
+            Downloader downloader = SwapService.createIndexDownloader(repo, swapJarFile);
+            boolean conditional = cacheTag != null && downloader instanceof HttpDownloader;
+            if (conditional) {
+                downloader.setCacheTag(cacheTag);
+            }
+            downloader.download();
+            if (conditional && !downloader.hasChanged()) {
+                Utils.debugLog(TAG, "Index of " + repo.getAddress() + " has not changed.");
+                return null;
+            }
+            IndexV1 index = verify(swapJarFile);
+            // only remember it now, so an index that failed to verify gets fetched again
+            cacheTag = downloader.getCacheTag();
+            return index;
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            swapJarFile.delete();
+        }
+    }
+
+    @NonNull
+    @VisibleForTesting
+    IndexV1 verify(File swapJarFile) throws SigningException {
+        return SwapService.verifyRepoIndex(swapJarFile, expectedSigningFingerprint);
+    }
+}
@@ -0,0 +1,315 @@
+package org.fdroid.fdroid.nearby;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Process;
+import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Document;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import org.fdroid.index.v1.IndexV1UpdaterKt;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Searches a directory tree for repos, which are the directories that contain a
+ * {@link IndexV1UpdaterKt#SIGNED_FILE_NAME}.  Each directory gets listed with a single
+ * call that returns the name, type and last modified time of all of its entries, and
+ * subtrees get searched in parallel on at most {@link #MAX_THREADS} threads.
+ * <p>
+ * Directories that cannot hold a repo are skipped: hidden and system directories, the
+ * per-app directories in {@code Android/}, and everything below a repo, like the icons and
+ * the per-app metadata.  The listing of each directory is cached with its last modified
+ * time, which only changes when entries get added, removed or renamed.  So scanning the
+ * same tree again only needs to check the time of each directory, and only lists the
+ * directories that changed.
+ *
+ * @param <D> how a directory is referred to, e.g. a {@link File} or a document ID
+ */
+abstract class RepoTreeScanner<D> {
+    private static final String TAG = "RepoTreeScanner";
+
+    @VisibleForTesting
+    static final int MAX_THREADS = 4;
+
+    /**
+     * The number of directory entries to keep in each cache.
+     */
+    private static final int CACHE_SIZE = 50_000;
+
+    private static final long UNKNOWN = -1;
+
+    private static final List<String> SKIP_DIRS = Arrays.asList(
+            ".android_secure",
+            "Android",
+            "LOST.DIR",
+            "System Volume Information",
+            "$RECYCLE.BIN"
+    );
+
+    static final class Entry<D> {
+        final D dir;
+        final String name;
+        final boolean isDirectory;
+        /**
+         * Only set for directories, {@code 0} if not known.
+         */
+        final long lastModified;
+
+        Entry(D dir, String name, boolean isDirectory, long lastModified) {
+            this.dir = dir;
+            this.name = name;
+            this.isDirectory = isDirectory;
+            this.lastModified = lastModified;
+        }
+    }
+
+    static final class Listing<D> {
+        final long lastModified;
+        final List<Entry<D>> entries;
+
+        Listing(long lastModified, List<Entry<D>> entries) {
+            this.lastModified = lastModified;
+            this.entries = entries;
+        }
+    }
+
+    static <D> LruCache<String, Listing<D>> createCache() {
+        return new LruCache<String, Listing<D>>(CACHE_SIZE) {
+            @Override
+            protected int sizeOf(String key, Listing<D> listing) {
+                return listing.entries.size() + 1;
+            }
+        };
+    }
+
+    private final LruCache<String, Listing<D>> cache;
+    private final List<D> repos = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger pending = new AtomicInteger();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private ExecutorService executor;
+
+    RepoTreeScanner(LruCache<String, Listing<D>> cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @return all entries of {@code dir}, or an empty list if it cannot be read
+     */
+    @NonNull
+    abstract List<Entry<D>> listEntries(D dir);
+
+    /**
+     * @return the last modified time of {@code dir}, or {@code 0} if not known
+     */
+    abstract long getLastModified(D dir);
+
+    /**
+     * @return a key that is unique for {@code dir} in its {@link #cache}
+     */
+    abstract String getKey(D dir);
+
+    /**
+     * Searches all of {@code roots} and blocks until done.  Each root gets searched,
+     * even if it would be skipped as a subdirectory.  This can only be called once.
+     *
+     * @return the directories that contain a repo index
+     */
+    List<D> scan(List<D> roots) throws InterruptedException {
+        if (roots.isEmpty()) {
+            return Collections.emptyList();
+        }
+        executor = Executors.newFixedThreadPool(MAX_THREADS, runnable -> new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+            runnable.run();
+        }, TAG));
+        try {
+            for (D root : roots) {
+                submit(root, UNKNOWN);
+            }
+            done.await();
+        } finally {
+            executor.shutdownNow();
+        }
+        synchronized (repos) {
+            return new ArrayList<>(repos);
+        }
+    }
+
+    static boolean isSkipped(String name) {
+        return name == null || name.startsWith(".") || SKIP_DIRS.contains(name);
+    }
+
+    private void submit(D dir, long lastModified) {
+        pending.incrementAndGet();
+        executor.execute(() -> {
+            try {
+                searchDirectory(dir, lastModified);
+            } catch (RuntimeException e) {
+                // e.g. the storage got removed or the provider crashed
+                Log.w(TAG, "Could not search " + getKey(dir) + ": " + e);
+            } finally {
+                if (pending.decrementAndGet() == 0) {
+                    done.countDown();
+                }
+            }
+        });
+    }
+
+    /**
+     * @param lastModified the time from a fresh listing of the parent directory, or
+     *                     {@link #UNKNOWN} if that needs to be looked up
+     */
+    private void searchDirectory(D dir, long lastModified) {
+        if (lastModified == UNKNOWN) {
+            lastModified = getLastModified(dir);
+        }
+        String key = getKey(dir);
+        Listing<D> listing = cache.get(key);
+        boolean fresh = false;
+        if (listing == null || lastModified <= 0 || listing.lastModified != lastModified) {
+            listing = new Listing<>(lastModified, listEntries(dir));
+            fresh = true;
+            if (lastModified > 0) {
+                cache.put(key, listing);
+            } else {
+                cache.remove(key);
+            }
+        }
+        for (Entry<D> entry : listing.entries) {
+            if (!entry.isDirectory && IndexV1UpdaterKt.SIGNED_FILE_NAME.equals(entry.name)) {
+                repos.add(dir);
+                return;
+            }
+        }
+        for (Entry<D> entry : listing.entries) {
+            if (entry.isDirectory && !isSkipped(entry.name)) {
+                // the times of the entries of a cached listing might be out of date
+                submit(entry.dir, fresh ? entry.lastModified : UNKNOWN);
+            }
+        }
+    }
+
+    /**
+     * Searches the file system, e.g. an SD Card.
+     */
+    static final class FileScanner extends RepoTreeScanner<File> {
+        private static final LruCache<String, Listing<File>> CACHE = createCache();
+
+        FileScanner() {
+            super(CACHE);
+        }
+
+        @NonNull
+        @Override
+        List<Entry<File>> listEntries(File dir) {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                return Collections.emptyList();
+            }
+            List<Entry<File>> entries = new ArrayList<>(files.length);
+            for (File file : files) {
+                String name = file.getName();
+                if (IndexV1UpdaterKt.SIGNED_FILE_NAME.equals(name)) {
+                    entries.add(new Entry<>(file, name, false, 0));
+                } else if (!isSkipped(name) && file.isDirectory()) {
+                    entries.add(new Entry<>(file, name, true, file.lastModified()));
+                }
+            }
+            return entries;
+        }
+
+        @Override
+        long getLastModified(File dir) {
+            return dir.lastModified();
+        }
+
+        @Override
+        String getKey(File dir) {
+            return dir.getAbsolutePath();
+        }
+    }
+
+    /**
+     * Searches a tree from the Storage Access Framework, e.g. a USB OTG thumb drive.  This
+     * queries {@link DocumentsContract#buildChildDocumentsUriUsingTree(Uri, String)} once
+     * per directory, instead of once for each property of each {@link
+     * androidx.documentfile.provider.DocumentFile}.
+     */
+    static final class DocumentScanner extends RepoTreeScanner<String> {
+        private static final LruCache<String, Listing<String>> CACHE = createCache();
+
+        private static final String[] CHILD_PROJECTION = {
+                Document.COLUMN_DOCUMENT_ID,
+                Document.COLUMN_DISPLAY_NAME,
+                Document.COLUMN_MIME_TYPE,
+                Document.COLUMN_LAST_MODIFIED,
+        };
+        private static final String[] LAST_MODIFIED_PROJECTION = {Document.COLUMN_LAST_MODIFIED};
+
+        private final ContentResolver contentResolver;
+        private final Uri treeUri;
+
+        DocumentScanner(ContentResolver contentResolver, Uri treeUri) {
+            super(CACHE);
+            this.contentResolver = contentResolver;
+            this.treeUri = treeUri;
+        }
+
+        String getRootDocumentId() {
+            return DocumentsContract.getTreeDocumentId(treeUri);
+        }
+
+        Uri getDocumentUri(String documentId) {
+            return DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId);
+        }
+
+        @NonNull
+        @Override
+        List<Entry<String>> listEntries(String documentId) {
+            Uri uri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, documentId);
+            List<Entry<String>> entries = new ArrayList<>();
+            try (Cursor cursor = contentResolver.query(uri, CHILD_PROJECTION, null, null, null)) {
+                if (cursor == null) {
+                    return entries;
+                }
+                while (cursor.moveToNext()) {
+                    String name = cursor.getString(1);
+                    boolean isDirectory = Document.MIME_TYPE_DIR.equals(cursor.getString(2));
+                    long lastModified = cursor.isNull(3) ? 0 : cursor.getLong(3);
+                    entries.add(new Entry<>(cursor.getString(0), name, isDirectory, lastModified));
+                }
+            }
+            return entries;
+        }
+
+        @Override
+        long getLastModified(String documentId) {
+            Uri uri = getDocumentUri(documentId);
+            try (Cursor cursor = contentResolver.query(uri, LAST_MODIFIED_PROJECTION, null, null, null)) {
+                if (cursor == null || !cursor.moveToFirst() || cursor.isNull(0)) {
+                    return 0;
+                }
+                return cursor.getLong(0);
+            }
+        }
+
+        @Override
+        String getKey(String documentId) {
+            return getDocumentUri(documentId).toString();
+        }
+    }
+}
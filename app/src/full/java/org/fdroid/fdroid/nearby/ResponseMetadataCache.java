@@ -0,0 +1,234 @@
+package org.fdroid.fdroid.nearby;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import vendored.org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Keeps what {@link LocalHTTPD} needs to know about the files it serves, so that it does not need
+ * to be recomputed for every request: a strong {@code ETag}, the MIME type, the size and,
+ * for text files like the index JSON and {@code index.html}, a precompressed gzip variant.
+ * The {@link ChunkManifest}s of files get cached the same way, once they were asked for.
+ * <p>
+ * Entries are keyed by the absolute path and only used while the modification time and size
+ * of the file stay the same.  Since the swap repo can be regenerated within the resolution of
+ * the modification time, {@link LocalRepoManager} also {@link #invalidate() invalidates}
+ * everything whenever it changes the webroot.  The least recently used entries get dropped
+ * once there are too many of them or their gzip variants get too large together.
+ */
+final class ResponseMetadataCache {
+
+    private static final String TAG = "ResponseMetadataCache";
+
+    /**
+     * Larger text files get served uncompressed, to keep the memory use of the cache bounded.
+     */
+    @VisibleForTesting
+    static final long MAX_COMPRESSIBLE_SIZE = 4 * 1024 * 1024;
+    @VisibleForTesting
+    static final int MAX_ENTRIES = 256;
+    @VisibleForTesting
+    static final long MAX_GZIPPED_BYTES = 16 * 1024 * 1024;
+    @VisibleForTesting
+    static final int MAX_MANIFESTS = 64;
+
+    private static final ResponseMetadataCache INSTANCE = new ResponseMetadataCache();
+
+    static final class Entry {
+        final long lastModified;
+        final long length;
+        final String mimeType;
+        /**
+         * The strong {@code ETag} of the uncompressed file, including its quotes.
+         */
+        final String etag;
+        /**
+         * The whole file compressed with gzip, or null, if it is not worth compressing.
+         */
+        @Nullable
+        final byte[] gzipped;
+
+        private Entry(long lastModified, long length, String mimeType, String etag, @Nullable byte[] gzipped) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.mimeType = mimeType;
+            this.etag = etag;
+            this.gzipped = gzipped;
+        }
+
+        /**
+         * The {@code ETag} of the gzip variant, which needs to be different,
+         * because it is not byte-for-byte the same as the file.
+         */
+        String getGzipEtag() {
+            return etag.substring(0, etag.length() - 1) + "-gzip\"";
+        }
+    }
+
+    /**
+     * In access order, so the first entry is the least recently used one.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, ManifestEntry> manifests =
+            new LinkedHashMap<String, ManifestEntry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ManifestEntry> eldest) {
+                    return size() > MAX_MANIFESTS;
+                }
+            };
+    /**
+     * The size of all gzip variants in {@link #entries}.
+     */
+    private long gzippedBytes = 0;
+
+    private static final class ManifestEntry {
+        final long lastModified;
+        final ChunkManifest manifest;
+
+        private ManifestEntry(long lastModified, ChunkManifest manifest) {
+            this.lastModified = lastModified;
+            this.manifest = manifest;
+        }
+    }
+
+    static ResponseMetadataCache get() {
+        return INSTANCE;
+    }
+
+    @VisibleForTesting
+    ResponseMetadataCache() {
+    }
+
+    /**
+     * Gets the cached metadata for {@code file}, or computes it, if the file is new or changed.
+     * This reads and compresses text files, so it should not be called on the UI thread.
+     */
+    @NonNull
+    Entry getEntry(File file, String mimeType) {
+        String path = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        synchronized (entries) {
+            Entry entry = entries.get(path);
+            if (entry != null && entry.lastModified == lastModified && entry.length == length
+                    && entry.mimeType.equals(mimeType)) {
+                return entry;
+            }
+        }
+        Entry entry = createEntry(file, lastModified, length, mimeType);
+        synchronized (entries) {
+            Entry old = entries.put(path, entry);
+            if (old != null) gzippedBytes -= getGzippedLength(old);
+            gzippedBytes += getGzippedLength(entry);
+            Iterator<Entry> iterator = entries.values().iterator();
+            // the new entry is the last one, it always stays
+            while ((entries.size() > MAX_ENTRIES || gzippedBytes > MAX_GZIPPED_BYTES) && entries.size() > 1) {
+                gzippedBytes -= getGzippedLength(iterator.next());
+                iterator.remove();
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * @return the number of cached entries, the {@link ChunkManifest}s not included.
+     */
+    @VisibleForTesting
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private static long getGzippedLength(Entry entry) {
+        return entry.gzipped == null ? 0 : entry.gzipped.length;
+    }
+
+    /**
+     * Gets the cached {@link ChunkManifest} of {@code file}, or computes it, which means
+     * reading the whole file, if it is new or changed.
+     */
+    @NonNull
+    ChunkManifest getChunkManifest(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        synchronized (manifests) {
+            ManifestEntry entry = manifests.get(path);
+            if (entry != null && entry.lastModified == lastModified && entry.manifest.getLength() == length) {
+                return entry.manifest;
+            }
+        }
+        ChunkManifest manifest = ChunkManifest.create(file, ChunkManifest.DEFAULT_CHUNK_SIZE);
+        if (manifest.getLength() != length) {
+            throw new IOException(file + " changed while hashing it");
+        }
+        synchronized (manifests) {
+            manifests.put(path, new ManifestEntry(lastModified, manifest));
+        }
+        return manifest;
+    }
+
+    /**
+     * Forgets everything, so all files get looked at again on their next request.
+     */
+    void invalidate() {
+        synchronized (entries) {
+            entries.clear();
+            gzippedBytes = 0;
+        }
+        synchronized (manifests) {
+            manifests.clear();
+        }
+    }
+
+    private static Entry createEntry(File file, long lastModified, long length, String mimeType) {
+        if (isCompressible(mimeType) && length <= MAX_COMPRESSIBLE_SIZE) {
+            try {
+                byte[] data = FileUtils.readFileToByteArray(file);
+                if (data.length == length) {
+                    // small enough to hash the content, so the ETag changes exactly when the content does
+                    String etag = "\"" + DigestUtils.sha256Hex(data).substring(0, 32) + "\"";
+                    byte[] gzipped = gzip(data);
+                    return new Entry(lastModified, length, mimeType, etag,
+                            gzipped.length < data.length ? gzipped : null);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read " + file + ", not compressing it: " + e.getMessage());
+            }
+        }
+        // like Apache and nginx, based on the modification time and size
+        String etag = String.format(Locale.ENGLISH, "\"%x-%x-%x\"",
+                file.getAbsolutePath().hashCode(), lastModified, length);
+        return new Entry(lastModified, length, mimeType, etag, null);
+    }
+
+    private static boolean isCompressible(String mimeType) {
+        return mimeType.startsWith("text/")
+                || mimeType.equals("application/json")
+                || mimeType.equals("application/xml");
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length / 4);
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream)) {
+            gzipOutputStream.write(data);
+        }
+        return outputStream.toByteArray();
+    }
+}
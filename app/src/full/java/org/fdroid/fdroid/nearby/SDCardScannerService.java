@@ -33,14 +33,11 @@ import androidx.core.app.JobIntentService;
 import androidx.core.content.ContextCompat;
 
 import org.fdroid.fdroid.Utils;
-import org.fdroid.index.v1.IndexV1UpdaterKt;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.List;
 
 /**
  * An {@link JobIntentService} subclass for scanning removable "external storage"
@@ -66,8 +63,6 @@ public class SDCardScannerService extends JobIntentService {
 
     private static final String ACTION_SCAN = "org.fdroid.fdroid.nearby.SCAN";
 
-    private static final List<String> SKIP_DIRS = Arrays.asList(".android_secure", "LOST.DIR");
-
     public static void scan(Context context) {
         Intent intent = new Intent(context, SDCardScannerService.class);
         intent.setAction(ACTION_SCAN);
@@ -109,12 +104,18 @@ public class SDCardScannerService extends JobIntentService {
         }
 
         Log.i(TAG, "sdcard files " + files.toString());
-        ArrayList<String> filesList = new ArrayList<>();
+        ArrayList<File> roots = new ArrayList<>();
         for (File dir : files) {
-            if (!dir.isDirectory()) {
-                continue;
+            if (!RepoTreeScanner.isSkipped(dir.getName()) && dir.isDirectory()) {
+                roots.add(dir);
+            }
+        }
+        try {
+            for (File repoDir : new RepoTreeScanner.FileScanner().scan(roots)) {
+                TreeUriScannerIntentService.registerRepo(this, Uri.fromFile(repoDir));
             }
-            searchDirectory(dir);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -132,27 +133,4 @@ public class SDCardScannerService extends JobIntentService {
             return files;
         }
     }
-
-    private void searchDirectory(File dir) {
-        if (SKIP_DIRS.contains(dir.getName())) {
-            return;
-        }
-        File[] files = dir.listFiles();
-        if (files == null) {
-            return;
-        }
-        for (File file : files) {
-            if (file.isDirectory()) {
-                searchDirectory(file);
-            } else {
-                if (IndexV1UpdaterKt.SIGNED_FILE_NAME.equals(file.getName())) {
-                    registerRepo(file);
-                }
-            }
-        }
-    }
-
-    private void registerRepo(File file) {
-        TreeUriScannerIntentService.registerRepo(this, Uri.fromFile(file.getParentFile()));
-    }
-}
\ No newline at end of file
+}
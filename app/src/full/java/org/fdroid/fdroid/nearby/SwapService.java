@@ -27,6 +27,7 @@ import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
+import org.fdroid.IndexFile;
 import org.fdroid.database.Repository;
 import org.fdroid.download.Downloader;
 import org.fdroid.download.NotFoundException;
@@ -114,6 +115,8 @@ public class SwapService extends Service {
         if (getPeer() == null) {
             throw new IllegalStateException("Cannot connect to peer, no peer has been selected.");
         }
+        // always fetch the whole index when the user connects
+        peerIndexPoller = null;
         connectTo(getPeer());
         if (LocalHTTPDManager.isAlive() && getPeer().shouldPromptForSwapBack()) {
             askServerToSwapWithUs(peerRepo);
@@ -124,9 +127,14 @@ public class SwapService extends Service {
         if (peer != this.peer) {
             Log.e(TAG, "Oops, got a different peer to swap with than initially planned.");
         }
-        peerRepo = FDroidApp.createSwapRepo(peer.getRepoAddress(), null);
+        PeerIndexPoller poller = peerIndexPoller;
+        if (poller == null || !poller.getRepo().getAddress().equals(peer.getRepoAddress())) {
+            peerRepo = FDroidApp.createSwapRepo(peer.getRepoAddress(), null);
+            poller = new PeerIndexPoller(peerRepo, peer.getFingerprint(), getApplicationContext().getCacheDir());
+            peerIndexPoller = poller;
+        }
         try {
-            updateRepo(peer, peerRepo);
+            updateRepo(poller);
         } catch (Exception e) {
             Log.e(TAG, "Error updating repo.", e);
             indexError.postValue(e);
@@ -139,14 +147,32 @@ public class SwapService extends Service {
      */
     public static IndexV1 getVerifiedRepoIndex(Repository repo, String expectedSigningFingerprint, File swapJarFile)
             throws SigningException, IOException, NotFoundException, InterruptedException {
+        Downloader downloader = createIndexDownloader(repo, swapJarFile);
+        downloader.download();
+        return verifyRepoIndex(swapJarFile, expectedSigningFingerprint);
+    }
+
+    static Downloader createIndexDownloader(Repository repo, File swapJarFile) throws IOException {
         Uri uri = Uri.parse(repo.getAddress())
                 .buildUpon()
                 .appendPath(IndexV1UpdaterKt.SIGNED_FILE_NAME)
                 .build();
         FileV2 indexFile = FileV2.fromPath("/" + IndexV1UpdaterKt.SIGNED_FILE_NAME);
-        Downloader downloader =
-                DownloaderFactory.INSTANCE.createWithTryFirstMirror(repo, uri, indexFile, swapJarFile);
-        downloader.download();
+        return DownloaderFactory.INSTANCE.createWithTryFirstMirror(repo, uri, indexFile, swapJarFile);
+    }
+
+    /**
+     * Creates a {@link SwarmDownloader}, if other peers nearby might have the same file.
+     *
+     * @return null if the file should be downloaded from {@code downloadUrl} only
+     */
+    @Nullable
+    public static Downloader createSwarmDownloader(Uri downloadUrl, IndexFile indexFile, File destFile)
+            throws InterruptedException {
+        return SwarmDownloader.create(downloadUrl, indexFile, destFile);
+    }
+
+    static IndexV1 verifyRepoIndex(File swapJarFile, String expectedSigningFingerprint) throws SigningException {
         IndexV1Verifier verifier = new IndexV1Verifier(swapJarFile, null, expectedSigningFingerprint);
         return verifier.getStreamAndVerify(inputStream ->
                 IndexParserKt.parseV1(IndexParser.INSTANCE, inputStream)
@@ -157,14 +183,17 @@ public class SwapService extends Service {
      * Start updating the swap repo.  If {@code index-v1.jar} is not found,
      * then check if {@code index.jar} aka v0 is present.  If so, then the
      * other side is using an old F-Droid version, so tell the user.
+     * The index is only posted if it changed since the last update.
      */
-    private void updateRepo(@NonNull Peer peer, Repository repo)
+    private void updateRepo(@NonNull PeerIndexPoller poller)
             throws IOException, InterruptedException, SigningException, NotFoundException {
-        File swapJarFile =
-                File.createTempFile("swap", "", getApplicationContext().getCacheDir());
+        Repository repo = poller.getRepo();
         File ignoredFile;
         try {
-            index.postValue(getVerifiedRepoIndex(repo, peer.getFingerprint(), swapJarFile));
+            IndexV1 newIndex = poller.poll();
+            if (newIndex != null) {
+                index.postValue(newIndex);
+            }
             startPollingConnectedSwapRepo();
         } catch (org.fdroid.download.NotFoundException e) {
             String index = "index.jar";
@@ -176,9 +205,6 @@ public class SwapService extends Service {
             downloader.download();
             String msg = getApplicationContext().getString(R.string.swap_connection_indexv0_error);
             throw new FileNotFoundException(msg);
-        } finally {
-            //noinspection ResultOfMethodCallIgnored
-            swapJarFile.delete();
         }
     }
 
@@ -206,6 +232,9 @@ public class SwapService extends Service {
     @Nullable
     private Repository peerRepo;
 
+    @Nullable
+    private volatile PeerIndexPoller peerIndexPoller;
+
     public void swapWith(Peer peer) {
         this.peer = peer;
     }
@@ -358,6 +387,13 @@ public class SwapService extends Service {
 
     private final CompositeDisposable compositeDisposable = new CompositeDisposable();
 
+    /**
+     * What the Wi-Fi services were last bound to.
+     *
+     * @see #restartWiFiServices()
+     */
+    private String wiFiServicesAddress;
+
     public class Binder extends android.os.Binder {
         public SwapService getService() {
             return SwapService.this;
@@ -414,6 +450,7 @@ public class SwapService extends Service {
 
         BonjourManager.start(this);
         BonjourManager.setVisible(this, getWifiVisibleUserPreference() || getHotspotActivatedUserPreference());
+        wiFiServicesAddress = getWiFiServicesAddress();
     }
 
     private void askServerToSwapWithUs(final Repository repo) {
@@ -518,6 +555,7 @@ public class SwapService extends Service {
         }
 
         stopPollingConnectedSwapRepo();
+        SwarmDownloader.clearPeers();
 
         if (timer != null) {
             timer.cancel();
@@ -584,16 +622,37 @@ public class SwapService extends Service {
         }, TIMEOUT);
     }
 
+    /**
+     * @return the address that {@link LocalHTTPD} and {@link BonjourManager} need to be
+     * bound to, or {@code null} if there is no Wi-Fi or hotspot address
+     */
+    private static String getWiFiServicesAddress() {
+        if (FDroidApp.ipAddressString == null) {
+            return null;
+        }
+        String scheme = Preferences.get().isLocalRepoHttpsEnabled() ? "https" : "http";
+        return scheme + "://" + FDroidApp.ipAddressString + ":" + FDroidApp.port;
+    }
+
+    /**
+     * Only rebinds {@link LocalHTTPD} and {@link BonjourManager} when the address, the port
+     * or the scheme changed, since that makes them unreachable for a moment.
+     */
     private void restartWiFiServices() {
-        boolean hasIp = FDroidApp.ipAddressString != null;
-        if (hasIp) {
+        String address = getWiFiServicesAddress();
+        if (address == null) {
+            BonjourManager.stop(this);
+            LocalHTTPDManager.stop(this);
+        } else if (!address.equals(wiFiServicesAddress)
+                || !LocalHTTPDManager.isAlive() || !BonjourManager.isAlive()) {
             LocalHTTPDManager.restart(this);
             BonjourManager.restart(this);
             BonjourManager.setVisible(this, getWifiVisibleUserPreference() || getHotspotActivatedUserPreference());
         } else {
-            BonjourManager.stop(this);
-            LocalHTTPDManager.stop(this);
+            Utils.debugLog(TAG, "Still bound to " + address);
+            BonjourManager.setVisible(this, getWifiVisibleUserPreference() || getHotspotActivatedUserPreference());
         }
+        wiFiServicesAddress = address;
     }
 
     private final Preferences.ChangeListener httpsEnabledListener = this::restartWiFiServices;
@@ -627,21 +686,27 @@ public class SwapService extends Service {
     private final BroadcastReceiver bluetoothPeerFound = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            activePeers.add((Peer) intent.getParcelableExtra(BluetoothManager.EXTRA_PEER));
+            Peer peer = intent.getParcelableExtra(BluetoothManager.EXTRA_PEER);
+            activePeers.add(peer);
+            SwarmDownloader.addPeer(peer);
         }
     };
 
     private final BroadcastReceiver bonjourPeerFound = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            activePeers.add((Peer) intent.getParcelableExtra(BonjourManager.EXTRA_BONJOUR_PEER));
+            Peer peer = intent.getParcelableExtra(BonjourManager.EXTRA_BONJOUR_PEER);
+            activePeers.add(peer);
+            SwarmDownloader.addPeer(peer);
         }
     };
 
     private final BroadcastReceiver bonjourPeerRemoved = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            activePeers.remove((Peer) intent.getParcelableExtra(BonjourManager.EXTRA_BONJOUR_PEER));
+            Peer peer = intent.getParcelableExtra(BonjourManager.EXTRA_BONJOUR_PEER);
+            activePeers.remove(peer);
+            SwarmDownloader.removePeer(peer);
         }
     };
 }
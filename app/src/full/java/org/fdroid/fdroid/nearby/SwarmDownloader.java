@@ -0,0 +1,529 @@
+package org.fdroid.fdroid.nearby;
+
+import android.annotation.SuppressLint;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.fdroid.IndexFile;
+import org.fdroid.download.Downloader;
+import org.fdroid.download.NotFoundException;
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.nearby.httpish.Request;
+import org.fdroid.fdroid.nearby.httpish.Response;
+import org.fdroid.fdroid.nearby.peers.Peer;
+import org.fdroid.fdroid.net.BluetoothDownloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads a file from all nearby peers that have it at the same time.  Each peer gets asked
+ * for the {@link ChunkManifest} of the file, and only the peers with the SHA-256 of the file
+ * from the index take part.  Each one then gets the next missing chunk as soon as it is done with
+ * its last one, so faster peers send more.  Every chunk is checked against the manifest when it
+ * arrives, a chunk that fails, e.g. because its peer went away, goes to the next peer.
+ * <p>
+ * The chunks get written in order through {@link #downloadFromStream(boolean)}, which also
+ * checks the SHA-256 of the whole file, since a manifest is only as trustworthy as its peer.
+ * If no peer has a manifest, e.g. because they all run an older version, {@link #create}
+ * returns null, so the file gets downloaded with the usual {@link Downloader}.
+ */
+public class SwarmDownloader extends Downloader {
+
+    private static final String TAG = "SwarmDownloader";
+
+    private static final String REPO_PATH = "/fdroid/repo";
+    private static final int TIMEOUT_MILLIS = 10_000;
+    private static final int MAX_MANIFEST_LENGTH = 1024 * 1024;
+    /**
+     * How many chunks can be downloaded ahead of the one that gets written next,
+     * which limits how much memory the chunks take up.
+     */
+    @VisibleForTesting
+    static final int MAX_CHUNKS_AHEAD = 8;
+    /**
+     * A peer that fails this many times in a row is considered gone.
+     */
+    private static final int MAX_FAILURES = 2;
+
+    /**
+     * The repo addresses of the peers found nearby, see {@link #addPeer(Peer)}.
+     */
+    private static final Set<String> PEER_REPO_ADDRESSES = new LinkedHashSet<>();
+
+    /**
+     * A peer that might have the file.
+     */
+    interface Source {
+        /**
+         * @return the manifest, or null if the peer does not have the file or cannot tell its chunks
+         */
+        @Nullable
+        ChunkManifest getChunkManifest() throws IOException;
+
+        byte[] getRange(long offset, int length) throws IOException;
+
+        void close();
+    }
+
+    private final List<Source> sources;
+    @Nullable
+    private ChunkManifest manifest;
+    @Nullable
+    private List<Source> swarm;
+    @Nullable
+    private InputStream inputStream;
+    @Nullable
+    private ExecutorService executor;
+
+    /**
+     * @param sources the peer the download was meant for comes first
+     */
+    @VisibleForTesting
+    SwarmDownloader(List<Source> sources, IndexFile indexFile, File destFile) {
+        super(indexFile, destFile);
+        this.sources = sources;
+    }
+
+    static void addPeer(Peer peer) {
+        synchronized (PEER_REPO_ADDRESSES) {
+            PEER_REPO_ADDRESSES.add(getRepoAddress(Uri.parse(peer.getRepoAddress())));
+        }
+    }
+
+    static void removePeer(Peer peer) {
+        synchronized (PEER_REPO_ADDRESSES) {
+            PEER_REPO_ADDRESSES.remove(getRepoAddress(Uri.parse(peer.getRepoAddress())));
+        }
+    }
+
+    static void clearPeers() {
+        synchronized (PEER_REPO_ADDRESSES) {
+            PEER_REPO_ADDRESSES.clear();
+        }
+    }
+
+    private static String getRepoAddress(Uri uri) {
+        return uri.getScheme() + "://" + uri.getEncodedAuthority() + REPO_PATH;
+    }
+
+    /**
+     * Asks all peers for their manifest, so this must not run on the UI thread.
+     *
+     * @return null if there are no other peers that could have the file, it has no SHA-256
+     * to check the chunks with, or no peer has a matching manifest
+     */
+    @Nullable
+    static SwarmDownloader create(Uri downloadUrl, IndexFile indexFile, File destFile)
+            throws InterruptedException {
+        String path = downloadUrl.getEncodedPath();
+        if (indexFile.getSha256() == null || path == null || !path.startsWith(REPO_PATH + "/")) {
+            return null;
+        }
+        String filePath = path.substring(REPO_PATH.length());
+        Set<String> repoAddresses = new LinkedHashSet<>();
+        repoAddresses.add(getRepoAddress(downloadUrl));
+        synchronized (PEER_REPO_ADDRESSES) {
+            repoAddresses.addAll(PEER_REPO_ADDRESSES);
+        }
+        if (repoAddresses.size() < 2) {
+            return null;
+        }
+        List<Source> sources = new ArrayList<>(repoAddresses.size());
+        for (String repoAddress : repoAddresses) {
+            Uri uri = Uri.parse(repoAddress + filePath);
+            if (BluetoothDownloader.isBluetoothUri(uri)) {
+                sources.add(new BluetoothSource(uri.getHost().replace("-", ":"), uri.getEncodedPath()));
+            } else {
+                sources.add(new HttpSource(uri.toString()));
+            }
+        }
+        SwarmDownloader downloader = new SwarmDownloader(sources, indexFile, destFile);
+        boolean found = false;
+        try {
+            found = downloader.findSwarm();
+        } finally {
+            if (!found) downloader.close();
+        }
+        return found ? downloader : null;
+    }
+
+    @Override
+    public void download() throws IOException, InterruptedException {
+        if (swarm == null) {
+            findSwarm();
+        }
+        if (swarm.isEmpty()) {
+            throw new IOException("No peer has a chunk manifest for " + getIndexFile().getName());
+        }
+        Utils.debugLog(TAG, "Downloading from " + swarm.size() + " of " + sources.size() + " peers");
+        inputStream = new ChunkInputStream(manifest, swarm, executor);
+        downloadFromStream(false);
+    }
+
+    /**
+     * Asks all peers for their manifest at the same time, and keeps the ones with the right file
+     * in the order of {@link #sources}.
+     *
+     * @return true if at least one peer has the right file
+     */
+    @VisibleForTesting
+    boolean findSwarm() throws InterruptedException {
+        executor = Executors.newFixedThreadPool(sources.size());
+        List<Future<ChunkManifest>> manifests = new ArrayList<>(sources.size());
+        for (Source source : sources) {
+            manifests.add(executor.submit(source::getChunkManifest));
+        }
+        String sha256 = getIndexFile().getSha256();
+        swarm = new ArrayList<>(sources.size());
+        for (int i = 0; i < sources.size(); i++) {
+            try {
+                ChunkManifest sourceManifest = manifests.get(i).get();
+                if (sourceManifest != null && sourceManifest.getSha256().equalsIgnoreCase(sha256)) {
+                    if (manifest == null) {
+                        manifest = sourceManifest;
+                    }
+                    swarm.add(sources.get(i));
+                } else {
+                    sources.get(i).close();
+                }
+            } catch (ExecutionException e) {
+                Utils.debugLog(TAG, "Could not get chunk manifest: " + e.getCause().getMessage());
+                sources.get(i).close();
+            }
+        }
+        return !swarm.isEmpty();
+    }
+
+    @NonNull
+    @Override
+    protected InputStream getInputStream(boolean resumable) throws IOException, NotFoundException {
+        if (inputStream == null) {
+            throw new IllegalStateException("download() was not called");
+        }
+        return inputStream;
+    }
+
+    @Override
+    protected long totalDownloadSize() {
+        if (getIndexFile().getSize() != null) return getIndexFile().getSize();
+        return manifest == null ? -1 : manifest.getLength();
+    }
+
+    @Override
+    public boolean hasChanged() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (inputStream != null) {
+            Utils.closeQuietly(inputStream);
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        for (Source source : sources) {
+            source.close();
+        }
+    }
+
+    /**
+     * Hands out the chunks to one thread per peer and returns them in order.
+     */
+    private static final class ChunkInputStream extends InputStream {
+        private final ChunkManifest manifest;
+        private final PriorityQueue<Integer> pending = new PriorityQueue<>();
+        private final Map<Integer, byte[]> downloaded = new HashMap<>();
+        private int inFlight;
+        private int activeSources;
+        private int nextChunk;
+        private boolean closed;
+        @Nullable
+        private byte[] current;
+        private int position;
+
+        private ChunkInputStream(ChunkManifest manifest, List<Source> swarm, ExecutorService executor) {
+            this.manifest = manifest;
+            for (int i = 0; i < manifest.getChunkCount(); i++) {
+                pending.add(i);
+            }
+            activeSources = swarm.size();
+            for (Source source : swarm) {
+                executor.execute(() -> downloadChunks(source));
+            }
+        }
+
+        private void downloadChunks(Source source) {
+            int failures = 0;
+            try {
+                int chunk = takeChunk();
+                while (chunk >= 0) {
+                    byte[] data;
+                    try {
+                        data = source.getRange(manifest.getChunkOffset(chunk), manifest.getChunkLength(chunk));
+                    } catch (IOException e) {
+                        returnChunk(chunk);
+                        if (++failures >= MAX_FAILURES) {
+                            Log.w(TAG, "Giving up on peer: " + e.getMessage());
+                            return;
+                        }
+                        chunk = takeChunk();
+                        continue;
+                    }
+                    if (!manifest.isValidChunk(chunk, data)) {
+                        Log.w(TAG, "Got invalid chunk " + chunk + ", not using that peer anymore");
+                        returnChunk(chunk);
+                        return;
+                    }
+                    failures = 0;
+                    putChunk(chunk, data);
+                    chunk = takeChunk();
+                }
+            } catch (InterruptedException e) {
+                Utils.debugLog(TAG, "Stopped downloading chunks");
+            } finally {
+                source.close();
+                synchronized (this) {
+                    activeSources--;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * @return the first missing chunk, once it is not too far ahead,
+         * or -1 if there are no more chunks to download
+         */
+        private synchronized int takeChunk() throws InterruptedException {
+            while (!closed) {
+                Integer chunk = pending.peek();
+                if (chunk == null && inFlight == 0) {
+                    return -1;
+                } else if (chunk != null && chunk < nextChunk + MAX_CHUNKS_AHEAD) {
+                    inFlight++;
+                    return pending.poll();
+                }
+                // if a chunk is in flight, it might come back if its peer fails
+                wait();
+            }
+            return -1;
+        }
+
+        private synchronized void returnChunk(int chunk) {
+            inFlight--;
+            pending.add(chunk);
+            notifyAll();
+        }
+
+        private synchronized void putChunk(int chunk, byte[] data) {
+            inFlight--;
+            downloaded.put(chunk, data);
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            byte[] chunk = current;
+            if (chunk == null || position == chunk.length) {
+                chunk = awaitNextChunk();
+                if (chunk == null) {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Nullable
+        private synchronized byte[] awaitNextChunk() throws IOException {
+            while (!downloaded.containsKey(nextChunk)) {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                } else if (nextChunk == manifest.getChunkCount()) {
+                    return null;
+                } else if (activeSources == 0) {
+                    throw new IOException("All peers failed or went away");
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    InterruptedIOException interrupted = new InterruptedIOException();
+                    interrupted.initCause(e);
+                    throw interrupted;
+                }
+            }
+            current = downloaded.remove(nextChunk);
+            position = 0;
+            nextChunk++;
+            // there is room for one more chunk ahead now
+            notifyAll();
+            return current;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            downloaded.clear();
+            notifyAll();
+        }
+    }
+
+    @VisibleForTesting
+    static final class HttpSource implements Source {
+        private final String url;
+
+        HttpSource(String url) {
+            this.url = url;
+        }
+
+        private HttpURLConnection openConnection(String url) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            return connection;
+        }
+
+        @Nullable
+        @Override
+        public ChunkManifest getChunkManifest() throws IOException {
+            HttpURLConnection connection = openConnection(url + "?" + ChunkManifest.QUERY_PARAMETER);
+            try {
+                // older versions ignore the query and send the file itself
+                String contentType = connection.getContentType();
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK
+                        || contentType == null || !contentType.startsWith("text/plain")) {
+                    return null;
+                }
+                return readManifest(connection.getInputStream());
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        @Override
+        public byte[] getRange(long offset, int length) throws IOException {
+            HttpURLConnection connection = openConnection(url);
+            connection.setRequestProperty("Range", "bytes=" + offset + "-" + (offset + length - 1));
+            try {
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                    throw new IOException("Got status " + connection.getResponseCode() + " for a range of " + url);
+                }
+                return readRange(connection.getInputStream(), length);
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Needs {@link Request#VERSION_2} or newer, which supports ranges.
+     */
+    private static final class BluetoothSource implements Source {
+        private final String macAddress;
+        private final String path;
+        @Nullable
+        private BluetoothConnection connection;
+
+        private BluetoothSource(String macAddress, String path) {
+            this.macAddress = macAddress;
+            this.path = path;
+        }
+
+        @SuppressLint("MissingPermission") // peers are only found with the Bluetooth permission
+        private synchronized BluetoothConnection getConnection() throws IOException {
+            if (connection == null) {
+                connection = new BluetoothClient(macAddress).getConnection();
+            }
+            return connection;
+        }
+
+        @Nullable
+        @Override
+        public ChunkManifest getChunkManifest() throws IOException {
+            if (getConnection().getProtocolVersion() < Request.VERSION_2) {
+                return null;
+            }
+            Response response = Request.createGET(path + "?" + ChunkManifest.QUERY_PARAMETER, getConnection()).send();
+            String contentType = response.getHeaderValue("Content-Type");
+            if (response.getStatusCode() != HttpURLConnection.HTTP_OK
+                    || contentType == null || !contentType.startsWith("text/plain")) {
+                response.closeQuietly();
+                return null;
+            }
+            try (InputStream inputStream = response.toContentStream()) {
+                return readManifest(inputStream);
+            }
+        }
+
+        @Override
+        public byte[] getRange(long offset, int length) throws IOException {
+            Response response = Request.createGET(path, getConnection())
+                    .addHeader("Range", "bytes=" + offset + "-" + (offset + length - 1))
+                    .send();
+            try (InputStream inputStream = response.toContentStream()) {
+                if (response.getStatusCode() != HttpURLConnection.HTTP_PARTIAL) {
+                    throw new IOException("Got status " + response.getStatusCode() + " for a range of " + path);
+                }
+                return readRange(inputStream, length);
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            // multiplexed connections are shared with other downloads
+            if (connection != null && connection.getMuxClient() == null) {
+                connection.closeQuietly();
+                connection = null;
+            }
+        }
+    }
+
+    private static ChunkManifest readManifest(InputStream inputStream) throws IOException {
+        BoundedInputStream bounded = new BoundedInputStream(inputStream, MAX_MANIFEST_LENGTH);
+        return ChunkManifest.parse(IOUtils.toString(bounded, StandardCharsets.UTF_8));
+    }
+
+    private static byte[] readRange(InputStream inputStream, int length) throws IOException {
+        byte[] data = new byte[length];
+        IOUtils.readFully(inputStream, data);
+        return data;
+    }
+}
@@ -28,7 +28,6 @@ import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.core.app.JobIntentService;
-import androidx.documentfile.provider.DocumentFile;
 
 import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.R;
@@ -41,7 +40,7 @@ import java.io.InputStream;
 import java.security.CodeSigner;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
@@ -115,37 +114,13 @@ public class TreeUriScannerIntentService extends JobIntentService {
             return;
         }
         Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
-        DocumentFile treeFile = DocumentFile.fromTreeUri(this, treeUri);
-        searchDirectory(treeFile);
-    }
-
-    /**
-     * Recursively search for {@link IndexV1UpdaterKt#SIGNED_FILE_NAME} starting
-     * from the given directory, looking at files first before recursing into
-     * directories.  This is "depth last" since the index file is much more
-     * likely to be shallow than deep, and there can be a lot of files to
-     * search through starting at 4 or more levels deep, like the fdroid
-     * icons dirs and the per-app "external storage" dirs.
-     */
-    private void searchDirectory(DocumentFile documentFileDir) {
-        DocumentFile[] documentFiles = documentFileDir.listFiles();
-        if (documentFiles == null) {
-            return;
-        }
-        boolean foundIndex = false;
-        ArrayList<DocumentFile> dirs = new ArrayList<>();
-        for (DocumentFile documentFile : documentFiles) {
-            if (documentFile.isDirectory()) {
-                dirs.add(documentFile);
-            } else if (!foundIndex) {
-                if (IndexV1UpdaterKt.SIGNED_FILE_NAME.equals(documentFile.getName())) {
-                    registerRepo(documentFile);
-                    foundIndex = true;
-                }
+        RepoTreeScanner.DocumentScanner scanner = new RepoTreeScanner.DocumentScanner(getContentResolver(), treeUri);
+        try {
+            for (String repoDocumentId : scanner.scan(Collections.singletonList(scanner.getRootDocumentId()))) {
+                registerRepo(this, scanner.getDocumentUri(repoDocumentId));
             }
-        }
-        for (DocumentFile dir : dirs) {
-            searchDirectory(dir);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -158,11 +133,6 @@ public class TreeUriScannerIntentService extends JobIntentService {
      *
      * @see JarInputStream#JarInputStream(InputStream, boolean)
      */
-    private void registerRepo(DocumentFile index) {
-        DocumentFile repoFile = index.getParentFile();
-        if (repoFile != null) registerRepo(this, repoFile.getUri());
-    }
-
     static void registerRepo(Context context, Uri repoUri) {
         RepoManager repoManager = FDroidApp.getRepoManager(context);
         repoManager.fetchRepositoryPreview(repoUri.toString());
@@ -1,39 +1,37 @@
 package org.fdroid.fdroid.nearby;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.net.DhcpInfo;
-import android.net.NetworkInfo;
+import android.net.ConnectivityManager;
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
 import android.net.wifi.WifiConfiguration;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
-import android.text.TextUtils;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.core.content.ContextCompat;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
-import androidx.work.Constraints;
-import androidx.work.Data;
-import androidx.work.NetworkType;
-import androidx.work.OneTimeWorkRequest;
-import androidx.work.WorkManager;
-import androidx.work.WorkRequest;
-import androidx.work.Worker;
-import androidx.work.WorkerParameters;
 
 import org.apache.commons.net.util.SubnetUtils;
 import org.fdroid.database.Repository;
-import org.fdroid.fdroid.BuildConfig;
 import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.Hasher;
 import org.fdroid.fdroid.Preferences;
 import org.fdroid.fdroid.R;
 import org.fdroid.fdroid.Utils;
 
-import java.net.Inet6Address;
+import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
@@ -46,194 +44,176 @@ import cc.mvdan.accesspoint.WifiApControl;
 
 /**
  * Handle state changes to the device's wifi, storing the required bits.
- * The {@link Intent} that starts it either has no extras included,
- * which is how it can be triggered by code, or it came in from the system
- * via {@link WifiStateChangeReceiver}, in
- * which case an instance of {@link NetworkInfo} is included.
+ * Wi-Fi and Ethernet networks are tracked with a
+ * {@link ConnectivityManager.NetworkCallback}, which reports the address as soon as
+ * the network has one in its {@link LinkProperties}.  Hotspots are not networks that
+ * this device is connected to, so they are looked up in the network interfaces when the
+ * system reports that the hotspot or tethering changed.  All of that is fed into a
+ * {@link NetworkStateMachine}, which only calls back when the address that swap should
+ * use actually changes.  Then the swap repo is set up for the new address and
+ * {@link #BROADCAST} is sent.
  * <p>
- * The work is done in a {@link Thread} so that new incoming {@code Intents}
- * are not blocked by processing. A new {@code Intent} immediately nullifies
- * the current state because it means that something about the wifi has
- * changed.  Having the {@code Thread} also makes it easy to kill work
- * that is in progress.
- * <p>
- * This also schedules an update to encourage updates happening on
- * unmetered networks like typical WiFi rather than networks that can
- * cost money or have caps.
- * <p>
- * Some devices send multiple copies of given events, like a Moto G often
- * sends three {@code CONNECTED} events.  So they have to be debounced to
- * keep the {@link #BROADCAST} useful.
+ * All the work is done on a single {@link HandlerThread}, so events are handled in
+ * the order they came in, and the callbacks from the system are not blocked by
+ * setting up the swap repo.
  */
 @SuppressWarnings("LineLength")
-public class WifiStateChangeService extends Worker {
+public class WifiStateChangeService {
     private static final String TAG = "WifiStateChangeService";
 
     public static final String BROADCAST = "org.fdroid.fdroid.action.WIFI_CHANGE";
     public static final String EXTRA_STATUS = "wifiStateChangeStatus";
 
-    private WifiManager wifiManager;
-    private static WifiInfoThread wifiInfoThread;
-    private static int previousWifiState = Integer.MIN_VALUE;
-    private volatile static int wifiState;
-    private static final int NETWORK_INFO_STATE_NOT_SET = -1;
+    /**
+     * @see <a href="https://android.googlesource.com/platform/frameworks/base/+/android-10.0.0_r38/wifi/java/android/net/wifi/WifiManager.java#497">WifiManager.WIFI_AP_STATE_CHANGED_ACTION</a>
+     */
+    private static final String WIFI_AP_STATE_CHANGED_ACTION = "android.net.wifi.WIFI_AP_STATE_CHANGED";
+    /**
+     * @see <a href="https://android.googlesource.com/platform/frameworks/base/+/android-10.0.0_r38/core/java/android/net/ConnectivityManager.java#352">ConnectivityManager.ACTION_TETHER_STATE_CHANGED</a>
+     */
+    private static final String ACTION_TETHER_STATE_CHANGED = "android.net.conn.TETHER_STATE_CHANGED";
 
-    public WifiStateChangeService(@NonNull Context context, @NonNull WorkerParameters workerParams) {
-        super(context, workerParams);
-    }
+    private static Context context;
+    private static Handler handler;
+    private static NetworkStateMachine stateMachine;
 
-    public static void registerReceiver(Context context) {
-        ContextCompat.registerReceiver(
-                context,
-                new WifiStateChangeReceiver(),
-                new IntentFilter(WifiManager.NETWORK_STATE_CHANGED_ACTION),
+    /**
+     * Starts tracking the network state.  The current networks are reported right
+     * away, so the swap repo gets set up for the current address.
+     */
+    public static synchronized void registerReceiver(Context context) {
+        if (handler != null) {
+            return;
+        }
+        WifiStateChangeService.context = context.getApplicationContext();
+        HandlerThread handlerThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_LOWEST);
+        handlerThread.start();
+        handler = new Handler(handlerThread.getLooper());
+        stateMachine = new NetworkStateMachine(WifiStateChangeService::setUpSwapRepo);
+
+        ConnectivityManager connectivityManager = ContextCompat.getSystemService(context,
+                ConnectivityManager.class);
+        if (connectivityManager != null) {
+            // a local network is just as good for swap when it does not have internet
+            NetworkRequest networkRequest = new NetworkRequest.Builder()
+                    .addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
+                    .addTransportType(NetworkCapabilities.TRANSPORT_ETHERNET)
+                    .removeCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                    .build();
+            connectivityManager.registerNetworkCallback(networkRequest, NETWORK_CALLBACK);
+        }
+        IntentFilter hotspotFilter = new IntentFilter(WIFI_AP_STATE_CHANGED_ACTION);
+        hotspotFilter.addAction(ACTION_TETHER_STATE_CHANGED);
+        ContextCompat.registerReceiver(context, HOTSPOT_RECEIVER, hotspotFilter,
                 ContextCompat.RECEIVER_NOT_EXPORTED);
+        handler.post(WifiStateChangeService::updateHotspot);
     }
 
-    public static void start(Context context, @Nullable Intent intent) {
-        int networkInfoStateInt = NETWORK_INFO_STATE_NOT_SET;
-        if (intent != null) {
-            NetworkInfo ni = intent.getParcelableExtra(WifiManager.EXTRA_NETWORK_INFO);
-            networkInfoStateInt = ni.getState().ordinal();
-        }
-
-        WorkRequest workRequest = new OneTimeWorkRequest.Builder(WifiStateChangeService.class)
-                .setConstraints(new Constraints.Builder()
-                        .setRequiredNetworkType(NetworkType.CONNECTED)
-                        .build())
-                .setInputData(new Data.Builder()
-                        .putInt(WifiManager.EXTRA_NETWORK_INFO, networkInfoStateInt)
-                        .build()
-                )
-                .build();
-        WorkManager.getInstance(context).enqueue(workRequest);
+    /**
+     * Sets up the swap repo again for the current address and sends {@link #BROADCAST},
+     * even if the address did not change, e.g. because the port or the HTTPS setting did.
+     */
+    public static void start(Context context) {
+        registerReceiver(context);
+        handler.post(() -> {
+            updateHotspot();
+            setUpSwapRepo(stateMachine.getAddress());
+        });
     }
 
-    @NonNull
-    @Override
-    public Result doWork() {
-        android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_LOWEST);
-        int networkInfoStateInt = getInputData().getInt(WifiManager.EXTRA_NETWORK_INFO, NETWORK_INFO_STATE_NOT_SET);
-        NetworkInfo.State networkInfoState = null;
-        if (networkInfoStateInt != NETWORK_INFO_STATE_NOT_SET) {
-            networkInfoState = NetworkInfo.State.values()[networkInfoStateInt];
-        }
-        Utils.debugLog(TAG, "WiFi change service started.");
-        wifiManager = ContextCompat.getSystemService(getApplicationContext(), WifiManager.class);
-        if (wifiManager == null) {
-            return Result.failure();
-        }
-        wifiState = wifiManager.getWifiState();
-        Utils.debugLog(TAG, "networkInfoStateInt == " + networkInfoStateInt
-                + "  wifiState == " + printWifiState(wifiState));
-        if (networkInfoState == null
-                || networkInfoState == NetworkInfo.State.CONNECTED
-                || networkInfoState == NetworkInfo.State.DISCONNECTED) {
-            if (previousWifiState != wifiState &&
-                    (wifiState == WifiManager.WIFI_STATE_ENABLED
-                            || wifiState == WifiManager.WIFI_STATE_DISABLING  // might be switching to hotspot
-                            || wifiState == WifiManager.WIFI_STATE_DISABLED   // might be hotspot
-                            || wifiState == WifiManager.WIFI_STATE_UNKNOWN)) { // might be hotspot
-                if (wifiInfoThread != null) {
-                    wifiInfoThread.interrupt();
+    private static final ConnectivityManager.NetworkCallback NETWORK_CALLBACK =
+            new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(@NonNull Network network) {
+                    // before Android 8.0, this is not always followed by onLinkPropertiesChanged()
+                    ConnectivityManager connectivityManager = ContextCompat.getSystemService(context,
+                            ConnectivityManager.class);
+                    if (connectivityManager != null) {
+                        NetworkStateMachine.Address address =
+                                getAddress(connectivityManager.getLinkProperties(network));
+                        handler.post(() -> stateMachine.onLinkPropertiesChanged(network, address));
+                    }
+                }
+
+                @Override
+                public void onLinkPropertiesChanged(@NonNull Network network,
+                                                    @NonNull LinkProperties linkProperties) {
+                    NetworkStateMachine.Address address = getAddress(linkProperties);
+                    handler.post(() -> stateMachine.onLinkPropertiesChanged(network, address));
                 }
-                wifiInfoThread = new WifiInfoThread();
-                wifiInfoThread.start();
-            }
-        }
-        return Result.success();
-    }
 
-    public class WifiInfoThread extends Thread {
+                @Override
+                public void onLost(@NonNull Network network) {
+                    handler.post(() -> stateMachine.onLost(network));
+                }
+            };
 
+    private static final BroadcastReceiver HOTSPOT_RECEIVER = new BroadcastReceiver() {
         @Override
-        public void run() {
-            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_LOWEST);
-            try {
-                FDroidApp.initWifiSettings();
-                Utils.debugLog(TAG, "Checking wifi state (in background thread).");
-                WifiInfo wifiInfo = null;
+        public void onReceive(Context context, Intent intent) {
+            handler.post(WifiStateChangeService::updateHotspot);
+        }
+    };
 
-                int wifiState = wifiManager.getWifiState();
-                int retryCount = 0;
-                while (FDroidApp.ipAddressString == null) {
-                    if (isInterrupted()) { // can be canceled by a change via WifiStateChangeReceiver
-                        return;
-                    }
-                    if (wifiState == WifiManager.WIFI_STATE_ENABLED) {
-                        wifiInfo = wifiManager.getConnectionInfo();
-                        FDroidApp.ipAddressString = formatIpAddress(wifiInfo.getIpAddress());
-                        setSsid(wifiInfo);
-                        DhcpInfo dhcpInfo = wifiManager.getDhcpInfo();
-                        if (dhcpInfo != null) {
-                            String netmask = formatIpAddress(dhcpInfo.netmask);
-                            if (!TextUtils.isEmpty(FDroidApp.ipAddressString) && netmask != null) {
-                                try {
-                                    FDroidApp.subnetInfo = new SubnetUtils(FDroidApp.ipAddressString, netmask).getInfo();
-                                } catch (IllegalArgumentException e) {
-                                    // catch mystery: "java.lang.IllegalArgumentException: Could not parse [null/24]"
-                                    e.printStackTrace();
-                                }
-                            }
-                        }
-                        if (FDroidApp.ipAddressString == null
-                                || FDroidApp.subnetInfo == FDroidApp.UNSET_SUBNET_INFO) {
-                            setIpInfoFromNetworkInterface();
-                        }
-                    } else if (wifiState == WifiManager.WIFI_STATE_DISABLED
-                            || wifiState == WifiManager.WIFI_STATE_DISABLING
-                            || wifiState == WifiManager.WIFI_STATE_UNKNOWN) {
-                        // try once to see if its a hotspot
-                        setIpInfoFromNetworkInterface();
-                        if (FDroidApp.ipAddressString == null) {
-                            return;
-                        }
-                    }
+    /**
+     * @return the first IPv4 address in {@code linkProperties}
+     */
+    @Nullable
+    private static NetworkStateMachine.Address getAddress(@Nullable LinkProperties linkProperties) {
+        if (linkProperties == null) {
+            return null;
+        }
+        for (LinkAddress linkAddress : linkProperties.getLinkAddresses()) {
+            InetAddress inetAddress = linkAddress.getAddress();
+            if (inetAddress instanceof Inet4Address && !inetAddress.isLoopbackAddress()) {
+                return new NetworkStateMachine.Address(linkProperties.getInterfaceName(),
+                        inetAddress.getHostAddress(), linkAddress.getPrefixLength());
+            }
+        }
+        return null;
+    }
 
-                    if (retryCount > 120) {
-                        return;
-                    }
-                    retryCount++;
+    private static void updateHotspot() {
+        stateMachine.onHotspotChanged(getHotspotAddress());
+    }
 
-                    if (FDroidApp.ipAddressString == null) {
-                        Thread.sleep(1000);
-                        Utils.debugLog(TAG, "waiting for an IP address...");
-                    }
+    /**
+     * Runs whenever the address changes, and when {@link #start(Context)} asks for it.
+     */
+    private static void setUpSwapRepo(@Nullable NetworkStateMachine.Address address) {
+        Utils.debugLog(TAG, "Setting up swap repo for " + address);
+        FDroidApp.initWifiSettings();
+        WifiManager wifiManager = ContextCompat.getSystemService(context, WifiManager.class);
+        try {
+            if (address != null) {
+                FDroidApp.ipAddressString = address.hostAddress;
+                try {
+                    FDroidApp.subnetInfo = new SubnetUtils(address.getCidr()).getInfo();
+                } catch (IllegalArgumentException e) {
+                    Log.i(TAG, "Getting subnet failed: " + e.getLocalizedMessage());
                 }
-                if (isInterrupted()) { // can be canceled by a change via WifiStateChangeReceiver
-                    return;
+                if (wifiManager != null) {
+                    setSsid(wifiManager, wifiManager.getConnectionInfo());
                 }
 
-                setSsid(wifiInfo);
-
                 String scheme;
                 if (Preferences.get().isLocalRepoHttpsEnabled()) {
                     scheme = "https";
                 } else {
                     scheme = "http";
                 }
-                Context context = WifiStateChangeService.this.getApplicationContext();
-                String address = String.format(Locale.ENGLISH, "%s://%s:%d/fdroid/repo",
+                String repoAddress = String.format(Locale.ENGLISH, "%s://%s:%d/fdroid/repo",
                         scheme, FDroidApp.ipAddressString, FDroidApp.port);
                 // the fingerprint for the local repo's signing key
                 LocalRepoKeyStore localRepoKeyStore = LocalRepoKeyStore.get(context);
                 Certificate localCert = localRepoKeyStore.getCertificate();
                 String cert = localCert == null ?
                         null : Hasher.hex(localCert).toLowerCase(Locale.US);
-                Repository repo = FDroidApp.createSwapRepo(address, cert);
-
-                if (isInterrupted()) { // can be canceled by a change via WifiStateChangeReceiver
-                    return;
-                }
+                Repository repo = FDroidApp.createSwapRepo(repoAddress, cert);
+                FDroidApp.repo = repo;
 
                 LocalRepoManager lrm = LocalRepoManager.get(context);
-                lrm.writeIndexPage(Utils.getSharingUri(FDroidApp.repo).toString());
-
-                if (isInterrupted()) { // can be canceled by a change via WifiStateChangeReceiver
-                    return;
-                }
-
-                FDroidApp.repo = repo;
+                lrm.writeIndexPage(Utils.getSharingUri(repo).toString());
 
                 /*
                  * Once the IP address is known we need to generate a self
@@ -245,21 +225,17 @@ public class WifiStateChangeService extends Worker {
                 if (Preferences.get().isLocalRepoHttpsEnabled()) {
                     localRepoKeyStore.setupHTTPSCertificate();
                 }
-
-            } catch (LocalRepoKeyStore.InitException e) {
-                Log.e(TAG, "Unable to configure a fingerprint or HTTPS for the local repo", e);
-            } catch (InterruptedException e) {
-                Utils.debugLog(TAG, "interrupted");
-                return;
             }
-            Intent intent = new Intent(BROADCAST);
-            intent.putExtra(EXTRA_STATUS, wifiState);
-            LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(intent);
+        } catch (LocalRepoKeyStore.InitException e) {
+            Log.e(TAG, "Unable to configure a fingerprint or HTTPS for the local repo", e);
         }
+        Intent intent = new Intent(BROADCAST);
+        int wifiState = wifiManager == null ? WifiManager.WIFI_STATE_UNKNOWN : wifiManager.getWifiState();
+        intent.putExtra(EXTRA_STATUS, wifiState);
+        LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
     }
 
-    private void setSsid(WifiInfo wifiInfo) {
-        Context context = getApplicationContext();
+    private static void setSsid(WifiManager wifiManager, WifiInfo wifiInfo) {
         if (wifiInfo != null && wifiInfo.getBSSID() != null) {
             String ssid = wifiInfo.getSSID();
             Utils.debugLog(TAG, "Have wifi info, connected to " + ssid);
@@ -275,7 +251,7 @@ public class WifiStateChangeService extends Worker {
             if (wifiApControl == null && FDroidApp.ipAddressString != null) {
                 wifiInfo = wifiManager.getConnectionInfo();
                 if (wifiInfo != null && wifiInfo.getBSSID() != null) {
-                    setSsid(wifiInfo);
+                    setSsid(wifiManager, wifiInfo);
                 } else {
                     FDroidApp.ssid = context.getString(R.string.swap_active_hotspot, "");
                 }
@@ -299,60 +275,39 @@ public class WifiStateChangeService extends Worker {
     }
 
     /**
-     * Search for known Wi-Fi, Hotspot, and local network interfaces and get
-     * the IP Address info from it.  This is necessary because network
-     * interfaces in Hotspot/AP mode do not show up in the regular
-     * {@link WifiManager} queries, and also on
-     * {@link android.os.Build.VERSION_CODES#LOLLIPOP Android 5.0} and newer,
-     * {@link WifiManager#getDhcpInfo()} returns an invalid netmask.
-     *
-     * @see <a href="https://issuetracker.google.com/issues/37015180">netmask of WifiManager.getDhcpInfo() is always zero on Android 5.0</a>
+     * Search for known Wi-Fi, Hotspot, and local network interfaces that are not
+     * already tracked as a network, and get the IP Address info from it.  This is
+     * necessary because network interfaces in Hotspot/AP mode do not show up in the
+     * {@link ConnectivityManager} or {@link WifiManager} queries.
      */
-    private void setIpInfoFromNetworkInterface() {
+    @Nullable
+    private static NetworkStateMachine.Address getHotspotAddress() {
         try {
             Enumeration<NetworkInterface> networkInterfaces = NetworkInterface.getNetworkInterfaces();
             if (networkInterfaces == null) {
-                return;
+                return null;
             }
             while (networkInterfaces.hasMoreElements()) {
                 NetworkInterface netIf = networkInterfaces.nextElement();
-
-                for (Enumeration<InetAddress> inetAddresses = netIf.getInetAddresses(); inetAddresses.hasMoreElements(); ) {
-                    InetAddress inetAddress = inetAddresses.nextElement();
-                    if (inetAddress.isLoopbackAddress() || inetAddress instanceof Inet6Address) {
+                String name = netIf.getDisplayName();
+                if (!(name.contains("wlan0") || name.contains("eth0") || name.contains("ap0"))
+                        || stateMachine.isNetworkInterface(netIf.getName())) {
+                    continue;
+                }
+                for (InterfaceAddress address : netIf.getInterfaceAddresses()) {
+                    InetAddress inetAddress = address.getAddress();
+                    if (inetAddress.isLoopbackAddress() || !(inetAddress instanceof Inet4Address)) {
                         continue;
                     }
-                    if (netIf.getDisplayName().contains("wlan0")
-                            || netIf.getDisplayName().contains("eth0")
-                            || netIf.getDisplayName().contains("ap0")) {
-                        FDroidApp.ipAddressString = inetAddress.getHostAddress();
-                        for (InterfaceAddress address : netIf.getInterfaceAddresses()) {
-                            short networkPrefixLength = address.getNetworkPrefixLength();
-                            if (networkPrefixLength > 32) {
-                                // something is giving a "/64" netmask, IPv6?
-                                // java.lang.IllegalArgumentException: Value [64] not in range [0,32]
-                                continue;
-                            }
-                            try {
-                                String cidr = String.format(Locale.ENGLISH, "%s/%d",
-                                        FDroidApp.ipAddressString, networkPrefixLength);
-                                FDroidApp.subnetInfo = new SubnetUtils(cidr).getInfo();
-                                break;
-                            } catch (IllegalArgumentException e) {
-                                if (BuildConfig.DEBUG) {
-                                    e.printStackTrace();
-                                } else {
-                                    Log.i(TAG, "Getting subnet failed: " + e.getLocalizedMessage());
-                                }
-                            }
-                        }
-                    }
+                    return new NetworkStateMachine.Address(netIf.getName(), inetAddress.getHostAddress(),
+                            address.getNetworkPrefixLength());
                 }
             }
         } catch (NullPointerException | SocketException e) {
             // NetworkInterface.getNetworkInterfaces() can throw a NullPointerException internally
             Log.e(TAG, "Could not get ip address", e);
         }
+        return null;
     }
 
     static String formatIpAddress(int ipAddress) {
@@ -365,23 +320,4 @@ public class WifiStateChangeService extends Worker {
                 ipAddress >> 16 & 0xff,
                 ipAddress >> 24 & 0xff);
     }
-
-    private String printWifiState(int wifiState) {
-        switch (wifiState) {
-            case WifiManager.WIFI_STATE_DISABLED:
-                return "WIFI_STATE_DISABLED";
-            case WifiManager.WIFI_STATE_DISABLING:
-                return "WIFI_STATE_DISABLING";
-            case WifiManager.WIFI_STATE_ENABLING:
-                return "WIFI_STATE_ENABLING";
-            case WifiManager.WIFI_STATE_ENABLED:
-                return "WIFI_STATE_ENABLED";
-            case WifiManager.WIFI_STATE_UNKNOWN:
-                return "WIFI_STATE_UNKNOWN";
-            case Integer.MIN_VALUE:
-                return "previous value unset";
-            default:
-                return "~not mapped~";
-        }
-    }
 }
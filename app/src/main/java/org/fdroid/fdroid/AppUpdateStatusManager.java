@@ -12,8 +12,8 @@ import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-import androidx.annotation.WorkerThread;
 import androidx.core.app.TaskStackBuilder;
+import androidx.core.content.ContextCompat;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
@@ -25,19 +25,23 @@ import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.App;
 import org.fdroid.fdroid.data.DBHelper;
 import org.fdroid.fdroid.installer.ErrorDialogActivity;
+import org.fdroid.fdroid.installer.ApkCache;
 import org.fdroid.fdroid.installer.InstallManagerService;
+import org.fdroid.fdroid.installer.UpdateBatchPlanner;
 import org.fdroid.fdroid.net.DownloaderService;
 import org.fdroid.fdroid.views.AppDetailsActivity;
 import org.fdroid.index.RepoManager;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-
-import io.reactivex.rxjava3.disposables.Disposable;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
  * Manages the state of APKs that are being installed or that have updates available.
@@ -99,6 +103,20 @@ public final class AppUpdateStatusManager {
 
     private static final String LOGTAG = "AppUpdateStatusManager";
 
+    /**
+     * The order in which updates get downloaded and installed when updating all apps.
+     */
+    private static final List<UpdateBatchPlanner.Policy> UPDATE_POLICIES = Arrays.asList(
+            UpdateBatchPlanner.Policy.KNOWN_VULNERABILITY_FIRST,
+            UpdateBatchPlanner.Policy.PINNED_FIRST,
+            UpdateBatchPlanner.Policy.SMALLEST_FIRST
+    );
+
+    /**
+     * The space to keep free when updating all apps, so the system and other apps can still work.
+     */
+    private static final long UPDATE_HEADROOM = 64L * 1024 * 1024;
+
     public enum Status {
         PendingInstall,
         DownloadInterrupted,
@@ -211,49 +229,64 @@ public final class AppUpdateStatusManager {
     private final Context context;
     private final LocalBroadcastManager localBroadcastManager;
     private final RepoManager repoManager;
-    private final DbUpdateChecker updateChecker;
-    private final HashMap<String, AppUpdateStatus> appMapping = new HashMap<>();
-    @Nullable
-    private Disposable disposable;
+    private final UpdatableAppsTracker updatableAppsTracker;
+    private final AppUpdateStatusStore store = new AppUpdateStatusStore();
     private boolean isBatchUpdating;
+    /**
+     * True until the first check of all packages is done, no broadcasts get sent until then.
+     */
+    private boolean isStarting = true;
+    private volatile boolean installAfterCheck = false;
+    @Nullable
+    private UpdateBatchPlanner<PlannedUpdate> updatePlanner;
 
     private AppUpdateStatusManager(Context context) {
         this.context = context;
         localBroadcastManager = LocalBroadcastManager.getInstance(context.getApplicationContext());
         repoManager = FDroidApp.getRepoManager(context);
-        updateChecker = new DbUpdateChecker(DBHelper.getDb(context), context.getPackageManager());
+        DbUpdateChecker updateChecker = new DbUpdateChecker(DBHelper.getDb(context), context.getPackageManager());
+        updatableAppsTracker = new UpdatableAppsTracker(context, updateChecker, Executors.newSingleThreadExecutor());
+        updatableAppsTracker.addListener(ContextCompat.getMainExecutor(context), this::onUpdatableAppsChanged);
+        updatableAppsTracker.registerPackageReceiver(context);
         // let's check number of updatable apps at the beginning, so the badge can show the right number
         // then we can also use the populated entries in other places to show updates
-        disposable = Utils.runOffUiThread(this::getUpdatableApps, this::addUpdatableAppsNoNotify);
+        updatableAppsTracker.start();
+    }
+
+    /**
+     * Keeps track of all apps that can be updated, see {@link UpdatableAppsTracker}.
+     */
+    public UpdatableAppsTracker getUpdatableAppsTracker() {
+        return updatableAppsTracker;
     }
 
     public void removeAllByRepo(long repoId) {
-        boolean hasRemovedSome = false;
-        Iterator<AppUpdateStatus> it = getAll().iterator();
-        while (it.hasNext()) {
-            AppUpdateStatus status = it.next();
-            if (status.apk.repoId == repoId) {
-                it.remove();
-                hasRemovedSome = true;
+        int removed;
+        synchronized (store) {
+            store.beginBatch();
+            try {
+                removed = store.removeAll(status -> status.apk.repoId == repoId);
+            } finally {
+                store.endBatch();
             }
         }
-
-        if (hasRemovedSome) {
+        if (removed > 0) {
             notifyChange(REASON_REPO_DISABLED);
         }
+        updatableAppsTracker.checkRepositories(Collections.singleton(repoId));
     }
 
     @Nullable
     public AppUpdateStatus get(String canonicalUrl) {
-        synchronized (appMapping) {
-            return appMapping.get(canonicalUrl);
-        }
+        return store.get(canonicalUrl);
     }
 
+    /**
+     * @return all entries at this point in time, this does not change when entries change later.
+     * The entries must not be modified.
+     */
     public Collection<AppUpdateStatus> getAll() {
-        synchronized (appMapping) {
-            return appMapping.values();
-        }
+        return store.getSnapshot().getAll();
     }
 
     /**
@@ -263,15 +296,27 @@ public final class AppUpdateStatusManager {
      * @return A list of entries, or an empty list
      */
     public Collection<AppUpdateStatus> getByPackageName(String packageName) {
-        ArrayList<AppUpdateStatus> returnValues = new ArrayList<>();
-        synchronized (appMapping) {
-            for (AppUpdateStatus entry : appMapping.values()) {
-                if (entry.apk.packageName.equals(packageName)) {
-                    returnValues.add(entry);
-                }
-            }
-        }
-        return returnValues;
+        return store.getByPackageName(packageName);
+    }
+
+    /**
+     * @return the current state of all entries, see {@link AppUpdateStatusStore#getSnapshot()}.
+     */
+    public AppUpdateStatusStore.Snapshot getSnapshot() {
+        return store.getSnapshot();
+    }
+
+    /**
+     * Registers a {@link AppUpdateStatusStore.Listener} that gets told about changed entries
+     * on the given {@code executor}. Changes to the same entry get merged while the listener is busy,
+     * so this is cheaper than listening to the {@link LocalBroadcastManager} broadcasts.
+     */
+    public void addListener(Executor executor, AppUpdateStatusStore.Listener listener) {
+        store.addListener(executor, listener);
+    }
+
+    public void removeListener(AppUpdateStatusStore.Listener listener) {
+        store.removeListener(listener);
     }
 
     /**
@@ -309,23 +354,28 @@ public final class AppUpdateStatusManager {
             Utils.debugLog(LOGTAG, "Update APK " + apkName + " state to " + status.name());
         }
         boolean isStatusUpdate = entry.status != status;
+        entry = entry.copy();
         entry.status = status;
         entry.intent = intent;
         setEntryContentIntentIfEmpty(entry);
+        store.put(entry, isStatusUpdate);
         notifyChange(entry, isStatusUpdate);
 
+        if (status == Status.Installed || (status == Status.ReadyToInstall && intent != null)) {
+            onPlannedUpdateDone(entry.getCanonicalUrl());
+        }
         if (status == Status.Installed) {
-            // After an app got installed, update available updates
-            checkForUpdates();
+            // After an app got installed, update available updates for it
+            updatableAppsTracker.checkPackages(Collections.singleton(entry.apk.packageName));
         }
     }
 
     private void addApkInternal(@NonNull App app, @NonNull Apk apk, @NonNull Status status, PendingIntent intent) {
         String apkName = apk.getApkPath();
         Utils.debugLog(LOGTAG, "Add APK " + apkName + " with state " + status.name());
-        AppUpdateStatus entry = createAppEntry(app, apk, status, intent);
+        AppUpdateStatus entry = new AppUpdateStatus(app, apk, status, intent);
         setEntryContentIntentIfEmpty(entry);
-        appMapping.put(entry.getCanonicalUrl(), entry);
+        store.put(entry, true);
         notifyAdd(entry);
     }
 
@@ -365,84 +415,229 @@ public final class AppUpdateStatusManager {
         }
     }
 
-    private AppUpdateStatus createAppEntry(App app, Apk apk, Status status, PendingIntent intent) {
-        synchronized (appMapping) {
-            AppUpdateStatus ret = new AppUpdateStatus(app, apk, status, intent);
-            appMapping.put(apk.getCanonicalUrl(), ret);
-            return ret;
-        }
+    /**
+     * Checks all installed apps for updates.
+     * If only some apps can have changed, prefer {@link #checkForUpdates(Collection)}.
+     */
+    public void checkForUpdates() {
+        updatableAppsTracker.checkAll();
     }
 
-    public void checkForUpdates() {
-        if (disposable != null) disposable.dispose();
-        disposable = Utils.runOffUiThread(this::getUpdatableApps, this::addUpdatableApps);
+    /**
+     * Checks only the apps with the given {@code packageNames} for updates.
+     */
+    public void checkForUpdates(Collection<String> packageNames) {
+        updatableAppsTracker.checkPackages(packageNames);
+    }
+
+    /**
+     * Checks only the apps in the given repositories for updates,
+     * and installs all available updates afterwards, if {@code install} is true.
+     */
+    public void checkForUpdates(Collection<Long> repoIds, boolean install) {
+        if (install) installAfterCheck = true;
+        updatableAppsTracker.checkRepositories(repoIds);
     }
 
     public void checkForUpdatesAndInstall() {
-        if (disposable != null) disposable.dispose();
-        disposable = Utils.runOffUiThread(this::getUpdatableApps, apps -> {
-            addUpdatableApps(apps);
-            downloadUpdates(apps);
+        installAfterCheck = true;
+        updatableAppsTracker.checkAll();
+    }
+
+    /**
+     * Checks only the apps with the given {@code packageNames} for updates
+     * and installs the available updates among them afterwards.
+     */
+    public void checkForUpdatesAndInstall(Collection<String> packageNames) {
+        Set<String> installPackageNames = new HashSet<>(packageNames);
+        updatableAppsTracker.checkPackages(installPackageNames, ContextCompat.getMainExecutor(context), () -> {
+            List<UpdatableApp> updates = new ArrayList<>();
+            for (String packageName : installPackageNames) {
+                UpdatableApp app = updatableAppsTracker.getUpdatableApp(packageName);
+                if (app != null && UpdatableAppsTracker.isUpdate(app)) updates.add(app);
+            }
+            downloadUpdates(updates);
         });
     }
 
-    @WorkerThread
-    private List<UpdatableApp> getUpdatableApps() {
-        List<String> releaseChannels = Preferences.get().getBackendReleaseChannels();
-        return updateChecker.getUpdatableApps(releaseChannels, true);
+    /**
+     * Adds the apps whose updates changed as {@link Status#UpdateAvailable}
+     * and removes entries of updates that are no longer available.
+     *
+     * @param packageNames the packages whose updates changed, or null if all may have changed.
+     */
+    private void onUpdatableAppsChanged(@Nullable Set<String> packageNames) {
+        List<UpdatableApp> updates = new ArrayList<>();
+        for (UpdatableApp app : updatableAppsTracker.getUpdatableApps()) {
+            if (!UpdatableAppsTracker.isUpdate(app)) continue; // known vulnerabilities are for the Updates tab
+            if (packageNames == null || packageNames.contains(app.getPackageName())) updates.add(app);
+        }
+        if (packageNames == null || !packageNames.isEmpty()) {
+            removeStaleUpdates(packageNames, updates);
+            if (isStarting) {
+                addUpdatableAppsNoNotify(updates);
+            } else {
+                addUpdatableApps(updates);
+            }
+        }
+        if (packageNames == null) isStarting = false;
+        setNumUpdatableApps(updatableAppsTracker.getNumUpdates());
+        if (installAfterCheck) {
+            installAfterCheck = false;
+            List<UpdatableApp> allUpdates = new ArrayList<>();
+            for (UpdatableApp app : updatableAppsTracker.getUpdatableApps()) {
+                if (UpdatableAppsTracker.isUpdate(app)) allUpdates.add(app);
+            }
+            downloadUpdates(allUpdates);
+        }
+    }
+
+    /**
+     * Removes {@link Status#UpdateAvailable} entries of the given {@code packageNames}
+     * (or all, if null) that are not among the given {@code updates} anymore.
+     */
+    private void removeStaleUpdates(@Nullable Set<String> packageNames, List<UpdatableApp> updates) {
+        Set<String> versions = new HashSet<>(updates.size());
+        for (UpdatableApp app : updates) {
+            long versionCode = app.getUpdate().getManifest().getVersionCode();
+            versions.add(app.getRepoId() + ":" + app.getPackageName() + ":" + versionCode);
+        }
+        int removed;
+        synchronized (store) {
+            store.beginBatch();
+            try {
+                removed = store.removeAll(status -> status.status == Status.UpdateAvailable
+                        && (packageNames == null || packageNames.contains(status.apk.packageName))
+                        && !versions.contains(status.apk.repoId + ":" + status.apk.packageName + ":"
+                        + status.apk.versionCode));
+            } finally {
+                store.endBatch();
+            }
+        }
+        if (removed > 0 && !isStarting) notifyChange(REASON_UPDATES_AVAILABLE);
     }
 
-    private void addUpdatableApps(@Nullable List<UpdatableApp> canUpdate) {
-        if (canUpdate == null) return;
+    private void addUpdatableApps(List<UpdatableApp> canUpdate) {
         if (canUpdate.size() > 0) {
             startBatchUpdates();
             for (UpdatableApp app : canUpdate) {
                 Repository repo = repoManager.getRepository(app.getUpdate().getRepoId());
+                if (repo == null) continue; // if repo is gone, it was just deleted, so skip app
                 addApk(new App(app), new Apk(app.getUpdate(), repo), Status.UpdateAvailable, null);
             }
             endBatchUpdates(Status.UpdateAvailable);
         }
-        setNumUpdatableApps(canUpdate.size());
     }
 
     /**
-     * Queues all apps needing update.
+     * Queues all apps needing update, as many at a time as fit on disk,
+     * see {@link UpdateBatchPlanner}. The others get queued once earlier ones are done.
      * If this app itself (e.g. F-Droid) needs to be updated, it is queued last.
      */
     private void downloadUpdates(List<UpdatableApp> apps) {
-        String ourPackageName = context.getPackageName();
-        App updateLastApp = null;
-        Apk updateLastApk = null;
+        List<PlannedUpdate> updates = new ArrayList<>(apps.size());
         for (UpdatableApp app : apps) {
             Repository repo = repoManager.getRepository(app.getUpdate().getRepoId());
             if (repo == null) continue; // repo could have been removed in the meantime
-            // update our own APK at the end
-            if (TextUtils.equals(ourPackageName, app.getUpdate().getPackageName())) {
-                updateLastApp = new App(app);
-                updateLastApk = new Apk(app.getUpdate(), repo);
-                continue;
+            updates.add(new PlannedUpdate(new App(app), new Apk(app.getUpdate(), repo),
+                    app.getHasKnownVulnerability()));
+        }
+        List<PlannedUpdate> admitted;
+        synchronized (store) {
+            if (updatePlanner == null) {
+                File cacheDir = ApkCache.getApkCacheDir(context);
+                // there's no way yet for users to pin apps
+                updatePlanner = new UpdateBatchPlanner<>(new PlannedUpdateInfo(context), UPDATE_POLICIES,
+                        Collections.emptySet(), context.getPackageName(), cacheDir::getUsableSpace, UPDATE_HEADROOM);
             }
-            InstallManagerService.queue(context, new App(app), new Apk(app.getUpdate(), repo));
+            admitted = updatePlanner.add(updates);
+        }
+        queueUpdates(admitted);
+    }
+
+    private void queueUpdates(List<PlannedUpdate> updates) {
+        for (PlannedUpdate update : updates) {
+            InstallManagerService.queue(context, update.app, update.apk);
+        }
+    }
+
+    /**
+     * Lets the next planned updates go ahead when the given APK is done.
+     * Waiting for the user to confirm an install also counts as done here,
+     * otherwise a single unconfirmed install would hold back the whole batch.
+     */
+    private void onPlannedUpdateDone(String canonicalUrl) {
+        List<PlannedUpdate> admitted;
+        synchronized (store) {
+            if (updatePlanner == null) return;
+            admitted = updatePlanner.release(canonicalUrl);
+            if (updatePlanner.getReservedSpace() == 0 && updatePlanner.getNumWaiting() == 0) {
+                updatePlanner = null;
+            }
+        }
+        queueUpdates(admitted);
+    }
+
+    private static class PlannedUpdate {
+        final App app;
+        final Apk apk;
+        final boolean hasKnownVulnerability;
+
+        PlannedUpdate(App app, Apk apk, boolean hasKnownVulnerability) {
+            this.app = app;
+            this.apk = apk;
+            this.hasKnownVulnerability = hasKnownVulnerability;
+        }
+    }
+
+    private static class PlannedUpdateInfo implements UpdateBatchPlanner.ItemInfo<PlannedUpdate> {
+        private final Context context;
+
+        PlannedUpdateInfo(Context context) {
+            this.context = context;
         }
-        if (updateLastApp != null) {
-            InstallManagerService.queue(context, updateLastApp, updateLastApk);
+
+        @NonNull
+        @Override
+        public String getKey(PlannedUpdate item) {
+            return item.apk.getCanonicalUrl();
+        }
+
+        @NonNull
+        @Override
+        public String getPackageName(PlannedUpdate item) {
+            return item.apk.packageName;
+        }
+
+        @Override
+        public long getSize(PlannedUpdate item) {
+            return item.apk.size;
+        }
+
+        @Override
+        public long getSizeOnDisk(PlannedUpdate item) {
+            return ApkCache.getApkDownloadPath(context, item.apk.getCanonicalUrl()).length();
+        }
+
+        @Override
+        public boolean hasKnownVulnerability(PlannedUpdate item) {
+            return item.hasKnownVulnerability;
         }
     }
 
     private void addUpdatableAppsNoNotify(List<UpdatableApp> canUpdate) {
-        synchronized (appMapping) {
+        synchronized (store) {
             isBatchUpdating = true;
+            store.beginBatch();
             try {
-                int num = 0;
                 for (UpdatableApp app : canUpdate) {
                     Repository repo = repoManager.getRepository(app.getUpdate().getRepoId());
                     if (repo == null) continue; // if repo is gone, it was just deleted, so skip app
                     addApk(new App(app), new Apk(app.getUpdate(), repo), Status.UpdateAvailable, null);
-                    num++;
                 }
-                setNumUpdatableApps(num);
             } finally {
                 isBatchUpdating = false;
+                store.endBatch();
             }
         }
     }
@@ -459,8 +654,8 @@ public final class AppUpdateStatusManager {
             return;
         }
 
-        synchronized (appMapping) {
-            AppUpdateStatus entry = appMapping.get(apk.getCanonicalUrl());
+        synchronized (store) {
+            AppUpdateStatus entry = store.get(apk.getCanonicalUrl());
             if (entry != null) {
                 updateApkInternal(entry, status, pendingIntent);
             } else if (app != null) {
@@ -475,8 +670,8 @@ public final class AppUpdateStatusManager {
      * @param pendingIntent Action when notification is clicked. Can be null for default action(s)
      */
     public void updateApk(String canonicalUrl, @NonNull Status status, @Nullable PendingIntent pendingIntent) {
-        synchronized (appMapping) {
-            AppUpdateStatus entry = appMapping.get(canonicalUrl);
+        synchronized (store) {
+            AppUpdateStatus entry = store.get(canonicalUrl);
             if (entry != null) {
                 updateApkInternal(entry, status, pendingIntent);
             }
@@ -485,24 +680,20 @@ public final class AppUpdateStatusManager {
 
     @Nullable
     public App getApp(String canonicalUrl) {
-        synchronized (appMapping) {
-            AppUpdateStatus entry = appMapping.get(canonicalUrl);
-            if (entry != null) {
-                return entry.app;
-            }
-            return null;
+        AppUpdateStatus entry = store.get(canonicalUrl);
+        if (entry != null) {
+            return entry.app;
         }
+        return null;
     }
 
     @Nullable
     public Apk getApk(String canonicalUrl) {
-        synchronized (appMapping) {
-            AppUpdateStatus entry = appMapping.get(canonicalUrl);
-            if (entry != null) {
-                return entry.apk;
-            }
-            return null;
+        AppUpdateStatus entry = store.get(canonicalUrl);
+        if (entry != null) {
+            return entry.apk;
         }
+        return null;
     }
 
     /**
@@ -512,31 +703,35 @@ public final class AppUpdateStatusManager {
      * @see org.fdroid.fdroid.installer.InstallManagerService
      */
     public void removeApk(String canonicalUrl) {
-        synchronized (appMapping) {
-            AppUpdateStatus entry = appMapping.remove(canonicalUrl);
+        synchronized (store) {
+            AppUpdateStatus entry = store.remove(canonicalUrl);
             if (entry != null) {
                 Utils.debugLog(LOGTAG, "Remove APK " + entry.apk.getApkPath());
                 notifyRemove(entry);
             }
         }
+        onPlannedUpdateDone(canonicalUrl);
     }
 
     public void refreshApk(String canonicalUrl) {
-        synchronized (appMapping) {
-            AppUpdateStatus entry = appMapping.get(canonicalUrl);
+        synchronized (store) {
+            AppUpdateStatus entry = store.get(canonicalUrl);
             if (entry != null) {
                 Utils.debugLog(LOGTAG, "Refresh APK " + entry.apk.getApkPath());
+                store.put(entry, true);
                 notifyChange(entry, true);
             }
         }
     }
 
     public void updateApkProgress(String canonicalUrl, long max, long current) {
-        synchronized (appMapping) {
-            AppUpdateStatus entry = appMapping.get(canonicalUrl);
+        synchronized (store) {
+            AppUpdateStatus entry = store.get(canonicalUrl);
             if (entry != null) {
+                entry = entry.copy();
                 entry.progressMax = max;
                 entry.progressCurrent = current;
+                store.put(entry, false);
                 notifyChange(entry, false);
             }
         }
@@ -546,12 +741,14 @@ public final class AppUpdateStatusManager {
      * @param errorText If null, then it is likely because the user cancelled the download.
      */
     public void setDownloadError(String canonicalUrl, @Nullable String errorText) {
-        synchronized (appMapping) {
-            AppUpdateStatus entry = appMapping.get(canonicalUrl);
+        synchronized (store) {
+            AppUpdateStatus entry = store.get(canonicalUrl);
             if (entry != null) {
+                entry = entry.copy();
                 entry.status = Status.DownloadInterrupted;
                 entry.errorText = errorText;
                 entry.intent = null;
+                store.put(entry, true);
                 notifyChange(entry, true);
                 removeApk(canonicalUrl);
             }
@@ -559,27 +756,33 @@ public final class AppUpdateStatusManager {
     }
 
     public void setApkError(App app, Apk apk, String errorText) {
-        synchronized (appMapping) {
-            AppUpdateStatus entry = appMapping.get(apk.getCanonicalUrl());
+        synchronized (store) {
+            AppUpdateStatus entry = store.get(apk.getCanonicalUrl());
             if (entry == null) {
-                entry = createAppEntry(app, apk, Status.InstallError, null);
+                entry = new AppUpdateStatus(app, apk, Status.InstallError, null);
+            } else {
+                entry = entry.copy();
             }
             entry.status = Status.InstallError;
             entry.errorText = errorText;
             entry.intent = getAppErrorIntent(entry);
+            store.put(entry, true);
             notifyChange(entry, false);
         }
+        onPlannedUpdateDone(apk.getCanonicalUrl());
     }
 
     private void startBatchUpdates() {
-        synchronized (appMapping) {
+        synchronized (store) {
             isBatchUpdating = true;
+            store.beginBatch();
         }
     }
 
     private void endBatchUpdates(Status status) {
-        synchronized (appMapping) {
+        synchronized (store) {
             isBatchUpdating = false;
+            store.endBatch();
 
             String reason = null;
             if (status == Status.ReadyToInstall) {
@@ -591,27 +794,25 @@ public final class AppUpdateStatusManager {
         }
     }
 
-    @SuppressWarnings("LineLength")
     void clearAllUpdates() {
-        synchronized (appMapping) {
-            for (Iterator<Map.Entry<String, AppUpdateStatus>> it = appMapping.entrySet().iterator(); it.hasNext(); ) { // NOCHECKSTYLE EmptyForIteratorPad
-                Map.Entry<String, AppUpdateStatus> entry = it.next();
-                if (entry.getValue().status != Status.Installed) {
-                    it.remove();
-                }
+        synchronized (store) {
+            store.beginBatch();
+            try {
+                store.removeAll(entry -> entry.status != Status.Installed);
+            } finally {
+                store.endBatch();
             }
             notifyChange(REASON_CLEAR_ALL_UPDATES);
         }
     }
 
-    @SuppressWarnings("LineLength")
     void clearAllInstalled() {
-        synchronized (appMapping) {
-            for (Iterator<Map.Entry<String, AppUpdateStatus>> it = appMapping.entrySet().iterator(); it.hasNext(); ) { // NOCHECKSTYLE EmptyForIteratorPad
-                Map.Entry<String, AppUpdateStatus> entry = it.next();
-                if (entry.getValue().status == Status.Installed) {
-                    it.remove();
-                }
+        synchronized (store) {
+            store.beginBatch();
+            try {
+                store.removeAll(entry -> entry.status == Status.Installed);
+            } finally {
+                store.endBatch();
             }
             notifyChange(REASON_CLEAR_ALL_INSTALLED);
         }
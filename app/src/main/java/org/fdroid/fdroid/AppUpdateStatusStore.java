@@ -0,0 +1,355 @@
+package org.fdroid.fdroid;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.fdroid.fdroid.AppUpdateStatusManager.AppUpdateStatus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Holds the {@link AppUpdateStatus} entries of {@link AppUpdateStatusManager},
+ * indexed by their canonical URL and by their package name.
+ * <p>
+ * Entries put into the store must not be changed afterwards,
+ * instead a changed copy gets put into the store again.
+ * This way, readers can get a consistent {@link Snapshot} of all entries without copying them,
+ * and the snapshot only needs to be rebuilt after something changed.
+ * <p>
+ * Changes get delivered to each {@link Listener} on its own {@link Executor}.
+ * While a listener has not received its changes yet, further changes to the same entry get merged,
+ * so a listener that can't keep up with progress updates only sees the latest state of each entry.
+ */
+public final class AppUpdateStatusStore {
+
+    public interface Listener {
+        /**
+         * Gets called with the latest {@code snapshot} after entries changed.
+         *
+         * @param changes what changed since the last call, or null if too much changed
+         *                and listeners should reload everything from the {@code snapshot}.
+         */
+        void onChanged(@NonNull Snapshot snapshot, @Nullable List<Change> changes);
+    }
+
+    /**
+     * Decides which entries to remove with {@link #removeAll(Filter)}.
+     */
+    public interface Filter {
+        boolean matches(AppUpdateStatus status);
+    }
+
+    public static final class Change {
+        public enum Type {
+            ADDED,
+            CHANGED,
+            REMOVED,
+        }
+
+        @NonNull
+        public final Type type;
+        @NonNull
+        public final String canonicalUrl;
+        /**
+         * The new entry, or the last one if it got {@link Type#REMOVED}.
+         */
+        @NonNull
+        public final AppUpdateStatus status;
+        /**
+         * True, if the {@link AppUpdateStatus#status} changed
+         * and not just things like the download progress.
+         */
+        public final boolean isStatusUpdate;
+
+        Change(@NonNull Type type, @NonNull AppUpdateStatus status, boolean isStatusUpdate) {
+            this.type = type;
+            this.canonicalUrl = status.getCanonicalUrl();
+            this.status = status;
+            this.isStatusUpdate = isStatusUpdate;
+        }
+
+        /**
+         * Combines this change with the {@code next} one for the same entry.
+         *
+         * @return the combined change, or null if the two cancel each other out.
+         */
+        @Nullable
+        Change merge(Change next) {
+            if (next.type == Type.REMOVED) {
+                return type == Type.ADDED ? null : next;
+            }
+            Type mergedType;
+            if (type == Type.ADDED) {
+                mergedType = Type.ADDED;
+            } else {
+                // removed and added again, or changed twice
+                mergedType = Type.CHANGED;
+            }
+            boolean statusUpdate = type != Type.CHANGED || isStatusUpdate || next.isStatusUpdate;
+            return new Change(mergedType, next.status, statusUpdate);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return type + " " + status;
+        }
+    }
+
+    /**
+     * An unmodifiable view of all entries at one point in time.
+     */
+    public static final class Snapshot {
+        private final Map<String, AppUpdateStatus> entries;
+        private final Map<String, List<AppUpdateStatus>> byPackageName;
+        private final List<AppUpdateStatus> all;
+
+        private Snapshot(Map<String, AppUpdateStatus> entries, Map<String, List<AppUpdateStatus>> byPackageName) {
+            this.entries = entries;
+            this.byPackageName = byPackageName;
+            this.all = Collections.unmodifiableList(new ArrayList<>(entries.values()));
+        }
+
+        @Nullable
+        public AppUpdateStatus get(String canonicalUrl) {
+            return entries.get(canonicalUrl);
+        }
+
+        /**
+         * @return all entries in the order they were first added.
+         */
+        @NonNull
+        public List<AppUpdateStatus> getAll() {
+            return all;
+        }
+
+        @NonNull
+        public List<AppUpdateStatus> getByPackageName(String packageName) {
+            List<AppUpdateStatus> list = byPackageName.get(packageName);
+            return list == null ? Collections.emptyList() : list;
+        }
+
+        public int size() {
+            return all.size();
+        }
+    }
+
+    private final LinkedHashMap<String, AppUpdateStatus> entries = new LinkedHashMap<>();
+    private final HashMap<String, LinkedHashMap<String, AppUpdateStatus>> byPackageName = new HashMap<>();
+    private final List<Subscription> subscriptions = new ArrayList<>();
+    @Nullable
+    private Snapshot snapshot;
+    private int batchDepth = 0;
+    private boolean changedInBatch = false;
+
+    @Nullable
+    public synchronized AppUpdateStatus get(String canonicalUrl) {
+        return entries.get(canonicalUrl);
+    }
+
+    /**
+     * @return all entries with the given {@code packageName}, there may be several.
+     */
+    @NonNull
+    public synchronized List<AppUpdateStatus> getByPackageName(String packageName) {
+        Map<String, AppUpdateStatus> map = byPackageName.get(packageName);
+        if (map == null) return Collections.emptyList();
+        return new ArrayList<>(map.values());
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the current state of all entries. This does not change when entries change later.
+     */
+    @NonNull
+    public synchronized Snapshot getSnapshot() {
+        if (snapshot == null) {
+            Map<String, List<AppUpdateStatus>> packages = new HashMap<>(byPackageName.size());
+            for (Map.Entry<String, LinkedHashMap<String, AppUpdateStatus>> e : byPackageName.entrySet()) {
+                packages.put(e.getKey(), Collections.unmodifiableList(new ArrayList<>(e.getValue().values())));
+            }
+            snapshot = new Snapshot(Collections.unmodifiableMap(new LinkedHashMap<>(entries)), packages);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Adds the given {@code status}, or replaces the entry with the same canonical URL.
+     * The given {@code status} must not be changed afterwards.
+     *
+     * @param isStatusUpdate true, if {@link AppUpdateStatus#status} changed,
+     *                       see {@link Change#isStatusUpdate}.
+     */
+    public synchronized void put(@NonNull AppUpdateStatus status, boolean isStatusUpdate) {
+        String url = status.getCanonicalUrl();
+        AppUpdateStatus old = entries.put(url, status);
+        if (old != null && !old.apk.packageName.equals(status.apk.packageName)) {
+            removeFromPackageIndex(old);
+        }
+        LinkedHashMap<String, AppUpdateStatus> map = byPackageName.get(status.apk.packageName);
+        if (map == null) {
+            map = new LinkedHashMap<>();
+            byPackageName.put(status.apk.packageName, map);
+        }
+        map.put(url, status);
+        Change.Type type = old == null ? Change.Type.ADDED : Change.Type.CHANGED;
+        onChanged(new Change(type, status, old == null || isStatusUpdate));
+    }
+
+    /**
+     * @return the removed entry, or null if there was none.
+     */
+    @Nullable
+    public synchronized AppUpdateStatus remove(String canonicalUrl) {
+        AppUpdateStatus old = entries.remove(canonicalUrl);
+        if (old != null) {
+            removeFromPackageIndex(old);
+            onChanged(new Change(Change.Type.REMOVED, old, true));
+        }
+        return old;
+    }
+
+    /**
+     * Removes all entries matching the given {@code filter}.
+     *
+     * @return the number of removed entries.
+     */
+    public synchronized int removeAll(Filter filter) {
+        int removed = 0;
+        for (Iterator<AppUpdateStatus> it = entries.values().iterator(); it.hasNext(); ) { // NOCHECKSTYLE EmptyForIteratorPad
+            AppUpdateStatus status = it.next();
+            if (filter.matches(status)) {
+                it.remove();
+                removeFromPackageIndex(status);
+                onChanged(new Change(Change.Type.REMOVED, status, true));
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Starts a batch of changes. Until the matching {@link #endBatch()},
+     * no changes get delivered and listeners get told to reload everything afterwards.
+     */
+    public synchronized void beginBatch() {
+        batchDepth++;
+    }
+
+    public synchronized void endBatch() {
+        if (batchDepth == 0) throw new IllegalStateException("No batch started");
+        batchDepth--;
+        if (batchDepth == 0 && changedInBatch) {
+            changedInBatch = false;
+            for (Subscription subscription : subscriptions) subscription.reload();
+        }
+    }
+
+    /**
+     * Registers the given {@code listener} to get told about changes on the given {@code executor},
+     * e.g. the main thread.
+     */
+    public synchronized void addListener(@NonNull Executor executor, @NonNull Listener listener) {
+        subscriptions.add(new Subscription(executor, listener));
+    }
+
+    public synchronized void removeListener(@NonNull Listener listener) {
+        for (Iterator<Subscription> it = subscriptions.iterator(); it.hasNext(); ) { // NOCHECKSTYLE EmptyForIteratorPad
+            Subscription subscription = it.next();
+            if (subscription.listener == listener) {
+                subscription.removed = true;
+                it.remove();
+            }
+        }
+    }
+
+    private void removeFromPackageIndex(AppUpdateStatus status) {
+        Map<String, AppUpdateStatus> map = byPackageName.get(status.apk.packageName);
+        if (map == null) return;
+        map.remove(status.getCanonicalUrl());
+        if (map.isEmpty()) byPackageName.remove(status.apk.packageName);
+    }
+
+    private void onChanged(Change change) {
+        snapshot = null;
+        if (batchDepth > 0) {
+            changedInBatch = true;
+            return;
+        }
+        for (Subscription subscription : subscriptions) subscription.add(change);
+    }
+
+    /**
+     * Collects the changes for one {@link Listener} until its {@link Executor} gets to them.
+     * All fields are guarded by the store.
+     */
+    private final class Subscription implements Runnable {
+        final Executor executor;
+        final Listener listener;
+        LinkedHashMap<String, Change> pending = new LinkedHashMap<>();
+        boolean reload = false;
+        boolean scheduled = false;
+        boolean removed = false;
+
+        Subscription(Executor executor, Listener listener) {
+            this.executor = executor;
+            this.listener = listener;
+        }
+
+        void add(Change change) {
+            if (!reload) {
+                Change previous = pending.get(change.canonicalUrl);
+                Change merged = previous == null ? change : previous.merge(change);
+                if (merged == null) {
+                    pending.remove(change.canonicalUrl);
+                } else {
+                    pending.put(change.canonicalUrl, merged);
+                }
+            }
+            schedule();
+        }
+
+        void reload() {
+            reload = true;
+            pending.clear();
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled) return;
+            scheduled = true;
+            executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            Snapshot current;
+            List<Change> changes;
+            synchronized (AppUpdateStatusStore.this) {
+                scheduled = false;
+                if (removed) return;
+                current = getSnapshot();
+                if (reload) {
+                    changes = null;
+                    reload = false;
+                } else if (pending.isEmpty()) {
+                    return;
+                } else {
+                    changes = Collections.unmodifiableList(new ArrayList<>(pending.values()));
+                    pending = new LinkedHashMap<>();
+                }
+            }
+            listener.onChanged(current, changes);
+        }
+    }
+}
@@ -59,6 +59,7 @@ import org.acra.config.CoreConfigurationBuilder;
 import org.acra.config.DialogConfigurationBuilder;
 import org.acra.config.MailSenderConfigurationBuilder;
 import org.apache.commons.net.util.SubnetUtils;
+import org.fdroid.CompatibilityCheckerImpl;
 import org.fdroid.database.FDroidDatabase;
 import org.fdroid.database.Repository;
 import org.fdroid.fdroid.data.App;
@@ -66,6 +67,7 @@ import org.fdroid.fdroid.data.DBHelper;
 import org.fdroid.fdroid.installer.ApkFileProvider;
 import org.fdroid.fdroid.installer.InstallHistoryService;
 import org.fdroid.fdroid.installer.SessionInstallManager;
+import org.fdroid.fdroid.installer.StagedFileCleaner;
 import org.fdroid.fdroid.nearby.PublicSourceDirProvider;
 import org.fdroid.fdroid.nearby.SDCardScannerService;
 import org.fdroid.fdroid.nearby.WifiStateChangeService;
@@ -78,7 +80,9 @@ import org.fdroid.fdroid.work.RepoUpdateWorker;
 import org.fdroid.index.IndexFormatVersion;
 import org.fdroid.index.RepoManager;
 import org.fdroid.index.RepoUriBuilder;
+import org.fdroid.index.v2.ArchiveIndexStore;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
@@ -108,6 +112,8 @@ public class FDroidApp extends Application implements androidx.work.Configuratio
     private static RepoManager repoManager;
     @Nullable
     private static RepoUpdateManager repoUpdateManager;
+    @Nullable
+    private static ArchiveIndexStore archiveIndexStore;
 
     // for the local repo on this device, all static since there is only one
     public static volatile int port;
@@ -214,8 +220,8 @@ public class FDroidApp extends Application implements androidx.work.Configuratio
 
     /**
      * Initialize the settings needed to run a local swap repo. This should
-     * only ever be called in {@link WifiStateChangeService.WifiInfoThread},
-     * after the single init call in {@link FDroidApp#onCreate()}.  If there is
+     * only ever be called by {@link WifiStateChangeService} when it sets up the
+     * swap repo, after the single init call in {@link FDroidApp#onCreate()}.  If there is
      * a port conflict on binding then {@code generateNewPort} will be set and
      * the whole discovery process will be restarted in {@link WifiStateChangeService}
      */
@@ -353,6 +359,8 @@ public class FDroidApp extends Application implements androidx.work.Configuratio
                 AppUpdateStatusManager.getInstance(FDroidApp.this).checkForUpdates());
 
         CleanCacheWorker.schedule(this);
+        // deletes files staged by a process that died before it could
+        Utils.runOffUiThread(() -> StagedFileCleaner.getInstance(getApplicationContext()));
 
         sessionInstallManager = new SessionInstallManager(getApplicationContext());
         notificationHelper = new NotificationHelper(getApplicationContext());
@@ -366,10 +374,9 @@ public class FDroidApp extends Application implements androidx.work.Configuratio
         RepoUpdateWorker.scheduleOrCancel(getApplicationContext());
 
         FDroidApp.initWifiSettings();
-        WifiStateChangeService.start(this, null);
+        WifiStateChangeService.start(this);
         // if the HTTPS pref changes, then update all affected things
-        preferences.registerLocalRepoHttpsListeners(() -> WifiStateChangeService.start(getApplicationContext(),
-                null));
+        preferences.registerLocalRepoHttpsListeners(() -> WifiStateChangeService.start(getApplicationContext()));
 
         if (preferences.isKeepingInstallHistory()) {
             InstallHistoryService.register(this);
@@ -552,7 +559,7 @@ public class FDroidApp extends Application implements androidx.work.Configuratio
                 return Utils.getUri(address1, pathElements);
             };
             repoManager = new RepoManager(context, DBHelper.getDb(context), DownloaderFactory.INSTANCE,
-                    DownloaderFactory.HTTP_MANAGER, repoUriBuilder);
+                    DownloaderFactory.HTTP_MANAGER, repoUriBuilder, getArchiveIndexStore(context));
         }
         return repoManager;
     }
@@ -565,6 +572,21 @@ public class FDroidApp extends Application implements androidx.work.Configuratio
         return repoUpdateManager;
     }
 
+    /**
+     * Archive repos keep their packages in this store
+     * and only get them into the database when needed.
+     */
+    public static ArchiveIndexStore getArchiveIndexStore(Context c) {
+        if (archiveIndexStore == null) {
+            Context context = c.getApplicationContext();
+            CompatibilityCheckerImpl compatibilityChecker = new CompatibilityCheckerImpl(
+                    context.getPackageManager(), Preferences.get().forceTouchApps());
+            archiveIndexStore = new ArchiveIndexStore(DBHelper.getDb(context),
+                    new File(context.getFilesDir(), "archive-index"), compatibilityChecker);
+        }
+        return archiveIndexStore;
+    }
+
     /**
      * Set up WorkManager on demand to avoid slowing down starts.
      *
@@ -1,12 +1,11 @@
 package org.fdroid.fdroid;
 
 import android.Manifest;
+import android.annotation.SuppressLint;
 import android.app.Notification;
 import android.app.PendingIntent;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
@@ -14,9 +13,12 @@ import android.graphics.Point;
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 import android.text.style.StyleSpan;
+import android.util.LruCache;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -25,7 +27,7 @@ import androidx.core.app.NotificationChannelCompat;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
 import androidx.core.content.ContextCompat;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.core.util.Pair;
 
 import com.bumptech.glide.request.target.CustomTarget;
 import com.bumptech.glide.request.transition.Transition;
@@ -37,6 +39,11 @@ import org.fdroid.fdroid.views.main.MainActivity;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 @SuppressWarnings("LineLength")
 public class NotificationHelper {
@@ -58,14 +65,39 @@ public class NotificationHelper {
     private static final String GROUP_UPDATES = "updates";
     private static final String GROUP_INSTALLED = "installed";
 
+    /**
+     * The number of bytes of app icons to keep around, so they don't get loaded for every notification update.
+     */
+    private static final int LARGE_ICON_CACHE_SIZE = 4 * 1024 * 1024;
+
     private final Context context;
     private final NotificationManagerCompat notificationManager;
     private final ArrayList<AppUpdateStatusManager.AppUpdateStatus> updates = new ArrayList<>();
     private final ArrayList<AppUpdateStatusManager.AppUpdateStatus> installed = new ArrayList<>();
+    private final NotificationRenderer renderer;
+    private final LruCache<String, Bitmap> largeIcons = new LruCache<String, Bitmap>(LARGE_ICON_CACHE_SIZE) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getByteCount();
+        }
+    };
+    private final Map<String, Set<Pair<String, Integer>>> notificationsWaitingForIcon = new HashMap<>();
 
     NotificationHelper(Context context) {
         this.context = context;
         notificationManager = NotificationManagerCompat.from(context);
+        renderer = new NotificationRenderer(new NotificationRenderer.Poster() {
+            @SuppressLint("MissingPermission") // checked before rendering
+            @Override
+            public void notify(String tag, int id, Notification notification) {
+                notificationManager.notify(tag, id, notification);
+            }
+
+            @Override
+            public void cancel(String tag, int id) {
+                notificationManager.cancel(tag, id);
+            }
+        }, new Handler(Looper.getMainLooper()));
 
         final NotificationChannelCompat installChannel = new NotificationChannelCompat.Builder(CHANNEL_INSTALLS,
                 NotificationManagerCompat.IMPORTANCE_LOW)
@@ -88,61 +120,35 @@ public class NotificationHelper {
         notificationManager.createNotificationChannelsCompat(Arrays.asList(installChannel, swapChannel,
                 updateChannel));
 
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(AppUpdateStatusManager.BROADCAST_APPSTATUS_LIST_CHANGED);
-        filter.addAction(AppUpdateStatusManager.BROADCAST_APPSTATUS_ADDED);
-        filter.addAction(AppUpdateStatusManager.BROADCAST_APPSTATUS_CHANGED);
-        filter.addAction(AppUpdateStatusManager.BROADCAST_APPSTATUS_REMOVED);
-        BroadcastReceiver receiverAppStatusChanges = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                if (intent == null) {
-                    return;
-                }
-
-                AppUpdateStatusManager appUpdateStatusManager = AppUpdateStatusManager.getInstance(context);
-                AppUpdateStatusManager.AppUpdateStatus entry;
-                String url;
-                switch (intent.getAction()) {
-                    case AppUpdateStatusManager.BROADCAST_APPSTATUS_LIST_CHANGED:
-                        notificationManager.cancelAll();
-                        updateStatusLists();
-                        createSummaryNotifications();
-                        for (AppUpdateStatusManager.AppUpdateStatus appUpdateStatus : appUpdateStatusManager.getAll()) {
-                            createNotification(appUpdateStatus);
-                        }
-                        break;
-                    case AppUpdateStatusManager.BROADCAST_APPSTATUS_ADDED:
-                        updateStatusLists();
-                        createSummaryNotifications();
-                        url = intent.getStringExtra(DownloaderService.EXTRA_CANONICAL_URL);
-                        entry = appUpdateStatusManager.get(url);
-                        if (entry != null) {
-                            createNotification(entry);
-                        }
-                        break;
-                    case AppUpdateStatusManager.BROADCAST_APPSTATUS_CHANGED:
-                        url = intent.getStringExtra(DownloaderService.EXTRA_CANONICAL_URL);
-                        entry = appUpdateStatusManager.get(url);
-                        updateStatusLists();
-                        if (entry != null) {
-                            createNotification(entry);
-                        }
-                        if (intent.getBooleanExtra(AppUpdateStatusManager.EXTRA_IS_STATUS_UPDATE, false)) {
-                            createSummaryNotifications();
-                        }
-                        break;
-                    case AppUpdateStatusManager.BROADCAST_APPSTATUS_REMOVED:
-                        url = intent.getStringExtra(DownloaderService.EXTRA_CANONICAL_URL);
-                        notificationManager.cancel(url, NOTIFY_ID_INSTALLED);
-                        notificationManager.cancel(url, NOTIFY_ID_UPDATES);
-                        updateStatusLists();
-                        createSummaryNotifications();
-                        break;
-                }
-            }
-        };
-        LocalBroadcastManager.getInstance(context).registerReceiver(receiverAppStatusChanges, filter);
+        AppUpdateStatusManager.getInstance(context)
+                .addListener(ContextCompat.getMainExecutor(context), this::onAppStatusesChanged);
+    }
+
+    /**
+     * Gets called on the main thread with the latest {@code snapshot} whenever app statuses changed.
+     * This works out which notifications should be shown now and lets the {@link NotificationRenderer}
+     * post only those that changed.
+     */
+    private void onAppStatusesChanged(@NonNull AppUpdateStatusStore.Snapshot snapshot,
+                                      @Nullable List<AppUpdateStatusStore.Change> changes) {
+        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+        if (!notificationManager.areNotificationsEnabled()) {
+            return;
+        }
+        if (changes == null) {
+            // the whole list changed, so start over like after a restart
+            notificationManager.cancelAll();
+            renderer.reset();
+        }
+        updateStatusLists(snapshot);
+        List<NotificationRenderer.Spec> specs = new ArrayList<>();
+        if (!Preferences.get().hideAllNotifications()) {
+            addUpdateSpecs(specs);
+            addInstalledSpecs(specs);
+        }
+        renderer.render(specs);
     }
 
     private boolean useStackedNotifications() {
@@ -151,18 +157,13 @@ public class NotificationHelper {
 
     /**
      * Populate {@link NotificationHelper#updates} and {@link NotificationHelper#installed} with
-     * the relevant status entries from the {@link AppUpdateStatusManager}.
+     * the relevant status entries from the given {@code snapshot}.
      */
-    private void updateStatusLists() {
-        if (!notificationManager.areNotificationsEnabled()) {
-            return;
-        }
-
+    private void updateStatusLists(AppUpdateStatusStore.Snapshot snapshot) {
         updates.clear();
         installed.clear();
 
-        AppUpdateStatusManager appUpdateStatusManager = AppUpdateStatusManager.getInstance(context);
-        for (AppUpdateStatusManager.AppUpdateStatus entry : appUpdateStatusManager.getAll()) {
+        for (AppUpdateStatusManager.AppUpdateStatus entry : snapshot.getAll()) {
             if (entry.status == AppUpdateStatusManager.Status.Installed) {
                 installed.add(entry);
             } else if (!shouldIgnoreEntry(entry)) {
@@ -181,72 +182,72 @@ public class NotificationHelper {
                 AppDetailsActivity.isAppVisible(entry.app.packageName);
     }
 
-    private void createNotification(AppUpdateStatusManager.AppUpdateStatus entry) {
-        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED) {
+    private void addUpdateSpecs(List<NotificationRenderer.Spec> specs) {
+        if (useStackedNotifications()) {
+            for (AppUpdateStatusManager.AppUpdateStatus entry : updates) {
+                specs.add(getUpdateSpec(entry, entry.getCanonicalUrl()));
+            }
+        } else if (updates.size() == 1) {
+            specs.add(getUpdateSpec(updates.get(0), GROUP_UPDATES));
             return;
         }
-
-        if (shouldIgnoreEntry(entry)) {
-            notificationManager.cancel(entry.getCanonicalUrl(), NOTIFY_ID_UPDATES);
-            notificationManager.cancel(entry.getCanonicalUrl(), NOTIFY_ID_INSTALLED);
-            return;
+        if (!updates.isEmpty()) {
+            // a copy, as the list changes with the next update
+            ArrayList<AppUpdateStatusManager.AppUpdateStatus> summaryUpdates = new ArrayList<>(updates);
+            specs.add(new NotificationRenderer.Spec(GROUP_UPDATES, NOTIFY_ID_UPDATES,
+                    getSummaryContent(summaryUpdates, MAX_UPDATES_TO_SHOW), -1,
+                    () -> createUpdateSummaryNotification(summaryUpdates)));
         }
+    }
 
-        if (!notificationManager.areNotificationsEnabled() || Preferences.get().hideAllNotifications()) {
+    private void addInstalledSpecs(List<NotificationRenderer.Spec> specs) {
+        if (useStackedNotifications()) {
+            for (AppUpdateStatusManager.AppUpdateStatus entry : installed) {
+                specs.add(getInstalledSpec(entry, entry.getCanonicalUrl()));
+            }
+        } else if (installed.size() == 1) {
+            specs.add(getInstalledSpec(installed.get(0), GROUP_INSTALLED));
             return;
         }
-
-        Notification notification;
-        if (entry.status == AppUpdateStatusManager.Status.Installed) {
-            if (useStackedNotifications()) {
-                notification = createInstalledNotification(entry);
-                notificationManager.cancel(entry.getCanonicalUrl(), NOTIFY_ID_UPDATES);
-                notificationManager.notify(entry.getCanonicalUrl(), NOTIFY_ID_INSTALLED, notification);
-            } else if (installed.size() == 1) {
-                notification = createInstalledNotification(entry);
-                notificationManager.cancel(entry.getCanonicalUrl(), NOTIFY_ID_UPDATES);
-                notificationManager.notify(GROUP_INSTALLED, NOTIFY_ID_INSTALLED, notification);
-            }
-        } else {
-            if (useStackedNotifications()) {
-                notification = createUpdateNotification(entry);
-                notificationManager.cancel(entry.getCanonicalUrl(), NOTIFY_ID_INSTALLED);
-                notificationManager.notify(entry.getCanonicalUrl(), NOTIFY_ID_UPDATES, notification);
-            } else if (updates.size() == 1) {
-                notification = createUpdateNotification(entry);
-                notificationManager.cancel(entry.getCanonicalUrl(), NOTIFY_ID_INSTALLED);
-                notificationManager.notify(GROUP_UPDATES, NOTIFY_ID_UPDATES, notification);
-            }
+        if (!installed.isEmpty()) {
+            ArrayList<AppUpdateStatusManager.AppUpdateStatus> summaryInstalled = new ArrayList<>(installed);
+            specs.add(new NotificationRenderer.Spec(GROUP_INSTALLED, NOTIFY_ID_INSTALLED,
+                    getSummaryContent(summaryInstalled, MAX_INSTALLED_TO_SHOW), -1,
+                    () -> createInstalledSummaryNotification(summaryInstalled)));
         }
     }
 
-    private void createSummaryNotifications() {
-        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED) {
-            return;
-        }
-        if (!notificationManager.areNotificationsEnabled() || Preferences.get().hideAllNotifications()) {
-            return;
+    private NotificationRenderer.Spec getUpdateSpec(AppUpdateStatusManager.AppUpdateStatus entry, String tag) {
+        long progress = -1;
+        boolean indeterminate = true;
+        if (entry.status == AppUpdateStatusManager.Status.Downloading && entry.progressMax != 0) {
+            // the progress bar only shows whole KiB
+            progress = Utils.bytesToKb(entry.progressCurrent);
+            indeterminate = false;
         }
+        List<Object> content = Arrays.asList(entry.status, entry.app.name, entry.intent,
+                indeterminate ? 0 : Utils.bytesToKb(entry.progressMax));
+        return new NotificationRenderer.Spec(tag, NOTIFY_ID_UPDATES, content, progress,
+                () -> createUpdateNotification(entry, tag));
+    }
 
-        Notification notification;
-        if (updates.size() != 1 || useStackedNotifications()) {
-            if (updates.isEmpty()) {
-                // No updates, remove summary
-                notificationManager.cancel(GROUP_UPDATES, NOTIFY_ID_UPDATES);
-            } else {
-                notification = createUpdateSummaryNotification(updates);
-                notificationManager.notify(GROUP_UPDATES, NOTIFY_ID_UPDATES, notification);
-            }
-        }
-        if (installed.size() != 1 || useStackedNotifications()) {
-            if (installed.isEmpty()) {
-                // No installed, remove summary
-                notificationManager.cancel(GROUP_INSTALLED, NOTIFY_ID_INSTALLED);
-            } else {
-                notification = createInstalledSummaryNotification(installed);
-                notificationManager.notify(GROUP_INSTALLED, NOTIFY_ID_INSTALLED, notification);
-            }
+    private NotificationRenderer.Spec getInstalledSpec(AppUpdateStatusManager.AppUpdateStatus entry, String tag) {
+        List<Object> content = Arrays.asList(entry.status, entry.app.name, entry.intent);
+        return new NotificationRenderer.Spec(tag, NOTIFY_ID_INSTALLED, content, -1,
+                () -> createInstalledNotification(entry, tag));
+    }
+
+    /**
+     * @return what is shown in a summary notification, the total number and the first few apps.
+     */
+    private static Object getSummaryContent(List<AppUpdateStatusManager.AppUpdateStatus> entries, int maxToShow) {
+        List<Object> content = new ArrayList<>();
+        content.add(entries.size());
+        for (int i = 0; i < maxToShow && i < entries.size(); i++) {
+            content.add(entries.get(i).app.name);
+            content.add(entries.get(i).status);
         }
+        return content;
     }
 
     private NotificationCompat.Action getAction(AppUpdateStatusManager.AppUpdateStatus entry) {
@@ -320,7 +321,7 @@ public class NotificationHelper {
         return "";
     }
 
-    private Notification createUpdateNotification(AppUpdateStatusManager.AppUpdateStatus entry) {
+    private Notification createUpdateNotification(AppUpdateStatusManager.AppUpdateStatus entry, String tag) {
         App app = entry.app;
         AppUpdateStatusManager.Status status = entry.status;
 
@@ -369,7 +370,7 @@ public class NotificationHelper {
         PendingIntent piDeleted = PendingIntent.getBroadcast(context, 0, intentDeleted,
                 PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
         builder.setDeleteIntent(piDeleted);
-        loadLargeIconForEntry(entry, builder, NOTIFY_ID_UPDATES, entry.getCanonicalUrl());
+        setLargeIcon(entry, builder, tag, NOTIFY_ID_UPDATES);
         return builder.build();
     }
 
@@ -436,7 +437,7 @@ public class NotificationHelper {
         return builder.build();
     }
 
-    private Notification createInstalledNotification(AppUpdateStatusManager.AppUpdateStatus entry) {
+    private Notification createInstalledNotification(AppUpdateStatusManager.AppUpdateStatus entry, String tag) {
         App app = entry.app;
 
         NotificationCompat.Builder builder =
@@ -461,7 +462,7 @@ public class NotificationHelper {
                 PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
         builder.setDeleteIntent(piDeleted);
 
-        loadLargeIconForEntry(entry, builder, NOTIFY_ID_INSTALLED, entry.getCanonicalUrl());
+        setLargeIcon(entry, builder, tag, NOTIFY_ID_INSTALLED);
         return builder.build();
     }
 
@@ -521,29 +522,43 @@ public class NotificationHelper {
         return new Point(w, h);
     }
 
-    private void loadLargeIconForEntry(AppUpdateStatusManager.AppUpdateStatus entry,
-                                       NotificationCompat.Builder notificationBuilder,
-                                       int notificationId,
-                                       String notificationTag) {
+    /**
+     * Sets the large icon of the app, if it was loaded already.
+     * Otherwise, this starts loading it and posts the notification again once it got loaded.
+     */
+    private void setLargeIcon(AppUpdateStatusManager.AppUpdateStatus entry,
+                              NotificationCompat.Builder notificationBuilder,
+                              String notificationTag,
+                              int notificationId) {
+        String iconKey = entry.app.repoId + "/" + (entry.app.iconFile == null ? null : entry.app.iconFile.getName());
+        Bitmap icon = largeIcons.get(iconKey);
+        if (icon != null) {
+            notificationBuilder.setLargeIcon(icon);
+            return;
+        }
+        Set<Pair<String, Integer>> waiting = notificationsWaitingForIcon.get(iconKey);
+        if (waiting == null) {
+            waiting = new HashSet<>();
+            notificationsWaitingForIcon.put(iconKey, waiting);
+            loadLargeIcon(entry, iconKey);
+        }
+        waiting.add(new Pair<>(notificationTag, notificationId));
+    }
+
+    private void loadLargeIcon(AppUpdateStatusManager.AppUpdateStatus entry, String iconKey) {
         App.loadBitmapWithGlide(context, entry.app.repoId, entry.app.iconFile)
                 .fallback(R.drawable.ic_notification_download)
                 .error(R.drawable.ic_notification_download)
                 .into(new CustomTarget<Bitmap>() {
                     @Override
                     public void onResourceReady(@NonNull Bitmap resource, @Nullable Transition<? super Bitmap> transition) {
-                        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED) {
-                            return;
-                        }
-                        // update the loaded large icon, but don't expand
-                        notificationBuilder.setLargeIcon(resource);
-                        Notification notification = notificationBuilder.build();
-                        notificationManager.notify(notificationTag, notificationId, notification);
+                        onLargeIconLoaded(iconKey, resource);
                     }
 
                     @Override
                     public void onLoadFailed(@Nullable Drawable errorDrawable) {
-                        if (errorDrawable == null) return;
-                        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED) {
+                        if (errorDrawable == null) {
+                            notificationsWaitingForIcon.remove(iconKey);
                             return;
                         }
                         final Point largeIconSize = getLargeIconSize();
@@ -551,9 +566,7 @@ public class NotificationHelper {
                         Canvas canvas = new Canvas(bitmap);
                         errorDrawable.setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
                         errorDrawable.draw(canvas);
-                        notificationBuilder.setLargeIcon(bitmap);
-                        Notification notification = notificationBuilder.build();
-                        notificationManager.notify(notificationTag, notificationId, notification);
+                        onLargeIconLoaded(iconKey, bitmap);
                     }
 
                     @Override
@@ -561,4 +574,17 @@ public class NotificationHelper {
                     }
                 });
     }
+
+    private void onLargeIconLoaded(String iconKey, Bitmap icon) {
+        largeIcons.put(iconKey, icon);
+        Set<Pair<String, Integer>> waiting = notificationsWaitingForIcon.remove(iconKey);
+        if (waiting == null) return;
+        if (ActivityCompat.checkSelfPermission(context, Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+        // post again with the loaded large icon, if still shown
+        for (Pair<String, Integer> notification : waiting) {
+            renderer.refresh(notification.first, notification.second);
+        }
+    }
 }
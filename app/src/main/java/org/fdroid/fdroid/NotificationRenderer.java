@@ -0,0 +1,189 @@
+package org.fdroid.fdroid;
+
+import android.app.Notification;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Posts the notifications {@link NotificationHelper} wants to show,
+ * but only those that changed since they were last posted, and cancels those no longer wanted.
+ * Posting too many notifications gets them rate-limited by the system,
+ * so updating all apps at once could leave notifications stuck or missing otherwise.
+ * <p>
+ * If only the progress of a notification changed, it gets posted at most once per
+ * {@link #PROGRESS_INTERVAL_MS}, the latest progress gets posted once the time is up.
+ * <p>
+ * This must only be used from the thread of the {@link Handler} passed in.
+ */
+class NotificationRenderer {
+
+    static final long PROGRESS_INTERVAL_MS = 1000;
+
+    interface Poster {
+        void notify(String tag, int id, Notification notification);
+
+        void cancel(String tag, int id);
+    }
+
+    interface NotificationFactory {
+        Notification create();
+    }
+
+    /**
+     * Describes a notification that should be shown.
+     */
+    static final class Spec {
+        final String tag;
+        final int id;
+        /**
+         * Everything shown in the notification other than its progress,
+         * if this is equal to what was posted last, the notification does not need to be posted again.
+         */
+        final Object content;
+        /**
+         * The progress shown in the notification, or -1 if there is none.
+         */
+        final long progress;
+        final NotificationFactory factory;
+
+        Spec(String tag, int id, @NonNull Object content, long progress, NotificationFactory factory) {
+            this.tag = tag;
+            this.id = id;
+            this.content = content;
+            this.progress = progress;
+            this.factory = factory;
+        }
+
+        String getKey() {
+            return NotificationRenderer.getKey(tag, id);
+        }
+    }
+
+    private static final class Posted {
+        Spec spec;
+        long time;
+
+        Posted(Spec spec, long time) {
+            this.spec = spec;
+            this.time = time;
+        }
+    }
+
+    private final Poster poster;
+    private final Handler handler;
+    private final Map<String, Posted> posted = new HashMap<>();
+    private final Map<String, Spec> pendingProgress = new LinkedHashMap<>();
+    private boolean flushScheduled = false;
+
+    NotificationRenderer(Poster poster, Handler handler) {
+        this.poster = poster;
+        this.handler = handler;
+    }
+
+    static String getKey(String tag, int id) {
+        return tag + ":" + id;
+    }
+
+    /**
+     * Shows the given {@code specs}, cancelling all previously posted notifications not among them.
+     */
+    void render(Collection<Spec> specs) {
+        Map<String, Spec> wanted = new LinkedHashMap<>(specs.size());
+        for (Spec spec : specs) wanted.put(spec.getKey(), spec);
+
+        for (Iterator<Map.Entry<String, Posted>> it = posted.entrySet().iterator(); it.hasNext(); ) { // NOCHECKSTYLE EmptyForIteratorPad
+            Map.Entry<String, Posted> entry = it.next();
+            if (!wanted.containsKey(entry.getKey())) {
+                Spec spec = entry.getValue().spec;
+                poster.cancel(spec.tag, spec.id);
+                pendingProgress.remove(entry.getKey());
+                it.remove();
+            }
+        }
+        long now = SystemClock.uptimeMillis();
+        for (Map.Entry<String, Spec> entry : wanted.entrySet()) {
+            String key = entry.getKey();
+            Spec spec = entry.getValue();
+            Posted last = posted.get(key);
+            if (last == null || !last.spec.content.equals(spec.content)) {
+                post(key, spec, now);
+            } else if (last.spec.progress != spec.progress) {
+                long wait = last.time + PROGRESS_INTERVAL_MS - now;
+                if (wait <= 0) {
+                    post(key, spec, now);
+                } else {
+                    pendingProgress.put(key, spec);
+                    scheduleFlush(wait);
+                }
+            } else {
+                // nothing visible changed, but keep the latest data for refresh()
+                last.spec = spec;
+                pendingProgress.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Posts the notification with the given {@code tag} and {@code id} again, if it is shown,
+     * even though it didn't change, e.g. because its large icon got loaded.
+     */
+    void refresh(String tag, int id) {
+        String key = getKey(tag, id);
+        Posted last = posted.get(key);
+        if (last == null) return;
+        Spec pending = pendingProgress.get(key);
+        post(key, pending == null ? last.spec : pending, SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Forgets what was posted, so all notifications get posted again with the next {@link #render(Collection)},
+     * e.g. after they all got cancelled.
+     */
+    void reset() {
+        posted.clear();
+        pendingProgress.clear();
+    }
+
+    private void post(String key, Spec spec, long now) {
+        pendingProgress.remove(key);
+        poster.notify(spec.tag, spec.id, spec.factory.create());
+        posted.put(key, new Posted(spec, now));
+    }
+
+    private void scheduleFlush(long delay) {
+        if (flushScheduled) return;
+        flushScheduled = true;
+        handler.postDelayed(this::flush, delay);
+    }
+
+    private void flush() {
+        flushScheduled = false;
+        long now = SystemClock.uptimeMillis();
+        long nextWait = Long.MAX_VALUE;
+        for (Iterator<Map.Entry<String, Spec>> it = pendingProgress.entrySet().iterator(); it.hasNext(); ) { // NOCHECKSTYLE EmptyForIteratorPad
+            Map.Entry<String, Spec> entry = it.next();
+            Posted last = posted.get(entry.getKey());
+            if (last == null) {
+                it.remove();
+                continue;
+            }
+            long wait = last.time + PROGRESS_INTERVAL_MS - now;
+            if (wait <= 0) {
+                it.remove();
+                poster.notify(entry.getValue().tag, entry.getValue().id, entry.getValue().factory.create());
+                posted.put(entry.getKey(), new Posted(entry.getValue(), now));
+            } else {
+                nextWait = Math.min(nextWait, wait);
+            }
+        }
+        if (nextWait != Long.MAX_VALUE) scheduleFlush(nextWait);
+    }
+}
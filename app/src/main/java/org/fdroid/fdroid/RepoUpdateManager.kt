@@ -17,6 +17,7 @@ import org.fdroid.database.Repository
 import org.fdroid.fdroid.data.App
 import org.fdroid.fdroid.data.DBHelper
 import org.fdroid.fdroid.net.DownloaderFactory
+import org.fdroid.fdroid.work.RepoUpdateSchedule
 import org.fdroid.fdroid.work.RepoUpdateWorker
 import org.fdroid.index.IndexUpdateListener
 import org.fdroid.index.IndexUpdateResult
@@ -64,6 +65,9 @@ class RepoUpdateManager @JvmOverloads constructor(
         repoUriBuilder = uriBuilder,
         compatibilityChecker = compatibilityChecker,
         listener = this@RepoUpdateManager,
+        archiveIndexStore = FDroidApp.getArchiveIndexStore(context),
+        // the throughputs are about this device, so they must not be restored onto another one
+        costModelFile = File(context.noBackupFilesDir, "index-cost-model"),
     )
     private val indexV1Updater: IndexV1Updater? = if (forceIndexV1) IndexV1Updater(
         database = db,
@@ -74,20 +78,34 @@ class RepoUpdateManager @JvmOverloads constructor(
         listener = this,
     ) else null
     private val fdroidPrefs = Preferences.get()
+    private val updateSchedule = RepoUpdateSchedule(context)
 
+    /**
+     * Updates all enabled repositories.
+     *
+     * @param force true, if all repos should be updated now.
+     * If false, only repos that are due according to their [RepoUpdateSchedule] get updated.
+     */
     @WorkerThread
-    fun updateRepos() {
+    @JvmOverloads
+    fun updateRepos(force: Boolean = true) {
         _isUpdating.value = true
         try {
-            var reposUpdated = false
+            val updatedRepoIds = mutableListOf<Long>()
             val repoErrors = mutableListOf<Pair<Repository, Exception>>()
             // always get repos fresh from DB, because
             // * when an update is requested early at app start,
             //   the repos above might not be available, yet
             // * when an update is requested when adding a new repo,
             //   it might not be in the FDroidApp list, yet
-            db.getRepositoryDao().getRepositories().forEach { repo ->
+            val repos = db.getRepositoryDao().getRepositories()
+            updateSchedule.retainOnly(repos.map { it.repoId })
+            repos.forEach { repo ->
                 if (!repo.enabled) return@forEach
+                if (!force && !updateSchedule.isDue(repo.repoId, fdroidPrefs.updateInterval)) {
+                    Log.i(TAG, "Not checking ${repo.address}, because it is not due, yet.")
+                    return@forEach
+                }
 
                 // show notification
                 if (fdroidPrefs.isUpdateNotificationEnabled) {
@@ -96,9 +114,9 @@ class RepoUpdateManager @JvmOverloads constructor(
                 }
 
                 // indexV1Updater only gets used directly if forceIndexV1 was true
-                val result = indexV1Updater?.update(repo) ?: repoUpdater.update(repo)
+                val result = update(repo)
 
-                if (result is IndexUpdateResult.Processed) reposUpdated = true
+                if (result is IndexUpdateResult.Processed) updatedRepoIds.add(repo.repoId)
                 else if (result is IndexUpdateResult.Error) {
                     Log.e(TAG, "Error updating repository ${repo.address}", result.e)
                     repoErrors.add(Pair(repo, result.e))
@@ -107,13 +125,10 @@ class RepoUpdateManager @JvmOverloads constructor(
             db.getRepositoryDao().walCheckpoint()
             fdroidPrefs.lastUpdateCheck = System.currentTimeMillis()
             if (repoErrors.isNotEmpty()) showRepoErrors(repoErrors)
-            if (reposUpdated) {
-                val appUpdateStatusManager = AppUpdateStatusManager.getInstance(context)
-                if (fdroidPrefs.isAutoDownloadEnabled && fdroidPrefs.isBackgroundDownloadAllowed) {
-                    appUpdateStatusManager.checkForUpdatesAndInstall()
-                } else {
-                    appUpdateStatusManager.checkForUpdates()
-                }
+            if (updatedRepoIds.isNotEmpty()) {
+                // only apps in updated repos can have new updates
+                val install = fdroidPrefs.isAutoDownloadEnabled && fdroidPrefs.isBackgroundDownloadAllowed
+                AppUpdateStatusManager.getInstance(context).checkForUpdates(updatedRepoIds, install)
             }
         } finally {
             notificationManager.cancelUpdateRepoNotification()
@@ -132,8 +147,11 @@ class RepoUpdateManager @JvmOverloads constructor(
                 notificationManager.showUpdateRepoNotification(msg, throttle = false)
             }
 
-            // indexV1Updater only gets used directly if forceIndexV1 was true
-            return indexV1Updater?.update(repo) ?: repoUpdater.update(repo)
+            return update(repo).also { result ->
+                if (result is IndexUpdateResult.Processed) {
+                    AppUpdateStatusManager.getInstance(context).checkForUpdates(listOf(repoId), false)
+                }
+            }
         } finally {
             notificationManager.cancelUpdateRepoNotification()
             _isUpdating.value = false
@@ -141,6 +159,18 @@ class RepoUpdateManager @JvmOverloads constructor(
         }
     }
 
+    private fun update(repo: Repository): IndexUpdateResult {
+        // indexV1Updater only gets used directly if forceIndexV1 was true
+        val result = indexV1Updater?.update(repo) ?: repoUpdater.update(repo)
+        if (result !is IndexUpdateResult.Error) {
+            // get repo fresh from DB to record its new timestamp
+            db.getRepositoryDao().getRepository(repo.repoId)?.let { updatedRepo ->
+                updateSchedule.onChecked(updatedRepo)
+            }
+        }
+        return result
+    }
+
     private fun showRepoErrors(repoErrors: List<Pair<Repository, Exception>>) {
         val msgBuilder = StringBuilder()
         for ((repo, e) in repoErrors) {
@@ -0,0 +1,336 @@
+package org.fdroid.fdroid;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import org.fdroid.database.DbUpdateChecker;
+import org.fdroid.database.UpdatableApp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps track of all installed apps that can be updated.
+ * <p>
+ * Checking all installed packages with {@link DbUpdateChecker#getUpdatableApps} is expensive,
+ * so this is only done with {@link #checkAll()}, e.g. when the app starts or settings change.
+ * Otherwise, only the packages affected by a change get checked again:
+ * packages that got installed, replaced or removed (see {@link #registerPackageReceiver(Context)})
+ * and packages in a repository that just got updated (see {@link #checkRepositories(Collection)}).
+ * <p>
+ * The names of updatable packages get persisted, so they can be checked
+ * right after the app starts, before the first full check is done.
+ * <p>
+ * The updatable apps include installed versions with known vulnerabilities,
+ * see {@link UpdatableApp#getHasKnownVulnerability()} and {@link #isUpdate(UpdatableApp)}.
+ */
+public final class UpdatableAppsTracker {
+
+    private static final String TAG = "UpdatableAppsTracker";
+    private static final String PREFS_NAME = "updatable-apps";
+    private static final String PREF_PACKAGE_NAMES = "packageNames";
+
+    interface Checker {
+        @WorkerThread
+        List<UpdatableApp> getUpdatableApps();
+
+        @WorkerThread
+        List<UpdatableApp> getUpdatableApps(Collection<String> packageNames);
+
+        @WorkerThread
+        List<String> getPackageNames(long repoId);
+    }
+
+    public interface Listener {
+        /**
+         * Gets called after each check, even if nothing changed.
+         *
+         * @param packageNames the packages whose updates changed,
+         *                     or null if everything may have changed after a full check.
+         */
+        void onUpdatableAppsChanged(@Nullable Set<String> packageNames);
+    }
+
+    private final Checker checker;
+    private final Executor executor;
+    private final SharedPreferences prefs;
+    private final Map<String, UpdatableApp> apps = new LinkedHashMap<>();
+    private final Map<Listener, Executor> listeners = new LinkedHashMap<>();
+
+    // guarded by this
+    private boolean fullCheckPending = false;
+    private final Set<String> pendingPackageNames = new HashSet<>();
+    private final Set<Long> pendingRepoIds = new HashSet<>();
+    private final Map<Runnable, Executor> pendingCallbacks = new LinkedHashMap<>();
+    private boolean scheduled = false;
+
+    /**
+     * @param executor runs all checks. It must run them one after the other.
+     */
+    UpdatableAppsTracker(Checker checker, Executor executor, SharedPreferences prefs) {
+        this.checker = checker;
+        this.executor = executor;
+        this.prefs = prefs;
+    }
+
+    UpdatableAppsTracker(Context context, DbUpdateChecker updateChecker, Executor executor) {
+        this(new Checker() {
+            @Override
+            public List<UpdatableApp> getUpdatableApps() {
+                List<String> releaseChannels = Preferences.get().getBackendReleaseChannels();
+                return updateChecker.getUpdatableApps(releaseChannels, true, true);
+            }
+
+            @Override
+            public List<UpdatableApp> getUpdatableApps(Collection<String> packageNames) {
+                List<String> releaseChannels = Preferences.get().getBackendReleaseChannels();
+                return updateChecker.getUpdatableAppsForPackages(packageNames, releaseChannels, true, true);
+            }
+
+            @Override
+            public List<String> getPackageNames(long repoId) {
+                return updateChecker.getPackageNamesInRepository(repoId);
+            }
+        }, executor, context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+    }
+
+    /**
+     * @return true, if the given {@code app} is a real update
+     * and not just an installed version with a known vulnerability.
+     */
+    public static boolean isUpdate(UpdatableApp app) {
+        return app.getUpdate().getManifest().getVersionCode() > app.getInstalledVersionCode();
+    }
+
+    /**
+     * Checks the packages that were updatable when the app ran last time,
+     * so they are available quickly, and then checks all packages.
+     */
+    void start() {
+        Set<String> packageNames = new HashSet<>(prefs.getStringSet(PREF_PACKAGE_NAMES, Collections.emptySet()));
+        if (!packageNames.isEmpty()) {
+            // not using checkPackages(), because that would get merged with the full check
+            executor.execute(() -> notifyListeners(apply(packageNames, checker.getUpdatableApps(packageNames))));
+        }
+        checkAll();
+    }
+
+    /**
+     * Listens for packages getting installed, replaced or removed,
+     * so only those packages get checked again.
+     */
+    void registerPackageReceiver(Context context) {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        context.getApplicationContext().registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Uri data = intent.getData();
+                if (data == null || data.getSchemeSpecificPart() == null) return;
+                checkPackages(Collections.singletonList(data.getSchemeSpecificPart()));
+            }
+        }, filter);
+    }
+
+    /**
+     * Gets the given {@code listener} called on the given {@code executor} after each check.
+     */
+    public synchronized void addListener(@NonNull Executor executor, @NonNull Listener listener) {
+        listeners.put(listener, executor);
+    }
+
+    public synchronized void removeListener(@NonNull Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return all updatable apps, including installed versions with known vulnerabilities.
+     */
+    @NonNull
+    public synchronized List<UpdatableApp> getUpdatableApps() {
+        return new ArrayList<>(apps.values());
+    }
+
+    @Nullable
+    public synchronized UpdatableApp getUpdatableApp(String packageName) {
+        return apps.get(packageName);
+    }
+
+    /**
+     * @return the number of real updates, see {@link #isUpdate(UpdatableApp)}.
+     */
+    public synchronized int getNumUpdates() {
+        int num = 0;
+        for (UpdatableApp app : apps.values()) {
+            if (isUpdate(app)) num++;
+        }
+        return num;
+    }
+
+    /**
+     * Checks all installed packages, e.g. after settings changed that affect all updates.
+     */
+    public void checkAll() {
+        synchronized (this) {
+            fullCheckPending = true;
+            if (!schedule()) return;
+        }
+        executor.execute(this::runChecks);
+    }
+
+    /**
+     * Checks only the packages with the given {@code packageNames},
+     * e.g. after they were installed or an update of them was ignored.
+     */
+    public void checkPackages(Collection<String> packageNames) {
+        synchronized (this) {
+            pendingPackageNames.addAll(packageNames);
+            if (!schedule()) return;
+        }
+        executor.execute(this::runChecks);
+    }
+
+    /**
+     * Like {@link #checkPackages(Collection)}, but also runs {@code onChecked} on the given
+     * {@code callbackExecutor} once the check covering these packages is done,
+     * after the {@link Listener}s got called.
+     */
+    public void checkPackages(Collection<String> packageNames, Executor callbackExecutor, Runnable onChecked) {
+        synchronized (this) {
+            pendingPackageNames.addAll(packageNames);
+            pendingCallbacks.put(onChecked, callbackExecutor);
+            if (!schedule()) return;
+        }
+        executor.execute(this::runChecks);
+    }
+
+    /**
+     * Checks only the packages in the repositories with the given {@code repoIds},
+     * e.g. after they were updated, disabled or removed.
+     */
+    public void checkRepositories(Collection<Long> repoIds) {
+        synchronized (this) {
+            pendingRepoIds.addAll(repoIds);
+            if (!schedule()) return;
+        }
+        executor.execute(this::runChecks);
+    }
+
+    /**
+     * @return true, if the checks need to get executed.
+     */
+    private boolean schedule() {
+        if (scheduled) return false;
+        scheduled = true;
+        return true;
+    }
+
+    @WorkerThread
+    private void runChecks() {
+        boolean fullCheck;
+        Set<String> packageNames;
+        Set<Long> repoIds;
+        Map<Runnable, Executor> callbacks;
+        synchronized (this) {
+            scheduled = false;
+            fullCheck = fullCheckPending;
+            fullCheckPending = false;
+            packageNames = new HashSet<>(pendingPackageNames);
+            pendingPackageNames.clear();
+            repoIds = new HashSet<>(pendingRepoIds);
+            pendingRepoIds.clear();
+            callbacks = new LinkedHashMap<>(pendingCallbacks);
+            pendingCallbacks.clear();
+        }
+        Set<String> changed;
+        if (fullCheck) {
+            List<UpdatableApp> result = checker.getUpdatableApps();
+            synchronized (this) {
+                apps.clear();
+                for (UpdatableApp app : result) apps.put(app.getPackageName(), app);
+                persist();
+            }
+            changed = null;
+        } else {
+            for (long repoId : repoIds) {
+                packageNames.addAll(checker.getPackageNames(repoId));
+                // the repo might not have those packages anymore, or not exist at all
+                synchronized (this) {
+                    for (UpdatableApp app : apps.values()) {
+                        if (app.getRepoId() == repoId) packageNames.add(app.getPackageName());
+                    }
+                }
+            }
+            if (packageNames.isEmpty()) {
+                changed = Collections.emptySet();
+            } else {
+                changed = apply(packageNames, checker.getUpdatableApps(packageNames));
+            }
+        }
+        Utils.debugLog(TAG, "Checked " + (fullCheck ? "all packages" : packageNames.size() + " packages")
+                + ", changed: " + (changed == null ? "all" : changed.size()));
+        notifyListeners(changed);
+        for (Map.Entry<Runnable, Executor> entry : callbacks.entrySet()) {
+            entry.getValue().execute(entry.getKey());
+        }
+    }
+
+    private void notifyListeners(@Nullable Set<String> changed) {
+        Map<Listener, Executor> currentListeners;
+        synchronized (this) {
+            currentListeners = new HashMap<>(listeners);
+        }
+        for (Map.Entry<Listener, Executor> entry : currentListeners.entrySet()) {
+            Listener listener = entry.getKey();
+            entry.getValue().execute(() -> listener.onUpdatableAppsChanged(changed));
+        }
+    }
+
+    /**
+     * Replaces what is known about the given {@code packageNames} with the given {@code result}.
+     *
+     * @return the names of the packages whose updates changed.
+     */
+    private synchronized Set<String> apply(Set<String> packageNames, List<UpdatableApp> result) {
+        Set<String> changed = new HashSet<>();
+        Map<String, UpdatableApp> updated = new HashMap<>(result.size());
+        for (UpdatableApp app : result) updated.put(app.getPackageName(), app);
+        for (Iterator<Map.Entry<String, UpdatableApp>> it = apps.entrySet().iterator(); it.hasNext(); ) { // NOCHECKSTYLE EmptyForIteratorPad
+            Map.Entry<String, UpdatableApp> entry = it.next();
+            if (packageNames.contains(entry.getKey()) && !updated.containsKey(entry.getKey())) {
+                it.remove();
+                changed.add(entry.getKey());
+            }
+        }
+        for (UpdatableApp app : result) {
+            UpdatableApp old = apps.put(app.getPackageName(), app);
+            if (!app.equals(old)) changed.add(app.getPackageName());
+        }
+        if (!changed.isEmpty()) persist();
+        return changed;
+    }
+
+    private void persist() {
+        prefs.edit().putStringSet(PREF_PACKAGE_NAMES, new HashSet<>(apps.keySet())).apply();
+    }
+}
@@ -75,13 +75,26 @@ public class ApkCache {
      */
     static SanitizedFile copyApkFromCacheToFiles(Context context, File apkFile, Apk expectedApk)
             throws IOException {
-        String name = expectedApk.packageName;
-        String apkFileName = name + "-" + expectedApk.versionName + ".apk";
-        return copyApkToFiles(context, apkFile, apkFileName, true, expectedApk.apkFile.getSha256(), "sha256");
+        return copyApkToFiles(context, apkFile, getStagedApkFileName(expectedApk), true,
+                expectedApk.apkFile.getSha256(), "sha256");
     }
 
     /**
-     * Copy an APK from {@param apkFile} to our internal files directory for 20 minutes.
+     * Deletes the copy of the given {@code apk} made by {@link #copyApkFromCacheToFiles(Context, File, Apk)}
+     * right away, because it got installed and is not needed anymore.
+     */
+    public static void releaseStagedApk(Context context, Apk apk) {
+        SanitizedFile stagedFile = new SanitizedFile(context.getFilesDir(), getStagedApkFileName(apk));
+        StagedFileCleaner.getInstance(context).release(stagedFile);
+    }
+
+    private static String getStagedApkFileName(Apk apk) {
+        return apk.packageName + "-" + apk.versionName + ".apk";
+    }
+
+    /**
+     * Copy an APK from {@param apkFile} to our internal files directory for up to 20 minutes,
+     * see {@link StagedFileCleaner}.
      *
      * @param verifyHash If the file was just downloaded, then you should mark this as true and
      *                   request the file to be verified once it has finished copying. Otherwise,
@@ -108,20 +121,8 @@ public class ApkCache {
             throw new IOException(apkFile + " failed to verify!");
         }
 
-        // 20 minutes the start of the install process, delete the file
-        final File apkToDelete = sanitizedApkFile;
-        new Thread() {
-            @Override
-            public void run() {
-                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_LOWEST);
-                try {
-                    Thread.sleep(1200000);
-                } catch (InterruptedException ignored) {
-                } finally {
-                    FileUtils.deleteQuietly(apkToDelete);
-                }
-            }
-        }.start();
+        // 20 minutes after the start of the install process, or once it is done, delete the file
+        StagedFileCleaner.getInstance(context).stage(sanitizedApkFile);
 
         return sanitizedApkFile;
     }
@@ -0,0 +1,206 @@
+package org.fdroid.fdroid.installer;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+import androidx.core.util.ObjectsCompat;
+import androidx.core.util.Pair;
+
+import org.fdroid.database.AppVersion;
+import org.fdroid.database.FDroidDatabase;
+import org.fdroid.database.Repository;
+import org.fdroid.fdroid.FDroidApp;
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Apk;
+import org.fdroid.fdroid.data.App;
+import org.fdroid.fdroid.data.DBHelper;
+import org.fdroid.index.v2.ArchiveIndexStore;
+
+/**
+ * A small reference to an {@link Apk} that gets passed in {@link Intent}s to services
+ * instead of the whole {@link App} and {@link Apk}.  Those include all their metadata,
+ * so parceling them for each step of the install process is expensive
+ * and many of them queued at once can exceed the binder transaction limit.
+ * <p>
+ * The {@link App} and {@link Apk} get {@link #register(App, Apk) registered} in an in-process cache
+ * when sending the reference and {@link #resolve(Context) resolved} when receiving it.
+ * If F-Droid was killed in the meantime, they get loaded from the database instead,
+ * or from the {@link ArchiveIndexStore} for versions of archive repos that are not imported.
+ */
+public final class ApkReference implements Parcelable {
+
+    private static final String TAG = "ApkReference";
+
+    public static final String EXTRA_APK_REFERENCE = "org.fdroid.fdroid.installer.extra.APK_REFERENCE";
+
+    /**
+     * Large enough for all installs in a big batch of updates to stay in memory until they are handled.
+     * The {@link App} and {@link Apk} are kept by {@link org.fdroid.fdroid.AppUpdateStatusManager} anyway.
+     */
+    private static final int CACHE_SIZE = 256;
+    private static final LruCache<ApkReference, Pair<App, Apk>> CACHE = new LruCache<>(CACHE_SIZE);
+
+    public final long repoId;
+    @NonNull
+    public final String packageName;
+    public final long versionCode;
+    /**
+     * The {@link Apk#getCanonicalUrl()}, or null, if the {@link Apk} does not come from a repo,
+     * e.g. when it was created from what is installed.
+     */
+    @Nullable
+    public final String canonicalUrl;
+
+    @VisibleForTesting
+    ApkReference(long repoId, @NonNull String packageName, long versionCode, @Nullable String canonicalUrl) {
+        this.repoId = repoId;
+        this.packageName = packageName;
+        this.versionCode = versionCode;
+        this.canonicalUrl = canonicalUrl;
+    }
+
+    /**
+     * Creates a reference to the given {@code apk} without registering it,
+     * so it can't be {@link #resolve(Context) resolved} from the cache.
+     */
+    public ApkReference(@NonNull Apk apk) {
+        this(apk.repoId, apk.packageName, apk.versionCode,
+                apk.repoAddress == null || apk.apkFile == null ? null : apk.getCanonicalUrl());
+    }
+
+    /**
+     * Creates a reference to the given {@code apk} and remembers the given {@code app} and {@code apk},
+     * so the reference can be {@link #resolve(Context) resolved} without hitting the database.
+     */
+    public static ApkReference register(@NonNull App app, @NonNull Apk apk) {
+        ApkReference reference = new ApkReference(apk);
+        CACHE.put(reference, new Pair<>(app, apk));
+        return reference;
+    }
+
+    /**
+     * {@link #register(App, Apk) Registers} the given {@code app} and {@code apk}
+     * and puts the reference to them into the given {@code intent}.
+     */
+    public static void putExtra(@NonNull Intent intent, @NonNull App app, @NonNull Apk apk) {
+        intent.putExtra(EXTRA_APK_REFERENCE, register(app, apk));
+    }
+
+    @Nullable
+    public static ApkReference getExtra(@NonNull Intent intent) {
+        return intent.getParcelableExtra(EXTRA_APK_REFERENCE);
+    }
+
+    /**
+     * Gets the {@link App} and {@link Apk} this reference points to,
+     * from the cache if possible, or else from the database.
+     * Archive repos only have the packages in the database that were needed before,
+     * so if the package is missing there, it gets imported from the {@link ArchiveIndexStore}.
+     *
+     * @return null, if the {@link Apk} is no longer available,
+     * e.g. because its repo got updated or removed in the meantime.
+     */
+    @Nullable
+    @WorkerThread
+    public Pair<App, Apk> resolve(@NonNull Context context) {
+        Pair<App, Apk> cached = CACHE.get(this);
+        if (cached != null) return cached;
+        if (canonicalUrl == null) return null;
+
+        Repository repo = FDroidApp.getRepoManager(context).getRepository(repoId);
+        if (repo == null) return null;
+        Utils.debugLog(TAG, "Loading " + canonicalUrl + " from database");
+        Pair<App, Apk> pair = loadFromDatabase(context, repo);
+        if (pair == null && repo.isArchiveRepo()
+                && FDroidApp.getArchiveIndexStore(context).loadPackage(packageName)) {
+            pair = loadFromDatabase(context, repo);
+        }
+        if (pair != null) CACHE.put(this, pair);
+        return pair;
+    }
+
+    @Nullable
+    private Pair<App, Apk> loadFromDatabase(Context context, Repository repo) {
+        FDroidDatabase db = DBHelper.getDb(context);
+        org.fdroid.database.App dbApp = db.getAppDao().getApp(repoId, packageName);
+        if (dbApp == null) return null;
+        for (AppVersion version : db.getVersionDao().getAppVersions(repoId, packageName, versionCode)) {
+            Apk apk = new Apk(version, repo);
+            if (canonicalUrl.equals(apk.getCanonicalUrl())) {
+                App app = new App(dbApp, getPackageInfo(context, packageName));
+                return new Pair<>(app, apk);
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    @SuppressLint("PackageManagerGetSignatures")
+    private static PackageInfo getPackageInfo(Context context, String packageName) {
+        try {
+            return context.getPackageManager().getPackageInfo(packageName, PackageManager.GET_SIGNATURES);
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+    }
+
+    @VisibleForTesting
+    static void clearCache() {
+        CACHE.evictAll();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ApkReference that = (ApkReference) o;
+        return repoId == that.repoId && versionCode == that.versionCode
+                && packageName.equals(that.packageName) && ObjectsCompat.equals(canonicalUrl, that.canonicalUrl);
+    }
+
+    @Override
+    public int hashCode() {
+        return ObjectsCompat.hash(repoId, packageName, versionCode, canonicalUrl);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return packageName + " " + versionCode + " [repoId: " + repoId + ", " + canonicalUrl + "]";
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(repoId);
+        dest.writeString(packageName);
+        dest.writeLong(versionCode);
+        dest.writeString(canonicalUrl);
+    }
+
+    public static final Parcelable.Creator<ApkReference> CREATOR = new Parcelable.Creator<ApkReference>() {
+        @Override
+        public ApkReference createFromParcel(Parcel in) {
+            return new ApkReference(in.readLong(), in.readString(), in.readLong(), in.readString());
+        }
+
+        @Override
+        public ApkReference[] newArray(int size) {
+            return new ApkReference[size];
+        }
+    };
+}
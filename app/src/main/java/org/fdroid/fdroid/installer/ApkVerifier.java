@@ -23,17 +23,24 @@ import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.net.Uri;
+import android.os.Build;
 import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 
+import org.fdroid.apk.ApkFileVerifier;
+import org.fdroid.apk.ApkMismatchException;
+import org.fdroid.apk.ApkPermissionMismatchException;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.data.Apk;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -62,6 +69,26 @@ class ApkVerifier {
     void verifyApk() throws ApkVerificationException, ApkPermissionUnequalException {
         Utils.debugLog(TAG, "localApkUri.getPath: " + localApkUri.getPath());
 
+        // try to only read the manifest and signing block first, instead of parsing the entire APK
+        Integer expectedTargetSdkVersion = expectedApk.targetSdkVersion == Apk.SDK_VERSION_MIN_VALUE
+                ? null : expectedApk.targetSdkVersion;
+        List<String> expectedPermissions = expectedApk.requestedPermissions == null
+                ? null : Arrays.asList(expectedApk.requestedPermissions);
+        try {
+            new ApkFileVerifier(Build.VERSION.SDK_INT).verify(new File(localApkUri.getPath()),
+                    expectedApk.packageName, expectedTargetSdkVersion, expectedPermissions, expectedApk.signer);
+            return;
+        } catch (ApkPermissionMismatchException e) {
+            throw new ApkPermissionUnequalException(e.getMessage());
+        } catch (ApkMismatchException e) {
+            throw new ApkVerificationException(e.getMessage());
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read apk file, asking PackageManager: ", e);
+        }
+        verifyWithPackageManager();
+    }
+
+    private void verifyWithPackageManager() throws ApkVerificationException, ApkPermissionUnequalException {
         // parse downloaded apk file locally
         PackageInfo localApkInfo = pm.getPackageArchiveInfo(
                 localApkUri.getPath(), PackageManager.GET_PERMISSIONS);
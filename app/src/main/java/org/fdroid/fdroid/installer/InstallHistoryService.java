@@ -90,8 +90,12 @@ public class InstallHistoryService extends JobIntentService {
 
     private static void queue(Context context, Intent intent) {
         Utils.debugLog(TAG, "queue " + intent);
-        intent.setClass(context, InstallHistoryService.class);
-        JobIntentService.enqueueWork(context, InstallHistoryService.class, JOB_ID, intent);
+        Apk apk = intent.getParcelableExtra(Installer.EXTRA_APK);
+        if (apk == null) return;
+        // only pass on what gets logged instead of parceling the whole App and Apk
+        Intent historyIntent = new Intent(intent.getAction(), intent.getData(), context, InstallHistoryService.class);
+        historyIntent.putExtra(ApkReference.EXTRA_APK_REFERENCE, new ApkReference(apk));
+        JobIntentService.enqueueWork(context, InstallHistoryService.class, JOB_ID, historyIntent);
     }
 
     public static File getInstallHistoryFile(Context context) {
@@ -106,9 +110,10 @@ public class InstallHistoryService extends JobIntentService {
 
         Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
         long timestamp = System.currentTimeMillis();
-        Apk apk = intent.getParcelableExtra(Installer.EXTRA_APK);
-        String packageName = apk.packageName;
-        long versionCode = apk.versionCode;
+        ApkReference reference = ApkReference.getExtra(intent);
+        if (reference == null) return;
+        String packageName = reference.packageName;
+        long versionCode = reference.versionCode;
 
         List<String> values = new ArrayList<>(4);
         values.add(String.valueOf(timestamp));
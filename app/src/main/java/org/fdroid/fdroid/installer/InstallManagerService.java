@@ -323,6 +323,7 @@ public class InstallManagerService {
                                 AppUpdateStatusManager.Status.Installed, null);
                         Apk apkComplete = appUpdateStatusManager.getApk(canonicalUrl);
 
+                        if (apkComplete != null) ApkCache.releaseStagedApk(context, apkComplete);
                         if (apkComplete != null && apkComplete.isApk()) {
                             try {
                                 PackageManagerCompat.setInstaller(context, context.getPackageManager(), apkComplete.packageName);
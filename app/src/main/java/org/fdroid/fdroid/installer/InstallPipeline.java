@@ -0,0 +1,389 @@
+package org.fdroid.fdroid.installer;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs items through a series of stages, e.g. download, verify and install,
+ * so that the stages work on different items at the same time.
+ * For example, the next APK gets downloaded while the previous one is being installed.
+ * <p>
+ * Each stage has its own number of worker threads and a bounded queue in front of it.
+ * When the queue of a stage is full, the workers of the previous stage wait
+ * before taking on more items, so a slow installer holds back further downloads.
+ * <p>
+ * Before an item enters the first stage, the space it needs gets reserved
+ * against the free space reported by {@link FreeSpace}.
+ * Admitted items only count with the space they don't take up on disk yet,
+ * so their partial files don't count twice.
+ * Items that don't fit wait until other items leave the pipeline and release their space.
+ * If nothing is reserved, an item always gets admitted, so a single large item can't get stuck.
+ * <p>
+ * Items are identified by a key, e.g. the canonical URL of an APK,
+ * and can be cancelled with {@link #cancel(String)} in any stage.
+ */
+public class InstallPipeline<T> {
+
+    /**
+     * One step of the pipeline that gets done for each item.
+     */
+    public interface Stage<T> {
+        /**
+         * Processes the given {@code item}.
+         * Throwing an exception fails the item, it does not go to the next stage then.
+         */
+        void process(T item) throws Exception;
+
+        /**
+         * Gets called from another thread when the given {@code item} gets cancelled
+         * while {@code worker} is in {@link #process(Object)}.
+         * By default, this interrupts the {@code worker}.
+         */
+        default void cancel(T item, Thread worker) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Gets told what happened to each submitted item.
+     * This gets called on the worker thread, or the thread calling {@link #cancel(String)}.
+     */
+    public interface Listener<T> {
+        void onComplete(T item);
+
+        void onFailed(T item, String stageName, Exception e);
+
+        void onCancelled(T item);
+    }
+
+    public interface ItemInfo<T> {
+        @NonNull
+        String getKey(T item);
+
+        /**
+         * @return the number of bytes the item needs on disk while it is in the pipeline.
+         */
+        long getRequiredSpace(T item);
+
+        /**
+         * @return the number of bytes the item already takes up on disk, e.g. of its partial download.
+         */
+        long getSizeOnDisk(T item);
+    }
+
+    public interface FreeSpace {
+        /**
+         * @return the number of bytes currently free on disk.
+         */
+        long getFreeSpace();
+    }
+
+    private final ItemInfo<T> itemInfo;
+    private final FreeSpace freeSpace;
+    private final Listener<T> listener;
+
+    private final Object lock = new Object();
+    private final List<StageRunner> stages = new ArrayList<>();
+    private final ArrayDeque<Job> waiting = new ArrayDeque<>();
+    private final Map<String, Job> jobs = new HashMap<>();
+    private long reservedSpace = 0;
+    private volatile boolean shutdown = false;
+
+    public InstallPipeline(ItemInfo<T> itemInfo, FreeSpace freeSpace, Listener<T> listener) {
+        this.itemInfo = itemInfo;
+        this.freeSpace = freeSpace;
+        this.listener = listener;
+    }
+
+    /**
+     * Adds a new stage at the end of the pipeline.
+     * All stages need to be added before the first item gets submitted.
+     *
+     * @param concurrency   the number of items this stage works on at the same time
+     * @param queueCapacity the number of items that can wait for this stage
+     */
+    public InstallPipeline<T> addStage(String name, int concurrency, int queueCapacity, Stage<T> stage) {
+        StageRunner runner = new StageRunner(stages.size(), name, queueCapacity, stage);
+        stages.add(runner);
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, new StageThreadFactory(name));
+        runner.executor = executor;
+        for (int i = 0; i < concurrency; i++) {
+            executor.execute(runner::work);
+        }
+        return this;
+    }
+
+    /**
+     * Submits the given {@code item} to the pipeline.
+     * This never blocks, the item waits for space or a free spot in the first stage if needed.
+     *
+     * @return false, if an item with the same key is already in the pipeline.
+     */
+    public boolean submit(T item) {
+        if (stages.isEmpty()) throw new IllegalStateException("No stages");
+        Job job = new Job(item, itemInfo.getKey(item), itemInfo.getRequiredSpace(item));
+        synchronized (lock) {
+            if (shutdown || jobs.containsKey(job.key)) return false;
+            jobs.put(job.key, job);
+            waiting.add(job);
+        }
+        admit();
+        return true;
+    }
+
+    /**
+     * Cancels the item with the given {@code key}, no matter which stage it is in.
+     *
+     * @return false, if no item with that key is in the pipeline.
+     */
+    public boolean cancel(String key) {
+        Job job;
+        boolean removed;
+        synchronized (lock) {
+            job = jobs.get(key);
+            if (job == null) return false;
+            job.cancelled = true;
+            removed = waiting.remove(job);
+            for (StageRunner stage : stages) {
+                if (removed) break;
+                removed = stage.queue.remove(job);
+            }
+            // this happens while holding the lock, so the worker can't move on to the next item meanwhile
+            if (!removed && job.worker != null) {
+                if (job.processing) {
+                    stages.get(job.stageIndex).stage.cancel(job.item, job.worker);
+                } else {
+                    // waiting for space in the queue of the next stage
+                    job.worker.interrupt();
+                }
+            }
+        }
+        if (removed) finish(job, null, null);
+        return true;
+    }
+
+    /**
+     * @return true, if an item with the given {@code key} is in the pipeline.
+     */
+    public boolean contains(String key) {
+        synchronized (lock) {
+            return jobs.containsKey(key);
+        }
+    }
+
+    /**
+     * Waits until no item is waiting for or in the stage with the given {@code stageName}
+     * or any stage before it.
+     *
+     * @return true, if that happened within the given {@code timeoutMillis}.
+     */
+    public boolean awaitIdle(String stageName, long timeoutMillis) throws InterruptedException {
+        int stageIndex = -1;
+        for (StageRunner stage : stages) {
+            if (stage.name.equals(stageName)) stageIndex = stage.index;
+        }
+        if (stageIndex == -1) throw new IllegalArgumentException("Unknown stage " + stageName);
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (lock) {
+            while (!isIdleLocked(stageIndex)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) return false;
+                lock.wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    private boolean isIdleLocked(int stageIndex) {
+        for (Job job : jobs.values()) {
+            if (job.stageIndex <= stageIndex) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stops all stages. Items in the pipeline are neither completed nor cancelled.
+     */
+    public void shutdown() {
+        shutdown = true;
+        for (StageRunner stage : stages) stage.executor.shutdownNow();
+    }
+
+    /**
+     * Moves waiting items into the first stage as long as there is space for them.
+     */
+    private void admit() {
+        StageRunner first = stages.get(0);
+        synchronized (lock) {
+            while (!waiting.isEmpty()) {
+                Job job = waiting.peek();
+                if (reservedSpace > 0 && getSpaceInFlightLocked() + job.space > freeSpace.getFreeSpace()) break;
+                if (!first.queue.offer(job)) break;
+                waiting.poll();
+                job.admitted = true;
+                reservedSpace += job.space;
+            }
+        }
+    }
+
+    /**
+     * The space admitted items still need, in addition to what they already take up on disk.
+     */
+    private long getSpaceInFlightLocked() {
+        long space = 0;
+        for (Job job : jobs.values()) {
+            if (job.admitted) space += Math.max(0, job.space - itemInfo.getSizeOnDisk(job.item));
+        }
+        return space;
+    }
+
+    /**
+     * Removes the given {@code job} from the pipeline, releasing its space,
+     * and reports the outcome to the {@link Listener}.
+     *
+     * @param failedStage the stage that failed, or null if the job was cancelled or completed.
+     */
+    private void finish(Job job, StageRunner failedStage, Exception e) {
+        synchronized (lock) {
+            if (jobs.get(job.key) != job) return; // already finished
+            jobs.remove(job.key);
+            if (job.admitted) reservedSpace -= job.space;
+            lock.notifyAll();
+        }
+        if (job.cancelled) {
+            listener.onCancelled(job.item);
+        } else if (failedStage != null) {
+            listener.onFailed(job.item, failedStage.name, e);
+        } else {
+            listener.onComplete(job.item);
+        }
+        admit();
+    }
+
+    private final class Job {
+        final T item;
+        final String key;
+        final long space;
+        volatile boolean cancelled = false;
+        // the following are guarded by lock
+        boolean admitted = false;
+        int stageIndex = 0;
+        Thread worker;
+        boolean processing;
+
+        Job(T item, String key, long space) {
+            this.item = item;
+            this.key = key;
+            this.space = space;
+        }
+    }
+
+    private final class StageRunner {
+        final int index;
+        final String name;
+        final BlockingQueue<Job> queue;
+        final Stage<T> stage;
+        ExecutorService executor;
+
+        StageRunner(int index, String name, int queueCapacity, Stage<T> stage) {
+            this.index = index;
+            this.name = name;
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            this.stage = stage;
+        }
+
+        void work() {
+            while (!shutdown) {
+                Job job;
+                try {
+                    job = queue.take();
+                } catch (InterruptedException e) {
+                    // either shut down, or a late interrupt from cancelling an item handed over already
+                    continue;
+                }
+                if (index == 0) admit(); // there's room in our queue now
+                synchronized (lock) {
+                    if (job.cancelled) {
+                        job.worker = null;
+                    } else {
+                        job.stageIndex = index;
+                        job.worker = Thread.currentThread();
+                        job.processing = true;
+                    }
+                }
+                if (job.cancelled) {
+                    finish(job, null, null);
+                    continue;
+                }
+                Exception error = null;
+                try {
+                    stage.process(job.item);
+                } catch (Exception e) {
+                    error = e;
+                }
+                synchronized (lock) {
+                    job.processing = false;
+                    // the item might have been cancelled just now, so forget about any interrupt
+                    //noinspection ResultOfMethodCallIgnored
+                    Thread.interrupted();
+                }
+                if (job.cancelled) {
+                    finish(job, null, null);
+                } else if (error != null) {
+                    finish(job, this, error);
+                } else if (index == stages.size() - 1) {
+                    finish(job, null, null);
+                } else {
+                    handOver(job, stages.get(index + 1));
+                }
+                synchronized (lock) {
+                    if (job.worker == Thread.currentThread()) job.worker = null;
+                }
+            }
+        }
+
+        /**
+         * Puts the given {@code job} into the queue of the {@code next} stage,
+         * waiting for space there, which is what holds back this stage when the next one is slow.
+         */
+        private void handOver(Job job, StageRunner next) {
+            try {
+                next.queue.put(job);
+                synchronized (lock) {
+                    if (job.stageIndex < next.index) job.stageIndex = next.index;
+                    lock.notifyAll();
+                }
+            } catch (InterruptedException e) {
+                // cancelled, or shut down
+                if (job.cancelled) finish(job, null, null);
+            }
+        }
+    }
+
+    private static final class StageThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        StageThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "InstallPipeline-" + name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
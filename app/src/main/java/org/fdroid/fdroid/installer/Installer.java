@@ -308,7 +308,7 @@ public abstract class Installer {
         Uri sanitizedUri;
 
         try {
-            sanitizedUri = ApkFileProvider.getSafeUri(context, localApkUri, apk);
+            sanitizedUri = getInstallUri(localApkUri);
         } catch (IOException e) {
             Utils.debugLog(TAG, e.getMessage(), e);
             sendBroadcastInstall(canonicalUri, Installer.ACTION_INSTALL_INTERRUPTED, e.getMessage());
@@ -339,6 +339,17 @@ public abstract class Installer {
         installPackageInternal(sanitizedUri, canonicalUri);
     }
 
+    /**
+     * Returns the {@link Uri} the APK gets installed from.
+     * By default, this copies the APK into the private files directory and verifies its hash,
+     * so other apps can't swap it out while the installation is in progress.
+     *
+     * @param localApkUri points to the local copy of the APK in the cache
+     */
+    protected Uri getInstallUri(Uri localApkUri) throws IOException {
+        return ApkFileProvider.getSafeUri(context, localApkUri, apk);
+    }
+
     protected abstract void installPackageInternal(Uri localApkUri, Uri canonicalUri);
 
     /**
@@ -23,9 +23,11 @@ package org.fdroid.fdroid.installer;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.core.app.JobIntentService;
+import androidx.core.util.Pair;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.WildcardFileFilter;
@@ -68,18 +70,26 @@ public class InstallerService extends JobIntentService {
 
     @Override
     protected void onHandleWork(@NonNull Intent intent) {
-        final App app = intent.getParcelableExtra(Installer.EXTRA_APP);
-        final Apk apk = intent.getParcelableExtra(Installer.EXTRA_APK);
-        if (apk == null) {
-            return;
-        }
-        Installer installer = InstallerFactory.create(this, app, apk);
-
         if (ACTION_INSTALL.equals(intent.getAction())) {
             Uri uri = intent.getData();
             Uri canonicalUri = Uri.parse(intent.getStringExtra(DownloaderService.EXTRA_CANONICAL_URL));
+            ApkReference reference = ApkReference.getExtra(intent);
+            Pair<App, Apk> resolved = reference == null ? null : reference.resolve(this);
+            if (resolved == null) {
+                Log.w(TAG, "Could not find APK to install: " + reference);
+                Installer.sendBroadcastInstall(this, canonicalUri, Installer.ACTION_INSTALL_INTERRUPTED,
+                        null, null, null, null);
+                return;
+            }
+            Installer installer = InstallerFactory.create(this, resolved.first, resolved.second);
             installer.installPackage(uri, canonicalUri);
         } else if (ACTION_UNINSTALL.equals(intent.getAction())) {
+            final App app = intent.getParcelableExtra(Installer.EXTRA_APP);
+            final Apk apk = intent.getParcelableExtra(Installer.EXTRA_APK);
+            if (apk == null) {
+                return;
+            }
+            Installer installer = InstallerFactory.create(this, app, apk);
             installer.uninstallPackage();
             new Thread() {
                 @Override
@@ -128,8 +138,7 @@ public class InstallerService extends JobIntentService {
         intent.setAction(ACTION_INSTALL);
         intent.setData(localApkUri);
         intent.putExtra(DownloaderService.EXTRA_CANONICAL_URL, canonicalUri.toString());
-        intent.putExtra(Installer.EXTRA_APP, app);
-        intent.putExtra(Installer.EXTRA_APK, apk);
+        ApkReference.putExtra(intent, app, apk);
         enqueueWork(context, intent);
     }
 
@@ -12,6 +12,7 @@ import android.util.Log;
 import android.webkit.MimeTypeMap;
 
 import androidx.core.content.FileProvider;
+import androidx.core.util.Pair;
 
 import org.apache.commons.io.FileUtils;
 import org.fdroid.fdroid.data.Apk;
@@ -43,8 +44,7 @@ public class ObfInstallerService extends IntentService {
         Intent intent = new Intent(context, ObfInstallerService.class);
         intent.setAction(ACTION_INSTALL_OBF);
         intent.putExtra(DownloaderService.EXTRA_CANONICAL_URL, canonicalUri.toString());
-        intent.putExtra(Installer.EXTRA_APP, app);
-        intent.putExtra(Installer.EXTRA_APK, apk);
+        ApkReference.putExtra(intent, app, apk);
         intent.putExtra(EXTRA_OBF_PATH, path.getAbsolutePath());
         context.startService(intent);
     }
@@ -56,8 +56,15 @@ public class ObfInstallerService extends IntentService {
             return;
         }
         Uri canonicalUri = Uri.parse(intent.getStringExtra(DownloaderService.EXTRA_CANONICAL_URL));
-        final App app = intent.getParcelableExtra(Installer.EXTRA_APP);
-        final Apk apk = intent.getParcelableExtra(Installer.EXTRA_APK);
+        ApkReference reference = ApkReference.getExtra(intent);
+        Pair<App, Apk> resolved = reference == null ? null : reference.resolve(this);
+        if (resolved == null) {
+            Log.e(TAG, "Could not find APK for " + canonicalUri);
+            sendBroadcastInstall(Installer.ACTION_INSTALL_INTERRUPTED, canonicalUri, null, null, null);
+            return;
+        }
+        final App app = resolved.first;
+        final Apk apk = resolved.second;
         final String path = intent.getStringExtra(EXTRA_OBF_PATH);
         final String extension = MimeTypeMap.getFileExtensionFromUrl(path);
         if ("obf".equals(extension)) {
@@ -0,0 +1,205 @@
+package org.fdroid.fdroid.installer;
+
+import android.app.PendingIntent;
+import android.content.pm.PackageInstaller;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import org.fdroid.fdroid.data.Apk;
+import org.fdroid.fdroid.data.App;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Installs several APKs together in one multi-package {@link PackageInstaller} session,
+ * so that "Update all" results in a single commit
+ * instead of one commit and possibly one confirmation per app.
+ * <p>
+ * Each APK goes into its own child session.
+ * APKs that can't be written into a session fail on their own
+ * while the others still get installed together.
+ * If the parent session can't be created or committed, or the installation of the batch fails,
+ * each APK gets installed in a session of its own, so one bad APK does not block the others
+ * and failures get reported for the app that caused them.
+ * Without support for multi-package sessions, all APKs are installed one after the other.
+ * <p>
+ * The actual {@link PackageInstaller} calls are done by a {@link Backend},
+ * so this logic can be tested without the system installer.
+ */
+class SessionBatchInstaller {
+
+    private static final String TAG = "SessionBatchInstaller";
+
+    /**
+     * The operations on {@link PackageInstaller} needed to install APKs.
+     */
+    interface Backend {
+        /**
+         * @return true if {@link PackageInstaller.SessionParams#setMultiPackage()} is supported.
+         */
+        boolean supportsMultiPackage();
+
+        /**
+         * Creates a new session and writes the APK of the given {@code item} into it.
+         *
+         * @return the ID of the new session
+         */
+        int createSession(Item item) throws IOException;
+
+        /**
+         * Creates a new multi-package session with the given child sessions.
+         * If this fails, the parent session needs to be abandoned already.
+         *
+         * @return the ID of the new parent session
+         */
+        int createParentSession(List<Integer> childSessionIds) throws IOException;
+
+        /**
+         * Commits the session with the given {@code sessionId}.
+         * The result for all {@code items} in the session needs to be passed to
+         * {@link SessionBatchInstaller#onResult(List, int, PendingIntent, String)} later.
+         */
+        void commit(int sessionId, List<Item> items) throws IOException;
+
+        /**
+         * Abandons the session with the given {@code sessionId} and all its children.
+         */
+        void abandon(int sessionId);
+    }
+
+    /**
+     * Gets told about the outcome of each individual {@link Item}.
+     */
+    interface Listener {
+        void onInstallComplete(Item item);
+
+        void onUserInteractionRequired(Item item, PendingIntent pendingIntent);
+
+        void onInstallFailed(Item item, @Nullable String errorMessage);
+    }
+
+    /**
+     * An APK to be installed.
+     */
+    static final class Item {
+        final App app;
+        final Apk apk;
+        final Uri localApkUri;
+        final Uri canonicalUri;
+
+        Item(App app, Apk apk, Uri localApkUri, Uri canonicalUri) {
+            this.app = app;
+            this.apk = apk;
+            this.localApkUri = localApkUri;
+            this.canonicalUri = canonicalUri;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return app.packageName + " " + apk.versionCode;
+        }
+    }
+
+    private final Backend backend;
+    private final Listener listener;
+
+    SessionBatchInstaller(Backend backend, Listener listener) {
+        this.backend = backend;
+        this.listener = listener;
+    }
+
+    /**
+     * Installs all the given {@code items}, together if possible.
+     */
+    @WorkerThread
+    void install(List<Item> items) {
+        if (items.size() < 2 || !backend.supportsMultiPackage()) {
+            installSequentially(items);
+            return;
+        }
+        List<Item> writtenItems = new ArrayList<>(items.size());
+        List<Integer> childSessionIds = new ArrayList<>(items.size());
+        for (Item item : items) {
+            try {
+                childSessionIds.add(backend.createSession(item));
+                writtenItems.add(item);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Error creating session for " + item + ": ", e);
+                listener.onInstallFailed(item, e.getLocalizedMessage());
+            }
+        }
+        if (writtenItems.isEmpty()) return;
+        if (writtenItems.size() == 1) {
+            // nothing to batch anymore, so commit the session on its own
+            commitSingle(childSessionIds.get(0), writtenItems.get(0));
+            return;
+        }
+        int parentSessionId = -1;
+        try {
+            parentSessionId = backend.createParentSession(childSessionIds);
+            backend.commit(parentSessionId, writtenItems);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Error installing batch, installing one by one now: ", e);
+            if (parentSessionId == -1) {
+                for (int childSessionId : childSessionIds) backend.abandon(childSessionId);
+            } else {
+                backend.abandon(parentSessionId);
+            }
+            installSequentially(writtenItems);
+        }
+    }
+
+    /**
+     * Handles the result of a committed session with the given {@code items}.
+     *
+     * @param status one of the {@code STATUS_*} constants in {@link PackageInstaller}.
+     */
+    @WorkerThread
+    void onResult(List<Item> items, int status, @Nullable PendingIntent pendingIntent,
+                  @Nullable String errorMessage) {
+        if (status == PackageInstaller.STATUS_SUCCESS) {
+            for (Item item : items) listener.onInstallComplete(item);
+        } else if (status == PackageInstaller.STATUS_PENDING_USER_ACTION && pendingIntent != null) {
+            // one confirmation covers the entire batch
+            for (Item item : items) listener.onUserInteractionRequired(item, pendingIntent);
+        } else if (items.size() > 1 && status != PackageInstaller.STATUS_FAILURE_ABORTED) {
+            // the batch failed as a whole, so find out which app failed by installing them one by one
+            Log.w(TAG, "Batch of " + items.size() + " failed with " + status + ": " + errorMessage);
+            installSequentially(items);
+        } else {
+            for (Item item : items) listener.onInstallFailed(item, errorMessage);
+        }
+    }
+
+    private void installSequentially(List<Item> items) {
+        for (Item item : items) {
+            int sessionId;
+            try {
+                sessionId = backend.createSession(item);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Error creating session for " + item + ": ", e);
+                listener.onInstallFailed(item, e.getLocalizedMessage());
+                continue;
+            }
+            commitSingle(sessionId, item);
+        }
+    }
+
+    private void commitSingle(int sessionId, Item item) {
+        try {
+            backend.commit(sessionId, Collections.singletonList(item));
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Error committing session for " + item + ": ", e);
+            backend.abandon(sessionId);
+            listener.onInstallFailed(item, e.getLocalizedMessage());
+        }
+    }
+}
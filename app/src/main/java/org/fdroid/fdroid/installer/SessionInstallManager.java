@@ -7,33 +7,50 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.IntentSender;
+import android.content.SharedPreferences;
 import android.content.pm.InstallSourceInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageInstaller;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Build;
-import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.SparseArray;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import androidx.annotation.WorkerThread;
 import androidx.core.content.ContextCompat;
 import androidx.core.util.ObjectsCompat;
 import androidx.documentfile.provider.DocumentFile;
 
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.FileUtils;
+import org.fdroid.fdroid.AppUpdateStatusManager;
 import org.fdroid.fdroid.Preferences;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.App;
-import org.fdroid.fdroid.net.DownloaderService;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
+import vendored.org.apache.commons.codec.binary.Hex;
+
 public class SessionInstallManager extends BroadcastReceiver {
 
     private static final String TAG = "SessionInstallManager";
@@ -42,14 +59,42 @@ public class SessionInstallManager extends BroadcastReceiver {
     private static final String INSTALLER_ACTION_UNINSTALL =
             "org.fdroid.fdroid.installer.SessionInstallManager.uninstall";
     /**
-     * An intent extra needed only due to a bug in Android 12 (#2599) where our App parcelable in the confirmation
-     * intent causes a crash.
-     * To prevent this, we wrap the App and Apk parcelables in this bundle.
+     * Only the canonical URLs of the items in a session go into the result broadcast,
+     * full {@link App} and {@link Apk} parcelables for a whole batch could exceed the binder limit.
      */
-    private static final String EXTRA_BUNDLE =
-            "org.fdroid.fdroid.installer.SessionInstallManager.bundle";
+    private static final String EXTRA_CANONICAL_URLS = "canonicalUrls";
+
+    private static final String PREFS_NAME = "session-install-manager";
+    /**
+     * The packages that were handed to {@link #install} but have no outcome yet.
+     * Pending batches only live in memory, so they get retried after the process died.
+     */
+    private static final String KEY_UNFINISHED = "unfinishedPackageNames";
+
+    /**
+     * While other updates are still downloading, installs are held back for at most this long,
+     * so they can all be installed in one batch.
+     */
+    private static final long MAX_BATCH_WAIT_MILLIS = TimeUnit.MINUTES.toMillis(2);
+    private static final long BATCH_CHECK_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * Large enough to make the copy cheap, small enough to not matter for memory.
+     */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
 
     private final Context context;
+    private final SharedPreferences prefs;
+    private final SessionBatchInstaller batchInstaller;
+    private final ScheduledExecutorService batchExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final List<SessionBatchInstaller.Item> pendingItems = new ArrayList<>();
+    /**
+     * The items of each committed session, until its result arrives.
+     */
+    private final SparseArray<List<SessionBatchInstaller.Item>> committedItems = new SparseArray<>();
+    private long firstPendingMillis;
+    @Nullable
+    private ScheduledFuture<?> batchCheck;
 
     // Used to cache isStockXiaomi() to prevent repeat PackageManager calls
     @Nullable
@@ -57,6 +102,9 @@ public class SessionInstallManager extends BroadcastReceiver {
 
     public SessionInstallManager(Context context) {
         this.context = context;
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        PackageInstallerBackend backend = new PackageInstallerBackend();
+        this.batchInstaller = new SessionBatchInstaller(backend, backend);
         ContextCompat.registerReceiver(context, this, new IntentFilter(INSTALLER_ACTION_INSTALL),
                 ContextCompat.RECEIVER_NOT_EXPORTED);
         ContextCompat.registerReceiver(context, this, new IntentFilter(INSTALLER_ACTION_UNINSTALL),
@@ -67,49 +115,126 @@ public class SessionInstallManager extends BroadcastReceiver {
         Utils.runOffUiThread(() -> {
             for (PackageInstaller.SessionInfo session : installer.getMySessions()) {
                 Utils.debugLog(TAG, "Abandon session " + session.getSessionId());
-                try {
-                    installer.abandonSession(session.getSessionId());
-                } catch (SecurityException e) {
-                    Log.e(TAG, "Error abandoning session: ", e);
-                }
+                abandonSession(installer, session.getSessionId());
             }
         });
+        resumeUnfinished();
+    }
+
+    /**
+     * Installs of the last process that got no outcome were lost together with their sessions.
+     * Their statuses only lived in memory as well, so the updates among them get checked and installed again.
+     * Other installs need to be started again by the user.
+     */
+    private void resumeUnfinished() {
+        Set<String> packageNames;
+        synchronized (prefs) {
+            packageNames = new HashSet<>(prefs.getStringSet(KEY_UNFINISHED, Collections.emptySet()));
+            if (packageNames.isEmpty()) return;
+            prefs.edit().remove(KEY_UNFINISHED).apply();
+        }
+        Log.i(TAG, "Resuming unfinished installs: " + packageNames);
+        // AppUpdateStatusManager needs FDroidApp to be fully created
+        ContextCompat.getMainExecutor(context).execute(() ->
+                AppUpdateStatusManager.getInstance(context).checkForUpdatesAndInstall(packageNames));
+    }
+
+    private void setUnfinished(String packageName, boolean unfinished) {
+        synchronized (prefs) {
+            Set<String> packageNames = new HashSet<>(prefs.getStringSet(KEY_UNFINISHED, Collections.emptySet()));
+            boolean changed = unfinished ? packageNames.add(packageName) : packageNames.remove(packageName);
+            if (changed) prefs.edit().putStringSet(KEY_UNFINISHED, packageNames).apply();
+        }
     }
 
+    /**
+     * Installs the APK at the given {@code localApkUri} which usually is the file in the cache.
+     * It is read only once and written straight into the installer session
+     * while its hash gets checked against the {@code apk}.
+     * The session only gets committed if the hash matches,
+     * so swapping out the file during installation has no effect.
+     * <p>
+     * Updates are held back while other updates are still downloading,
+     * so they can be installed together in one batch.
+     */
     @WorkerThread
     public void install(App app, Apk apk, Uri localApkUri, Uri canonicalUri) {
-        DocumentFile documentFile = ObjectsCompat.requireNonNull(DocumentFile.fromSingleUri(context, localApkUri));
-        long size = documentFile.length();
-        PackageInstaller.SessionParams params = getSessionParams(app, size);
-        PackageInstaller installer = context.getPackageManager().getPackageInstaller();
-        try {
-            int sessionId = installer.createSession(params);
-            ContentResolver contentResolver = context.getContentResolver();
-            try (PackageInstaller.Session session = installer.openSession(sessionId)) {
-                try (InputStream inputStream = contentResolver.openInputStream(localApkUri)) {
-                    try (OutputStream outputStream = session.openWrite(app.packageName, 0, size)) {
-                        IOUtils.copy(inputStream, outputStream);
-                        session.fsync(outputStream);
-                    }
-                }
-                IntentSender sender = getInstallIntentSender(sessionId, app, apk, canonicalUri);
-                // wait for install constraints, if they can be used
-                if (Build.VERSION.SDK_INT >= 34 && canUseInstallConstraints(app.packageName)) {
-                    // we are allowed, so wait for constraints
-                    PackageInstaller.InstallConstraints constraints =
-                            new PackageInstaller.InstallConstraints.Builder()
-                                    .setAppNotForegroundRequired()
-                                    .setAppNotInteractingRequired().build();
-                    long timeout = TimeUnit.HOURS.toMillis(3);
-                    installer.commitSessionAfterInstallConstraintsAreMet(sessionId, sender, constraints, timeout);
-                } else {
-                    session.commit(sender);
+        SessionBatchInstaller.Item item = new SessionBatchInstaller.Item(app, apk, localApkUri, canonicalUri);
+        boolean isUpdate = app.installedVersionCode > 0;
+        setUnfinished(app.packageName, true);
+        synchronized (pendingItems) {
+            if (pendingItems.isEmpty()) firstPendingMillis = SystemClock.elapsedRealtime();
+            pendingItems.add(item);
+        }
+        // only updates get batched, the user waits for other installs
+        installPending(!isUpdate);
+    }
+
+    private void installPending(boolean force) {
+        List<SessionBatchInstaller.Item> items;
+        synchronized (pendingItems) {
+            if (pendingItems.isEmpty()) return;
+            long waitedMillis = SystemClock.elapsedRealtime() - firstPendingMillis;
+            if (!force && waitedMillis < MAX_BATCH_WAIT_MILLIS && hasPendingDownloads()) {
+                if (batchCheck == null || batchCheck.isDone()) {
+                    batchCheck = batchExecutor.schedule(() -> installPending(false),
+                            BATCH_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
                 }
+                return;
+            }
+            items = new ArrayList<>(pendingItems);
+            pendingItems.clear();
+        }
+        Utils.debugLog(TAG, "Installing " + items.size() + " APK(s): " + items);
+        batchInstaller.install(items);
+    }
+
+    /**
+     * Returns true if there are APKs queued for download or still downloading.
+     */
+    private boolean hasPendingDownloads() {
+        for (AppUpdateStatusManager.AppUpdateStatus status :
+                AppUpdateStatusManager.getInstance(context).getAll()) {
+            if (status.status == AppUpdateStatusManager.Status.PendingInstall ||
+                    status.status == AppUpdateStatusManager.Status.Downloading) {
+                return true;
             }
-        } catch (Exception e) {
-            Log.e(TAG, "I/O Error during install session: ", e);
-            Installer.sendBroadcastInstall(context, canonicalUri, Installer.ACTION_INSTALL_INTERRUPTED, app, apk,
-                    null, e.getLocalizedMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Copies all bytes from the {@code inputStream} to the {@code outputStream}
+     * while computing their SHA-256 hash, so the APK needs to be read only once.
+     *
+     * @throws ApkHashMismatchException if the copied bytes do not match {@code expectedSha256}.
+     */
+    @VisibleForTesting
+    static void copyAndVerify(InputStream inputStream, OutputStream outputStream, String expectedSha256)
+            throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+            outputStream.write(buffer, 0, read);
+        }
+        String hash = Hex.encodeHexString(digest.digest());
+        if (!hash.equalsIgnoreCase(expectedSha256)) {
+            throw new ApkHashMismatchException("APK failed to verify, hash was " + hash);
+        }
+    }
+
+    private static void abandonSession(PackageInstaller installer, int sessionId) {
+        try {
+            installer.abandonSession(sessionId);
+        } catch (SecurityException | IllegalStateException e) {
+            Log.e(TAG, "Error abandoning session: ", e);
         }
     }
 
@@ -155,16 +280,15 @@ public class SessionInstallManager extends BroadcastReceiver {
         installer.uninstall(packageName, getUninstallIntentSender(packageName));
     }
 
-    private IntentSender getInstallIntentSender(int sessionId, App app, Apk apk, Uri canonicalUri) {
+    private IntentSender getInstallIntentSender(int sessionId, List<SessionBatchInstaller.Item> items) {
         Intent broadcastIntent = new Intent(INSTALLER_ACTION_INSTALL);
         broadcastIntent.setPackage(context.getPackageName());
         broadcastIntent.putExtra(PackageInstaller.EXTRA_SESSION_ID, sessionId);
-        Bundle bundle = new Bundle();
-        bundle.putParcelable(Installer.EXTRA_APP, app);
-        bundle.putParcelable(Installer.EXTRA_APK, apk);
-        broadcastIntent.putExtra(EXTRA_BUNDLE, bundle);
-        broadcastIntent.putExtra(DownloaderService.EXTRA_CANONICAL_URL, canonicalUri);
-        // we are stuffing this intent pretty full, hopefully won't run into the size limit
+        ArrayList<String> canonicalUrls = new ArrayList<>(items.size());
+        for (SessionBatchInstaller.Item item : items) {
+            canonicalUrls.add(item.canonicalUri.toString());
+        }
+        broadcastIntent.putStringArrayListExtra(EXTRA_CANONICAL_URLS, canonicalUrls);
         broadcastIntent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
         // intent flag needs to be mutable, otherwise the intent has no extras
         int flags = Build.VERSION.SDK_INT >= 31 ?
@@ -203,30 +327,57 @@ public class SessionInstallManager extends BroadcastReceiver {
         int sessionId = intent.getIntExtra(PackageInstaller.EXTRA_SESSION_ID, -1);
         Intent confirmIntent = intent.getParcelableExtra(Intent.EXTRA_INTENT);
 
-        Bundle bundle = intent.getBundleExtra(EXTRA_BUNDLE);
-        App app = bundle.getParcelable(Installer.EXTRA_APP);
-        Apk apk = bundle.getParcelable(Installer.EXTRA_APK);
-        Uri canonicalUri = intent.getParcelableExtra(DownloaderService.EXTRA_CANONICAL_URL);
-
         int status = intent.getIntExtra(PackageInstaller.EXTRA_STATUS, Integer.MIN_VALUE);
         String msg = intent.getStringExtra(PackageInstaller.EXTRA_STATUS_MESSAGE);
+        // after the user confirmed, there is another result for the same session
+        boolean isFinal = status != PackageInstaller.STATUS_PENDING_USER_ACTION;
+        List<SessionBatchInstaller.Item> items = getCommittedItems(sessionId,
+                intent.getStringArrayListExtra(EXTRA_CANONICAL_URLS), isFinal);
 
-        Log.i(TAG, "Received install broadcast for " + app.packageName + " " + status + ": " + msg);
+        Log.i(TAG, "Received install broadcast for " + items + " " + status + ": " + msg);
 
-        if (status == PackageInstaller.STATUS_SUCCESS) {
-            String action = Installer.ACTION_INSTALL_COMPLETE;
-            Installer.sendBroadcastInstall(context, canonicalUri, action, app, apk, null, null);
-        } else if (status == PackageInstaller.STATUS_PENDING_USER_ACTION) {
+        PendingIntent pendingIntent = null;
+        if (status == PackageInstaller.STATUS_PENDING_USER_ACTION) {
             int flags = Build.VERSION.SDK_INT >= 31 ?
                     PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE :
                     PendingIntent.FLAG_UPDATE_CURRENT;
-            PendingIntent pendingIntent = PendingIntent.getActivity(context, sessionId, confirmIntent, flags);
-            String action = Installer.ACTION_INSTALL_USER_INTERACTION;
-            Installer.sendBroadcastInstall(context, canonicalUri, action, app, apk, pendingIntent, null);
-        } else {
-            String action = Installer.ACTION_INSTALL_INTERRUPTED;
-            Installer.sendBroadcastInstall(context, canonicalUri, action, app, apk, null, msg);
+            pendingIntent = PendingIntent.getActivity(context, sessionId, confirmIntent, flags);
+        }
+        PendingIntent finalPendingIntent = pendingIntent;
+        // failed batches get installed one by one, so don't do this on the UI thread
+        batchExecutor.execute(() -> batchInstaller.onResult(items, status, finalPendingIntent, msg));
+    }
+
+    /**
+     * Returns the items of the committed session with the given {@code sessionId}.
+     * If they are not known anymore, because F-Droid got restarted in the meantime,
+     * they get looked up by their {@code canonicalUrls} in {@link AppUpdateStatusManager}.
+     *
+     * @param isFinal true if this is the last result for the session, so its items can be forgotten
+     */
+    private List<SessionBatchInstaller.Item> getCommittedItems(int sessionId, @Nullable List<String> canonicalUrls,
+                                                               boolean isFinal) {
+        synchronized (committedItems) {
+            List<SessionBatchInstaller.Item> items = committedItems.get(sessionId);
+            if (items != null) {
+                if (isFinal) committedItems.remove(sessionId);
+                return items;
+            }
+        }
+        if (canonicalUrls == null) return Collections.emptyList();
+        AppUpdateStatusManager appUpdateStatusManager = AppUpdateStatusManager.getInstance(context);
+        List<SessionBatchInstaller.Item> items = new ArrayList<>(canonicalUrls.size());
+        for (String canonicalUrl : canonicalUrls) {
+            AppUpdateStatusManager.AppUpdateStatus status = appUpdateStatusManager.get(canonicalUrl);
+            if (status == null) {
+                Log.w(TAG, "Unknown install result for " + canonicalUrl);
+                continue;
+            }
+            Uri canonicalUri = Uri.parse(canonicalUrl);
+            Uri localApkUri = Uri.fromFile(ApkCache.getApkDownloadPath(context, canonicalUri));
+            items.add(new SessionBatchInstaller.Item(status.app, status.apk, localApkUri, canonicalUri));
         }
+        return items;
     }
 
     private void onUninstallReceived(Intent intent) {
@@ -319,4 +470,137 @@ public class SessionInstallManager extends BroadcastReceiver {
         // current code requires targetSdk 31 on SDK 34+
         return Build.VERSION.SDK_INT >= 34 && targetSdk >= 31;
     }
+
+    /**
+     * Installs APKs with the system's {@link PackageInstaller}
+     * and reports the outcome via {@link Installer#sendBroadcastInstall}.
+     */
+    private class PackageInstallerBackend implements SessionBatchInstaller.Backend,
+            SessionBatchInstaller.Listener {
+
+        private final PackageInstaller installer = context.getPackageManager().getPackageInstaller();
+
+        @Override
+        public boolean supportsMultiPackage() {
+            return Build.VERSION.SDK_INT >= 29;
+        }
+
+        @Override
+        public int createSession(SessionBatchInstaller.Item item) throws IOException {
+            Uri localApkUri = item.localApkUri;
+            DocumentFile documentFile = ObjectsCompat.requireNonNull(DocumentFile.fromSingleUri(context, localApkUri));
+            long size = documentFile.length();
+            PackageInstaller.SessionParams params = getSessionParams(item.app, size);
+            int sessionId = installer.createSession(params);
+            ContentResolver contentResolver = context.getContentResolver();
+            try (PackageInstaller.Session session = installer.openSession(sessionId)) {
+                try (InputStream inputStream = contentResolver.openInputStream(localApkUri)) {
+                    try (OutputStream outputStream = session.openWrite(item.app.packageName, 0, size)) {
+                        copyAndVerify(inputStream, outputStream, item.apk.apkFile.getSha256());
+                        session.fsync(outputStream);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                abandonSession(installer, sessionId);
+                if (e instanceof ApkHashMismatchException && "file".equals(localApkUri.getScheme())) {
+                    // the file is not what we expect, so don't keep it in the cache
+                    FileUtils.deleteQuietly(new File(localApkUri.getPath()));
+                }
+                throw e;
+            }
+            return sessionId;
+        }
+
+        @Override
+        public int createParentSession(List<Integer> childSessionIds) throws IOException {
+            PackageInstaller.SessionParams params =
+                    new PackageInstaller.SessionParams(PackageInstaller.SessionParams.MODE_FULL_INSTALL);
+            params.setMultiPackage();
+            if (Build.VERSION.SDK_INT >= 31) {
+                params.setRequireUserAction(PackageInstaller.SessionParams.USER_ACTION_NOT_REQUIRED);
+            }
+            int sessionId = installer.createSession(params);
+            try (PackageInstaller.Session session = installer.openSession(sessionId)) {
+                for (int childSessionId : childSessionIds) {
+                    session.addChildSessionId(childSessionId);
+                }
+            } catch (IOException | RuntimeException e) {
+                abandonSession(installer, sessionId);
+                throw e;
+            }
+            return sessionId;
+        }
+
+        @Override
+        public void commit(int sessionId, List<SessionBatchInstaller.Item> items) throws IOException {
+            IntentSender sender = getInstallIntentSender(sessionId, items);
+            synchronized (committedItems) {
+                committedItems.put(sessionId, items);
+            }
+            try {
+                // wait for install constraints, if they can be used
+                if (Build.VERSION.SDK_INT >= 34 && canUseInstallConstraints(items)) {
+                    // we are allowed, so wait for constraints
+                    PackageInstaller.InstallConstraints constraints =
+                            new PackageInstaller.InstallConstraints.Builder()
+                                    .setAppNotForegroundRequired()
+                                    .setAppNotInteractingRequired().build();
+                    long timeout = TimeUnit.HOURS.toMillis(3);
+                    installer.commitSessionAfterInstallConstraintsAreMet(sessionId, sender, constraints, timeout);
+                } else {
+                    try (PackageInstaller.Session session = installer.openSession(sessionId)) {
+                        session.commit(sender);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                synchronized (committedItems) {
+                    committedItems.remove(sessionId);
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public void abandon(int sessionId) {
+            abandonSession(installer, sessionId);
+        }
+
+        private boolean canUseInstallConstraints(List<SessionBatchInstaller.Item> items) {
+            for (SessionBatchInstaller.Item item : items) {
+                if (!SessionInstallManager.this.canUseInstallConstraints(item.app.packageName)) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void onInstallComplete(SessionBatchInstaller.Item item) {
+            setUnfinished(item.app.packageName, false);
+            Installer.sendBroadcastInstall(context, item.canonicalUri, Installer.ACTION_INSTALL_COMPLETE,
+                    item.app, item.apk, null, null);
+        }
+
+        @Override
+        public void onUserInteractionRequired(SessionBatchInstaller.Item item, PendingIntent pendingIntent) {
+            // it is up to the user now
+            setUnfinished(item.app.packageName, false);
+            Installer.sendBroadcastInstall(context, item.canonicalUri, Installer.ACTION_INSTALL_USER_INTERACTION,
+                    item.app, item.apk, pendingIntent, null);
+        }
+
+        @Override
+        public void onInstallFailed(SessionBatchInstaller.Item item, @Nullable String errorMessage) {
+            setUnfinished(item.app.packageName, false);
+            Installer.sendBroadcastInstall(context, item.canonicalUri, Installer.ACTION_INSTALL_INTERRUPTED,
+                    item.app, item.apk, null, errorMessage);
+        }
+    }
+
+    /**
+     * Thrown if the bytes written into an installer session do not match the expected hash.
+     */
+    static class ApkHashMismatchException extends IOException {
+        ApkHashMismatchException(String message) {
+            super(message);
+        }
+    }
 }
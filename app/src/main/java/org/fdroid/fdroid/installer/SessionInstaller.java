@@ -18,6 +18,15 @@ class SessionInstaller extends Installer {
         super(context, app, apk);
     }
 
+    /**
+     * Does not copy the APK, because {@link SessionInstallManager} verifies the hash
+     * of the exact bytes it writes into the installer session.
+     */
+    @Override
+    protected Uri getInstallUri(Uri localApkUri) {
+        return localApkUri;
+    }
+
     @Override
     protected void installPackageInternal(Uri localApkUri, Uri canonicalUri) {
         sessionInstallManager.install(app, apk, localApkUri, canonicalUri);
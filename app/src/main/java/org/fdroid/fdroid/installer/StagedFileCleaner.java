@@ -0,0 +1,212 @@
+package org.fdroid.fdroid.installer;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import org.apache.commons.io.FileUtils;
+import org.fdroid.fdroid.Utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes the files {@link ApkCache} copies into the files directory for installing them,
+ * as soon as the install is done, see {@link #release(File)},
+ * or at the latest when their deadline passed.
+ * <p>
+ * All deadlines share one task on a single scheduler thread, which wakes up for the earliest of them.
+ * The deadlines also get written to a small journal, so the files still get deleted
+ * after the process died in the meantime.
+ * {@link org.fdroid.fdroid.work.CleanCacheWorker} remains as a fallback for files not recorded here.
+ */
+public class StagedFileCleaner {
+
+    private static final String TAG = "StagedFileCleaner";
+    private static final String JOURNAL_NAME = "staged-files";
+
+    /**
+     * How long a staged file is kept at most, long enough for the user to confirm the install.
+     */
+    static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(20);
+
+    interface Clock {
+        long currentTimeMillis();
+    }
+
+    interface Scheduler {
+        void schedule(Runnable task, long delayMillis);
+    }
+
+    private static StagedFileCleaner instance;
+
+    public static synchronized StagedFileCleaner getInstance(Context context) {
+        if (instance == null) {
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.setDaemon(true);
+                return thread;
+            });
+            File journal = new File(context.getApplicationContext().getNoBackupFilesDir(), JOURNAL_NAME);
+            instance = new StagedFileCleaner(journal, System::currentTimeMillis,
+                    (task, delayMillis) -> executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS));
+            // before anything gets staged, which would overwrite the journal
+            instance.restore();
+        }
+        return instance;
+    }
+
+    private final File journal;
+    private final Clock clock;
+    private final Scheduler scheduler;
+    /**
+     * The deadline in milliseconds since the epoch by absolute file path.
+     * Wall clock time is used, so the deadlines still mean something after a restart.
+     */
+    private final Map<String, Long> deadlines = new HashMap<>();
+    /**
+     * When the next cleanup is scheduled, or {@link Long#MAX_VALUE} if there is none.
+     */
+    private long nextRun = Long.MAX_VALUE;
+
+    @VisibleForTesting
+    StagedFileCleaner(File journal, Clock clock, Scheduler scheduler) {
+        this.journal = journal;
+        this.clock = clock;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Records that the given {@code file} should be deleted after {@link #DEFAULT_TTL_MILLIS}.
+     */
+    public void stage(@NonNull File file) {
+        stage(file, DEFAULT_TTL_MILLIS);
+    }
+
+    public synchronized void stage(@NonNull File file, long ttlMillis) {
+        long deadline = clock.currentTimeMillis() + ttlMillis;
+        deadlines.put(file.getAbsolutePath(), deadline);
+        writeJournal();
+        scheduleAt(deadline);
+    }
+
+    /**
+     * Deletes the given {@code file} on the scheduler thread right away,
+     * because it is no longer needed, e.g. because the install using it is done.
+     * This does nothing, if the file was not {@link #stage(File) staged} before.
+     */
+    public synchronized void release(@NonNull File file) {
+        if (deadlines.remove(file.getAbsolutePath()) == null) return;
+        scheduler.schedule(() -> {
+            synchronized (this) {
+                // the file could have been staged again in the meantime
+                if (deadlines.containsKey(file.getAbsolutePath())) return;
+                FileUtils.deleteQuietly(file);
+                writeJournal();
+            }
+        }, 0);
+    }
+
+    /**
+     * @return true, if the given {@code file} is going to be deleted.
+     */
+    synchronized boolean isStaged(@NonNull File file) {
+        return deadlines.containsKey(file.getAbsolutePath());
+    }
+
+    /**
+     * Reads the deadlines from the journal written by an earlier process
+     * and schedules deleting the files whose deadlines already passed.
+     * This must happen before the journal gets written the first time.
+     */
+    @VisibleForTesting
+    synchronized void restore() {
+        if (!journal.isFile()) return;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(journal), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf(' ');
+                if (separator <= 0) continue;
+                try {
+                    long deadline = Long.parseLong(line.substring(0, separator));
+                    String path = line.substring(separator + 1);
+                    Long existing = deadlines.get(path);
+                    if (existing == null || existing < deadline) deadlines.put(path, deadline);
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Ignoring broken journal line: " + line);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading journal: ", e);
+        }
+        if (!deadlines.isEmpty()) scheduleAt(clock.currentTimeMillis());
+    }
+
+    @VisibleForTesting
+    synchronized void deleteExpired() {
+        nextRun = Long.MAX_VALUE;
+        long now = clock.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        int deleted = 0;
+        for (Iterator<Map.Entry<String, Long>> it = deadlines.entrySet().iterator(); it.hasNext(); ) { // NOCHECKSTYLE EmptyForIteratorPad
+            Map.Entry<String, Long> entry = it.next();
+            if (entry.getValue() <= now) {
+                FileUtils.deleteQuietly(new File(entry.getKey()));
+                it.remove();
+                deleted++;
+            } else {
+                next = Math.min(next, entry.getValue());
+            }
+        }
+        if (deleted > 0) {
+            Utils.debugLog(TAG, "Deleted " + deleted + " staged files, " + deadlines.size() + " left.");
+        }
+        writeJournal();
+        if (next != Long.MAX_VALUE) scheduleAt(next);
+    }
+
+    /**
+     * Makes sure {@link #deleteExpired()} runs at the given {@code deadline},
+     * unless it runs earlier anyway and then takes care of scheduling the next run.
+     */
+    private void scheduleAt(long deadline) {
+        if (deadline >= nextRun) return;
+        nextRun = deadline;
+        scheduler.schedule(this::deleteExpired, Math.max(0, deadline - clock.currentTimeMillis()));
+    }
+
+    private void writeJournal() {
+        if (deadlines.isEmpty()) {
+            if (journal.exists() && !journal.delete()) Log.w(TAG, "Could not delete " + journal);
+            return;
+        }
+        // write to a new file first, so the journal never ends up half-written
+        File tmp = new File(journal.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Long> entry : deadlines.entrySet()) {
+                writer.write(entry.getValue() + " " + entry.getKey() + "\n");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing journal: ", e);
+            return;
+        }
+        if (!tmp.renameTo(journal)) Log.w(TAG, "Could not replace " + journal);
+    }
+}
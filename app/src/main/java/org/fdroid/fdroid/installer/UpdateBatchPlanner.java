@@ -0,0 +1,210 @@
+package org.fdroid.fdroid.installer;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides in which order and how many updates of a batch get queued at the same time,
+ * so that updating all apps doesn't fill up the disk with downloaded APKs.
+ * <p>
+ * The updates get sorted by the given list of {@link Policy}s, the first one deciding first.
+ * The app given as {@code lastPackageName}, usually F-Droid itself, always comes last,
+ * because installing it restarts F-Droid.
+ * <p>
+ * Each update needs its size twice: once for the downloaded APK and once for the copy
+ * the system makes while installing it. Updates get admitted in order
+ * as long as their space plus the {@code headroom} fits into the free space.
+ * The free space gets measured for each admission, so APKs of done updates that are still
+ * in the cache are accounted for. Admitted updates only count with the space
+ * they don't take up on disk yet, so their partial downloads don't count twice.
+ * Updates don't skip ahead of others that don't fit, so the order is kept.
+ * If nothing is reserved, the next update always gets admitted,
+ * so a single large update can't get stuck.
+ * The space of an update is released with {@link #release(String)} once it is done.
+ */
+public class UpdateBatchPlanner<T> {
+
+    public enum Policy {
+        /**
+         * Updates fixing a known vulnerability come first.
+         */
+        KNOWN_VULNERABILITY_FIRST,
+        /**
+         * Updates of apps the user pinned come first.
+         */
+        PINNED_FIRST,
+        /**
+         * Smaller updates come first, so more apps get updated sooner.
+         */
+        SMALLEST_FIRST,
+    }
+
+    public interface ItemInfo<T> {
+        @NonNull
+        String getKey(T item);
+
+        @NonNull
+        String getPackageName(T item);
+
+        /**
+         * @return the size of the APK in bytes, or 0 if unknown.
+         */
+        long getSize(T item);
+
+        /**
+         * @return the number of bytes the item already takes up on disk, e.g. of its partial download.
+         */
+        long getSizeOnDisk(T item);
+
+        boolean hasKnownVulnerability(T item);
+    }
+
+    private final ItemInfo<T> itemInfo;
+    private final Comparator<T> comparator;
+    private final InstallPipeline.FreeSpace freeSpace;
+    private final long headroom;
+
+    private final ArrayDeque<T> waiting = new ArrayDeque<>();
+    private final Map<String, T> reserved = new HashMap<>();
+    private long reservedSpace = 0;
+
+    /**
+     * @param pinnedPackageNames the apps to put first with {@link Policy#PINNED_FIRST}
+     * @param lastPackageName    the app to always put last, or null
+     * @param headroom           the number of bytes to always keep free
+     */
+    public UpdateBatchPlanner(ItemInfo<T> itemInfo, List<Policy> policies, Set<String> pinnedPackageNames,
+                              String lastPackageName, InstallPipeline.FreeSpace freeSpace, long headroom) {
+        this.itemInfo = itemInfo;
+        this.freeSpace = freeSpace;
+        this.headroom = headroom;
+        Comparator<T> comparator = (a, b) -> Boolean.compare(
+                itemInfo.getPackageName(a).equals(lastPackageName),
+                itemInfo.getPackageName(b).equals(lastPackageName));
+        for (Policy policy : policies) {
+            switch (policy) {
+                case KNOWN_VULNERABILITY_FIRST:
+                    comparator = comparator.thenComparing((a, b) -> Boolean.compare(
+                            itemInfo.hasKnownVulnerability(b), itemInfo.hasKnownVulnerability(a)));
+                    break;
+                case PINNED_FIRST:
+                    comparator = comparator.thenComparing((a, b) -> Boolean.compare(
+                            pinnedPackageNames.contains(itemInfo.getPackageName(b)),
+                            pinnedPackageNames.contains(itemInfo.getPackageName(a))));
+                    break;
+                case SMALLEST_FIRST:
+                    comparator = comparator.thenComparing((a, b) -> Long.compare(
+                            itemInfo.getSize(a), itemInfo.getSize(b)));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown policy " + policy);
+            }
+        }
+        this.comparator = comparator;
+    }
+
+    /**
+     * Adds the given {@code items} to the batch. Items already in the batch are ignored.
+     *
+     * @return the items that can be queued now, in order.
+     */
+    public synchronized List<T> add(List<T> items) {
+        List<T> sorted = new ArrayList<>(waiting);
+        for (T item : items) {
+            String key = itemInfo.getKey(item);
+            if (reserved.containsKey(key) || containsWaiting(key)) continue;
+            sorted.add(item);
+        }
+        Collections.sort(sorted, comparator);
+        waiting.clear();
+        waiting.addAll(sorted);
+        return admit();
+    }
+
+    /**
+     * Releases the space of the item with the given {@code key},
+     * because it got installed, failed or was cancelled.
+     * Items that did not get admitted yet are removed from the batch.
+     *
+     * @return the items that can be queued now, in order.
+     */
+    public synchronized List<T> release(String key) {
+        T item = reserved.remove(key);
+        if (item != null) {
+            reservedSpace -= getRequiredSpace(item);
+        } else {
+            for (T waitingItem : waiting) {
+                if (itemInfo.getKey(waitingItem).equals(key)) {
+                    waiting.remove(waitingItem);
+                    break;
+                }
+            }
+        }
+        return admit();
+    }
+
+    /**
+     * @return true, if the item with the given {@code key} got admitted and was not released yet.
+     */
+    public synchronized boolean isAdmitted(String key) {
+        return reserved.containsKey(key);
+    }
+
+    /**
+     * @return the number of items that still wait to be admitted.
+     */
+    public synchronized int getNumWaiting() {
+        return waiting.size();
+    }
+
+    public synchronized long getReservedSpace() {
+        return reservedSpace;
+    }
+
+    private List<T> admit() {
+        List<T> admitted = new ArrayList<>();
+        while (!waiting.isEmpty()) {
+            T item = waiting.peek();
+            long space = getRequiredSpace(item);
+            if (!reserved.isEmpty() && getSpaceInFlight() + space + headroom > freeSpace.getFreeSpace()) break;
+            waiting.poll();
+            reserved.put(itemInfo.getKey(item), item);
+            reservedSpace += space;
+            admitted.add(item);
+        }
+        return admitted;
+    }
+
+    private boolean containsWaiting(String key) {
+        for (T item : waiting) {
+            if (itemInfo.getKey(item).equals(key)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * The space admitted updates still need, in addition to what they already take up on disk.
+     */
+    private long getSpaceInFlight() {
+        long space = 0;
+        for (T item : reserved.values()) {
+            space += Math.max(0, getRequiredSpace(item) - itemInfo.getSizeOnDisk(item));
+        }
+        return space;
+    }
+
+    /**
+     * The downloaded APK plus the temporary copy made while installing it.
+     */
+    private long getRequiredSpace(T item) {
+        return 2 * Math.max(0, itemInfo.getSize(item));
+    }
+}
@@ -2,9 +2,13 @@ package org.fdroid.fdroid.nearby;
 
 import android.bluetooth.BluetoothSocket;
 
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresPermission;
+import androidx.annotation.VisibleForTesting;
 
 import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.nearby.httpish.MuxClient;
+import org.fdroid.fdroid.nearby.httpish.Request;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -18,12 +22,27 @@ public class BluetoothConnection {
 
     private InputStream input;
     private OutputStream output;
+    @Nullable
     private final BluetoothSocket socket;
+    private volatile int protocolVersion = Request.VERSION_1;
+    @Nullable
+    private volatile MuxClient muxClient;
 
     BluetoothConnection(BluetoothSocket socket) {
         this.socket = socket;
     }
 
+    /**
+     * A connection that is already open, for running the protocol over other streams than a
+     * {@link BluetoothSocket}, e.g. in tests.
+     */
+    @VisibleForTesting
+    public BluetoothConnection(InputStream input, OutputStream output) {
+        this.socket = null;
+        this.input = new BufferedInputStream(input);
+        this.output = new BufferedOutputStream(output);
+    }
+
     public InputStream getInputStream() {
         return input;
     }
@@ -32,8 +51,36 @@ public class BluetoothConnection {
         return output;
     }
 
+    /**
+     * The version of the HTTP-ish protocol that both sides use on this connection,
+     * which is {@link Request#VERSION_1} until {@link Request#negotiateVersion(BluetoothConnection)}
+     * switched it.
+     */
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+    /**
+     * The client side of {@link Request#VERSION_3}, if this connection uses it.
+     */
+    @Nullable
+    public MuxClient getMuxClient() {
+        return muxClient;
+    }
+
+    public void setMuxClient(@Nullable MuxClient muxClient) {
+        this.muxClient = muxClient;
+    }
+
     @RequiresPermission("android.permission.BLUETOOTH_CONNECT")
     public void open() throws IOException {
+        if (socket == null) {
+            return;
+        }
         if (!socket.isConnected()) {
             // Server sockets will already be connected when they are passed to us,
             // client sockets require us to call connect().
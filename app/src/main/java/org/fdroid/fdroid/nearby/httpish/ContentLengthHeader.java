@@ -8,6 +8,10 @@ public class ContentLengthHeader extends Header {
     }
 
     public void handle(FileDetails details, String value) {
-        details.setFileSize(Integer.parseInt(value));
+        try {
+            details.setFileSize(Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            details.setFileSize(-1);
+        }
     }
 }
\ No newline at end of file
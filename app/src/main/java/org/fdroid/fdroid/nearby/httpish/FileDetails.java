@@ -3,7 +3,7 @@ package org.fdroid.fdroid.nearby.httpish;
 public class FileDetails {
 
     private String cacheTag;
-    private long fileSize;
+    private long fileSize = -1;
 
     public String getCacheTag() {
         return cacheTag;
@@ -13,7 +13,7 @@ public class FileDetails {
         return fileSize;
     }
 
-    void setFileSize(int fileSize) {
+    void setFileSize(long fileSize) {
         this.fileSize = fileSize;
     }
 
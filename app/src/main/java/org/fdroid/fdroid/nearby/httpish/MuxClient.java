@@ -0,0 +1,244 @@
+package org.fdroid.fdroid.nearby.httpish;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.nearby.BluetoothConnection;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The client side of {@link Request#VERSION_3}.  Any number of threads can have requests
+ * running at the same time, their responses arrive interleaved in {@link MuxFrame#DATA} frames.
+ * A single thread reads all frames and hands them to the {@link Stream} they belong to.
+ */
+public final class MuxClient {
+
+    private static final String TAG = "bluetooth.MuxClient";
+
+    private final BluetoothConnection connection;
+    private final DataOutputStream output;
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private final AtomicInteger nextStreamId = new AtomicInteger(1);
+    private volatile IOException failure;
+
+    MuxClient(BluetoothConnection connection) {
+        this.connection = connection;
+        this.output = new DataOutputStream(connection.getOutputStream());
+        Thread reader = new Thread(this::readFrames, "BluetoothMuxClient");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * @return false if the connection failed or got closed, so no new requests can be sent
+     */
+    public boolean isOpen() {
+        return failure == null;
+    }
+
+    Stream open(String method, String path, Map<String, String> headers) throws IOException {
+        if (failure != null) {
+            throw new IOException("Connection is closed", failure);
+        }
+        int streamId = nextStreamId.getAndIncrement();
+        Stream stream = new Stream(streamId, method.equals(Request.Methods.HEAD));
+        streams.put(streamId, stream);
+        byte[] payload = MuxFrame.encodeRequest(method, path, headers);
+        writeFrame(streamId, MuxFrame.REQUEST, payload);
+        return stream;
+    }
+
+    private void writeFrame(int streamId, byte type, byte[] payload) throws IOException {
+        synchronized (output) {
+            MuxFrame.write(output, streamId, type, payload, 0, payload.length);
+        }
+    }
+
+    private void readFrames() {
+        DataInputStream input = new DataInputStream(connection.getInputStream());
+        IOException error;
+        try {
+            while (true) {
+                MuxFrame frame = MuxFrame.read(input);
+                Stream stream = streams.get(frame.streamId);
+                if (stream == null) {
+                    // e.g. the rest of a stream that got reset
+                    continue;
+                }
+                switch (frame.type) {
+                    case MuxFrame.RESPONSE:
+                        DataInputStream in = frame.payloadInput();
+                        int statusCode = in.readUnsignedShort();
+                        Map<String, String> headers = Request.readHeaders(in);
+                        stream.onResponse(statusCode, headers, in.readLong());
+                        break;
+                    case MuxFrame.DATA:
+                        stream.onData(frame.payload);
+                        break;
+                    case MuxFrame.RESET:
+                        stream.fail(new IOException("Stream " + frame.streamId + " was reset by the server"));
+                        break;
+                    default:
+                        Log.w(TAG, "Ignoring frame of unknown type " + frame.type);
+                }
+            }
+        } catch (EOFException e) {
+            error = new EOFException("Connection closed by the server");
+        } catch (IOException e) {
+            error = e;
+        }
+        Utils.debugLog(TAG, "Stopped reading frames: " + error.getMessage());
+        failure = error;
+        for (Stream stream : new ArrayList<>(streams.values())) {
+            stream.fail(error);
+        }
+        connection.closeQuietly();
+    }
+
+    /**
+     * A request and its response, whose content gets buffered as it arrives.  The server
+     * never sends more than {@link MuxFrame#INITIAL_WINDOW} bytes that were not consumed yet,
+     * so the buffer stays small, no matter how big the content is.
+     */
+    final class Stream {
+        private final int streamId;
+        private final boolean isHead;
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+        private Response response;
+        private IOException error;
+        private long remaining;
+        private int position;
+        private int unacknowledged;
+        private boolean closed;
+
+        private Stream(int streamId, boolean isHead) {
+            this.streamId = streamId;
+            this.isHead = isHead;
+        }
+
+        private synchronized void onResponse(int statusCode, Map<String, String> headers, long contentLength) {
+            remaining = contentLength;
+            if (isHead || contentLength == 0) {
+                streams.remove(streamId);
+            }
+            response = isHead ? new Response(statusCode, headers)
+                    : new Response(statusCode, headers, new ContentStream());
+            notifyAll();
+        }
+
+        private synchronized void onData(byte[] data) {
+            chunks.add(data);
+            remaining -= data.length;
+            if (remaining <= 0) {
+                streams.remove(streamId);
+            }
+            notifyAll();
+        }
+
+        private synchronized void fail(IOException e) {
+            streams.remove(streamId);
+            if (error == null) {
+                error = e;
+            }
+            notifyAll();
+        }
+
+        /**
+         * Blocks until the status and headers of the response arrived.
+         */
+        @NonNull
+        synchronized Response awaitResponse() throws IOException {
+            while (response == null) {
+                if (error != null) {
+                    throw new IOException("Request failed", error);
+                }
+                waitForFrame();
+            }
+            return response;
+        }
+
+        private void waitForFrame() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                InterruptedIOException interrupted = new InterruptedIOException();
+                interrupted.initCause(e);
+                throw interrupted;
+            }
+        }
+
+        private synchronized int read(byte[] b, int off, int len) throws IOException {
+            while (chunks.isEmpty()) {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                } else if (remaining <= 0) {
+                    return -1;
+                } else if (error != null) {
+                    throw new IOException("Stream failed", error);
+                }
+                waitForFrame();
+            }
+            byte[] chunk = chunks.peek();
+            int n = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk, position, b, off, n);
+            position += n;
+            if (position == chunk.length) {
+                chunks.poll();
+                position = 0;
+            }
+            unacknowledged += n;
+            // acknowledge in batches, before the server runs out of window
+            if (unacknowledged >= MuxFrame.INITIAL_WINDOW / 2 && remaining > 0) {
+                writeFrame(streamId, MuxFrame.WINDOW_UPDATE, MuxFrame.encodeInt(unacknowledged));
+                unacknowledged = 0;
+            }
+            return n;
+        }
+
+        private synchronized void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            chunks.clear();
+            if (remaining > 0 && error == null && streams.remove(streamId) != null) {
+                // tell the server to stop sending the rest
+                writeFrame(streamId, MuxFrame.RESET, new byte[0]);
+            }
+        }
+
+        private final class ContentStream extends InputStream {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(@NonNull byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                return Stream.this.read(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                Stream.this.close();
+            }
+        }
+    }
+}
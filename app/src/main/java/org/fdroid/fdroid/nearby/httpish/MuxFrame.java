@@ -0,0 +1,109 @@
+package org.fdroid.fdroid.nearby.httpish;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * A frame of {@link Request#VERSION_3}, which multiplexes many streams on one connection:
+ * the stream ID, the type and the length of the payload, followed by the payload.
+ * Each stream is one request and its response.
+ */
+final class MuxFrame {
+
+    /**
+     * Method, path and headers of a new stream, sent by the client.
+     */
+    static final byte REQUEST = 1;
+    /**
+     * Status, headers and the length of the content, sent by the server.
+     */
+    static final byte RESPONSE = 2;
+    /**
+     * The next part of the content, never more than the receiver allowed with its window.
+     */
+    static final byte DATA = 3;
+    /**
+     * The receiver consumed that many bytes, so the sender may send them more.
+     */
+    static final byte WINDOW_UPDATE = 4;
+    /**
+     * The stream got cancelled by the client or failed on the server.
+     */
+    static final byte RESET = 5;
+
+    /**
+     * The most content a stream may have in flight before the client acknowledges it.
+     */
+    static final int INITIAL_WINDOW = 64 * 1024;
+    /**
+     * The size of {@link #DATA} frames, small enough that a small resource does not have to
+     * wait long behind a big one.
+     */
+    static final int MAX_DATA_LENGTH = 16 * 1024;
+    private static final int MAX_PAYLOAD_LENGTH = 64 * 1024;
+
+    final int streamId;
+    final byte type;
+    final byte[] payload;
+
+    private MuxFrame(int streamId, byte type, byte[] payload) {
+        this.streamId = streamId;
+        this.type = type;
+        this.payload = payload;
+    }
+
+    static MuxFrame read(DataInputStream in) throws IOException {
+        int streamId = in.readInt();
+        byte type = in.readByte();
+        int length = in.readInt();
+        if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new MuxFrame(streamId, type, payload);
+    }
+
+    /**
+     * Writes a whole frame and flushes it. Callers need to make sure frames don't interleave.
+     */
+    static void write(DataOutputStream out, int streamId, byte type, byte[] payload, int offset, int length)
+            throws IOException {
+        out.writeInt(streamId);
+        out.writeByte(type);
+        out.writeInt(length);
+        out.write(payload, offset, length);
+        out.flush();
+    }
+
+    DataInputStream payloadInput() {
+        return new DataInputStream(new ByteArrayInputStream(payload));
+    }
+
+    static byte[] encodeRequest(String method, String path, Map<String, String> headers) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(method);
+        out.writeUTF(path);
+        Request.writeHeaders(out, headers);
+        return bytes.toByteArray();
+    }
+
+    static byte[] encodeResponse(int statusCode, Map<String, String> headers, long contentLength)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(statusCode);
+        Request.writeHeaders(out, headers);
+        out.writeLong(contentLength);
+        return bytes.toByteArray();
+    }
+
+    static byte[] encodeInt(int value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+}
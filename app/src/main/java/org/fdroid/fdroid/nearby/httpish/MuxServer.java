@@ -0,0 +1,275 @@
+package org.fdroid.fdroid.nearby.httpish;
+
+import android.util.Log;
+
+import androidx.annotation.VisibleForTesting;
+
+import org.apache.commons.io.IOUtils;
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.nearby.BluetoothConnection;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The server side of {@link Request#VERSION_3}.  The thread that calls {@link #run()} only
+ * reads frames.  Requests get handled and their content gets sent by a shared pool of workers,
+ * one {@link MuxFrame#DATA} frame at a time.  Each frame goes to the most urgent stream that
+ * the client has window for, so an icon or the index does not have to wait behind an APK.
+ * Streams of the same urgency take turns.
+ */
+public final class MuxServer {
+
+    private static final String TAG = "bluetooth.MuxServer";
+
+    /**
+     * Content up to this size is more urgent than bigger content, unless the client sets
+     * the urgency itself with a {@code Priority: u=N} header like in RFC 9218.
+     */
+    @VisibleForTesting
+    static final long SMALL_RESOURCE_SIZE = 256 * 1024;
+    private static final int URGENCY_SMALL = 1;
+    private static final int URGENCY_DEFAULT = 3;
+    private static final Pattern PRIORITY_URGENCY = Pattern.compile("(?:^|,)\\s*u=([0-7])\\s*(?:,|$)");
+
+    public interface Handler {
+        Response handle(Request request);
+    }
+
+    private final BluetoothConnection connection;
+    private final DataOutputStream output;
+    private final Executor executor;
+    private final Handler handler;
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private final PriorityQueue<Stream> ready = new PriorityQueue<>(11, (s1, s2) -> {
+        if (s1.urgency != s2.urgency) return s1.urgency - s2.urgency;
+        return Long.compare(s1.turn, s2.turn);
+    });
+    private long turns;
+    private volatile boolean closed;
+
+    public MuxServer(BluetoothConnection connection, Executor executor, Handler handler) {
+        this.connection = connection;
+        this.output = new DataOutputStream(connection.getOutputStream());
+        this.executor = executor;
+        this.handler = handler;
+    }
+
+    /**
+     * Reads frames until the client closes the connection or it fails.
+     */
+    public void run() throws IOException {
+        DataInputStream input = new DataInputStream(connection.getInputStream());
+        try {
+            while (true) {
+                MuxFrame frame = MuxFrame.read(input);
+                switch (frame.type) {
+                    case MuxFrame.REQUEST:
+                        DataInputStream in = frame.payloadInput();
+                        String method = in.readUTF();
+                        String path = in.readUTF();
+                        Request request = Request.create(method, path, Request.readHeaders(in), connection);
+                        executor.execute(() -> respond(frame.streamId, request));
+                        break;
+                    case MuxFrame.WINDOW_UPDATE:
+                        Stream stream = streams.get(frame.streamId);
+                        if (stream != null) {
+                            stream.addWindow(frame.payloadInput().readInt());
+                            scheduleIfSendable(stream);
+                        }
+                        break;
+                    case MuxFrame.RESET:
+                        Stream reset = streams.remove(frame.streamId);
+                        if (reset != null) {
+                            reset.close();
+                        }
+                        break;
+                    default:
+                        Log.w(TAG, "Ignoring frame of unknown type " + frame.type);
+                }
+            }
+        } finally {
+            closed = true;
+            for (Stream stream : new ArrayList<>(streams.values())) {
+                stream.close();
+            }
+            streams.clear();
+        }
+    }
+
+    private void respond(int streamId, Request request) {
+        Response response = handler.handle(request);
+        try {
+            InputStream content = request.getMethod().equals(Request.Methods.HEAD)
+                    ? null : response.getContentStream();
+            long length = 0;
+            if (content != null) {
+                length = response.getFileSize();
+                if (length < 0) {
+                    byte[] bytes = IOUtils.toByteArray(content);
+                    response.closeQuietly();
+                    content = new ByteArrayInputStream(bytes);
+                    length = bytes.length;
+                    response.addHeader("Content-Length", String.valueOf(length));
+                }
+            }
+            byte[] payload = MuxFrame.encodeResponse(response.getStatusCode(), response.getHeaders(), length);
+            if (length == 0) {
+                response.closeQuietly();
+                writeFrame(streamId, MuxFrame.RESPONSE, payload, payload.length);
+                return;
+            }
+            // registered first, the client may reset the stream as soon as it has the response
+            Stream stream = new Stream(streamId, content, length, getUrgency(request, length));
+            streams.put(streamId, stream);
+            writeFrame(streamId, MuxFrame.RESPONSE, payload, payload.length);
+            if (closed) {
+                stream.close();
+                return;
+            }
+            scheduleIfSendable(stream);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not send response to " + request.getPath() + ": " + e.getMessage());
+            response.closeQuietly();
+        }
+    }
+
+    @VisibleForTesting
+    static int getUrgency(Request request, long length) {
+        String priority = request.getHeaderValue("Priority");
+        if (priority != null) {
+            Matcher matcher = PRIORITY_URGENCY.matcher(priority);
+            if (matcher.find()) {
+                return Integer.parseInt(matcher.group(1));
+            }
+        }
+        return length <= SMALL_RESOURCE_SIZE ? URGENCY_SMALL : URGENCY_DEFAULT;
+    }
+
+    private void scheduleIfSendable(Stream stream) {
+        if (!stream.markQueued()) {
+            return;
+        }
+        synchronized (ready) {
+            stream.turn = turns++;
+            ready.add(stream);
+        }
+        executor.execute(this::sendNextChunk);
+    }
+
+    /**
+     * Sends one {@link MuxFrame#DATA} frame of the most urgent stream that is ready.
+     */
+    private void sendNextChunk() {
+        Stream stream;
+        synchronized (ready) {
+            stream = ready.poll();
+        }
+        if (stream == null) {
+            return;
+        }
+        try {
+            if (stream.sendChunk()) {
+                streams.remove(stream.streamId);
+                stream.close();
+                return;
+            }
+        } catch (IOException e) {
+            Utils.debugLog(TAG, "Stopped sending stream " + stream.streamId + ": " + e.getMessage());
+            boolean resetByClient = streams.remove(stream.streamId) == null;
+            stream.close();
+            if (!resetByClient && !closed) {
+                try {
+                    writeFrame(stream.streamId, MuxFrame.RESET, new byte[0], 0);
+                } catch (IOException ignored) {
+                    // the reading thread will notice
+                }
+            }
+            return;
+        }
+        stream.unmarkQueued();
+        scheduleIfSendable(stream);
+    }
+
+    private void writeFrame(int streamId, byte type, byte[] payload, int length) throws IOException {
+        synchronized (output) {
+            MuxFrame.write(output, streamId, type, payload, 0, length);
+        }
+    }
+
+    private final class Stream {
+        private final int streamId;
+        private final InputStream content;
+        private final int urgency;
+        private final byte[] buffer = new byte[MuxFrame.MAX_DATA_LENGTH];
+        private long remaining;
+        private long window = MuxFrame.INITIAL_WINDOW;
+        private boolean queued;
+        private boolean streamClosed;
+        /**
+         * Streams with the same urgency get sent in the order of their turn.
+         */
+        private long turn;
+
+        private Stream(int streamId, InputStream content, long length, int urgency) {
+            this.streamId = streamId;
+            this.content = content;
+            this.remaining = length;
+            this.urgency = urgency;
+        }
+
+        private synchronized void addWindow(int increment) {
+            window += increment;
+        }
+
+        /**
+         * @return true if the stream can send now and was not already waiting for its turn
+         */
+        private synchronized boolean markQueued() {
+            if (queued || streamClosed || closed || remaining <= 0 || window <= 0) {
+                return false;
+            }
+            queued = true;
+            return true;
+        }
+
+        private synchronized void unmarkQueued() {
+            queued = false;
+        }
+
+        /**
+         * @return true if this was the last chunk
+         */
+        private boolean sendChunk() throws IOException {
+            int length;
+            synchronized (this) {
+                if (streamClosed) {
+                    throw new IOException("Stream was reset");
+                }
+                length = (int) Math.min(buffer.length, Math.min(remaining, window));
+            }
+            IOUtils.readFully(content, buffer, 0, length);
+            writeFrame(streamId, MuxFrame.DATA, buffer, length);
+            synchronized (this) {
+                remaining -= length;
+                window -= length;
+                return remaining <= 0;
+            }
+        }
+
+        private synchronized void close() {
+            streamClosed = true;
+            Utils.closeQuietly(content);
+        }
+    }
+}
@@ -1,9 +1,14 @@
 package org.fdroid.fdroid.nearby.httpish;
 
+import androidx.annotation.Nullable;
+
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.nearby.BluetoothConnection;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
@@ -12,10 +17,44 @@ import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 
+/**
+ * A request in the HTTP-ish protocol that is used for swapping over Bluetooth.
+ * <p>
+ * {@link #VERSION_1} is line based like HTTP, without reliable lengths.  A client that
+ * knows newer versions {@link #negotiateVersion(BluetoothConnection) negotiates} them with a
+ * {@code HEAD} request carrying an {@code Upgrade} header, which older servers just answer like
+ * any other request.  With {@link #VERSION_2}, every request and response is a binary frame with
+ * a 64-bit length, so responses support byte ranges and several requests can be sent before
+ * reading the responses, which arrive in the same order.  {@link #VERSION_3} multiplexes
+ * requests, so their responses arrive at the same time, see {@link MuxClient} and {@link MuxServer}.
+ */
 public final class Request {
 
     private static final String TAG = "bluetooth.Request";
 
+    /**
+     * The original line based protocol.
+     */
+    public static final int VERSION_1 = 1;
+    /**
+     * Length-framed requests and responses with 64-bit sizes and byte ranges.
+     */
+    public static final int VERSION_2 = 2;
+    /**
+     * Like {@link #VERSION_2}, but with many requests in flight on one connection at the same time.
+     */
+    public static final int VERSION_3 = 3;
+    public static final int LATEST_VERSION = VERSION_3;
+
+    static final String UPGRADE_HEADER = "Upgrade";
+    private static final String UPGRADE_PREFIX = "httpish/";
+    static final int STATUS_SWITCHING_PROTOCOLS = 101;
+
+    /**
+     * Longer lines are not valid in this protocol, so the connection is not usable anymore.
+     */
+    private static final int MAX_LINE_LENGTH = 8192;
+
     public interface Methods {
         String HEAD = "HEAD";
         String GET = "GET";
@@ -23,11 +62,12 @@ public final class Request {
 
     private String method;
     private String path;
-    private Map<String, String> headers;
+    private Map<String, String> headers = new HashMap<>();
 
     private final BluetoothConnection connection;
     private final Writer output;
     private final InputStream input;
+    private MuxClient.Stream muxStream;
 
     private Request(String method, String path, BluetoothConnection connection) {
         this.method = method;
@@ -46,21 +86,158 @@ public final class Request {
         return new Request(Methods.GET, path, connection);
     }
 
+    static Request create(String method, String path, Map<String, String> headers,
+                          BluetoothConnection connection) {
+        Request request = new Request(method.toUpperCase(Locale.ENGLISH), path, connection);
+        request.headers = headers;
+        return request;
+    }
+
+    /**
+     * Asks the server to switch {@code connection} to the latest version it knows.
+     *
+     * @see #negotiateVersion(BluetoothConnection, int)
+     */
+    public static int negotiateVersion(BluetoothConnection connection) throws IOException {
+        return negotiateVersion(connection, LATEST_VERSION);
+    }
+
+    /**
+     * Asks the server to switch {@code connection} to a version up to {@code maxVersion}.
+     * Servers that only know {@link #VERSION_1} answer this like any other {@code HEAD} request,
+     * so then both sides just keep using {@link #VERSION_1}.
+     *
+     * @return the protocol version that is used on {@code connection} from now on
+     */
+    public static int negotiateVersion(BluetoothConnection connection, int maxVersion) throws IOException {
+        if (connection.getProtocolVersion() == VERSION_1 && maxVersion > VERSION_1) {
+            StringBuilder versions = new StringBuilder();
+            for (int version = maxVersion; version > VERSION_1; version--) {
+                if (versions.length() > 0) versions.append(", ");
+                versions.append(UPGRADE_PREFIX).append(version);
+            }
+            Request request = createHEAD("/", connection);
+            request.addHeader(UPGRADE_HEADER, versions.toString());
+            Response response = request.send();
+            if (response.getStatusCode() == STATUS_SWITCHING_PROTOCOLS) {
+                int version = parseUpgradeVersion(response.getHeaderValue(UPGRADE_HEADER), maxVersion);
+                if (version >= VERSION_3) {
+                    connection.setMuxClient(new MuxClient(connection));
+                }
+                connection.setProtocolVersion(version);
+            }
+            Utils.debugLog(TAG, "Using protocol version " + connection.getProtocolVersion());
+        }
+        return connection.getProtocolVersion();
+    }
+
+    /**
+     * @return the highest version up to {@code maxVersion} in the value of an {@code Upgrade}
+     * header, or {@link #VERSION_1} if there is none
+     */
+    static int parseUpgradeVersion(@Nullable String upgrade, int maxVersion) {
+        int result = VERSION_1;
+        if (upgrade == null) return result;
+        for (String protocol : upgrade.split(",")) {
+            String p = protocol.trim();
+            if (!p.startsWith(UPGRADE_PREFIX)) continue;
+            try {
+                int version = Integer.parseInt(p.substring(UPGRADE_PREFIX.length()));
+                if (version <= maxVersion && version > result) result = version;
+            } catch (NumberFormatException e) {
+                // not a version we know
+            }
+        }
+        return result;
+    }
+
+    public Request addHeader(String header, String value) {
+        headers.put(header, value);
+        return this;
+    }
+
+    /**
+     * Header names are case insensitive.
+     */
+    @Nullable
     public String getHeaderValue(String header) {
-        return headers.containsKey(header) ? headers.get(header) : null;
+        return getHeaderValue(headers, header);
+    }
+
+    @Nullable
+    static String getHeaderValue(Map<String, String> headers, String header) {
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(header)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the highest version up to {@code maxVersion} that the client asked to upgrade to
+     * with this request, or {@link #VERSION_1} if this is not an upgrade request
+     */
+    public int getUpgradeVersion(int maxVersion) {
+        if (!Methods.HEAD.equals(method)) return VERSION_1;
+        return parseUpgradeVersion(getHeaderValue(UPGRADE_HEADER), maxVersion);
     }
 
     public Response send() throws IOException {
+        write();
+        return readResponse();
+    }
+
+    /**
+     * Sends this request without waiting for the response.  With {@link #VERSION_2}, several
+     * requests can be written before calling {@link #readResponse()} on each of them in order.
+     * With {@link #VERSION_3}, that can happen in any order and from several threads.
+     */
+    public void write() throws IOException {
 
         Utils.debugLog(TAG, "Sending request to server (" + path + ")");
 
+        if (connection.getProtocolVersion() >= VERSION_3) {
+            muxStream = connection.getMuxClient().open(method, path, headers);
+            return;
+        } else if (connection.getProtocolVersion() >= VERSION_2) {
+            DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+            out.writeUTF(method);
+            out.writeUTF(path);
+            writeHeaders(out, headers);
+            out.flush();
+            return;
+        }
+
         output.write(method);
         output.write(' ');
         output.write(path);
+        output.write('\n');
 
-        output.write("\n\n");
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            output.write(entry.getKey());
+            output.write(": ");
+            output.write(entry.getValue());
+            output.write('\n');
+        }
+
+        output.write('\n');
 
         output.flush();
+    }
+
+    /**
+     * Reads the response to this request.  Before {@link #VERSION_3}, the content of a
+     * {@code GET} response needs to be read completely before reading the next response
+     * from the same connection.
+     */
+    public Response readResponse() throws IOException {
+
+        if (muxStream != null) {
+            return muxStream.awaitResponse();
+        } else if (connection.getProtocolVersion() >= VERSION_2) {
+            return Response.readFrame(connection, method.equals(Methods.HEAD));
+        }
 
         Utils.debugLog(TAG, "Finished sending request, now attempting to read response status code...");
 
@@ -91,6 +268,14 @@ public final class Request {
      */
     private boolean listen() throws IOException {
 
+        if (connection.getProtocolVersion() >= VERSION_2) {
+            DataInputStream in = new DataInputStream(input);
+            method = in.readUTF().toUpperCase(Locale.ENGLISH);
+            path = in.readUTF();
+            headers = readHeaders(in);
+            return true;
+        }
+
         String requestLine = readLine();
 
         if (requestLine == null || requestLine.trim().length() == 0) {
@@ -112,7 +297,11 @@ public final class Request {
 
     /**
      * This is a blocking method, which will wait until a full Request is received.
+     *
+     * @return the request, or null if there was only an empty or invalid line
+     * @throws EOFException if the client closed the connection
      */
+    @Nullable
     public static Request listenForRequest(BluetoothConnection connection) throws IOException {
         Request request = new Request("", "", connection);
         return request.listen() ? request : null;
@@ -127,69 +316,85 @@ public final class Request {
     private int readResponseCode() throws IOException {
 
         String line = readLine();
+        if (line == null) {
+            throw new IOException("Missing status line");
+        }
 
-        // TODO: Error handling
         int firstSpace = line.indexOf(' ');
         int secondSpace = line.indexOf(' ', firstSpace + 1);
+        if (firstSpace < 0 || secondSpace < 0) {
+            throw new IOException("Invalid status line: " + line);
+        }
 
         String status = line.substring(firstSpace + 1, secondSpace);
-        return Integer.parseInt(status);
+        try {
+            return Integer.parseInt(status);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid status line: " + line, e);
+        }
     }
 
+    /**
+     * Reads up to the next {@code '\n'} from the buffered input of the connection,
+     * blocking until it is there.
+     *
+     * @return the line, or null if it was empty
+     */
+    @Nullable
     private String readLine() throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        String line = null;
-
-        while (line == null) {
-
-            while (input.available() > 0) {
-
-                int b = input.read();
-
-                if (((char) b) == '\n') {
-                    if (baos.size() > 0) {
-                        line = baos.toString();
-                    }
-
-                    return line;
-                }
-
-                baos.write(b);
+        int b = input.read();
+        while (b != '\n') {
+            if (b == -1) {
+                throw new EOFException("Connection closed while reading a line");
             }
-
-            try {
-                Thread.sleep(100);
-            } catch (Exception e) {
-                // ignore
+            if (baos.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("Line longer than " + MAX_LINE_LENGTH + " bytes");
             }
+            baos.write(b);
+            b = input.read();
         }
-
-        return line;
+        return baos.size() > 0 ? baos.toString() : null;
     }
 
     /**
      * Subsequent lines (after the status line) represent the headers, which are case
      * insensitive and may be multi-line. We don't deal with multi-line headers in
-     * our HTTP-ish implementation.
+     * our HTTP-ish implementation.  An empty line ends the headers.
      */
     private Map<String, String> readHeaders() throws IOException {
         Map<String, String> headers = new HashMap<>();
         String responseLine = readLine();
         while (responseLine != null) {
-
-            // TODO: Error handling
-            String[] parts = responseLine.split(":");
-            if (parts.length > 1) {
-                String header = parts[0].trim();
-                String value = parts[1].trim();
+            int colon = responseLine.indexOf(':');
+            if (colon > 0) {
+                String header = responseLine.substring(0, colon).trim();
+                String value = responseLine.substring(colon + 1).trim();
                 headers.put(header, value);
             }
+            responseLine = readLine();
+        }
+        return headers;
+    }
 
-            if (input.available() > 0) {
-                responseLine = readLine();
-            } else {
-                break;
-            }
+    static void writeHeaders(DataOutputStream out, Map<String, String> headers) throws IOException {
+        int count = 0;
+        for (String value : headers.values()) {
+            if (value != null) count++;
+        }
+        out.writeShort(count);
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            if (entry.getValue() == null) continue;
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+    }
+
+    static Map<String, String> readHeaders(DataInputStream in) throws IOException {
+        int count = in.readUnsignedShort();
+        Map<String, String> headers = new HashMap<>(count);
+        for (int i = 0; i < count; i++) {
+            headers.put(in.readUTF(), in.readUTF());
         }
         return headers;
     }
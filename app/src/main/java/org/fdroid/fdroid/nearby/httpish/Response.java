@@ -1,9 +1,16 @@
 package org.fdroid.fdroid.nearby.httpish;
 
+import androidx.annotation.Nullable;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.nearby.BluetoothConnection;
 
 import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
@@ -11,7 +18,6 @@ import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
-import java.util.Locale;
 import java.util.Map;
 
 public class Response {
@@ -38,20 +44,59 @@ public class Response {
         this.contentStream = contentStream;
     }
 
-    public Response(int statusCode, String mimeType, String content) {
+    public Response(int statusCode, @Nullable String mimeType, String content) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
         this.statusCode = statusCode;
         this.headers = new HashMap<>();
-        this.headers.put("Content-Type", mimeType);
-        this.contentStream = new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+        if (mimeType != null) {
+            this.headers.put("Content-Type", mimeType);
+        }
+        this.headers.put("Content-Length", Integer.toString(bytes.length));
+        this.contentStream = new ByteArrayInputStream(bytes);
     }
 
-    public Response(int statusCode, String mimeType, InputStream contentStream) {
+    public Response(int statusCode, @Nullable String mimeType, InputStream contentStream) {
         this.statusCode = statusCode;
         this.headers = new HashMap<>();
-        this.headers.put("Content-Type", mimeType);
+        if (mimeType != null) {
+            this.headers.put("Content-Type", mimeType);
+        }
         this.contentStream = contentStream;
     }
 
+    /**
+     * The answer of a server to {@link Request#negotiateVersion(BluetoothConnection)}.
+     * It still gets sent with {@link Request#VERSION_1}, everything after it uses {@code version}.
+     */
+    public static Response createUpgrade(int version) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put(Request.UPGRADE_HEADER, "httpish/" + version);
+        return new Response(Request.STATUS_SWITCHING_PROTOCOLS, headers);
+    }
+
+    /**
+     * Reads a response of {@link Request#VERSION_2}: the status code, the headers and then
+     * the length of the content, followed by exactly that many bytes.
+     */
+    static Response readFrame(BluetoothConnection connection, boolean isHead) throws IOException {
+        DataInputStream in = new DataInputStream(connection.getInputStream());
+        int statusCode = in.readUnsignedShort();
+        Map<String, String> headers = Request.readHeaders(in);
+        long length = in.readLong();
+        if (length < 0) {
+            throw new IOException("Invalid content length " + length);
+        }
+        if (isHead) {
+            if (length > 0) {
+                IOUtils.skipFully(in, length);
+            }
+            return new Response(statusCode, headers);
+        }
+        BoundedInputStream content = new BoundedInputStream(connection.getInputStream(), length);
+        content.setPropagateClose(false);
+        return new Response(statusCode, headers, content);
+    }
+
     public void addHeader(String key, String value) {
         headers.put(key, value);
     }
@@ -60,16 +105,30 @@ public class Response {
         return statusCode;
     }
 
-    public int getFileSize() {
-        if (headers != null) {
-            for (Map.Entry<String, String> entry : headers.entrySet()) {
-                if ("content-length".equals(entry.getKey().toLowerCase(Locale.ENGLISH))) {
-                    try {
-                        return Integer.parseInt(entry.getValue());
-                    } catch (NumberFormatException e) {
-                        return -1;
-                    }
-                }
+    Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    @Nullable
+    InputStream getContentStream() {
+        return contentStream;
+    }
+
+    /**
+     * Header names are case insensitive.
+     */
+    @Nullable
+    public String getHeaderValue(String header) {
+        return headers == null ? null : Request.getHeaderValue(headers, header);
+    }
+
+    public long getFileSize() {
+        String value = getHeaderValue("Content-Length");
+        if (value != null) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                return -1;
             }
         }
         return -1;
@@ -95,12 +154,34 @@ public class Response {
         return contentStream;
     }
 
+    /**
+     * This response without its content, as the answer to a {@code HEAD} request.
+     * The content stream gets closed.
+     */
+    public Response toHeadResponse() {
+        closeQuietly();
+        return new Response(statusCode, headers);
+    }
+
+    /**
+     * Closes the content stream, if there is one.
+     */
+    public void closeQuietly() {
+        Utils.closeQuietly(contentStream);
+    }
+
     public void send(BluetoothConnection connection) throws IOException {
 
         Utils.debugLog(TAG, "Sending Bluetooth HTTP-ish response...");
 
+        if (connection.getProtocolVersion() >= Request.VERSION_2) {
+            sendFrame(connection);
+            return;
+        }
+
         Writer output = new OutputStreamWriter(connection.getOutputStream());
-        output.write("HTTP(ish)/0.1 200 OK\n");
+        // clients only look at the status code, so the label stays the same
+        output.write("HTTP(ish)/0.1 " + statusCode + " OK\n");
 
         for (Map.Entry<String, String> entry : headers.entrySet()) {
             output.write(entry.getKey());
@@ -119,11 +200,41 @@ public class Response {
         output.flush();
     }
 
+    /**
+     * Sends this response as a {@link Request#VERSION_2} frame, see {@link #readFrame}.
+     * Content without a {@code Content-Length} gets buffered to find out its length.
+     */
+    private void sendFrame(BluetoothConnection connection) throws IOException {
+        DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+        long length = 0;
+        byte[] content = null;
+        if (contentStream != null) {
+            length = getFileSize();
+            if (length < 0) {
+                content = IOUtils.toByteArray(contentStream);
+                length = content.length;
+            }
+        }
+        out.writeShort(statusCode);
+        Request.writeHeaders(out, headers);
+        out.writeLong(length);
+        if (content != null) {
+            out.write(content);
+        } else if (contentStream != null) {
+            long copied = IOUtils.copyLarge(contentStream, out, 0, length);
+            if (copied != length) {
+                // the frame cannot be completed, so the connection is not usable anymore
+                throw new EOFException("Content ended after " + copied + " of " + length + " bytes");
+            }
+        }
+        out.flush();
+    }
+
     public static class Builder {
 
         private InputStream contentStream;
         private int statusCode = HttpURLConnection.HTTP_OK;
-        private int fileSize = -1;
+        private long fileSize = -1;
         private String etag;
 
         public Builder() {
@@ -138,7 +249,7 @@ public class Response {
             return this;
         }
 
-        public Builder setFileSize(int fileSize) {
+        public Builder setFileSize(long fileSize) {
             this.fileSize = fileSize;
             return this;
         }
@@ -153,7 +264,7 @@ public class Response {
             Map<String, String> headers = new HashMap<>(3);
 
             if (fileSize > 0) {
-                headers.put("Content-Length", Integer.toString(fileSize));
+                headers.put("Content-Length", Long.toString(fileSize));
             }
 
             if (etag != null) {
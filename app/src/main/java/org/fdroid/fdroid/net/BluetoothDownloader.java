@@ -10,6 +10,7 @@ import androidx.annotation.RequiresPermission;
 import org.apache.commons.io.input.BoundedInputStream;
 import org.fdroid.IndexFile;
 import org.fdroid.download.Downloader;
+import org.fdroid.download.NotFoundException;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.nearby.BluetoothClient;
 import org.fdroid.fdroid.nearby.BluetoothConnection;
@@ -20,6 +21,7 @@ import org.fdroid.fdroid.nearby.httpish.Response;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.util.regex.Pattern;
 
 /**
@@ -45,16 +47,30 @@ public class BluetoothDownloader extends Downloader {
     BluetoothDownloader(Uri uri, IndexFile indexFile, File destFile) throws IOException {
         super(indexFile, destFile);
         String macAddress = uri.getHost().replace("-", ":");
-        this.connection = new BluetoothClient(macAddress).openConnection();
+        this.connection = new BluetoothClient(macAddress).getConnection();
         this.sourcePath = uri.getPath();
     }
 
     @NonNull
     @Override
-    protected InputStream getInputStream(boolean resumable) throws IOException {
+    protected InputStream getInputStream(boolean resumable) throws IOException, NotFoundException {
         Request request = Request.createGET(sourcePath, connection);
+        if (resumable) {
+            request.addHeader("Range", "bytes=" + outputFile.length() + "-");
+        }
         Response response = request.send();
-        fileDetails = response.toFileDetails();
+        if (response.getStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+            throw new NotFoundException();
+        } else if (resumable && response.getStatusCode() != HttpURLConnection.HTTP_PARTIAL) {
+            throw new IOException("Could not resume download, got status " + response.getStatusCode());
+        } else if (response.getStatusCode() >= HttpURLConnection.HTTP_BAD_REQUEST) {
+            throw new IOException("Bluetooth \"server\" returned status " + response.getStatusCode());
+        }
+        FileDetails details = response.toFileDetails();
+        if (!resumable) {
+            // the details of a partial response are only about the rest of the file
+            fileDetails = details;
+        }
 
         // TODO: Manage the dependency which includes this class better?
         // Right now, I only needed the one class from apache commons.
@@ -64,8 +80,9 @@ public class BluetoothDownloader extends Downloader {
         // plain old InputStream (the class is ContentLengthInputStream -
         // whereas this BoundedInputStream is much more generic and useful
         // to us).
-        BoundedInputStream stream = new BoundedInputStream(response.toContentStream(), fileDetails.getFileSize());
-        stream.setPropagateClose(false);
+        BoundedInputStream stream = new BoundedInputStream(response.toContentStream(), details.getFileSize());
+        // closing a multiplexed stream early stops the rest from being sent
+        stream.setPropagateClose(isMultiplexed());
 
         return stream;
     }
@@ -99,16 +116,46 @@ public class BluetoothDownloader extends Downloader {
         return details != null ? details.getFileSize() : -1;
     }
 
+    /**
+     * Resumes a partial download, if the other side speaks {@link Request#VERSION_2},
+     * which supports byte ranges.
+     */
     @Override
     public void download() throws IOException, InterruptedException {
-        downloadFromStream(false);
-        connection.closeQuietly();
+        boolean resumable = false;
+        long fileLength = outputFile.length();
+        if (fileLength > 0 && connection.getProtocolVersion() >= Request.VERSION_2) {
+            FileDetails details = getFileDetails();
+            long fileSize = details == null ? -1 : details.getFileSize();
+            if (fileLength == fileSize) {
+                Utils.debugLog(TAG, "Already have outputFile, not downloading: " + outputFile.getName());
+                closeConnection();
+                return;
+            }
+            resumable = fileLength < fileSize;
+        }
+        Utils.debugLog(TAG, "Downloading " + sourcePath + " (is resumable: " + resumable + ")");
+        downloadFromStream(resumable);
+        closeConnection();
+    }
+
+    /**
+     * Multiplexed connections are shared with other downloads from the same peer.
+     */
+    private boolean isMultiplexed() {
+        return connection.getMuxClient() != null;
+    }
+
+    private void closeConnection() {
+        if (!isMultiplexed()) {
+            connection.closeQuietly();
+        }
     }
 
     @Override
     public void close() {
         if (connection != null) {
-            connection.closeQuietly();
+            closeConnection();
         }
     }
 }
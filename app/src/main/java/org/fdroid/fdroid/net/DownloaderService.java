@@ -22,14 +22,20 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.Uri;
+import android.os.Build;
 import android.os.PatternMatcher;
 import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.core.app.JobIntentService;
+import androidx.core.util.Pair;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
+import org.fdroid.apk.ApkFileVerifier;
+import org.fdroid.apk.ApkFormatException;
+import org.fdroid.apk.ApkMismatchException;
 import org.fdroid.database.Repository;
 import org.fdroid.download.Downloader;
 import org.fdroid.download.NotFoundException;
@@ -39,8 +45,10 @@ import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.App;
 import org.fdroid.fdroid.data.SanitizedFile;
 import org.fdroid.fdroid.installer.ApkCache;
+import org.fdroid.fdroid.installer.ApkReference;
 import org.fdroid.fdroid.installer.InstallManagerService;
-import org.fdroid.fdroid.installer.Installer;
+import org.fdroid.fdroid.installer.InstallPipeline;
+import org.fdroid.fdroid.nearby.SwapService;
 import org.fdroid.index.v2.FileV1;
 
 import java.io.File;
@@ -51,6 +59,8 @@ import java.net.NoRouteToHostException;
 import java.net.ProtocolException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.Set;
 
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLKeyException;
@@ -72,9 +82,11 @@ import javax.net.ssl.SSLProtocolException;
  * will receive the Intents, use a worker thread, and stop the service as
  * appropriate.
  * <p>
- * All requests are handled on a single worker thread -- they may take as
- * long as necessary (and will not block the application's main loop), but
- * only one request will be processed at a time.
+ * The requests are handed to an {@link InstallPipeline}, which downloads a few files
+ * at the same time, verifies the downloaded APKs and then hands them to
+ * {@link InstallManagerService} for installation, while the next files are still downloading.
+ * The worker thread of this service only waits for all downloads to finish
+ * when there are no more requests, so Android keeps the app running until then.
  * <p>
  * The Canonical URL for the file to download is also used as the unique ID to
  * represent the download itself throughout F-Droid.  This follows the model
@@ -118,22 +130,56 @@ public class DownloaderService extends JobIntentService {
      */
     public static final String EXTRA_CANONICAL_URL = "org.fdroid.fdroid.net.Downloader.extra.CANONICAL_URL";
 
-    private static volatile Downloader downloader;
-    private static volatile String activeCanonicalUrl;
-    private InstallManagerService installManagerService;
-    private LocalBroadcastManager localBroadcastManager;
+    static final String STAGE_DOWNLOAD = "download";
+    static final String STAGE_VERIFY = "verify";
+    static final String STAGE_INSTALL = "install";
+
+    private static final Object PIPELINE_LOCK = new Object();
+    private static volatile InstallPipeline<Download> pipeline;
+    /**
+     * The number of {@link Intent}s queued but not yet handled,
+     * to know when to wait for the downloads to finish.
+     */
+    private static int pendingWork = 0;
+    private static final Set<String> CANCELLED_BEFORE_HANDLED = new HashSet<>();
+
+    /**
+     * One file to download, identified by its {@link #canonicalUrl}.
+     * This is only an APK, if {@link #apk} is not null.
+     */
+    static final class Download {
+        final Uri canonicalUrl;
+        @Nullable
+        final App app;
+        @Nullable
+        final Apk apk;
+        final long repoId;
+        final Uri downloadUrl;
+        final SanitizedFile localFile;
+        volatile Downloader downloader;
+        volatile boolean cancelled = false;
+
+        Download(Uri canonicalUrl, @Nullable App app, @Nullable Apk apk, long repoId, Uri downloadUrl,
+                 SanitizedFile localFile) {
+            this.canonicalUrl = canonicalUrl;
+            this.app = app;
+            this.apk = apk;
+            this.repoId = repoId;
+            this.downloadUrl = downloadUrl;
+            this.localFile = localFile;
+        }
+    }
 
     @Override
     public void onCreate() {
         super.onCreate();
         Utils.debugLog(TAG, "Creating downloader service.");
-        installManagerService = InstallManagerService.getInstance(this);
-        localBroadcastManager = LocalBroadcastManager.getInstance(this);
     }
 
     @Override
     protected void onHandleWork(@NonNull Intent intent) {
         Utils.debugLog(TAG, "Received Intent for downloading: " + intent);
+        onWorkReceived();
 
         String canonicalUrl = intent.getDataString();
         if (canonicalUrl == null) {
@@ -145,12 +191,14 @@ public class DownloaderService extends JobIntentService {
         } else {
             Utils.debugLog(TAG, "Received Intent with unknown action: " + intent);
         }
+        awaitDownloads();
     }
 
     @Override
     public boolean onStopCurrentWork() {
-        Log.i(TAG, "onStopCurrentWork - activeCanonicalUrl: " + activeCanonicalUrl);
-        cancel(activeCanonicalUrl);
+        // the downloads keep running in the pipeline, if the current Intent gets redelivered,
+        // it will be ignored while its download is still in the pipeline
+        Log.i(TAG, "onStopCurrentWork");
         return true;
     }
 
@@ -161,56 +209,176 @@ public class DownloaderService extends JobIntentService {
 
     /**
      * This method is invoked on the worker thread with a request to process.
-     * Only one Intent is processed at a time, but the processing happens on a
-     * worker thread that runs independently from other application logic.
-     * So, if this code takes a long time, it will hold up other requests to
-     * the same DownloaderService, but it will not hold up anything else.
+     * The download itself happens in the {@link InstallPipeline}, so this returns right away.
      * When all requests have been handled, the DownloaderService stops itself,
      * so you should not ever call {@link #stopSelf}.
      * <p>
      * Downloads are put into subdirectories based on hostname/port of each repo
      * to prevent files with the same names from conflicting.  Each repo enforces
      * unique APK file names on the server side.
-     * <p>
-     * Swap repos are not maintained in the database.  If this is handling a
-     * download from a swap repo, it will detect that is so by looking at the
-     * URL.  {@code http://} URLs are only allowed for swap, and swap repos
-     * will never be on a System Port, only on a User Port. And swap repos use a
-     * hardcoded path.
      *
      * @param intent The {@link Intent} passed via {@link
      *               android.content.Context#startService(Intent)}.
      */
     private void handleIntent(Intent intent) {
         final Uri canonicalUrl = intent.getData();
-        final App app = intent.getParcelableExtra(Installer.EXTRA_APP);
-        final Apk apk = intent.getParcelableExtra(Installer.EXTRA_APK);
-        final long repoId = intent.getLongExtra(DownloaderService.EXTRA_REPO_ID, apk.repoId);
+        final ApkReference reference = ApkReference.getExtra(intent);
+        final Pair<App, Apk> resolved = reference == null ? null : reference.resolve(this);
+        final App app = resolved == null ? null : resolved.first;
+        final Apk apk = resolved == null ? null : resolved.second;
+        final long repoId = intent.getLongExtra(DownloaderService.EXTRA_REPO_ID, apk == null ? 0 : apk.repoId);
         final String extraUrl = intent.getStringExtra(DownloaderService.EXTRA_CANONICAL_URL);
+        if (extraUrl == null && apk == null) {
+            Utils.debugLog(TAG, "Received Intent with nothing to download: " + intent);
+            if (reference != null) {
+                // the APK went away, e.g. because its repo got removed after F-Droid was killed
+                SanitizedFile localFile = ApkCache.getApkDownloadPath(this, canonicalUrl);
+                sendBroadcast(this, canonicalUrl, ACTION_INTERRUPTED, localFile, null, repoId, canonicalUrl);
+                InstallManagerService.getInstance(this).onDownloadFailed(canonicalUrl, null);
+            }
+            return;
+        }
         final Uri downloadUrl = Uri.parse(extraUrl == null ? apk.getDownloadUrl() : extraUrl);
-        final FileV1 fileV1 = apk.apkFile;
         final SanitizedFile localFile = ApkCache.getApkDownloadPath(this, canonicalUrl);
+        synchronized (CANCELLED_BEFORE_HANDLED) {
+            if (CANCELLED_BEFORE_HANDLED.remove(canonicalUrl.toString())) {
+                Utils.debugLog(TAG, "Download got cancelled already: " + canonicalUrl);
+                sendBroadcast(this, canonicalUrl, ACTION_INTERRUPTED, localFile, null, repoId, canonicalUrl);
+                InstallManagerService.getInstance(this).onDownloadFailed(canonicalUrl, null);
+                return;
+            }
+        }
 
         Utils.debugLog(TAG, "Queued download of " + canonicalUrl.hashCode() + "/" + canonicalUrl
                 + " using " + downloadUrl);
 
-        sendBroadcast(canonicalUrl, DownloaderService.ACTION_STARTED, localFile, repoId, canonicalUrl);
-        installManagerService.onDownloadStarted(canonicalUrl);
+        if (!getPipeline(this).submit(new Download(canonicalUrl, app, apk, repoId, downloadUrl, localFile))) {
+            Utils.debugLog(TAG, "Already downloading " + canonicalUrl);
+        }
+    }
 
+    /**
+     * Waits for all downloads to be verified and handed over for installation,
+     * unless there are more {@link Intent}s to handle,
+     * so this service stays alive while the pipeline is running.
+     */
+    private void awaitDownloads() {
+        InstallPipeline<Download> pipeline = DownloaderService.pipeline;
+        if (pipeline == null) return;
         try {
-            activeCanonicalUrl = canonicalUrl.toString();
-            Context context = getApplicationContext();
-            Repository repo = FDroidApp.getRepoManager(context).getRepository(repoId);
-            if (repo == null) {
-                String path = canonicalUrl.getPath();
-                if (canonicalUrl.getPort() > 1023
-                        && "http".equals(canonicalUrl.getScheme())
-                        && path != null && path.startsWith("/fdroid/repo")) {
-                    String url = canonicalUrl.buildUpon().path("/fdroid/repo").build().toString();
-                    repo = FDroidApp.createSwapRepo(url, null);
-                } else return; // repo might have been deleted in the meantime
+            // the worker threads of all stages are daemons, so wait for the last one
+            while (!hasPendingWork() && !pipeline.awaitIdle(STAGE_INSTALL, 1_000)) {
+                Utils.debugLog(TAG, "Waiting for downloads to finish");
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while waiting for downloads to finish.");
+        }
+        if (!hasPendingWork()) {
+            synchronized (CANCELLED_BEFORE_HANDLED) {
+                CANCELLED_BEFORE_HANDLED.clear();
+            }
+        }
+    }
+
+    private static InstallPipeline<Download> getPipeline(Context context) {
+        if (pipeline == null) {
+            synchronized (PIPELINE_LOCK) {
+                if (pipeline == null) {
+                    pipeline = createPipeline(context.getApplicationContext());
+                }
+            }
+        }
+        return pipeline;
+    }
+
+    /**
+     * Creates the pipeline which downloads two files at a time,
+     * then checks that downloaded APKs are what we expect,
+     * and finally hands them over to {@link InstallManagerService} for installation.
+     */
+    private static InstallPipeline<Download> createPipeline(Context context) {
+        File cacheDir = ApkCache.getApkCacheDir(context);
+        InstallPipeline.ItemInfo<Download> itemInfo = new InstallPipeline.ItemInfo<Download>() {
+            @NonNull
+            @Override
+            public String getKey(Download download) {
+                return download.canonicalUrl.toString();
+            }
+
+            @Override
+            public long getRequiredSpace(Download download) {
+                return download.apk == null ? 0 : download.apk.size;
+            }
+
+            @Override
+            public long getSizeOnDisk(Download download) {
+                return download.localFile.length();
+            }
+        };
+        return new InstallPipeline<>(itemInfo, cacheDir::getUsableSpace, new PipelineListener(context))
+                .addStage(STAGE_DOWNLOAD, 2, 2, new InstallPipeline.Stage<Download>() {
+                    @Override
+                    public void process(Download download) throws Exception {
+                        download(context, download);
+                    }
+
+                    @Override
+                    public void cancel(Download download, Thread worker) {
+                        download.cancelled = true;
+                        Downloader downloader = download.downloader;
+                        if (downloader != null) downloader.cancelDownload();
+                    }
+                })
+                .addStage(STAGE_VERIFY, 1, 2, DownloaderService::verify)
+                .addStage(STAGE_INSTALL, 1, 2, download -> {
+                    if (download.apk == null) return; // OBB files get handled by their own receivers
+                    InstallManagerService.getInstance(context).onDownloadComplete(download.canonicalUrl,
+                            download.localFile, download.app, download.apk);
+                });
+    }
+
+    /**
+     * Downloads the file, throwing an exception if that fails.
+     * Swap repos are not maintained in the database.  If this is handling a
+     * download from a swap repo, it will detect that is so by looking at the
+     * URL.  {@code http://} URLs are only allowed for swap, and swap repos
+     * will never be on a System Port, only on a User Port. And swap repos use a
+     * hardcoded path.
+     */
+    private static void download(Context context, Download download) throws Exception {
+        final Uri canonicalUrl = download.canonicalUrl;
+        final InstallManagerService installManagerService = InstallManagerService.getInstance(context);
+        final LocalBroadcastManager localBroadcastManager = LocalBroadcastManager.getInstance(context);
+        sendBroadcast(context, canonicalUrl, DownloaderService.ACTION_STARTED, download.localFile, null,
+                download.repoId, canonicalUrl);
+        installManagerService.onDownloadStarted(canonicalUrl);
+
+        Repository repo = FDroidApp.getRepoManager(context).getRepository(download.repoId);
+        boolean isSwap = repo == null;
+        if (repo == null) {
+            String path = canonicalUrl.getPath();
+            if (canonicalUrl.getPort() > 1023
+                    && "http".equals(canonicalUrl.getScheme())
+                    && path != null && path.startsWith("/fdroid/repo")) {
+                String url = canonicalUrl.buildUpon().path("/fdroid/repo").build().toString();
+                repo = FDroidApp.createSwapRepo(url, null);
+            } else {
+                // repo might have been deleted in the meantime
+                throw new IOException("Repository " + download.repoId + " not found");
             }
-            downloader = DownloaderFactory.INSTANCE.create(repo, downloadUrl, fileV1, localFile);
+        }
+        FileV1 fileV1 = download.apk == null ? null : download.apk.apkFile;
+        Downloader downloader = null;
+        if (isSwap && fileV1 != null) {
+            // other peers nearby might have the same APK
+            downloader = SwapService.createSwarmDownloader(download.downloadUrl, fileV1, download.localFile);
+        }
+        if (downloader == null) {
+            downloader = DownloaderFactory.INSTANCE.create(repo, download.downloadUrl, fileV1, download.localFile);
+        }
+        download.downloader = downloader;
+        try {
+            if (download.cancelled) throw new InterruptedException();
             final long[] lastProgressSent = {0};
             downloader.setListener((bytesRead, totalBytes) -> {
                 // don't send a progress updates out to frequently, to not hit notification rate-limiting
@@ -218,48 +386,116 @@ public class DownloaderService extends JobIntentService {
                 long now = System.currentTimeMillis();
                 if (now - lastProgressSent[0] < 1_000) return;
                 lastProgressSent[0] = now;
-                Intent intent1 = new Intent(DownloaderService.ACTION_PROGRESS);
-                intent1.setData(canonicalUrl);
-                intent1.putExtra(DownloaderService.EXTRA_BYTES_READ, bytesRead);
-                intent1.putExtra(DownloaderService.EXTRA_TOTAL_BYTES, totalBytes);
-                localBroadcastManager.sendBroadcast(intent1);
-                installManagerService.onDownloadProgress(canonicalUrl, app, apk, bytesRead, totalBytes);
+                Intent intent = new Intent(DownloaderService.ACTION_PROGRESS);
+                intent.setData(canonicalUrl);
+                intent.putExtra(DownloaderService.EXTRA_BYTES_READ, bytesRead);
+                intent.putExtra(DownloaderService.EXTRA_TOTAL_BYTES, totalBytes);
+                localBroadcastManager.sendBroadcast(intent);
+                if (download.app != null && download.apk != null) {
+                    installManagerService.onDownloadProgress(canonicalUrl, download.app, download.apk,
+                            bytesRead, totalBytes);
+                }
             });
             downloader.download();
-            sendBroadcast(canonicalUrl, DownloaderService.ACTION_COMPLETE, localFile, repoId, canonicalUrl);
-            installManagerService.onDownloadComplete(canonicalUrl, localFile, app, apk);
-        } catch (InterruptedException e) {
-            sendBroadcast(canonicalUrl, DownloaderService.ACTION_INTERRUPTED, localFile, repoId, canonicalUrl);
-            installManagerService.onDownloadFailed(canonicalUrl, null);
-        } catch (ConnectException | HttpRetryException | NoRouteToHostException |
-                 SocketTimeoutException
-                 | SSLHandshakeException | SSLKeyException | SSLPeerUnverifiedException |
-                 SSLProtocolException
-                 | ProtocolException | UnknownHostException | NotFoundException e) {
-            // if the above list of exceptions changes, also change it in IndexV1Updater.update()
-            Log.e(TAG, "CONNECTION_FAILED: " + e.getLocalizedMessage());
-            sendBroadcast(canonicalUrl, DownloaderService.ACTION_CONNECTION_FAILED, localFile, repoId, canonicalUrl);
-            installManagerService.onDownloadFailed(canonicalUrl, e.getLocalizedMessage());
-        } catch (IOException e) {
-            Log.e(TAG, "Error downloading: ", e);
-            sendBroadcast(canonicalUrl, DownloaderService.ACTION_INTERRUPTED, localFile,
-                    e.getLocalizedMessage(), repoId, canonicalUrl);
-            installManagerService.onDownloadFailed(canonicalUrl, e.getLocalizedMessage());
         } finally {
-            if (downloader != null) {
-                downloader.close();
+            downloader.close();
+            download.downloader = null;
+        }
+        sendBroadcast(context, canonicalUrl, DownloaderService.ACTION_COMPLETE, download.localFile, null,
+                download.repoId, canonicalUrl);
+    }
+
+    /**
+     * Checks that a downloaded APK has the package name and signer we expect,
+     * so a wrong APK fails here instead of waiting for its turn in the installer.
+     * This only reads the manifest and signature of the APK, not all of it.
+     * The {@link org.fdroid.fdroid.installer.Installer} still does all the checks before installing.
+     */
+    private static void verify(Download download) throws IOException, ApkMismatchException {
+        Apk apk = download.apk;
+        if (apk == null || !apk.isApk()) return;
+        try {
+            new ApkFileVerifier(Build.VERSION.SDK_INT).verify(download.localFile, apk.packageName,
+                    null, null, apk.signer);
+        } catch (ApkFormatException e) {
+            // the installer will have another go at it
+            Log.w(TAG, "Could not parse " + download.localFile + ": ", e);
+        }
+    }
+
+    /**
+     * Reports the outcome of downloads that did not make it through the pipeline.
+     */
+    private static final class PipelineListener implements InstallPipeline.Listener<Download> {
+        private final Context context;
+
+        PipelineListener(Context context) {
+            this.context = context;
+        }
+
+        @Override
+        public void onComplete(Download download) {
+            Utils.debugLog(TAG, "Done with " + download.canonicalUrl);
+        }
+
+        @Override
+        public void onFailed(Download download, String stageName, Exception e) {
+            Uri canonicalUrl = download.canonicalUrl;
+            String errorMessage = e instanceof InterruptedException ? null : e.getLocalizedMessage();
+            if (STAGE_DOWNLOAD.equals(stageName)) {
+                if (isConnectionFailure(e)) {
+                    // if the list of these exceptions changes, also change it in IndexV1Updater.update()
+                    Log.e(TAG, "CONNECTION_FAILED: " + e.getLocalizedMessage());
+                    sendBroadcast(context, canonicalUrl, ACTION_CONNECTION_FAILED, download.localFile, null,
+                            download.repoId, canonicalUrl);
+                } else {
+                    Log.e(TAG, "Error downloading: ", e);
+                    sendBroadcast(context, canonicalUrl, ACTION_INTERRUPTED, download.localFile, errorMessage,
+                            download.repoId, canonicalUrl);
+                }
+            } else {
+                Log.e(TAG, "Error in " + stageName + " of " + canonicalUrl + ": ", e);
+                if (STAGE_VERIFY.equals(stageName) && !download.localFile.delete()) {
+                    Log.w(TAG, "Could not delete " + download.localFile);
+                }
             }
+            InstallManagerService.getInstance(context).onDownloadFailed(canonicalUrl, errorMessage);
         }
-        downloader = null;
-        activeCanonicalUrl = null;
+
+        @Override
+        public void onCancelled(Download download) {
+            Uri canonicalUrl = download.canonicalUrl;
+            Utils.debugLog(TAG, "Cancelled " + canonicalUrl);
+            sendBroadcast(context, canonicalUrl, ACTION_INTERRUPTED, download.localFile, null,
+                    download.repoId, canonicalUrl);
+            InstallManagerService.getInstance(context).onDownloadFailed(canonicalUrl, null);
+        }
+    }
+
+    private static boolean isConnectionFailure(Exception e) {
+        return e instanceof ConnectException || e instanceof HttpRetryException
+                || e instanceof NoRouteToHostException || e instanceof SocketTimeoutException
+                || e instanceof SSLHandshakeException || e instanceof SSLKeyException
+                || e instanceof SSLPeerUnverifiedException || e instanceof SSLProtocolException
+                || e instanceof ProtocolException || e instanceof UnknownHostException
+                || e instanceof NotFoundException;
+    }
+
+    private static synchronized void onWorkQueued() {
+        pendingWork++;
     }
 
-    private void sendBroadcast(Uri uri, String action, File file, long repoId, Uri canonicalUrl) {
-        sendBroadcast(uri, action, file, null, repoId, canonicalUrl);
+    private static synchronized void onWorkReceived() {
+        // Intents redelivered by the system were not counted when queued
+        if (pendingWork > 0) pendingWork--;
     }
 
-    private void sendBroadcast(Uri uri, String action, File file, String errorMessage, long repoId,
-                               Uri canonicalUrl) {
+    private static synchronized boolean hasPendingWork() {
+        return pendingWork > 0;
+    }
+
+    private static void sendBroadcast(Context context, Uri uri, String action, File file,
+                                      @Nullable String errorMessage, long repoId, Uri canonicalUrl) {
         Intent intent = new Intent(action);
         if (canonicalUrl != null) {
             intent.setData(canonicalUrl);
@@ -272,7 +508,7 @@ public class DownloaderService extends JobIntentService {
         }
         intent.putExtra(DownloaderService.EXTRA_REPO_ID, repoId);
         intent.putExtra(DownloaderService.EXTRA_MIRROR_URL, uri.toString());
-        localBroadcastManager.sendBroadcast(intent);
+        LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
     }
 
     /**
@@ -296,6 +532,7 @@ public class DownloaderService extends JobIntentService {
         intent.setData(Uri.parse(canonicalUrl));
         intent.putExtra(DownloaderService.EXTRA_REPO_ID, repoId);
         intent.putExtra(DownloaderService.EXTRA_CANONICAL_URL, downloadUrl);
+        onWorkQueued();
         JobIntentService.enqueueWork(context, DownloaderService.class, JOB_ID, intent);
     }
 
@@ -307,8 +544,8 @@ public class DownloaderService extends JobIntentService {
         Intent intent = new Intent(context, DownloaderService.class);
         intent.setAction(ACTION_QUEUE);
         intent.setData(Uri.parse(canonicalUrl));
-        intent.putExtra(Installer.EXTRA_APP, app);
-        intent.putExtra(Installer.EXTRA_APK, apk);
+        ApkReference.putExtra(intent, app, apk);
+        onWorkQueued();
         JobIntentService.enqueueWork(context, DownloaderService.class, JOB_ID, intent);
     }
 
@@ -324,24 +561,16 @@ public class DownloaderService extends JobIntentService {
         if (TextUtils.isEmpty(canonicalUrl)) {
             return;
         }
-        Utils.debugLog(TAG, "Cancelling download of " + canonicalUrl.hashCode() + "/" + canonicalUrl
-                + " downloading from " + canonicalUrl);
-        int whatToRemove = canonicalUrl.hashCode();
-        if (isActive(canonicalUrl)) {
-            downloader.cancelDownload();
-        } else {
-            Utils.debugLog(TAG, "ACTION_CANCEL called on something not queued or running"
-                    + " (expected to find message with ID of " + whatToRemove + " in queue).");
+        Utils.debugLog(TAG, "Cancelling download of " + canonicalUrl.hashCode() + "/" + canonicalUrl);
+        InstallPipeline<Download> pipeline = DownloaderService.pipeline;
+        if ((pipeline == null || !pipeline.cancel(canonicalUrl)) && hasPendingWork()) {
+            // the Intent might still be waiting to get handled, so remember to skip it
+            synchronized (CANCELLED_BEFORE_HANDLED) {
+                CANCELLED_BEFORE_HANDLED.add(canonicalUrl);
+            }
         }
     }
 
-    /**
-     * Check if a URL is actively being downloaded.
-     */
-    private static boolean isActive(String downloadUrl) {
-        return downloader != null && TextUtils.equals(downloadUrl, activeCanonicalUrl);
-    }
-
     /**
      * Get a prepared {@link IntentFilter} for use for matching this service's action events.
      *
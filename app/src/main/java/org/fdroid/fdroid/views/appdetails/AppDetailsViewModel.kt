@@ -40,6 +40,7 @@ class AppDetailsViewModel(app: Application) : AndroidViewModel(app) {
 
     private val db = DBHelper.getDb(app.applicationContext)
     private val repoManager = FDroidApp.getRepoManager(app.applicationContext)
+    private val archiveIndexStore = FDroidApp.getArchiveIndexStore(app.applicationContext)
     private var packageName: String? = null
     private var appLiveData: LiveData<App?>? = null
     private var versionsLiveData: LiveData<List<AppVersion>>? = null
@@ -61,9 +62,13 @@ class AppDetailsViewModel(app: Application) : AndroidViewModel(app) {
         appLiveData = db.getAppDao().getApp(packageName).also { liveData ->
             liveData.observeForever(onAppChanged)
         }
-        // load repos for app, if user have more than one (+ one archive) repo
-        if (repoManager.getRepositories().size > 2) viewModelScope.launch {
-            loadRepos(packageName)
+        viewModelScope.launch {
+            // import app from archive repos, so its old versions become available
+            withContext(Dispatchers.IO) {
+                archiveIndexStore.loadPackage(packageName)
+            }
+            // load repos for app, if user have more than one (+ one archive) repo
+            if (repoManager.getRepositories().size > 2) loadRepos(packageName)
         }
         // load appPrefs
         appPrefsLiveData = db.getAppPrefsDao().getAppPrefs(packageName).also { liveData ->
@@ -141,19 +146,22 @@ class AppDetailsViewModel(app: Application) : AndroidViewModel(app) {
     fun ignoreAllUpdates() = viewModelScope.launch(Dispatchers.IO) {
         val appPrefs = appPrefsLiveData?.value ?: return@launch
         db.getAppPrefsDao().update(appPrefs.toggleIgnoreAllUpdates())
-        AppUpdateStatusManager.getInstance(getApplication()).checkForUpdates()
+        AppUpdateStatusManager.getInstance(getApplication())
+            .checkForUpdates(listOf(appPrefs.packageName))
     }
 
     fun ignoreVersionCodeUpdate(versionCode: Long) = viewModelScope.launch(Dispatchers.IO) {
         val appPrefs = appPrefsLiveData?.value ?: return@launch
         db.getAppPrefsDao().update(appPrefs.toggleIgnoreVersionCodeUpdate(versionCode))
-        AppUpdateStatusManager.getInstance(getApplication()).checkForUpdates()
+        AppUpdateStatusManager.getInstance(getApplication())
+            .checkForUpdates(listOf(appPrefs.packageName))
     }
 
     fun toggleBetaReleaseChannel() = viewModelScope.launch(Dispatchers.IO) {
         val appPrefs = appPrefsLiveData?.value ?: return@launch
         db.getAppPrefsDao().update(appPrefs.toggleReleaseChannel(RELEASE_CHANNEL_BETA))
-        AppUpdateStatusManager.getInstance(getApplication()).checkForUpdates()
+        AppUpdateStatusManager.getInstance(getApplication())
+            .checkForUpdates(listOf(appPrefs.packageName))
     }
 
 }
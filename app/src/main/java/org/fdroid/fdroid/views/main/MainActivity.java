@@ -235,7 +235,7 @@ public class MainActivity extends AppCompatActivity {
                                            @NonNull int[] grantResults) {
         super.onRequestPermissionsResult(requestCode, permissions, grantResults);
         if (requestCode == REQUEST_LOCATION_PERMISSIONS) {
-            WifiStateChangeService.start(this, null);
+            WifiStateChangeService.start(this);
             ContextCompat.startForegroundService(this, new Intent(this, SwapService.class));
         } else if (requestCode == REQUEST_STORAGE_PERMISSIONS) {
             Toast.makeText(this,
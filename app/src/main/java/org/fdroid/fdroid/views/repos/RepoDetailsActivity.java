@@ -457,7 +457,7 @@ public class RepoDetailsActivity extends AppCompatActivity {
                 .setMessage(R.string.repo_confirm_delete_body)
                 .setPositiveButton(R.string.delete, (dialog, which) -> {
                     runOffUiThread(() -> {
-                        repositoryDao.deleteRepository(repoId);
+                        FDroidApp.getRepoManager(this).deleteRepository(repoId);
                         return true;
                     });
                     finish();
@@ -88,7 +88,7 @@ fun RepoPreviewScreen(
                         style = MaterialTheme.typography.body1,
                     )
                     Text(
-                        text = state.apps.size.toString(),
+                        text = (state.totalApps ?: state.apps.size).toString(),
                         style = MaterialTheme.typography.body1,
                     )
                     if (!state.done) LinearProgressIndicator(modifier = Modifier.weight(1f))
@@ -9,25 +9,21 @@ import android.content.SharedPreferences;
 import android.view.ViewGroup;
 
 import androidx.annotation.NonNull;
-import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.content.ContextCompat;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import androidx.preference.PreferenceManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.hannesdorfmann.adapterdelegates4.AdapterDelegatesManager;
 
-import org.fdroid.database.DbUpdateChecker;
-import org.fdroid.database.FDroidDatabase;
 import org.fdroid.database.Repository;
 import org.fdroid.database.UpdatableApp;
 import org.fdroid.fdroid.AppUpdateStatusManager;
 import org.fdroid.fdroid.FDroidApp;
-import org.fdroid.fdroid.Preferences;
-import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.UpdatableAppsTracker;
 import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.App;
-import org.fdroid.fdroid.data.DBHelper;
 import org.fdroid.fdroid.views.updates.items.AppStatus;
 import org.fdroid.fdroid.views.updates.items.AppUpdateData;
 import org.fdroid.fdroid.views.updates.items.KnownVulnApp;
@@ -40,8 +36,6 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
-import io.reactivex.rxjava3.disposables.Disposable;
-
 /**
  * Manages the following types of information:
  * <ul>
@@ -75,7 +69,7 @@ public class UpdatesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
     private final AdapterDelegatesManager<List<AppUpdateData>> delegatesManager = new AdapterDelegatesManager<>();
 
     private final AppCompatActivity activity;
-    private final DbUpdateChecker updateChecker;
+    private final UpdatableAppsTracker updatableAppsTracker;
     private final SharedPreferences preferences;
 
     private final List<AppUpdateData> items = new ArrayList<>();
@@ -88,9 +82,6 @@ public class UpdatesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
 
     private boolean showAllUpdateableApps;
 
-    @Nullable
-    private Disposable disposable;
-
     UpdatesAdapter(AppCompatActivity activity) {
         this.activity = activity;
         this.preferences = PreferenceManager.getDefaultSharedPreferences(activity);
@@ -104,16 +95,16 @@ public class UpdatesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
                 .addDelegate(new UpdateableAppsHeader.Delegate(activity))
                 .addDelegate(new KnownVulnApp.Delegate(activity, this::loadUpdatableApps));
 
-        FDroidDatabase db = DBHelper.getDb(activity);
-        updateChecker = new DbUpdateChecker(db, activity.getPackageManager());
+        updatableAppsTracker = AppUpdateStatusManager.getInstance(activity).getUpdatableAppsTracker();
         loadUpdatableApps();
     }
 
+    /**
+     * Updatable apps are kept up to date by {@link UpdatableAppsTracker},
+     * so they can be read right away without querying the database.
+     */
     private void loadUpdatableApps() {
-        List<String> releaseChannels = Preferences.get().getBackendReleaseChannels();
-        if (disposable != null) disposable.dispose();
-        disposable = Utils.runOffUiThread(() -> updateChecker.getUpdatableApps(releaseChannels, true, true),
-                this::onCanUpdateLoadFinished);
+        onCanUpdateLoadFinished(updatableAppsTracker.getUpdatableApps());
     }
 
     public boolean canViewAllUpdateableApps() {
@@ -247,12 +238,18 @@ public class UpdatesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
         filter.addAction(AppUpdateStatusManager.BROADCAST_APPSTATUS_LIST_CHANGED);
 
         LocalBroadcastManager.getInstance(activity).registerReceiver(receiverAppStatusChanges, filter);
+        updatableAppsTracker.addListener(ContextCompat.getMainExecutor(activity), updatableAppsListener);
     }
 
     void stopListeningForStatusUpdates() {
         LocalBroadcastManager.getInstance(activity).unregisterReceiver(receiverAppStatusChanges);
+        updatableAppsTracker.removeListener(updatableAppsListener);
     }
 
+    private final UpdatableAppsTracker.Listener updatableAppsListener = packageNames -> {
+        if (packageNames == null || !packageNames.isEmpty()) loadUpdatableApps();
+    };
+
     private void onManyAppStatusesChanged(String reasonForChange) {
         switch (reasonForChange) {
             case AppUpdateStatusManager.REASON_UPDATES_AVAILABLE:
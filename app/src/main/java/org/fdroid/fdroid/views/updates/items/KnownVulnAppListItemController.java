@@ -100,8 +100,8 @@ public class KnownVulnAppListItemController extends AppListItemController {
             switch (intent.getAction()) {
                 case Installer.ACTION_INSTALL_COMPLETE:
                 case Installer.ACTION_UNINSTALL_COMPLETE:
+                    // updates get checked again when the system tells us about the changed package
                     refreshUpdatesList();
-                    AppUpdateStatusManager.getInstance(context).checkForUpdates();
                     unregisterInstallReceiver();
                     break;
 
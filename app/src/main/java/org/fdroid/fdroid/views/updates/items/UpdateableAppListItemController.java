@@ -21,6 +21,8 @@ import org.fdroid.fdroid.views.apps.AppListItemController;
 import org.fdroid.fdroid.views.apps.AppListItemState;
 import org.fdroid.fdroid.views.updates.UpdatesAdapter;
 
+import java.util.Collections;
+
 /**
  * Very trimmed down list item. Only displays the app icon, name, and a download button.
  * We don't even need to show download progress, because the intention is that as soon as
@@ -58,7 +60,8 @@ public class UpdateableAppListItemController extends AppListItemController {
                     return newPrefs;
                 }, newPrefs -> {
                     showUndoSnackBar(appPrefsDao, newPrefs);
-                    AppUpdateStatusManager.getInstance(activity).checkForUpdates();
+                    AppUpdateStatusManager.getInstance(activity)
+                            .checkForUpdates(Collections.singleton(app.packageName));
                 });
                 liveData.removeObserver(this);
             }
@@ -75,7 +78,8 @@ public class UpdateableAppListItemController extends AppListItemController {
                     AppPrefs newPrefs = appPrefs.toggleIgnoreVersionCodeUpdate(0);
                     appPrefsDao.update(newPrefs);
                     return true;
-                }, result -> AppUpdateStatusManager.getInstance(activity).checkForUpdates()))
+                }, result -> AppUpdateStatusManager.getInstance(activity)
+                        .checkForUpdates(Collections.singleton(appPrefs.getPackageName()))))
                 .show();
     }
 }
@@ -0,0 +1,129 @@
+package org.fdroid.fdroid.work
+
+import android.content.Context
+import android.content.SharedPreferences
+import androidx.annotation.VisibleForTesting
+import org.fdroid.database.Repository
+import java.util.concurrent.TimeUnit.DAYS
+import java.util.concurrent.TimeUnit.MINUTES
+
+/**
+ * Learns how often each repository publishes a new index
+ * and decides if a repo is due for a check in the periodic background update.
+ *
+ * The publication cadence is derived from the history of [Repository.timestamp] values
+ * observed after each check.
+ * Repos are checked twice per typical publication gap,
+ * but never more often than the user's update interval
+ * and never less often than [MAX_CHECK_INTERVAL].
+ * Repos without enough history are checked on every run.
+ *
+ * Updates explicitly requested by the user do not consult this schedule.
+ */
+class RepoUpdateSchedule @VisibleForTesting constructor(
+    private val prefs: SharedPreferences,
+    private val clock: () -> Long,
+) {
+
+    constructor(context: Context) : this(
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE),
+        clock = System::currentTimeMillis,
+    )
+
+    companion object {
+        private const val PREFS_NAME = "repo-update-schedule"
+        private const val KEY_TIMESTAMPS = "timestamps-"
+        private const val KEY_LAST_CHECK = "lastCheck-"
+
+        /**
+         * The maximum number of publication timestamps remembered per repo.
+         */
+        @VisibleForTesting
+        const val MAX_HISTORY = 8
+
+        /**
+         * The upper bound for how stale a repo is allowed to get, no matter how quiet it is.
+         */
+        @JvmField
+        @VisibleForTesting
+        val MAX_CHECK_INTERVAL = DAYS.toMillis(7)
+
+        /**
+         * Periodic work can run a bit earlier than scheduled,
+         * so repos due within this window get checked already.
+         */
+        @JvmField
+        @VisibleForTesting
+        val FLEX = MINUTES.toMillis(15)
+    }
+
+    /**
+     * Returns true if the repo with the given [repoId] should be checked now.
+     *
+     * @param minInterval the configured update interval in milliseconds.
+     */
+    fun isDue(repoId: Long, minInterval: Long): Boolean {
+        val lastCheck = prefs.getLong(KEY_LAST_CHECK + repoId, 0)
+        if (lastCheck <= 0) return true
+        return clock() - lastCheck + FLEX >= getCheckInterval(repoId, minInterval)
+    }
+
+    /**
+     * Returns the interval in milliseconds in which the repo with the given [repoId]
+     * should get checked for a new index.
+     *
+     * @param minInterval the configured update interval in milliseconds.
+     */
+    fun getCheckInterval(repoId: Long, minInterval: Long): Long {
+        val maxInterval = maxOf(minInterval, MAX_CHECK_INTERVAL)
+        val timestamps = getTimestamps(repoId)
+        if (timestamps.size < 2) return minInterval
+        val gaps = timestamps.zipWithNext { a, b -> b - a }.sorted()
+        val medianGap = gaps[gaps.size / 2]
+        return (medianGap / 2).coerceIn(minInterval, maxInterval)
+    }
+
+    /**
+     * Records that the given [repo] was checked successfully just now.
+     * The [repo] needs to be fresh from the database,
+     * so its [Repository.timestamp] reflects the result of the check.
+     */
+    fun onChecked(repo: Repository) {
+        val timestamps = getTimestamps(repo.repoId)
+        val lastTimestamp = timestamps.lastOrNull() ?: 0
+        val newTimestamps = if (repo.timestamp > lastTimestamp) {
+            (timestamps + repo.timestamp).takeLast(MAX_HISTORY)
+        } else {
+            timestamps
+        }
+        prefs.edit()
+            .putLong(KEY_LAST_CHECK + repo.repoId, clock())
+            .putString(KEY_TIMESTAMPS + repo.repoId, newTimestamps.joinToString(","))
+            .apply()
+    }
+
+    /**
+     * Removes schedule information for all repos not in the given [repoIds].
+     */
+    fun retainOnly(repoIds: Collection<Long>) {
+        val keysToRemove = prefs.all.keys.filter { key ->
+            val repoId = when {
+                key.startsWith(KEY_TIMESTAMPS) -> key.removePrefix(KEY_TIMESTAMPS)
+                key.startsWith(KEY_LAST_CHECK) -> key.removePrefix(KEY_LAST_CHECK)
+                else -> return@filter false
+            }.toLongOrNull()
+            repoId !in repoIds
+        }
+        if (keysToRemove.isEmpty()) return
+        val editor = prefs.edit()
+        keysToRemove.forEach { editor.remove(it) }
+        editor.apply()
+    }
+
+    @VisibleForTesting
+    fun getTimestamps(repoId: Long): List<Long> {
+        val str = prefs.getString(KEY_TIMESTAMPS + repoId, null)
+        if (str.isNullOrEmpty()) return emptyList()
+        return str.split(',').mapNotNull { it.toLongOrNull() }
+    }
+}
@@ -43,9 +43,11 @@ class RepoUpdateWorker(
 
     companion object {
         private const val UNIQUE_WORK_NAME_AUTO_UPDATE = "autoUpdate"
+        private const val KEY_FORCE = "force"
 
         /**
          * Use this to trigger a manual repo update if the app is currently in the foreground.
+         * This updates repos regardless of their [RepoUpdateSchedule].
          *
          * @param repoId The optional ID of the repo to update.
          * If no ID is given, all (enabled) repos will be updated.
@@ -65,9 +67,7 @@ class RepoUpdateWorker(
 
             val request = OneTimeWorkRequestBuilder<RepoUpdateWorker>()
                 .setExpedited(RUN_AS_NON_EXPEDITED_WORK_REQUEST)
-                .apply {
-                    if (repoId >= 0) setInputData(workDataOf("repoId" to repoId))
-                }
+                .setInputData(workDataOf("repoId" to repoId, KEY_FORCE to true))
                 .build()
             WorkManager.getInstance(context)
                 .enqueue(request)
@@ -130,7 +130,7 @@ class RepoUpdateWorker(
         val repoId = inputData.getLong("repoId", -1)
         return try {
             if (repoId >= 0) repoUpdateManager.updateRepo(repoId)
-            else repoUpdateManager.updateRepos()
+            else repoUpdateManager.updateRepos(force = inputData.getBoolean(KEY_FORCE, false))
             Result.success()
         } catch (e: Exception) {
             Log.e(TAG, "Error updating repos", e)
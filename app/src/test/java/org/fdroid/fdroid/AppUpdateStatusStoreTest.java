@@ -0,0 +1,292 @@
+package org.fdroid.fdroid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.fdroid.fdroid.AppUpdateStatusManager.AppUpdateStatus;
+import org.fdroid.fdroid.AppUpdateStatusManager.Status;
+import org.fdroid.fdroid.AppUpdateStatusStore.Change;
+import org.fdroid.fdroid.data.Apk;
+import org.fdroid.fdroid.data.App;
+import org.fdroid.index.v2.FileV1;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class AppUpdateStatusStoreTest {
+
+    private final AppUpdateStatusStore store = new AppUpdateStatusStore();
+    private final List<Runnable> tasks = new ArrayList<>();
+    private final RecordingListener listener = new RecordingListener();
+
+    private static final class RecordingListener implements AppUpdateStatusStore.Listener {
+        final List<AppUpdateStatusStore.Snapshot> snapshots = new ArrayList<>();
+        final List<List<Change>> changes = new ArrayList<>();
+
+        @Override
+        public void onChanged(@NonNull AppUpdateStatusStore.Snapshot snapshot, @Nullable List<Change> changes) {
+            this.snapshots.add(snapshot);
+            this.changes.add(changes);
+        }
+    }
+
+    private static AppUpdateStatus getStatus(String packageName, int versionCode, Status status) {
+        App app = new App();
+        app.packageName = packageName;
+        app.name = packageName;
+        Apk apk = new Apk();
+        apk.packageName = packageName;
+        apk.versionCode = versionCode;
+        apk.repoAddress = "https://example.org/repo";
+        apk.canonicalRepoAddress = "https://example.org/repo";
+        apk.apkFile = new FileV1(packageName + "_" + versionCode + ".apk", "hash", null, null);
+        return new AppUpdateStatus(app, apk, status, null);
+    }
+
+    private static AppUpdateStatus withStatus(AppUpdateStatus entry, Status status) {
+        AppUpdateStatus copy = entry.copy();
+        copy.status = status;
+        return copy;
+    }
+
+    private static AppUpdateStatus withProgress(AppUpdateStatus entry, long current) {
+        AppUpdateStatus copy = entry.copy();
+        copy.progressCurrent = current;
+        copy.progressMax = 100;
+        return copy;
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty()) tasks.remove(0).run();
+    }
+
+    @Test
+    public void testIndexes() {
+        AppUpdateStatus a1 = getStatus("a", 1, Status.UpdateAvailable);
+        AppUpdateStatus a2 = getStatus("a", 2, Status.UpdateAvailable);
+        AppUpdateStatus b1 = getStatus("b", 1, Status.Downloading);
+        store.put(a1, true);
+        store.put(b1, true);
+        store.put(a2, true);
+
+        assertEquals(3, store.size());
+        assertSame(a1, store.get(a1.getCanonicalUrl()));
+        assertSame(b1, store.get(b1.getCanonicalUrl()));
+        assertEquals(Arrays.asList(a1, a2), store.getByPackageName("a"));
+        assertEquals(Collections.singletonList(b1), store.getByPackageName("b"));
+        assertEquals(Collections.emptyList(), store.getByPackageName("c"));
+
+        AppUpdateStatus a1Changed = withStatus(a1, Status.Downloading);
+        store.put(a1Changed, true);
+        assertSame(a1Changed, store.get(a1.getCanonicalUrl()));
+        assertEquals(Arrays.asList(a1Changed, a2), store.getByPackageName("a"));
+
+        assertSame(a2, store.remove(a2.getCanonicalUrl()));
+        assertNull(store.remove(a2.getCanonicalUrl()));
+        assertEquals(Collections.singletonList(a1Changed), store.getByPackageName("a"));
+
+        assertEquals(1, store.removeAll(status -> status.status == Status.Downloading
+                && status.app.packageName.equals("b")));
+        assertEquals(Collections.emptyList(), store.getByPackageName("b"));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testSnapshotsDoNotChange() {
+        AppUpdateStatus a = getStatus("a", 1, Status.UpdateAvailable);
+        AppUpdateStatus b = getStatus("b", 1, Status.UpdateAvailable);
+        store.put(a, true);
+        AppUpdateStatusStore.Snapshot snapshot = store.getSnapshot();
+        // nothing changed, so the same snapshot gets returned
+        assertSame(snapshot, store.getSnapshot());
+
+        store.put(b, true);
+        store.put(withStatus(a, Status.Downloading), true);
+        assertEquals(Collections.singletonList(a), snapshot.getAll());
+        assertSame(a, snapshot.get(a.getCanonicalUrl()));
+        assertNull(snapshot.get(b.getCanonicalUrl()));
+        assertEquals(Collections.emptyList(), snapshot.getByPackageName("b"));
+
+        AppUpdateStatusStore.Snapshot newSnapshot = store.getSnapshot();
+        assertNotSame(snapshot, newSnapshot);
+        assertEquals(2, newSnapshot.size());
+        assertEquals(Status.Downloading, newSnapshot.getAll().get(0).status);
+        assertEquals(Collections.singletonList(b), newSnapshot.getByPackageName("b"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSnapshotIsUnmodifiable() {
+        store.put(getStatus("a", 1, Status.UpdateAvailable), true);
+        store.getSnapshot().getAll().clear();
+    }
+
+    @Test
+    public void testChangesGetDelivered() {
+        store.addListener(tasks::add, listener);
+        AppUpdateStatus a = getStatus("a", 1, Status.PendingInstall);
+        store.put(a, true);
+        assertEquals(1, tasks.size());
+        runTasks();
+
+        assertEquals(1, listener.changes.size());
+        Change change = listener.changes.get(0).get(0);
+        assertEquals(Change.Type.ADDED, change.type);
+        assertEquals(a.getCanonicalUrl(), change.canonicalUrl);
+        assertSame(a, change.status);
+        assertEquals(Collections.singletonList(a), listener.snapshots.get(0).getAll());
+
+        AppUpdateStatus progress = withProgress(a, 50);
+        store.put(progress, false);
+        store.remove(a.getCanonicalUrl());
+        runTasks();
+        assertEquals(2, listener.changes.size());
+        change = listener.changes.get(1).get(0);
+        assertEquals(Change.Type.REMOVED, change.type);
+        assertSame(progress, change.status);
+        assertEquals(0, listener.snapshots.get(1).size());
+
+        store.removeListener(listener);
+        store.put(a, true);
+        runTasks();
+        assertEquals(2, listener.changes.size());
+    }
+
+    @Test
+    public void testChangesGetConflated() {
+        store.addListener(tasks::add, listener);
+        AppUpdateStatus a = getStatus("a", 1, Status.Downloading);
+        AppUpdateStatus b = getStatus("b", 1, Status.Downloading);
+        AppUpdateStatus c = getStatus("c", 1, Status.Downloading);
+        store.put(a, true);
+        store.put(b, true);
+        runTasks();
+
+        // lots of progress updates while the listener is busy
+        AppUpdateStatus last = a;
+        for (int i = 0; i < 100; i++) {
+            last = withProgress(a, i);
+            store.put(last, false);
+            store.put(withProgress(b, i), false);
+        }
+        store.put(withStatus(b, Status.ReadyToInstall), true);
+        store.put(withProgress(b, 100), false);
+        // c gets added and removed again before the listener sees it
+        store.put(c, true);
+        store.remove(c.getCanonicalUrl());
+        assertEquals("only one task should be scheduled", 1, tasks.size());
+        runTasks();
+
+        assertEquals(2, listener.changes.size());
+        List<Change> changes = listener.changes.get(1);
+        assertEquals(2, changes.size());
+        assertEquals(Change.Type.CHANGED, changes.get(0).type);
+        assertSame(last, changes.get(0).status);
+        assertFalse(changes.get(0).isStatusUpdate);
+        assertEquals(Change.Type.CHANGED, changes.get(1).type);
+        assertEquals(b.getCanonicalUrl(), changes.get(1).canonicalUrl);
+        assertEquals(100, changes.get(1).status.progressCurrent);
+        // the status changed in between, so this needs to stay a status update
+        assertTrue(changes.get(1).isStatusUpdate);
+    }
+
+    @Test
+    public void testRemovedAndAddedAgainIsChanged() {
+        AppUpdateStatus a = getStatus("a", 1, Status.Installed);
+        store.put(a, true);
+        store.addListener(tasks::add, listener);
+        store.remove(a.getCanonicalUrl());
+        AppUpdateStatus newA = withStatus(a, Status.UpdateAvailable);
+        store.put(newA, true);
+        runTasks();
+
+        Change change = listener.changes.get(0).get(0);
+        assertEquals(Change.Type.CHANGED, change.type);
+        assertSame(newA, change.status);
+        assertTrue(change.isStatusUpdate);
+    }
+
+    @Test
+    public void testBatchReloadsEverything() {
+        store.addListener(tasks::add, listener);
+        store.beginBatch();
+        for (int i = 0; i < 10; i++) {
+            store.put(getStatus("app" + i, 1, Status.UpdateAvailable), true);
+        }
+        assertEquals(0, tasks.size());
+        store.endBatch();
+        runTasks();
+
+        assertEquals(1, listener.changes.size());
+        assertNull(listener.changes.get(0));
+        assertEquals(10, listener.snapshots.get(0).size());
+
+        // an empty batch doesn't tell listeners anything
+        store.beginBatch();
+        store.endBatch();
+        assertEquals(0, tasks.size());
+    }
+
+    /**
+     * A session updating 200 apps: each gets queued, sends 100 progress updates while downloading,
+     * gets installed and is then cleared. A listener reads all entries on each callback,
+     * while others look up entries by package name on each change, like the UI does.
+     * The number of callbacks stays bounded by how often the listeners run, not the number of changes.
+     */
+    @Test
+    public void testUpdateSessionMergesCallbacks() {
+        int numApps = 200;
+        List<AppUpdateStatus> statuses = new ArrayList<>(numApps);
+        for (int i = 0; i < numApps; i++) {
+            statuses.add(getStatus("org.example.app" + i, i, Status.UpdateAvailable));
+        }
+        int[] numRead = new int[1];
+        AppUpdateStatusStore.Listener readingListener = (snapshot, changes) -> {
+            for (AppUpdateStatus status : snapshot.getAll()) {
+                if (status.status == Status.Downloading) numRead[0]++;
+            }
+        };
+        store.addListener(tasks::add, readingListener);
+        store.addListener(tasks::add, listener);
+
+        long lookups = 0;
+        store.beginBatch();
+        for (AppUpdateStatus status : statuses) store.put(status, true);
+        store.endBatch();
+        for (int i = 0; i < numApps; i++) {
+            AppUpdateStatus status = withStatus(statuses.get(i), Status.Downloading);
+            store.put(status, true);
+            for (int p = 0; p <= 100; p++) {
+                store.put(withProgress(status, p), false);
+                Collection<AppUpdateStatus> byPackageName = store.getByPackageName(status.app.packageName);
+                lookups += byPackageName.size();
+                // listeners run every 10 events, like a busy main thread would
+                if (p % 10 == 0) runTasks();
+            }
+            store.put(withStatus(status, Status.Installed), true);
+        }
+        store.removeAll(status -> status.status == Status.Installed);
+        runTasks();
+
+        assertEquals(0, store.size());
+        assertEquals(numApps * 101, lookups);
+        // without merging changes, there would be more than 20000 callbacks
+        assertTrue(listener.changes.size() < numApps * 12 + 2);
+        // each snapshot has at most the one app that is downloading
+        assertTrue(numRead[0] > 0 && numRead[0] <= listener.changes.size());
+        assertEquals(0, listener.snapshots.get(listener.snapshots.size() - 1).size());
+    }
+}
@@ -0,0 +1,198 @@
+package org.fdroid.fdroid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.app.Notification;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.core.app.NotificationCompat;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class NotificationRendererTest {
+
+    private final Context context = ApplicationProvider.getApplicationContext();
+    private final RecordingPoster poster = new RecordingPoster();
+    private final NotificationRenderer renderer =
+            new NotificationRenderer(poster, new Handler(Looper.getMainLooper()));
+
+    private static final class RecordingPoster implements NotificationRenderer.Poster {
+        final List<String> posted = new ArrayList<>();
+        final List<String> cancelled = new ArrayList<>();
+        final List<Notification> notifications = new ArrayList<>();
+
+        @Override
+        public void notify(String tag, int id, Notification notification) {
+            posted.add(tag + ":" + id);
+            notifications.add(notification);
+        }
+
+        @Override
+        public void cancel(String tag, int id) {
+            cancelled.add(tag + ":" + id);
+        }
+
+        void clear() {
+            posted.clear();
+            cancelled.clear();
+            notifications.clear();
+        }
+    }
+
+    private NotificationRenderer.Spec getSpec(String tag, String title, long progress) {
+        return new NotificationRenderer.Spec(tag, 1, title, progress, () ->
+                new NotificationCompat.Builder(context, NotificationHelper.CHANNEL_UPDATES)
+                        .setContentTitle(title)
+                        .setProgress(100, (int) Math.max(0, progress), false)
+                        .build());
+    }
+
+    private static void idle(long millis) {
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(millis));
+    }
+
+    private static int getProgress(Notification notification) {
+        return notification.extras.getInt(NotificationCompat.EXTRA_PROGRESS);
+    }
+
+    @Test
+    public void testOnlyChangedNotificationsGetPosted() {
+        renderer.render(Arrays.asList(getSpec("a", "A", -1), getSpec("b", "B", -1)));
+        assertEquals(Arrays.asList("a:1", "b:1"), poster.posted);
+        poster.clear();
+
+        // same again, nothing to do
+        renderer.render(Arrays.asList(getSpec("a", "A", -1), getSpec("b", "B", -1)));
+        assertEquals(Collections.emptyList(), poster.posted);
+
+        // b changed, c is new
+        renderer.render(Arrays.asList(getSpec("a", "A", -1), getSpec("b", "B2", -1), getSpec("c", "C", -1)));
+        assertEquals(Arrays.asList("b:1", "c:1"), poster.posted);
+        assertEquals(Collections.emptyList(), poster.cancelled);
+    }
+
+    @Test
+    public void testNotificationsNoLongerWantedGetCancelled() {
+        renderer.render(Arrays.asList(getSpec("a", "A", -1), getSpec("b", "B", -1)));
+        poster.clear();
+
+        renderer.render(Collections.singletonList(getSpec("b", "B", -1)));
+        assertEquals(Collections.singletonList("a:1"), poster.cancelled);
+        assertEquals(Collections.emptyList(), poster.posted);
+
+        renderer.render(Collections.emptyList());
+        assertEquals(Arrays.asList("a:1", "b:1"), poster.cancelled);
+
+        // a comes back, so it gets posted again
+        renderer.render(Collections.singletonList(getSpec("a", "A", -1)));
+        assertEquals(Collections.singletonList("a:1"), poster.posted);
+    }
+
+    @Test
+    public void testProgressGetsCoalesced() {
+        renderer.render(Collections.singletonList(getSpec("a", "A", 0)));
+        assertEquals(1, poster.posted.size());
+
+        // many progress updates within one interval only post the latest one at the end of it
+        for (int i = 1; i <= 50; i++) {
+            idle(10);
+            renderer.render(Collections.singletonList(getSpec("a", "A", i)));
+        }
+        assertEquals(1, poster.posted.size());
+        idle(NotificationRenderer.PROGRESS_INTERVAL_MS);
+        assertEquals(2, poster.posted.size());
+        assertEquals(50, getProgress(poster.notifications.get(1)));
+
+        // nothing more to post
+        idle(NotificationRenderer.PROGRESS_INTERVAL_MS * 3);
+        assertEquals(2, poster.posted.size());
+
+        // after the interval, progress gets posted right away
+        renderer.render(Collections.singletonList(getSpec("a", "A", 60)));
+        assertEquals(3, poster.posted.size());
+        assertEquals(60, getProgress(poster.notifications.get(2)));
+    }
+
+    @Test
+    public void testProgressDoesNotHoldBackOtherChanges() {
+        renderer.render(Collections.singletonList(getSpec("a", "A", 0)));
+        renderer.render(Collections.singletonList(getSpec("a", "A", 10)));
+        assertEquals(1, poster.posted.size());
+
+        // a status change shows up immediately and replaces the pending progress
+        renderer.render(Collections.singletonList(getSpec("a", "A installing", -1)));
+        assertEquals(2, poster.posted.size());
+        idle(NotificationRenderer.PROGRESS_INTERVAL_MS * 2);
+        assertEquals(2, poster.posted.size());
+    }
+
+    @Test
+    public void testPendingProgressOfCancelledNotificationIsDropped() {
+        renderer.render(Collections.singletonList(getSpec("a", "A", 0)));
+        renderer.render(Collections.singletonList(getSpec("a", "A", 10)));
+        renderer.render(Collections.emptyList());
+        idle(NotificationRenderer.PROGRESS_INTERVAL_MS * 2);
+        assertEquals(Collections.singletonList("a:1"), poster.posted);
+        assertEquals(Collections.singletonList("a:1"), poster.cancelled);
+    }
+
+    @Test
+    public void testProgressIsLimitedPerNotification() {
+        int numApps = 20;
+        List<NotificationRenderer.Spec> specs = new ArrayList<>();
+        for (int i = 0; i < numApps; i++) specs.add(getSpec("app" + i, "App " + i, 0));
+        renderer.render(specs);
+        poster.clear();
+
+        // each app reports progress every 50ms for 10 seconds
+        for (int t = 1; t <= 200; t++) {
+            specs.clear();
+            for (int i = 0; i < numApps; i++) specs.add(getSpec("app" + i, "App " + i, t));
+            renderer.render(specs);
+            idle(50);
+        }
+        idle(NotificationRenderer.PROGRESS_INTERVAL_MS);
+        // at most one post per app and interval, instead of 4000 posts
+        int maxPosts = numApps * (int) (10_000 / NotificationRenderer.PROGRESS_INTERVAL_MS + 1);
+        assertTrue(poster.posted.size() <= maxPosts);
+        // the last progress got posted for each app
+        for (int i = 0; i < numApps; i++) {
+            int last = poster.posted.lastIndexOf("app" + i + ":1");
+            assertEquals(200, getProgress(poster.notifications.get(last)));
+        }
+    }
+
+    @Test
+    public void testRefresh() {
+        renderer.render(Collections.singletonList(getSpec("a", "A", -1)));
+        poster.clear();
+
+        renderer.refresh("a", 1);
+        assertEquals(Collections.singletonList("a:1"), poster.posted);
+        // refreshing something not shown does nothing
+        renderer.refresh("b", 1);
+        assertEquals(1, poster.posted.size());
+    }
+
+    @Test
+    public void testReset() {
+        renderer.render(Collections.singletonList(getSpec("a", "A", -1)));
+        renderer.reset();
+        renderer.render(Collections.singletonList(getSpec("a", "A", -1)));
+        assertEquals(Arrays.asList("a:1", "a:1"), poster.posted);
+    }
+}
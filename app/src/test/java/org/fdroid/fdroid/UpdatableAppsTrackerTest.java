@@ -0,0 +1,328 @@
+package org.fdroid.fdroid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.fdroid.database.AppManifest;
+import org.fdroid.database.AppVersion;
+import org.fdroid.database.UpdatableApp;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+@RunWith(RobolectricTestRunner.class)
+public class UpdatableAppsTrackerTest {
+
+    private final Context context = ApplicationProvider.getApplicationContext();
+    private final SharedPreferences prefs = context.getSharedPreferences("test", Context.MODE_PRIVATE);
+    private final FakeChecker checker = new FakeChecker();
+    private final List<Set<String>> changes = new ArrayList<>();
+
+    /**
+     * Knows which packages are installed and which versions repos have,
+     * each package has at most one version per repo.
+     */
+    private static final class FakeChecker implements UpdatableAppsTracker.Checker {
+        final Map<String, Long> installed = new HashMap<>();
+        final Map<Long, Map<String, Long>> repos = new HashMap<>();
+        final Map<String, UpdatableApp> cache = new HashMap<>();
+        int numFullChecks = 0;
+        int numPackagesChecked = 0;
+
+        @Override
+        public List<UpdatableApp> getUpdatableApps() {
+            numFullChecks++;
+            return check(installed.keySet());
+        }
+
+        @Override
+        public List<UpdatableApp> getUpdatableApps(Collection<String> packageNames) {
+            numPackagesChecked += packageNames.size();
+            return check(packageNames);
+        }
+
+        @Override
+        public List<String> getPackageNames(long repoId) {
+            Map<String, Long> versions = repos.get(repoId);
+            return versions == null ? Collections.emptyList() : new ArrayList<>(versions.keySet());
+        }
+
+        private List<UpdatableApp> check(Collection<String> packageNames) {
+            List<UpdatableApp> result = new ArrayList<>();
+            for (String packageName : packageNames) {
+                Long installedVersionCode = installed.get(packageName);
+                if (installedVersionCode == null) continue;
+                long bestRepoId = -1;
+                long bestVersionCode = 0;
+                for (Map.Entry<Long, Map<String, Long>> repo : repos.entrySet()) {
+                    Long versionCode = repo.getValue().get(packageName);
+                    if (versionCode != null && versionCode > bestVersionCode) {
+                        bestRepoId = repo.getKey();
+                        bestVersionCode = versionCode;
+                    }
+                }
+                if (bestVersionCode > installedVersionCode) {
+                    result.add(getApp(packageName, bestRepoId, installedVersionCode, bestVersionCode));
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Returns the same instance for the same state, so unchanged apps are equal.
+         */
+        UpdatableApp getApp(String packageName, long repoId, long installedVersionCode, long versionCode) {
+            String key = packageName + ":" + repoId + ":" + installedVersionCode + ":" + versionCode;
+            UpdatableApp app = cache.get(key);
+            if (app != null) return app;
+            AppManifest manifest = mock(AppManifest.class);
+            when(manifest.getVersionCode()).thenReturn(versionCode);
+            AppVersion update = mock(AppVersion.class);
+            when(update.getManifest()).thenReturn(manifest);
+            app = mock(UpdatableApp.class);
+            when(app.getPackageName()).thenReturn(packageName);
+            when(app.getRepoId()).thenReturn(repoId);
+            when(app.getInstalledVersionCode()).thenReturn(installedVersionCode);
+            when(app.getUpdate()).thenReturn(update);
+            cache.put(key, app);
+            return app;
+        }
+    }
+
+    private UpdatableAppsTracker getTracker() {
+        UpdatableAppsTracker tracker = new UpdatableAppsTracker(checker, Runnable::run, prefs);
+        tracker.addListener(Runnable::run, changes::add);
+        return tracker;
+    }
+
+    private void addVersion(long repoId, String packageName, long versionCode) {
+        Map<String, Long> versions = checker.repos.get(repoId);
+        if (versions == null) {
+            versions = new HashMap<>();
+            checker.repos.put(repoId, versions);
+        }
+        versions.put(packageName, versionCode);
+    }
+
+    private static Map<String, UpdatableApp> toMap(List<UpdatableApp> apps) {
+        Map<String, UpdatableApp> map = new HashMap<>();
+        for (UpdatableApp app : apps) map.put(app.getPackageName(), app);
+        return map;
+    }
+
+    @Test
+    public void testPackageChanges() {
+        checker.installed.put("a", 1L);
+        checker.installed.put("b", 1L);
+        addVersion(1, "a", 2);
+        addVersion(1, "b", 1);
+        UpdatableAppsTracker tracker = getTracker();
+        tracker.checkAll();
+        assertEquals(Collections.singletonList(null), changes);
+        assertEquals(1, tracker.getUpdatableApps().size());
+        assertEquals(1, tracker.getNumUpdates());
+
+        // a got updated
+        checker.installed.put("a", 2L);
+        tracker.checkPackages(Collections.singletonList("a"));
+        assertEquals(Collections.singleton("a"), changes.get(1));
+        assertNull(tracker.getUpdatableApp("a"));
+        assertEquals(0, tracker.getNumUpdates());
+
+        // c got installed, but there's no update for it
+        checker.installed.put("c", 1L);
+        tracker.checkPackages(Collections.singletonList("c"));
+        assertEquals(Collections.emptySet(), changes.get(2));
+
+        // b got downgraded
+        checker.installed.put("b", 0L);
+        tracker.checkPackages(Collections.singletonList("b"));
+        assertEquals(Collections.singleton("b"), changes.get(3));
+        assertEquals(1, tracker.getUpdatableApp("b").getUpdate().getManifest().getVersionCode());
+
+        // b got removed
+        checker.installed.remove("b");
+        tracker.checkPackages(Collections.singletonList("b"));
+        assertEquals(Collections.singleton("b"), changes.get(4));
+        assertEquals(Collections.emptyList(), tracker.getUpdatableApps());
+
+        assertEquals(1, checker.numFullChecks);
+        assertEquals(4, checker.numPackagesChecked);
+    }
+
+    @Test
+    public void testRepositoryChanges() {
+        checker.installed.put("a", 1L);
+        checker.installed.put("b", 1L);
+        checker.installed.put("c", 1L);
+        addVersion(1, "a", 2);
+        addVersion(2, "b", 2);
+        UpdatableAppsTracker tracker = getTracker();
+        tracker.checkAll();
+        assertEquals(2, tracker.getNumUpdates());
+
+        // repo 2 now has an update for c as well
+        addVersion(2, "c", 3);
+        tracker.checkRepositories(Collections.singletonList(2L));
+        assertEquals(Collections.singleton("c"), changes.get(1));
+        assertEquals(3, tracker.getNumUpdates());
+        assertEquals(2, checker.numPackagesChecked);
+
+        // repo 1 got removed, so its update for a is gone
+        checker.repos.remove(1L);
+        tracker.checkRepositories(Collections.singletonList(1L));
+        assertEquals(Collections.singleton("a"), changes.get(2));
+        assertNull(tracker.getUpdatableApp("a"));
+        assertEquals(1, checker.numFullChecks);
+    }
+
+    @Test
+    public void testKnownVulnerabilitiesAreNoUpdates() {
+        UpdatableApp vulnerable = checker.getApp("a", 1, 2, 2);
+        assertFalse(UpdatableAppsTracker.isUpdate(vulnerable));
+        assertTrue(UpdatableAppsTracker.isUpdate(checker.getApp("a", 1, 2, 3)));
+    }
+
+    @Test
+    public void testChecksGetCoalesced() {
+        List<Runnable> tasks = new ArrayList<>();
+        UpdatableAppsTracker tracker = new UpdatableAppsTracker(checker, tasks::add, prefs);
+        tracker.addListener(Runnable::run, changes::add);
+        checker.installed.put("a", 1L);
+        checker.installed.put("b", 1L);
+        addVersion(1, "a", 2);
+        addVersion(1, "b", 2);
+
+        tracker.checkPackages(Collections.singletonList("a"));
+        tracker.checkPackages(Collections.singletonList("b"));
+        tracker.checkPackages(Collections.singletonList("a"));
+        assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+        assertEquals(2, checker.numPackagesChecked);
+        assertEquals(Collections.singletonList(new HashSet<>(Arrays.asList("a", "b"))), changes);
+
+        // a full check covers everything else that is pending
+        tracker.checkPackages(Collections.singletonList("a"));
+        tracker.checkRepositories(Collections.singletonList(1L));
+        tracker.checkAll();
+        assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+        assertEquals(1, checker.numFullChecks);
+        assertEquals(2, checker.numPackagesChecked);
+        assertNull(changes.get(1));
+    }
+
+    @Test
+    public void testCallbackRunsAfterItsCheck() {
+        List<Runnable> tasks = new ArrayList<>();
+        UpdatableAppsTracker tracker = new UpdatableAppsTracker(checker, tasks::add, prefs);
+        List<String> calls = new ArrayList<>();
+        tracker.addListener(Runnable::run, packageNames -> calls.add("listener"));
+        checker.installed.put("a", 1L);
+        checker.installed.put("b", 1L);
+        addVersion(1, "a", 2);
+        addVersion(1, "b", 2);
+
+        tracker.checkPackages(Collections.singletonList("a"));
+        tasks.remove(0).run();
+        calls.clear();
+
+        // the callbacks don't run with a check that happened before
+        tracker.checkPackages(Collections.singletonList("b"), Runnable::run, () -> calls.add("b1"));
+        tracker.checkPackages(Collections.singletonList("b"), Runnable::run, () -> calls.add("b2"));
+        assertEquals(Collections.emptyList(), calls);
+        assertNull(tracker.getUpdatableApp("b"));
+
+        assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+        assertEquals(Arrays.asList("listener", "b1", "b2"), calls);
+        assertNotNull(tracker.getUpdatableApp("b"));
+    }
+
+    @Test
+    public void testPersistedPackagesGetCheckedFirst() {
+        checker.installed.put("a", 1L);
+        checker.installed.put("b", 1L);
+        checker.installed.put("c", 1L);
+        addVersion(1, "a", 2);
+        addVersion(1, "c", 2);
+        getTracker().checkAll();
+
+        // the app starts again
+        List<Runnable> tasks = new ArrayList<>();
+        UpdatableAppsTracker tracker = new UpdatableAppsTracker(checker, tasks::add, prefs);
+        tracker.start();
+        assertEquals(2, tasks.size());
+        tasks.remove(0).run();
+        assertEquals(2, checker.numPackagesChecked);
+        assertEquals(new HashSet<>(Arrays.asList("a", "c")), toMap(tracker.getUpdatableApps()).keySet());
+        tasks.remove(0).run();
+        assertEquals(2, checker.numFullChecks);
+    }
+
+    @Test
+    public void testIncrementalChecksMatchFullCheck() {
+        Random random = new Random(42);
+        List<String> packageNames = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            String packageName = "org.example.app" + i;
+            packageNames.add(packageName);
+            if (random.nextBoolean()) checker.installed.put(packageName, (long) random.nextInt(3));
+            addVersion(1 + random.nextInt(3), packageName, random.nextInt(4));
+        }
+        UpdatableAppsTracker tracker = getTracker();
+        tracker.checkAll();
+
+        for (int i = 0; i < 500; i++) {
+            String packageName = packageNames.get(random.nextInt(packageNames.size()));
+            long repoId = 1 + random.nextInt(3);
+            switch (random.nextInt(4)) {
+                case 0: // install or replace
+                    checker.installed.put(packageName, (long) random.nextInt(4));
+                    tracker.checkPackages(Collections.singletonList(packageName));
+                    break;
+                case 1: // uninstall
+                    checker.installed.remove(packageName);
+                    tracker.checkPackages(Collections.singletonList(packageName));
+                    break;
+                case 2: // repo update adds or changes a version
+                    addVersion(repoId, packageName, random.nextInt(5));
+                    tracker.checkRepositories(Collections.singletonList(repoId));
+                    break;
+                case 3: // repo update removes a version
+                    if (checker.repos.containsKey(repoId)) checker.repos.get(repoId).remove(packageName);
+                    tracker.checkRepositories(Collections.singletonList(repoId));
+                    break;
+            }
+            Map<String, UpdatableApp> expected = toMap(checker.check(checker.installed.keySet()));
+            Map<String, UpdatableApp> actual = toMap(tracker.getUpdatableApps());
+            assertEquals(expected.keySet(), actual.keySet());
+            for (String name : expected.keySet()) {
+                assertSame(expected.get(name), actual.get(name));
+            }
+        }
+        assertEquals(1, checker.numFullChecks);
+    }
+}
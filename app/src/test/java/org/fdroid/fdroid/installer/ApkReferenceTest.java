@@ -0,0 +1,201 @@
+package org.fdroid.fdroid.installer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.os.Parcel;
+
+import androidx.core.util.Pair;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.fdroid.fdroid.data.Apk;
+import org.fdroid.fdroid.data.App;
+import org.fdroid.fdroid.net.DownloaderService;
+import org.fdroid.index.v2.FileV1;
+import org.fdroid.index.v2.FileV2;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class ApkReferenceTest {
+
+    private static final String REPO_ADDRESS = "https://f-droid.org/repo";
+
+    private final Context context = ApplicationProvider.getApplicationContext();
+
+    @After
+    public void tearDown() {
+        ApkReference.clearCache();
+    }
+
+    /**
+     * Creates an {@link App} with about as much metadata as a typical app in the main repo.
+     */
+    private static App getApp(String packageName) {
+        App app = new App();
+        app.packageName = packageName;
+        app.repoId = 1;
+        app.name = "Example App";
+        app.summary = "An app that shows how big apps get when they are parceled";
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            description.append("This is line ").append(i).append(" of a long description.<br>");
+        }
+        app.description = description.toString();
+        app.whatsNew = "* Fixed many bugs<br>* Added new features<br>* Updated translations";
+        app.license = "GPL-3.0-or-later";
+        app.webSite = "https://example.org";
+        app.sourceCode = "https://example.org/source";
+        app.categories = new String[]{"System", "Internet"};
+        app.antiFeatures = new String[]{"NonFreeNet", "Tracking"};
+        List<FileV2> screenshots = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            screenshots.add(new FileV2("/" + packageName + "/en-US/phoneScreenshots/" + i + ".png",
+                    "8f3a2c1b9e7d6f5a4c3b2a1908f7e6d5c4b3a2918f7e6d5c4b3a291807f6e5d4", 123456L, null));
+        }
+        app.phoneScreenshots = screenshots;
+        return app;
+    }
+
+    private static Apk getApk(String packageName, long versionCode) {
+        Apk apk = new Apk();
+        apk.packageName = packageName;
+        apk.versionCode = versionCode;
+        apk.versionName = "1.2." + versionCode;
+        apk.repoId = 1;
+        apk.repoAddress = REPO_ADDRESS;
+        apk.canonicalRepoAddress = REPO_ADDRESS;
+        apk.apkFile = new FileV1("/" + packageName + "_" + versionCode + ".apk",
+                "8f3a2c1b9e7d6f5a4c3b2a1908f7e6d5c4b3a2918f7e6d5c4b3a291807f6e5d4", 4_200_000L, null);
+        String[] permissions = new String[25];
+        for (int i = 0; i < permissions.length; i++) {
+            permissions[i] = "android.permission.EXAMPLE_PERMISSION_" + i;
+        }
+        apk.requestedPermissions = permissions;
+        apk.nativecode = new String[]{"arm64-v8a", "armeabi-v7a", "x86", "x86_64"};
+        apk.signer = "43238d512c1e5eb2d6569f4a3afbf5523418b82e0a3ed1552770abb9a9c9ccab";
+        return apk;
+    }
+
+    private static int getParcelSize(Intent intent) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            intent.writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static Intent parcelAndUnparcel(Intent intent) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            intent.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            Intent result = Intent.CREATOR.createFromParcel(parcel);
+            result.setExtrasClassLoader(ApkReference.class.getClassLoader());
+            return result;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private Intent getIntent() {
+        Intent intent = new Intent(context, InstallerService.class);
+        intent.putExtra(DownloaderService.EXTRA_CANONICAL_URL, REPO_ADDRESS + "/org.example.app_42.apk");
+        return intent;
+    }
+
+    @Test
+    public void testParcelSize() {
+        App app = getApp("org.example.app");
+        Apk apk = getApk("org.example.app", 42);
+
+        Intent before = getIntent();
+        before.putExtra(Installer.EXTRA_APP, app);
+        before.putExtra(Installer.EXTRA_APK, apk);
+        int sizeBefore = getParcelSize(before);
+
+        Intent after = getIntent();
+        ApkReference.putExtra(after, app, apk);
+        int sizeAfter = getParcelSize(after);
+
+        int sizeEmpty = getParcelSize(getIntent());
+        int payloadBefore = sizeBefore - sizeEmpty;
+        int payloadAfter = sizeAfter - sizeEmpty;
+        String sizes = "before: " + payloadBefore + " bytes, after: " + payloadAfter + " bytes";
+        assertTrue(sizes, payloadAfter < 512);
+        assertTrue(sizes, payloadAfter * 10 < payloadBefore);
+    }
+
+    @Test
+    public void testBatchOfUpdatesStaysSmall() {
+        // the binder transaction buffer is 1 MiB shared by all transactions of the process
+        int numUpdates = 200;
+        int totalBefore = 0;
+        int totalAfter = 0;
+        for (int i = 0; i < numUpdates; i++) {
+            String packageName = "org.example.app" + i;
+            App app = getApp(packageName);
+            Apk apk = getApk(packageName, i);
+            Intent before = getIntent();
+            before.putExtra(Installer.EXTRA_APP, app);
+            before.putExtra(Installer.EXTRA_APK, apk);
+            totalBefore += getParcelSize(before);
+            Intent after = getIntent();
+            ApkReference.putExtra(after, app, apk);
+            totalAfter += getParcelSize(after);
+        }
+        String sizes = "before: " + totalBefore + " bytes, after: " + totalAfter + " bytes";
+        assertTrue(sizes, totalAfter * 4 < totalBefore);
+        assertTrue(sizes, totalAfter < 256 * 1024);
+    }
+
+    @Test
+    public void testResolveFromCache() {
+        App app = getApp("org.example.app");
+        Apk apk = getApk("org.example.app", 42);
+        Intent intent = getIntent();
+        ApkReference.putExtra(intent, app, apk);
+
+        ApkReference reference = ApkReference.getExtra(parcelAndUnparcel(intent));
+        assertNotNull(reference);
+        assertEquals(new ApkReference(apk), reference);
+        assertEquals("org.example.app", reference.packageName);
+        assertEquals(42, reference.versionCode);
+        assertEquals(1, reference.repoId);
+        assertEquals(apk.getCanonicalUrl(), reference.canonicalUrl);
+
+        // the same objects come back, without going through the database
+        Pair<App, Apk> resolved = reference.resolve(context);
+        assertNotNull(resolved);
+        assertSame(app, resolved.first);
+        assertSame(apk, resolved.second);
+    }
+
+    @Test
+    public void testInstalledApkHasNoCanonicalUrl() {
+        PackageInfo packageInfo = new PackageInfo();
+        packageInfo.packageName = "org.example.installed";
+        packageInfo.versionCode = 3;
+        packageInfo.applicationInfo = new ApplicationInfo();
+        ApkReference reference = new ApkReference(new Apk(packageInfo));
+        assertEquals("org.example.installed", reference.packageName);
+        assertEquals(3, reference.versionCode);
+        assertNull(reference.canonicalUrl);
+        // not registered and nothing to look up in the database
+        assertNull(reference.resolve(context));
+    }
+}
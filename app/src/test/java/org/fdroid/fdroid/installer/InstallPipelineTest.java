@@ -0,0 +1,374 @@
+package org.fdroid.fdroid.installer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class InstallPipelineTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final RecordingListener listener = new RecordingListener();
+    private final List<InstallPipeline<Item>> pipelines = new ArrayList<>();
+
+    private static final class Item {
+        final String name;
+        final long size;
+
+        Item(String name, long size) {
+            this.name = name;
+            this.size = size;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static final InstallPipeline.ItemInfo<Item> ITEM_INFO = new InstallPipeline.ItemInfo<Item>() {
+        @NonNull
+        @Override
+        public String getKey(Item item) {
+            return item.name;
+        }
+
+        @Override
+        public long getRequiredSpace(Item item) {
+            return item.size;
+        }
+
+        @Override
+        public long getSizeOnDisk(Item item) {
+            return 0;
+        }
+    };
+
+    private InstallPipeline<Item> createPipeline(long freeSpace) {
+        InstallPipeline<Item> pipeline = new InstallPipeline<>(ITEM_INFO, () -> freeSpace, listener);
+        pipelines.add(pipeline);
+        return pipeline;
+    }
+
+    @After
+    public void tearDown() {
+        for (InstallPipeline<Item> pipeline : pipelines) pipeline.shutdown();
+    }
+
+    @Test
+    public void testAllStagesRunInOrder() throws Exception {
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        InstallPipeline<Item> pipeline = createPipeline(Long.MAX_VALUE)
+                .addStage("download", 1, 1, item -> events.add("download " + item))
+                .addStage("verify", 1, 1, item -> events.add("verify " + item))
+                .addStage("install", 1, 1, item -> events.add("install " + item));
+        Item item = new Item("a", 1);
+        assertTrue(pipeline.submit(item));
+
+        listener.await(1);
+        assertEquals(Arrays.asList("download a", "verify a", "install a"), events);
+        assertEquals(Collections.singletonList(item), listener.completed);
+        assertFalse(pipeline.contains("a"));
+    }
+
+    /**
+     * The install of the first item only finishes once the download of the second one started.
+     * A pipeline that does one item after the other would never get there.
+     */
+    @Test
+    public void testDownloadAndInstallOverlap() throws Exception {
+        CountDownLatch secondDownloadStarted = new CountDownLatch(1);
+        CountDownLatch firstInstallStarted = new CountDownLatch(1);
+        AtomicInteger overlaps = new AtomicInteger();
+        InstallPipeline<Item> pipeline = createPipeline(Long.MAX_VALUE)
+                .addStage("download", 1, 1, item -> {
+                    if (item.name.equals("b")) {
+                        secondDownloadStarted.countDown();
+                        // the first one is installing while we download
+                        if (firstInstallStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                            overlaps.incrementAndGet();
+                        }
+                    }
+                })
+                .addStage("verify", 1, 1, item -> {
+                })
+                .addStage("install", 1, 1, item -> {
+                    if (item.name.equals("a")) {
+                        firstInstallStarted.countDown();
+                        if (!secondDownloadStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                            throw new AssertionError("download did not overlap with install");
+                        }
+                    }
+                });
+        pipeline.submit(new Item("a", 1));
+        pipeline.submit(new Item("b", 1));
+
+        listener.await(2);
+        assertEquals(2, listener.completed.size());
+        assertTrue(listener.failed.isEmpty());
+        assertEquals(1, overlaps.get());
+    }
+
+    @Test
+    public void testConcurrencyPerStage() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger maxInstalling = new AtomicInteger();
+        AtomicInteger installing = new AtomicInteger();
+        InstallPipeline<Item> pipeline = createPipeline(Long.MAX_VALUE)
+                .addStage("download", 3, 10, item -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    Thread.sleep(50);
+                    running.decrementAndGet();
+                })
+                .addStage("install", 1, 10, item -> {
+                    maxInstalling.accumulateAndGet(installing.incrementAndGet(), Math::max);
+                    Thread.sleep(10);
+                    installing.decrementAndGet();
+                });
+        for (int i = 0; i < 9; i++) pipeline.submit(new Item("item" + i, 1));
+
+        listener.await(9);
+        assertEquals(3, maxRunning.get());
+        assertEquals(1, maxInstalling.get());
+    }
+
+    /**
+     * When the install stage is stuck, the download stage fills the bounded queue
+     * and then stops taking on new items.
+     */
+    @Test
+    public void testSlowStageHoldsBackEarlierStages() throws Exception {
+        CountDownLatch installBlocked = new CountDownLatch(1);
+        CountDownLatch unblockInstall = new CountDownLatch(1);
+        AtomicInteger downloaded = new AtomicInteger();
+        InstallPipeline<Item> pipeline = createPipeline(Long.MAX_VALUE)
+                .addStage("download", 1, 1, item -> downloaded.incrementAndGet())
+                .addStage("install", 1, 2, item -> {
+                    installBlocked.countDown();
+                    unblockInstall.await();
+                });
+        for (int i = 0; i < 10; i++) pipeline.submit(new Item("item" + i, 1));
+
+        assertTrue(installBlocked.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        // one installing, two in the install queue and one downloaded, but waiting to be queued
+        assertEquals(4, downloaded.get());
+        assertFalse(pipeline.awaitIdle("download", 10));
+
+        unblockInstall.countDown();
+        listener.await(10);
+        assertEquals(10, downloaded.get());
+        assertTrue(pipeline.awaitIdle("download", 10));
+    }
+
+    @Test
+    public void testFreeSpaceLimitsItemsInPipeline() throws Exception {
+        AtomicInteger inPipeline = new AtomicInteger();
+        AtomicInteger maxInPipeline = new AtomicInteger();
+        InstallPipeline<Item> pipeline = createPipeline(250)
+                .addStage("download", 3, 3, item -> {
+                    maxInPipeline.accumulateAndGet(inPipeline.incrementAndGet(), Math::max);
+                    Thread.sleep(20);
+                })
+                .addStage("install", 1, 3, item -> {
+                    Thread.sleep(20);
+                    inPipeline.decrementAndGet();
+                });
+        for (int i = 0; i < 6; i++) pipeline.submit(new Item("item" + i, 100));
+
+        listener.await(6);
+        // only two items of 100 bytes fit into 250 bytes at the same time
+        assertEquals(2, maxInPipeline.get());
+        assertEquals(6, listener.completed.size());
+    }
+
+    @Test
+    public void testItemLargerThanFreeSpaceStillGetsAdmitted() throws Exception {
+        InstallPipeline<Item> pipeline = createPipeline(10)
+                .addStage("download", 1, 1, item -> {
+                });
+        pipeline.submit(new Item("large", 100));
+        listener.await(1);
+        assertEquals(1, listener.completed.size());
+    }
+
+    @Test
+    public void testCancelRunningItem() throws Exception {
+        CountDownLatch downloadStarted = new CountDownLatch(1);
+        List<String> installed = Collections.synchronizedList(new ArrayList<>());
+        InstallPipeline<Item> pipeline = createPipeline(Long.MAX_VALUE)
+                .addStage("download", 1, 2, item -> {
+                    if (item.name.equals("a")) {
+                        downloadStarted.countDown();
+                        Thread.sleep(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS * 2));
+                    }
+                })
+                .addStage("install", 1, 2, item -> installed.add(item.name));
+        pipeline.submit(new Item("a", 1));
+        pipeline.submit(new Item("b", 1));
+
+        assertTrue(downloadStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(pipeline.cancel("a"));
+        listener.await(2);
+
+        assertEquals(Collections.singletonList("a"), names(listener.cancelled));
+        assertEquals(Collections.singletonList("b"), installed);
+        assertFalse(pipeline.cancel("a"));
+    }
+
+    @Test
+    public void testCancelWaitingItemUsesCancelHook() throws Exception {
+        CountDownLatch downloadStarted = new CountDownLatch(1);
+        CountDownLatch cancelled = new CountDownLatch(1);
+        InstallPipeline<Item> pipeline = createPipeline(Long.MAX_VALUE)
+                .addStage("download", 1, 1, new InstallPipeline.Stage<Item>() {
+                    @Override
+                    public void process(Item item) throws Exception {
+                        downloadStarted.countDown();
+                        // ignores interrupts, like a network download would
+                        while (cancelled.getCount() > 0) {
+                            try {
+                                cancelled.await();
+                            } catch (InterruptedException e) {
+                                // ignored
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void cancel(Item item, Thread worker) {
+                        cancelled.countDown();
+                    }
+                })
+                .addStage("install", 1, 1, item -> {
+                    throw new AssertionError("cancelled item must not get installed");
+                });
+        pipeline.submit(new Item("a", 1));
+        pipeline.submit(new Item("b", 1));
+        pipeline.submit(new Item("c", 1));
+        assertTrue(downloadStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // c is still waiting to be admitted, b is queued and a is being downloaded
+        assertTrue(pipeline.cancel("c"));
+        assertTrue(pipeline.cancel("b"));
+        assertTrue(pipeline.cancel("a"));
+        listener.await(3);
+        assertEquals(Arrays.asList("a", "b", "c"), sortedNames(listener.cancelled));
+        assertTrue(listener.failed.isEmpty());
+    }
+
+    @Test
+    public void testFailureDoesNotStopOtherItems() throws Exception {
+        InstallPipeline<Item> pipeline = createPipeline(Long.MAX_VALUE)
+                .addStage("download", 2, 2, item -> {
+                })
+                .addStage("verify", 1, 2, item -> {
+                    if (item.name.equals("bad")) throw new SecurityException("wrong signer");
+                })
+                .addStage("install", 1, 2, item -> {
+                });
+        pipeline.submit(new Item("good", 1));
+        pipeline.submit(new Item("bad", 1));
+        pipeline.submit(new Item("also-good", 1));
+
+        listener.await(3);
+        assertEquals(Collections.singletonList("bad"), names(listener.failed));
+        assertEquals(Collections.singletonList("verify"), listener.failedStages);
+        assertEquals(Arrays.asList("also-good", "good"), sortedNames(listener.completed));
+    }
+
+    @Test
+    public void testSameItemOnlyOnceInPipeline() throws Exception {
+        CountDownLatch unblock = new CountDownLatch(1);
+        InstallPipeline<Item> pipeline = createPipeline(Long.MAX_VALUE)
+                .addStage("download", 1, 1, item -> unblock.await());
+        assertTrue(pipeline.submit(new Item("a", 1)));
+        assertFalse(pipeline.submit(new Item("a", 1)));
+        assertTrue(pipeline.contains("a"));
+
+        unblock.countDown();
+        listener.await(1);
+        // once it is done, it can be submitted again
+        assertTrue(pipeline.submit(new Item("a", 1)));
+        listener.await(2);
+        assertEquals(2, listener.completed.size());
+    }
+
+    private static List<String> names(List<Item> items) {
+        List<String> names = new ArrayList<>();
+        synchronized (items) {
+            for (Item item : items) names.add(item.name);
+        }
+        return names;
+    }
+
+    private static List<String> sortedNames(List<Item> items) {
+        List<String> names = names(items);
+        Collections.sort(names);
+        return names;
+    }
+
+    private static class RecordingListener implements InstallPipeline.Listener<Item> {
+        final List<Item> completed = Collections.synchronizedList(new ArrayList<>());
+        final List<Item> failed = Collections.synchronizedList(new ArrayList<>());
+        final List<String> failedStages = Collections.synchronizedList(new ArrayList<>());
+        final List<Item> cancelled = Collections.synchronizedList(new ArrayList<>());
+        private final Object lock = new Object();
+        private int count = 0;
+
+        @Override
+        public void onComplete(Item item) {
+            completed.add(item);
+            done();
+        }
+
+        @Override
+        public void onFailed(Item item, String stageName, Exception e) {
+            failed.add(item);
+            failedStages.add(stageName);
+            done();
+        }
+
+        @Override
+        public void onCancelled(Item item) {
+            cancelled.add(item);
+            done();
+        }
+
+        private void done() {
+            synchronized (lock) {
+                count++;
+                lock.notifyAll();
+            }
+        }
+
+        /**
+         * Waits until {@code expected} items left the pipeline.
+         */
+        void await(int expected) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+            synchronized (lock) {
+                while (count < expected) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) throw new AssertionError("Only " + count + " of " + expected + " done");
+                    lock.wait(remaining);
+                }
+            }
+        }
+    }
+}
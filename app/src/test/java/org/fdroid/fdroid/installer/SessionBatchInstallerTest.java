@@ -0,0 +1,232 @@
+package org.fdroid.fdroid.installer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageInstaller;
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.fdroid.fdroid.data.Apk;
+import org.fdroid.fdroid.data.App;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+@RunWith(RobolectricTestRunner.class)
+public class SessionBatchInstallerTest {
+
+    private final FakeBackend backend = new FakeBackend();
+    private final RecordingListener listener = new RecordingListener();
+    private final SessionBatchInstaller batchInstaller = new SessionBatchInstaller(backend, listener);
+
+    private final SessionBatchInstaller.Item item1 = getItem("org.example.one");
+    private final SessionBatchInstaller.Item item2 = getItem("org.example.two");
+    private final SessionBatchInstaller.Item item3 = getItem("org.example.three");
+
+    private static SessionBatchInstaller.Item getItem(String packageName) {
+        App app = new App();
+        app.packageName = packageName;
+        Apk apk = new Apk();
+        apk.packageName = packageName;
+        apk.versionCode = 1;
+        Uri localUri = Uri.parse("file:///cache/" + packageName + ".apk");
+        Uri canonicalUri = Uri.parse("https://example.org/repo/" + packageName + ".apk");
+        return new SessionBatchInstaller.Item(app, apk, localUri, canonicalUri);
+    }
+
+    @Test
+    public void testBatchGoesIntoOneParentSession() {
+        batchInstaller.install(Arrays.asList(item1, item2, item3));
+
+        assertEquals(Arrays.asList(item1, item2, item3), backend.writtenItems);
+        assertEquals(1, backend.parentSessions.size());
+        int parentSessionId = backend.parentSessions.keySet().iterator().next();
+        assertEquals(Arrays.asList(1, 2, 3), backend.parentSessions.get(parentSessionId));
+        assertEquals(Collections.singletonMap(parentSessionId, Arrays.asList(item1, item2, item3)),
+                backend.commits);
+        assertTrue(backend.abandoned.isEmpty());
+        assertTrue(listener.failed.isEmpty());
+    }
+
+    @Test
+    public void testSingleItemDoesNotUseParentSession() {
+        batchInstaller.install(Collections.singletonList(item1));
+
+        assertTrue(backend.parentSessions.isEmpty());
+        assertEquals(Collections.singletonMap(1, Collections.singletonList(item1)), backend.commits);
+    }
+
+    @Test
+    public void testSequentialWithoutMultiPackageSupport() {
+        backend.supportsMultiPackage = false;
+        batchInstaller.install(Arrays.asList(item1, item2, item3));
+
+        assertTrue(backend.parentSessions.isEmpty());
+        Map<Integer, List<SessionBatchInstaller.Item>> expected = new HashMap<>();
+        expected.put(1, Collections.singletonList(item1));
+        expected.put(2, Collections.singletonList(item2));
+        expected.put(3, Collections.singletonList(item3));
+        assertEquals(expected, backend.commits);
+    }
+
+    @Test
+    public void testFailingChildIsReportedAndOthersStillBatched() {
+        backend.failingItems.add(item2);
+        batchInstaller.install(Arrays.asList(item1, item2, item3));
+
+        assertEquals(Collections.singletonList(item2), listener.failed);
+        assertEquals(1, backend.parentSessions.size());
+        int parentSessionId = backend.parentSessions.keySet().iterator().next();
+        assertEquals(Collections.singletonMap(parentSessionId, Arrays.asList(item1, item3)),
+                backend.commits);
+    }
+
+    @Test
+    public void testOnlyOneChildLeftIsCommittedOnItsOwn() {
+        backend.failingItems.add(item2);
+        batchInstaller.install(Arrays.asList(item1, item2));
+
+        assertEquals(Collections.singletonList(item2), listener.failed);
+        assertTrue(backend.parentSessions.isEmpty());
+        assertEquals(Collections.singletonMap(1, Collections.singletonList(item1)), backend.commits);
+    }
+
+    @Test
+    public void testFailingParentFallsBackToSequential() {
+        backend.failParent = true;
+        batchInstaller.install(Arrays.asList(item1, item2, item3));
+
+        // the child sessions of the failed batch got abandoned
+        assertEquals(new HashSet<>(Arrays.asList(1, 2, 3)), backend.abandoned);
+        // and then each APK got its own session
+        Map<Integer, List<SessionBatchInstaller.Item>> expected = new HashMap<>();
+        expected.put(4, Collections.singletonList(item1));
+        expected.put(5, Collections.singletonList(item2));
+        expected.put(6, Collections.singletonList(item3));
+        assertEquals(expected, backend.commits);
+        assertTrue(listener.failed.isEmpty());
+    }
+
+    @Test
+    public void testSuccessIsReportedForEachItem() {
+        List<SessionBatchInstaller.Item> items = Arrays.asList(item1, item2, item3);
+        batchInstaller.onResult(items, PackageInstaller.STATUS_SUCCESS, null, null);
+        assertEquals(items, listener.completed);
+    }
+
+    @Test
+    public void testUserActionIsReportedForEachItem() {
+        Context context = ApplicationProvider.getApplicationContext();
+        PendingIntent pendingIntent =
+                PendingIntent.getActivity(context, 0, new Intent(), PendingIntent.FLAG_IMMUTABLE);
+        List<SessionBatchInstaller.Item> items = Arrays.asList(item1, item2);
+        batchInstaller.onResult(items, PackageInstaller.STATUS_PENDING_USER_ACTION, pendingIntent, null);
+        assertEquals(items, listener.userInteraction);
+    }
+
+    @Test
+    public void testFailedBatchIsRetriedOneByOne() {
+        List<SessionBatchInstaller.Item> items = Arrays.asList(item1, item2);
+        batchInstaller.onResult(items, PackageInstaller.STATUS_FAILURE_CONFLICT, null, "conflict");
+
+        assertTrue(listener.failed.isEmpty());
+        Map<Integer, List<SessionBatchInstaller.Item>> expected = new HashMap<>();
+        expected.put(1, Collections.singletonList(item1));
+        expected.put(2, Collections.singletonList(item2));
+        assertEquals(expected, backend.commits);
+
+        // now only the app that really has a problem fails
+        batchInstaller.onResult(Collections.singletonList(item2), PackageInstaller.STATUS_FAILURE_CONFLICT,
+                null, "conflict");
+        assertEquals(Collections.singletonList(item2), listener.failed);
+        assertEquals(2, backend.commits.size());
+    }
+
+    @Test
+    public void testAbortedBatchIsNotRetried() {
+        List<SessionBatchInstaller.Item> items = Arrays.asList(item1, item2);
+        batchInstaller.onResult(items, PackageInstaller.STATUS_FAILURE_ABORTED, null, "aborted");
+
+        assertEquals(items, listener.failed);
+        assertTrue(backend.commits.isEmpty());
+    }
+
+    private static class FakeBackend implements SessionBatchInstaller.Backend {
+        boolean supportsMultiPackage = true;
+        boolean failParent = false;
+        final Set<SessionBatchInstaller.Item> failingItems = new HashSet<>();
+
+        final List<SessionBatchInstaller.Item> writtenItems = new ArrayList<>();
+        final Map<Integer, List<Integer>> parentSessions = new HashMap<>();
+        final Map<Integer, List<SessionBatchInstaller.Item>> commits = new HashMap<>();
+        final Set<Integer> abandoned = new HashSet<>();
+        private int nextSessionId = 1;
+
+        @Override
+        public boolean supportsMultiPackage() {
+            return supportsMultiPackage;
+        }
+
+        @Override
+        public int createSession(SessionBatchInstaller.Item item) throws IOException {
+            if (failingItems.contains(item)) throw new IOException("APK failed to verify");
+            writtenItems.add(item);
+            return nextSessionId++;
+        }
+
+        @Override
+        public int createParentSession(List<Integer> childSessionIds) throws IOException {
+            if (failParent) throw new IOException("No multi-package sessions for you");
+            int sessionId = 100 + nextSessionId++;
+            parentSessions.put(sessionId, new ArrayList<>(childSessionIds));
+            return sessionId;
+        }
+
+        @Override
+        public void commit(int sessionId, List<SessionBatchInstaller.Item> items) {
+            commits.put(sessionId, new ArrayList<>(items));
+        }
+
+        @Override
+        public void abandon(int sessionId) {
+            abandoned.add(sessionId);
+        }
+    }
+
+    private static class RecordingListener implements SessionBatchInstaller.Listener {
+        final List<SessionBatchInstaller.Item> completed = new ArrayList<>();
+        final List<SessionBatchInstaller.Item> userInteraction = new ArrayList<>();
+        final List<SessionBatchInstaller.Item> failed = new ArrayList<>();
+
+        @Override
+        public void onInstallComplete(SessionBatchInstaller.Item item) {
+            completed.add(item);
+        }
+
+        @Override
+        public void onUserInteractionRequired(SessionBatchInstaller.Item item, PendingIntent pendingIntent) {
+            userInteraction.add(item);
+        }
+
+        @Override
+        public void onInstallFailed(SessionBatchInstaller.Item item, @Nullable String errorMessage) {
+            failed.add(item);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.fdroid.fdroid.installer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThrows;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+import vendored.org.apache.commons.codec.binary.Hex;
+
+public class SessionInstallManagerTest {
+
+    private static byte[] getBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static String sha256(byte[] bytes) throws NoSuchAlgorithmException {
+        return Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(bytes));
+    }
+
+    @Test
+    public void testCopyAndVerify() throws Exception {
+        // larger than the copy buffer, so it needs several rounds
+        byte[] apk = getBytes(200 * 1024 + 42);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        SessionInstallManager.copyAndVerify(new ByteArrayInputStream(apk), outputStream, sha256(apk));
+        assertArrayEquals(apk, outputStream.toByteArray());
+    }
+
+    @Test
+    public void testCopyAndVerifyIgnoresHashCase() throws Exception {
+        byte[] apk = getBytes(1024);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        String hash = sha256(apk).toUpperCase();
+        SessionInstallManager.copyAndVerify(new ByteArrayInputStream(apk), outputStream, hash);
+        assertArrayEquals(apk, outputStream.toByteArray());
+    }
+
+    @Test
+    public void testCopyAndVerifyEmptyFile() throws Exception {
+        byte[] apk = new byte[0];
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        SessionInstallManager.copyAndVerify(new ByteArrayInputStream(apk), outputStream, sha256(apk));
+        assertArrayEquals(apk, outputStream.toByteArray());
+    }
+
+    @Test
+    public void testCopyAndVerifyDetectsModifiedFile() throws Exception {
+        byte[] apk = getBytes(100 * 1024);
+        String hash = sha256(apk);
+        apk[apk.length / 2]++;
+        assertThrows(IOException.class, () -> SessionInstallManager.copyAndVerify(
+                new ByteArrayInputStream(apk), new ByteArrayOutputStream(), hash));
+    }
+
+    @Test
+    public void testCopyAndVerifyDetectsTruncatedFile() throws Exception {
+        byte[] apk = getBytes(100 * 1024);
+        String hash = sha256(apk);
+        byte[] truncated = new byte[apk.length - 1];
+        System.arraycopy(apk, 0, truncated, 0, truncated.length);
+        assertThrows(IOException.class, () -> SessionInstallManager.copyAndVerify(
+                new ByteArrayInputStream(truncated), new ByteArrayOutputStream(), hash));
+    }
+}
@@ -0,0 +1,233 @@
+package org.fdroid.fdroid.installer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+public class StagedFileCleanerTest {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    private final Context context = ApplicationProvider.getApplicationContext();
+    private final FakeScheduler scheduler = new FakeScheduler();
+    private File journal;
+
+    /**
+     * A clock and scheduler in one, only moving forward when told to.
+     */
+    private static final class FakeScheduler implements StagedFileCleaner.Clock, StagedFileCleaner.Scheduler {
+        private static final class Task {
+            final long time;
+            final Runnable runnable;
+
+            Task(long time, Runnable runnable) {
+                this.time = time;
+                this.runnable = runnable;
+            }
+        }
+
+        long now = 1_000_000;
+        final List<Task> tasks = new ArrayList<>();
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            tasks.add(new Task(now + delayMillis, task));
+        }
+
+        void advance(long millis) {
+            long end = now + millis;
+            while (true) {
+                Task next = null;
+                for (Task task : tasks) {
+                    if (task.time <= end && (next == null || task.time < next.time)) next = task;
+                }
+                if (next == null) break;
+                tasks.remove(next);
+                now = Math.max(now, next.time);
+                next.runnable.run();
+            }
+            now = end;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        journal = new File(context.getCacheDir(), "staged-files-test");
+        journal.delete();
+    }
+
+    private StagedFileCleaner getCleaner() {
+        return new StagedFileCleaner(journal, scheduler, scheduler);
+    }
+
+    private File createFile(String name) throws IOException {
+        File file = new File(context.getFilesDir(), name);
+        assertTrue(file.createNewFile() || file.isFile());
+        return file;
+    }
+
+    @Test
+    public void testDeletesAfterDeadline() throws IOException {
+        StagedFileCleaner cleaner = getCleaner();
+        File file = createFile("a.apk");
+        cleaner.stage(file);
+        assertTrue(cleaner.isStaged(file));
+
+        scheduler.advance(StagedFileCleaner.DEFAULT_TTL_MILLIS - 1);
+        assertTrue(file.exists());
+        scheduler.advance(1);
+        assertFalse(file.exists());
+        assertFalse(cleaner.isStaged(file));
+        assertFalse("empty journal gets removed", journal.exists());
+    }
+
+    @Test
+    public void testManyFilesShareOneWakeUp() throws IOException {
+        StagedFileCleaner cleaner = getCleaner();
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            File file = createFile("app" + i + ".apk");
+            files.add(file);
+            cleaner.stage(file);
+            scheduler.advance(MINUTE / 10);
+        }
+        // instead of one sleeping thread per file, there's only the earliest deadline scheduled
+        assertEquals(1, scheduler.tasks.size());
+
+        scheduler.advance(StagedFileCleaner.DEFAULT_TTL_MILLIS - 5 * MINUTE);
+        int left = 0;
+        for (File file : files) if (file.exists()) left++;
+        assertTrue(left > 0 && left < files.size());
+        assertTrue(scheduler.tasks.size() <= 1);
+
+        scheduler.advance(5 * MINUTE);
+        for (File file : files) assertFalse(file.exists());
+        assertEquals(0, scheduler.tasks.size());
+    }
+
+    @Test
+    public void testReleaseDeletesRightAway() throws IOException {
+        StagedFileCleaner cleaner = getCleaner();
+        File a = createFile("a.apk");
+        File b = createFile("b.apk");
+        cleaner.stage(a);
+        cleaner.stage(b);
+
+        cleaner.release(a);
+        assertFalse(cleaner.isStaged(a));
+        scheduler.advance(0);
+        assertFalse(a.exists());
+        assertTrue(b.exists());
+
+        // releasing a file that isn't staged does nothing
+        File c = createFile("c.apk");
+        cleaner.release(c);
+        scheduler.advance(0);
+        assertTrue(c.exists());
+
+        scheduler.advance(StagedFileCleaner.DEFAULT_TTL_MILLIS);
+        assertFalse(b.exists());
+        assertTrue(c.exists());
+    }
+
+    @Test
+    public void testStagingAgainExtendsDeadline() throws IOException {
+        StagedFileCleaner cleaner = getCleaner();
+        File file = createFile("a.apk");
+        cleaner.stage(file, 10 * MINUTE);
+        scheduler.advance(5 * MINUTE);
+        cleaner.stage(file, 10 * MINUTE);
+        scheduler.advance(6 * MINUTE);
+        assertTrue(file.exists());
+        scheduler.advance(4 * MINUTE);
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testSurvivesRestart() throws IOException {
+        StagedFileCleaner cleaner = getCleaner();
+        File expired = createFile("expired.apk");
+        File pending = createFile("pending.apk");
+        cleaner.stage(expired, 5 * MINUTE);
+        cleaner.stage(pending, 30 * MINUTE);
+        assertTrue(journal.isFile());
+
+        // the process dies, its scheduled cleanup is lost
+        scheduler.tasks.clear();
+        scheduler.advance(10 * MINUTE);
+        assertTrue(expired.exists());
+
+        StagedFileCleaner restarted = getCleaner();
+        restarted.restore();
+        scheduler.advance(0);
+        assertFalse(expired.exists());
+        assertTrue(pending.exists());
+        assertTrue(restarted.isStaged(pending));
+
+        scheduler.advance(20 * MINUTE);
+        assertFalse(pending.exists());
+        assertFalse(journal.exists());
+    }
+
+    @Test
+    public void testBrokenJournalIsIgnored() throws IOException {
+        StagedFileCleaner cleaner = getCleaner();
+        File file = createFile("a.apk");
+        cleaner.stage(file, MINUTE);
+        try (FileWriter writer = new FileWriter(journal, true)) {
+            writer.write("garbage\nnot-a-number /foo\n");
+        }
+        scheduler.tasks.clear();
+        scheduler.advance(2 * MINUTE);
+
+        StagedFileCleaner restarted = getCleaner();
+        restarted.restore();
+        scheduler.advance(0);
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testStagingAfterRestartKeepsJournal() throws IOException {
+        StagedFileCleaner cleaner = getCleaner();
+        File old = createFile("old.apk");
+        cleaner.stage(old, 5 * MINUTE);
+        scheduler.tasks.clear();
+
+        // the new process stages a file right away
+        StagedFileCleaner restarted = getCleaner();
+        restarted.restore();
+        File file = createFile("new.apk");
+        restarted.stage(file, 30 * MINUTE);
+        assertTrue(restarted.isStaged(old));
+
+        // and dies again before the old deadline
+        scheduler.tasks.clear();
+        scheduler.advance(10 * MINUTE);
+        getCleaner().restore();
+        scheduler.advance(0);
+        assertFalse(old.exists());
+        assertTrue(file.exists());
+    }
+}
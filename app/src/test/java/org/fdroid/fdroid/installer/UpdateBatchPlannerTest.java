@@ -0,0 +1,303 @@
+package org.fdroid.fdroid.installer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class UpdateBatchPlannerTest {
+
+    private static final long MB = 1024 * 1024;
+    private static final String OWN_PACKAGE_NAME = "org.fdroid.fdroid";
+    private static final List<UpdateBatchPlanner.Policy> DEFAULT_POLICIES = Arrays.asList(
+            UpdateBatchPlanner.Policy.KNOWN_VULNERABILITY_FIRST,
+            UpdateBatchPlanner.Policy.PINNED_FIRST,
+            UpdateBatchPlanner.Policy.SMALLEST_FIRST
+    );
+
+    private long freeSpace = Long.MAX_VALUE;
+    /**
+     * The bytes each item takes up on disk by package name, e.g. of its downloaded APK.
+     */
+    private final Map<String, Long> sizesOnDisk = new HashMap<>();
+
+    private static final class Item {
+        final String packageName;
+        final long size;
+        final boolean hasKnownVulnerability;
+
+        Item(String packageName, long size, boolean hasKnownVulnerability) {
+            this.packageName = packageName;
+            this.size = size;
+            this.hasKnownVulnerability = hasKnownVulnerability;
+        }
+
+        Item(String packageName, long size) {
+            this(packageName, size, false);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return packageName;
+        }
+    }
+
+    private final class Info implements UpdateBatchPlanner.ItemInfo<Item> {
+        @NonNull
+        @Override
+        public String getKey(Item item) {
+            return "https://example.org/" + item.packageName + ".apk";
+        }
+
+        @NonNull
+        @Override
+        public String getPackageName(Item item) {
+            return item.packageName;
+        }
+
+        @Override
+        public long getSize(Item item) {
+            return item.size;
+        }
+
+        @Override
+        public long getSizeOnDisk(Item item) {
+            Long size = sizesOnDisk.get(item.packageName);
+            return size == null ? 0 : size;
+        }
+
+        @Override
+        public boolean hasKnownVulnerability(Item item) {
+            return item.hasKnownVulnerability;
+        }
+    }
+
+    private UpdateBatchPlanner<Item> getPlanner(List<UpdateBatchPlanner.Policy> policies, Set<String> pinned,
+                                                long headroom) {
+        return new UpdateBatchPlanner<>(new Info(), policies, pinned, OWN_PACKAGE_NAME, () -> freeSpace, headroom);
+    }
+
+    private String key(Item item) {
+        return new Info().getKey(item);
+    }
+
+    /**
+     * Simulates downloading the APK of the given {@code item}, which stays on disk afterwards.
+     */
+    private void download(Item item) {
+        sizesOnDisk.put(item.packageName, item.size);
+        freeSpace -= item.size;
+    }
+
+    @Test
+    public void testDefaultOrder() {
+        Item big = new Item("big", 50 * MB);
+        Item small = new Item("small", 5 * MB);
+        Item vulnerable = new Item("vulnerable", 80 * MB, true);
+        Item pinned = new Item("pinned", 60 * MB);
+        Item own = new Item(OWN_PACKAGE_NAME, 1 * MB, true);
+        UpdateBatchPlanner<Item> planner = getPlanner(DEFAULT_POLICIES, Collections.singleton("pinned"), 0);
+
+        List<Item> admitted = planner.add(Arrays.asList(own, big, small, pinned, vulnerable));
+        assertEquals(Arrays.asList(vulnerable, pinned, small, big, own), admitted);
+        assertEquals(0, planner.getNumWaiting());
+    }
+
+    @Test
+    public void testConfigurablePolicies() {
+        Item big = new Item("big", 50 * MB, true);
+        Item small = new Item("small", 5 * MB);
+        Item medium = new Item("medium", 20 * MB);
+        Set<String> pinned = new HashSet<>(Collections.singletonList("medium"));
+
+        List<UpdateBatchPlanner.Policy> policies = Collections.singletonList(UpdateBatchPlanner.Policy.SMALLEST_FIRST);
+        assertEquals(Arrays.asList(small, medium, big),
+                getPlanner(policies, pinned, 0).add(Arrays.asList(big, medium, small)));
+
+        policies = Arrays.asList(UpdateBatchPlanner.Policy.PINNED_FIRST, UpdateBatchPlanner.Policy.SMALLEST_FIRST);
+        assertEquals(Arrays.asList(medium, small, big),
+                getPlanner(policies, pinned, 0).add(Arrays.asList(big, medium, small)));
+
+        // without policies, the given order is kept
+        assertEquals(Arrays.asList(big, medium, small),
+                getPlanner(Collections.emptyList(), pinned, 0).add(Arrays.asList(big, medium, small)));
+    }
+
+    @Test
+    public void testAdmitsOnlyWhatFits() {
+        freeSpace = 100 * MB;
+        Item a = new Item("a", 10 * MB);
+        Item b = new Item("b", 20 * MB);
+        Item c = new Item("c", 30 * MB);
+        UpdateBatchPlanner<Item> planner = getPlanner(DEFAULT_POLICIES, Collections.emptySet(), 10 * MB);
+
+        // each update needs twice its size, a and b need 60 MB, c would need another 60 MB
+        assertEquals(Arrays.asList(a, b), planner.add(Arrays.asList(c, b, a)));
+        assertEquals(60 * MB, planner.getReservedSpace());
+        assertEquals(1, planner.getNumWaiting());
+
+        // releasing a isn't enough yet, with the headroom 90 MB would be needed
+        assertEquals(Collections.emptyList(), planner.release(key(a)));
+        assertFalse(planner.isAdmitted(key(a)));
+        assertTrue(planner.isAdmitted(key(b)));
+
+        assertEquals(Collections.singletonList(c), planner.release(key(b)));
+        assertEquals(60 * MB, planner.getReservedSpace());
+        assertEquals(0, planner.getNumWaiting());
+
+        planner.release(key(c));
+        assertEquals(0, planner.getReservedSpace());
+    }
+
+    @Test
+    public void testFreeSpaceGetsCheckedAgain() {
+        freeSpace = 50 * MB;
+        Item a = new Item("a", 10 * MB);
+        Item b = new Item("b", 20 * MB);
+        UpdateBatchPlanner<Item> planner = getPlanner(DEFAULT_POLICIES, Collections.emptySet(), 0);
+
+        assertEquals(Collections.singletonList(a), planner.add(Arrays.asList(a, b)));
+        // something else used up space meanwhile, so b still doesn't fit after a is done
+        freeSpace = 10 * MB;
+        List<Item> admitted = planner.release(key(a));
+        // but with nothing reserved, the next update always gets admitted
+        assertEquals(Collections.singletonList(b), admitted);
+    }
+
+    @Test
+    public void testDownloadsOfAdmittedUpdatesAreNotCountedTwice() {
+        freeSpace = 100 * MB;
+        Item a = new Item("a", 20 * MB);
+        Item b = new Item("b", 20 * MB);
+        Item c = new Item("c", 10 * MB);
+        UpdateBatchPlanner<Item> planner = getPlanner(DEFAULT_POLICIES, Collections.emptySet(), 0);
+
+        assertEquals(Arrays.asList(a, b), planner.add(Arrays.asList(a, b)));
+        // a got downloaded, its space was reserved already
+        download(a);
+        assertEquals(Collections.singletonList(c), planner.add(Collections.singletonList(c)));
+        assertEquals(100 * MB, planner.getReservedSpace());
+    }
+
+    @Test
+    public void testDoneUpdatesKeepUsingSpace() {
+        freeSpace = 100 * MB;
+        Item a = new Item("a", 20 * MB);
+        Item b = new Item("b", 20 * MB);
+        Item c = new Item("c", 20 * MB);
+        Item d = new Item("d", 20 * MB);
+        UpdateBatchPlanner<Item> planner = getPlanner(Collections.emptyList(), Collections.emptySet(), 0);
+
+        assertEquals(Arrays.asList(a, b), planner.add(Arrays.asList(a, b, c, d)));
+        download(a);
+        // a got installed, but its APK stays in the cache
+        assertEquals(Collections.singletonList(c), planner.release(key(a)));
+        download(b);
+        // with b's APK on disk as well, only 60 MB are free, not enough for c and d
+        assertEquals(Collections.emptyList(), planner.release(key(b)));
+        assertEquals(1, planner.getNumWaiting());
+        download(c);
+        assertEquals(Collections.singletonList(d), planner.release(key(c)));
+    }
+
+    @Test
+    public void testLargeUpdateDoesNotGetStuck() {
+        freeSpace = 10 * MB;
+        Item huge = new Item("huge", 500 * MB);
+        Item small = new Item("small", 1 * MB);
+        UpdateBatchPlanner<Item> planner = getPlanner(Collections.emptyList(), Collections.emptySet(), 0);
+
+        assertEquals(Collections.singletonList(huge), planner.add(Arrays.asList(huge, small)));
+        // small doesn't skip ahead, so the order is kept
+        assertEquals(1, planner.getNumWaiting());
+        assertEquals(Collections.singletonList(small), planner.release(key(huge)));
+    }
+
+    @Test
+    public void testOwnAppComesLast() {
+        freeSpace = 30 * MB;
+        Item own = new Item(OWN_PACKAGE_NAME, 10 * MB, true);
+        Item a = new Item("a", 10 * MB);
+        Item b = new Item("b", 10 * MB);
+        UpdateBatchPlanner<Item> planner = getPlanner(DEFAULT_POLICIES, Collections.emptySet(), 0);
+
+        assertEquals(Collections.singletonList(a), planner.add(Arrays.asList(own, a, b)));
+        assertEquals(Collections.singletonList(b), planner.release(key(a)));
+        assertEquals(Collections.singletonList(own), planner.release(key(b)));
+    }
+
+    @Test
+    public void testReleasingWaitingItemRemovesIt() {
+        freeSpace = 0;
+        Item a = new Item("a", 10 * MB);
+        Item b = new Item("b", 20 * MB);
+        Item c = new Item("c", 30 * MB);
+        UpdateBatchPlanner<Item> planner = getPlanner(DEFAULT_POLICIES, Collections.emptySet(), 0);
+
+        assertEquals(Collections.singletonList(a), planner.add(Arrays.asList(a, b, c)));
+        // b got cancelled before it was queued
+        assertEquals(Collections.emptyList(), planner.release(key(b)));
+        assertEquals(1, planner.getNumWaiting());
+        assertEquals(Collections.singletonList(c), planner.release(key(a)));
+    }
+
+    @Test
+    public void testAddingAgainIgnoresKnownItems() {
+        freeSpace = 0;
+        Item a = new Item("a", 10 * MB);
+        Item b = new Item("b", 20 * MB);
+        Item c = new Item("c", 5 * MB);
+        UpdateBatchPlanner<Item> planner = getPlanner(DEFAULT_POLICIES, Collections.emptySet(), 0);
+
+        assertEquals(Collections.singletonList(a), planner.add(Arrays.asList(a, b)));
+        assertEquals(Collections.emptyList(), planner.add(Arrays.asList(a, b, c)));
+        assertEquals(2, planner.getNumWaiting());
+
+        // c is smaller, so it comes before b now
+        List<Item> order = new ArrayList<>(planner.release(key(a)));
+        order.addAll(planner.release(key(c)));
+        assertEquals(Arrays.asList(c, b), order);
+    }
+
+    @Test
+    public void testSimulatedBudget() {
+        // 100 updates of 1 to 100 MB with 500 MB free space
+        freeSpace = 500 * MB;
+        List<Item> items = new ArrayList<>();
+        for (int i = 100; i > 0; i--) {
+            items.add(new Item("app" + i, i * MB));
+        }
+        UpdateBatchPlanner<Item> planner = getPlanner(DEFAULT_POLICIES, Collections.emptySet(), 50 * MB);
+
+        List<Item> inFlight = new ArrayList<>(planner.add(items));
+        List<Item> done = new ArrayList<>();
+        long maxReserved = 0;
+        while (!inFlight.isEmpty()) {
+            maxReserved = Math.max(maxReserved, planner.getReservedSpace());
+            // the budget is never exceeded, unless a single update needs more
+            assertTrue(inFlight.size() == 1 || planner.getReservedSpace() + 50 * MB <= freeSpace);
+            Item item = inFlight.remove(0);
+            done.add(item);
+            inFlight.addAll(planner.release(key(item)));
+        }
+        assertEquals(100, done.size());
+        assertEquals("app1", done.get(0).packageName);
+        assertEquals("app100", done.get(99).packageName);
+        assertTrue(maxReserved <= 450 * MB);
+        assertEquals(0, planner.getReservedSpace());
+        assertEquals(0, planner.getNumWaiting());
+    }
+}
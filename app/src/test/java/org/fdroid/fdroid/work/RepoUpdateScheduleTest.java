@@ -0,0 +1,126 @@
+package org.fdroid.fdroid.work;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.fdroid.database.Repository;
+import org.fdroid.index.IndexFormatVersion;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+public class RepoUpdateScheduleTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final long MIN_INTERVAL = 4 * HOUR;
+
+    private SharedPreferences prefs;
+    private RepoUpdateSchedule schedule;
+    private long now = 1_700_000_000_000L;
+
+    @Before
+    public void setUp() {
+        Context context = ApplicationProvider.getApplicationContext();
+        prefs = context.getSharedPreferences("test-schedule", Context.MODE_PRIVATE);
+        prefs.edit().clear().commit();
+        schedule = new RepoUpdateSchedule(prefs, () -> now);
+    }
+
+    private static Repository getRepo(long repoId, long timestamp) {
+        return new Repository(repoId, "https://example.org/repo", timestamp,
+                IndexFormatVersion.TWO, "cert", 1L, 1, 0L);
+    }
+
+    /**
+     * Simulates a repo that publishes every {@code publishInterval} milliseconds
+     * and gets checked every {@code checkInterval} milliseconds.
+     */
+    private void simulate(long repoId, long publishInterval, long checkInterval, long duration) {
+        long end = now + duration;
+        long published = now;
+        while (now < end) {
+            if (now - published >= publishInterval) published = now;
+            schedule.onChecked(getRepo(repoId, published));
+            now += checkInterval;
+        }
+    }
+
+    @Test
+    public void testUnknownRepoIsDue() {
+        assertTrue(schedule.isDue(1, MIN_INTERVAL));
+        assertEquals(MIN_INTERVAL, schedule.getCheckInterval(1, MIN_INTERVAL));
+    }
+
+    @Test
+    public void testRepoIsNotDueRightAfterCheck() {
+        schedule.onChecked(getRepo(1, now));
+        assertFalse(schedule.isDue(1, MIN_INTERVAL));
+        now += MIN_INTERVAL - RepoUpdateSchedule.FLEX;
+        assertTrue(schedule.isDue(1, MIN_INTERVAL));
+    }
+
+    @Test
+    public void testBusyRepoUsesMinInterval() {
+        simulate(1, HOUR, MIN_INTERVAL, 10 * DAY);
+        assertEquals(MIN_INTERVAL, schedule.getCheckInterval(1, MIN_INTERVAL));
+    }
+
+    @Test
+    public void testQuietRepoIsCheckedLessOften() {
+        simulate(1, 2 * DAY, MIN_INTERVAL, 20 * DAY);
+        long interval = schedule.getCheckInterval(1, MIN_INTERVAL);
+        assertTrue(interval > MIN_INTERVAL);
+        assertTrue(interval <= DAY);
+
+        // check again without a new publication
+        List<Long> timestamps = schedule.getTimestamps(1);
+        schedule.onChecked(getRepo(1, timestamps.get(timestamps.size() - 1)));
+        now += MIN_INTERVAL;
+        assertFalse(schedule.isDue(1, MIN_INTERVAL));
+        now += interval;
+        assertTrue(schedule.isDue(1, MIN_INTERVAL));
+    }
+
+    @Test
+    public void testVeryQuietRepoIsBoundedByMaxInterval() {
+        simulate(1, 60 * DAY, MIN_INTERVAL, 365 * DAY);
+        assertEquals(RepoUpdateSchedule.MAX_CHECK_INTERVAL,
+                schedule.getCheckInterval(1, MIN_INTERVAL));
+    }
+
+    @Test
+    public void testHistoryIsBounded() {
+        simulate(1, DAY, DAY, 30 * DAY);
+        assertEquals(RepoUpdateSchedule.MAX_HISTORY, schedule.getTimestamps(1).size());
+    }
+
+    @Test
+    public void testUnchangedTimestampIsNotRecordedTwice() {
+        schedule.onChecked(getRepo(1, 42));
+        schedule.onChecked(getRepo(1, 42));
+        assertEquals(Collections.singletonList(42L), schedule.getTimestamps(1));
+    }
+
+    @Test
+    public void testRetainOnly() {
+        schedule.onChecked(getRepo(1, 42));
+        schedule.onChecked(getRepo(2, 23));
+        schedule.retainOnly(Collections.singletonList(2L));
+        assertTrue(schedule.getTimestamps(1).isEmpty());
+        assertTrue(schedule.isDue(1, MIN_INTERVAL));
+        assertEquals(Collections.singletonList(23L), schedule.getTimestamps(2));
+    }
+}
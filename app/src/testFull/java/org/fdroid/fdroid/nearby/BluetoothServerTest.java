@@ -0,0 +1,277 @@
+package org.fdroid.fdroid.nearby;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.fdroid.fdroid.nearby.httpish.FileDetails;
+import org.fdroid.fdroid.nearby.httpish.Request;
+import org.fdroid.fdroid.nearby.httpish.Response;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the HTTP-ish protocol between a client and a {@link BluetoothServer.ClientConnection}
+ * over in-memory pipes instead of a {@link android.bluetooth.BluetoothSocket}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BluetoothServerTest {
+
+    private static final int PIPE_SIZE = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File repoDir;
+    private byte[] apk;
+    private PipedOutputStream clientOutput;
+    private BluetoothConnection client;
+    private BluetoothServer.ClientConnection server;
+    private ExecutorService workers;
+
+    @Before
+    public void setUp() throws IOException {
+        File webRoot = folder.newFolder();
+        repoDir = new File(webRoot, "fdroid/repo");
+        FileUtils.forceMkdir(repoDir);
+        apk = new byte[300_000];
+        new Random(42).nextBytes(apk);
+        FileUtils.writeByteArrayToFile(new File(repoDir, "app.apk"), apk);
+
+        PipedInputStream clientInput = new PipedInputStream(PIPE_SIZE);
+        PipedInputStream serverInput = new PipedInputStream(PIPE_SIZE);
+        clientOutput = new PipedOutputStream(serverInput);
+        PipedOutputStream serverOutput = new PipedOutputStream(clientInput);
+        client = new BluetoothConnection(clientInput, clientOutput);
+        workers = Executors.newFixedThreadPool(3);
+        server = new BluetoothServer.ClientConnection(new BluetoothConnection(serverInput, serverOutput), webRoot,
+                workers);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        clientOutput.close();
+        server.join(5000);
+        workers.shutdownNow();
+    }
+
+    private static byte[] readContent(Response response) throws IOException {
+        try (InputStream inputStream = response.toContentStream()) {
+            return IOUtils.toByteArray(inputStream);
+        }
+    }
+
+    @Test
+    public void testVersion1() throws IOException {
+        Response response = Request.createGET("/fdroid/repo/app.apk", client).send();
+        assertEquals(HttpURLConnection.HTTP_OK, response.getStatusCode());
+        assertEquals(apk.length, response.getFileSize());
+        byte[] content = new byte[apk.length];
+        IOUtils.readFully(response.toContentStream(), content);
+        assertArrayEquals(apk, content);
+
+        // still works on the same connection
+        FileDetails details = Request.createHEAD("/fdroid/repo/app.apk", client).send().toFileDetails();
+        assertEquals(apk.length, details.getFileSize());
+        assertNotNull(details.getCacheTag());
+    }
+
+    @Test
+    public void testPipelinedRequests() throws IOException {
+        assertEquals(Request.VERSION_2, Request.negotiateVersion(client, Request.VERSION_2));
+        FileUtils.writeStringToFile(new File(repoDir, "index.html"), "<html></html>", "UTF-8");
+
+        Request get = Request.createGET("/fdroid/repo/app.apk", client);
+        Request head = Request.createHEAD("/fdroid/repo/app.apk", client);
+        Request missing = Request.createGET("/fdroid/repo/missing.apk", client);
+        Request index = Request.createGET("/fdroid/repo/", client);
+        get.write();
+        head.write();
+        missing.write();
+        index.write();
+
+        Response response = get.readResponse();
+        assertEquals(HttpURLConnection.HTTP_OK, response.getStatusCode());
+        assertArrayEquals(apk, readContent(response));
+
+        response = head.readResponse();
+        assertEquals(HttpURLConnection.HTTP_OK, response.getStatusCode());
+        assertEquals(apk.length, response.getFileSize());
+        assertEquals("bytes", response.getHeaderValue("accept-ranges"));
+
+        response = missing.readResponse();
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, response.getStatusCode());
+        readContent(response);
+
+        response = index.readResponse();
+        assertEquals(HttpURLConnection.HTTP_OK, response.getStatusCode());
+        assertEquals("<html></html>", new String(readContent(response), "UTF-8"));
+    }
+
+    @Test
+    public void testResumeWithRange() throws IOException {
+        assertEquals(Request.VERSION_2, Request.negotiateVersion(client, Request.VERSION_2));
+        int start = 123_456;
+        Response response = Request.createGET("/fdroid/repo/app.apk", client)
+                .addHeader("Range", "bytes=" + start + "-")
+                .send();
+        assertEquals(HttpURLConnection.HTTP_PARTIAL, response.getStatusCode());
+        assertEquals(apk.length - start, response.getFileSize());
+        assertEquals("bytes " + start + "-" + (apk.length - 1) + "/" + apk.length,
+                response.getHeaderValue("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(apk, start, apk.length), readContent(response));
+
+        response = Request.createGET("/fdroid/repo/app.apk", client)
+                .addHeader("Range", "bytes=" + apk.length + "-")
+                .send();
+        assertEquals(416, response.getStatusCode());
+        readContent(response);
+
+        // the connection is still in sync
+        response = Request.createGET("/fdroid/repo/app.apk", client).addHeader("Range", "bytes=0-9").send();
+        assertArrayEquals(Arrays.copyOf(apk, 10), readContent(response));
+    }
+
+    @Test
+    public void testFileLargerThan2GB() throws IOException {
+        assertEquals(Request.VERSION_2, Request.negotiateVersion(client, Request.VERSION_2));
+        long size = 3L * 1024 * 1024 * 1024;
+        byte[] tail = "the end".getBytes("UTF-8");
+        try (RandomAccessFile file = new RandomAccessFile(new File(repoDir, "big.obb"), "rw")) {
+            file.setLength(size);
+            file.seek(size - tail.length);
+            file.write(tail);
+        }
+
+        FileDetails details = Request.createHEAD("/fdroid/repo/big.obb", client).send().toFileDetails();
+        assertEquals(size, details.getFileSize());
+
+        Response response = Request.createGET("/fdroid/repo/big.obb", client)
+                .addHeader("Range", "bytes=" + (size - tail.length) + "-")
+                .send();
+        assertEquals(HttpURLConnection.HTTP_PARTIAL, response.getStatusCode());
+        assertArrayEquals(tail, readContent(response));
+    }
+
+    @Test
+    public void testOldServerKeepsVersion1() throws Exception {
+        PipedInputStream clientInput = new PipedInputStream(PIPE_SIZE);
+        PipedInputStream serverInput = new PipedInputStream(PIPE_SIZE);
+        PipedOutputStream output = new PipedOutputStream(serverInput);
+        PipedOutputStream serverOutput = new PipedOutputStream(clientInput);
+        BluetoothConnection connection = new BluetoothConnection(clientInput, output);
+        // answers everything like servers before version 2 answered HEAD requests
+        Thread oldServer = new Thread(() -> {
+            try (Writer writer = new OutputStreamWriter(serverOutput)) {
+                // the request ends with an empty line
+                int previous = -1;
+                int b = serverInput.read();
+                while (b != '\n' || previous != '\n') {
+                    previous = b;
+                    b = serverInput.read();
+                }
+                writer.write("HTTP(ish)/0.1 200 OK\n\n");
+                writer.flush();
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+        oldServer.start();
+        assertEquals(Request.VERSION_1, Request.negotiateVersion(connection));
+        assertEquals(Request.VERSION_1, connection.getProtocolVersion());
+        oldServer.join(5000);
+        output.close();
+    }
+
+    @Test(timeout = 30_000)
+    public void testMultiplexedRequests() throws Exception {
+        assertEquals(Request.VERSION_3, Request.negotiateVersion(client));
+        FileUtils.writeStringToFile(new File(repoDir, "index.html"), "<html></html>", "UTF-8");
+
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        List<Future<byte[]>> apks = new ArrayList<>();
+        List<Future<byte[]>> indexes = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            apks.add(threads.submit(() -> readContent(Request.createGET("/fdroid/repo/app.apk", client).send())));
+            indexes.add(threads.submit(() -> readContent(Request.createGET("/fdroid/repo/", client).send())));
+        }
+        for (Future<byte[]> future : apks) {
+            assertArrayEquals(apk, future.get());
+        }
+        for (Future<byte[]> future : indexes) {
+            assertEquals("<html></html>", new String(future.get(), "UTF-8"));
+        }
+        threads.shutdown();
+
+        Response response = Request.createGET("/fdroid/repo/missing.apk", client).send();
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, response.getStatusCode());
+        FileDetails details = Request.createHEAD("/fdroid/repo/app.apk", client).send().toFileDetails();
+        assertEquals(apk.length, details.getFileSize());
+    }
+
+    /**
+     * Nothing of the big file gets read, so it can only send as much as its window allows,
+     * and the small one has to get through anyway.
+     */
+    @Test(timeout = 30_000)
+    public void testSmallResourceDoesNotWaitForBigOne() throws IOException {
+        assertEquals(Request.VERSION_3, Request.negotiateVersion(client));
+        byte[] big = new byte[8 * 1024 * 1024];
+        new Random(1).nextBytes(big);
+        FileUtils.writeByteArrayToFile(new File(repoDir, "big.apk"), big);
+        FileUtils.writeStringToFile(new File(repoDir, "icon.png"), "icon", "UTF-8");
+
+        Response bigResponse = Request.createGET("/fdroid/repo/big.apk", client).send();
+        InputStream bigContent = bigResponse.toContentStream();
+        assertEquals(big[0], (byte) bigContent.read());
+
+        Response iconResponse = Request.createGET("/fdroid/repo/icon.png", client).send();
+        assertEquals("icon", new String(readContent(iconResponse), "UTF-8"));
+
+        byte[] rest = IOUtils.toByteArray(bigContent);
+        assertEquals(big.length - 1, rest.length);
+        assertArrayEquals(Arrays.copyOfRange(big, 1, big.length), rest);
+    }
+
+    @Test(timeout = 30_000)
+    public void testClosingStreamEarly() throws IOException {
+        assertEquals(Request.VERSION_3, Request.negotiateVersion(client));
+        for (int i = 0; i < 5; i++) {
+            Response response = Request.createGET("/fdroid/repo/app.apk", client).send();
+            InputStream content = response.toContentStream();
+            byte[] start = new byte[10];
+            IOUtils.readFully(content, start);
+            assertArrayEquals(Arrays.copyOf(apk, 10), start);
+            content.close();
+        }
+        // the connection still works after all those resets
+        assertArrayEquals(apk, readContent(Request.createGET("/fdroid/repo/app.apk", client).send()));
+        assertTrue(client.getMuxClient().isOpen());
+    }
+}
@@ -0,0 +1,76 @@
+package org.fdroid.fdroid.nearby;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.fdroid.fdroid.nearby.FileRangeResponse.ByteRange;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class FileRangeResponseTest {
+
+    private static List<ByteRange> ranges(long... startsAndEnds) {
+        ByteRange[] ranges = new ByteRange[startsAndEnds.length / 2];
+        for (int i = 0; i < ranges.length; i++) {
+            ranges[i] = new ByteRange(startsAndEnds[i * 2], startsAndEnds[i * 2 + 1]);
+        }
+        return Arrays.asList(ranges);
+    }
+
+    @Test
+    public void testSingleRanges() {
+        assertEquals(ranges(0, 99), FileRangeResponse.parseRanges("bytes=0-99", 1000));
+        assertEquals(ranges(10, 999), FileRangeResponse.parseRanges("bytes=10-", 1000));
+        assertEquals(ranges(900, 999), FileRangeResponse.parseRanges("bytes=-100", 1000));
+        // the end gets limited to the file length
+        assertEquals(ranges(500, 999), FileRangeResponse.parseRanges("bytes=500-5000", 1000));
+        assertEquals(ranges(0, 999), FileRangeResponse.parseRanges("bytes=-5000", 1000));
+        assertEquals(ranges(5, 5), FileRangeResponse.parseRanges("Bytes=5-5", 1000));
+    }
+
+    @Test
+    public void testLargeFiles() {
+        long length = 5L * 1024 * 1024 * 1024;
+        assertEquals(ranges(4_294_967_296L, length - 1), FileRangeResponse.parseRanges("bytes=4294967296-", length));
+        assertEquals(ranges(length - 10, length - 1), FileRangeResponse.parseRanges("bytes=-10", length));
+    }
+
+    @Test
+    public void testMultipleRanges() {
+        assertEquals(ranges(0, 9, 20, 29), FileRangeResponse.parseRanges("bytes=0-9, 20-29", 1000));
+        // sorted
+        assertEquals(ranges(0, 9, 990, 999), FileRangeResponse.parseRanges("bytes=-10,0-9", 1000));
+        // overlapping and adjacent ones get merged
+        assertEquals(ranges(0, 29), FileRangeResponse.parseRanges("bytes=0-9,10-19,15-29", 1000));
+        assertEquals(ranges(0, 99, 200, 299), FileRangeResponse.parseRanges("bytes=200-299,0-50,40-99,250-", 300));
+        // unsatisfiable ones get dropped
+        assertEquals(ranges(0, 9), FileRangeResponse.parseRanges("bytes=0-9,5000-6000,-0", 1000));
+    }
+
+    @Test
+    public void testUnsatisfiableRanges() {
+        assertEquals(Collections.emptyList(), FileRangeResponse.parseRanges("bytes=1000-", 1000));
+        assertEquals(Collections.emptyList(), FileRangeResponse.parseRanges("bytes=1000-2000,3000-", 1000));
+        assertEquals(Collections.emptyList(), FileRangeResponse.parseRanges("bytes=-0", 1000));
+        assertEquals(Collections.emptyList(), FileRangeResponse.parseRanges("bytes=0-", 0));
+    }
+
+    @Test
+    public void testInvalidRangesGetIgnored() {
+        assertNull(FileRangeResponse.parseRanges("items=0-9", 1000));
+        assertNull(FileRangeResponse.parseRanges("bytes=", 1000));
+        assertNull(FileRangeResponse.parseRanges("bytes=9-0", 1000));
+        assertNull(FileRangeResponse.parseRanges("bytes=a-b", 1000));
+        assertNull(FileRangeResponse.parseRanges("bytes=0-9,foo", 1000));
+        assertNull(FileRangeResponse.parseRanges("bytes=99999999999999999999-", 1000));
+
+        StringBuilder manyRanges = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= FileRangeResponse.MAX_RANGES; i++) {
+            manyRanges.append(",").append(i * 2).append("-").append(i * 2);
+        }
+        assertNull(FileRangeResponse.parseRanges(manyRanges.toString(), 1000));
+    }
+}
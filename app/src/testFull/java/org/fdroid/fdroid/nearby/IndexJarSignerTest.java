@@ -0,0 +1,269 @@
+package org.fdroid.fdroid.nearby;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+import android.text.TextUtils;
+import android.util.Base64;
+
+import org.apache.commons.io.IOUtils;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.fdroid.fdroid.Utils;
+import org.fdroid.index.SigningException;
+import org.fdroid.index.v1.IndexV1Verifier;
+import org.fdroid.index.v1.IndexV1VerifierKt;
+import org.fdroid.index.v2.EntryVerifier;
+import org.fdroid.index.v2.EntryVerifierKt;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.CodeSigner;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+import kellinwood.security.zipsigner.ZipSigner;
+import kotlin.Pair;
+import vendored.org.apache.commons.codec.binary.Hex;
+import vendored.org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * The JVM disables SHA1 for JAR signatures, so only the jars with SHA-256 entry
+ * digests can be verified here.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class IndexJarSignerTest {
+
+    /**
+     * Longer than a manifest line, with a two-byte character right at the line break.
+     */
+    private static final String LONG_NAME = "org.example.app/en-US/phoneScreenshots/"
+            + "éééééééééééééééé.png";
+    private static final byte[] STORED_DATA = "not compressed".getBytes();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private X509Certificate certificate;
+    private PrivateKey privateKey;
+    private byte[] indexData;
+
+    @Before
+    public void setUp() throws GeneralSecurityException, IOException, OperatorCreationException {
+        KeyPair keyPair = LocalRepoKeyStore.generateRandomKeypair();
+        privateKey = keyPair.getPrivate();
+        certificate = (X509Certificate) LocalRepoKeyStore.generateSelfSignedCertChain(keyPair,
+                new X500Name("O=test,OU=suite"));
+        try (InputStream inputStream =
+                     getClass().getClassLoader().getResourceAsStream("all_fields_index-v1.json")) {
+            indexData = IOUtils.toByteArray(inputStream);
+        }
+    }
+
+    private File writeUnsignedJar(String jsonFileName, byte[] bigData) throws IOException {
+        File unsigned = folder.newFile();
+        try (JarOutputStream jo = new JarOutputStream(new FileOutputStream(unsigned))) {
+            jo.putNextEntry(new JarEntry(jsonFileName));
+            jo.write(indexData);
+            jo.putNextEntry(new JarEntry("org.example.app/"));
+            jo.putNextEntry(new JarEntry(LONG_NAME));
+            jo.write(bigData);
+
+            JarEntry stored = new JarEntry("stored.txt");
+            CRC32 crc = new CRC32();
+            crc.update(STORED_DATA);
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(STORED_DATA.length);
+            stored.setCrc(crc.getValue());
+            jo.putNextEntry(stored);
+            jo.write(STORED_DATA);
+
+            // left behind from signing before, must not end up in the new jar
+            jo.putNextEntry(new JarEntry("META-INF/OLD.SF"));
+            jo.write("Signature-Version: 1.0\r\n\r\n".getBytes());
+        }
+        return unsigned;
+    }
+
+    private File sign(File unsigned, String entryDigestAlgorithm) throws IOException, GeneralSecurityException {
+        File signed = folder.newFile();
+        new IndexJarSigner(certificate, privateKey, entryDigestAlgorithm).sign(unsigned, signed);
+        return signed;
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] readFully(InputStream inputStream) {
+        try {
+            return IOUtils.toByteArray(inputStream);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Test
+    public void testSignedJarVerifies() throws IOException, GeneralSecurityException, SigningException {
+        byte[] bigData = randomBytes(3 * 1024 * 1024);
+        File signed = sign(writeUnsignedJar(EntryVerifierKt.DATA_FILE_NAME, bigData), IndexJarSigner.SHA256);
+
+        List<String> names = new ArrayList<>();
+        try (JarFile jarFile = new JarFile(signed, true)) {
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                names.add(entry.getName());
+                byte[] data = readFully(jarFile.getInputStream(entry));
+                if (entry.isDirectory() || entry.getName().startsWith("META-INF/")) {
+                    continue;
+                }
+                CodeSigner[] codeSigners = entry.getCodeSigners();
+                assertNotNull(entry.getName(), codeSigners);
+                assertEquals(1, codeSigners.length);
+                assertEquals(certificate, codeSigners[0].getSignerCertPath().getCertificates().get(0));
+                if (LONG_NAME.equals(entry.getName())) {
+                    assertArrayEquals(bigData, data);
+                } else if ("stored.txt".equals(entry.getName())) {
+                    assertArrayEquals(STORED_DATA, data);
+                    assertEquals(ZipEntry.STORED, entry.getMethod());
+                }
+            }
+        }
+        // the signature files have to come first for streaming verifiers
+        assertEquals(Arrays.asList("META-INF/MANIFEST.MF", "META-INF/CERT.SF", "META-INF/CERT.RSA",
+                EntryVerifierKt.DATA_FILE_NAME, "org.example.app/", LONG_NAME, "stored.txt"), names);
+
+        EntryVerifier verifier = new EntryVerifier(signed, null, Utils.calcFingerprint(certificate));
+        Pair<String, byte[]> result = verifier.getStreamAndVerify(IndexJarSignerTest::readFully);
+        assertEquals(new String(Hex.encodeHex(certificate.getEncoded())), result.getFirst());
+        assertArrayEquals(indexData, result.getSecond());
+    }
+
+    @Test
+    public void testSignedJarCanBeSignedAgain() throws IOException, GeneralSecurityException, SigningException {
+        File signed = sign(writeUnsignedJar(EntryVerifierKt.DATA_FILE_NAME, randomBytes(1024)),
+                IndexJarSigner.SHA256);
+        File signedAgain = sign(signed, IndexJarSigner.SHA256);
+        try (JarFile jarFile = new JarFile(signedAgain, true)) {
+            assertEquals(7, jarFile.size());
+        }
+        new EntryVerifier(signedAgain, null, Utils.calcFingerprint(certificate))
+                .getStreamAndVerify(IndexJarSignerTest::readFully);
+    }
+
+    @Test
+    public void testIndexV1() throws IOException, GeneralSecurityException, SigningException {
+        File signed = sign(writeUnsignedJar(IndexV1VerifierKt.DATA_FILE_NAME, randomBytes(1024)),
+                IndexJarSigner.SHA1);
+        try (JarFile jarFile = new JarFile(signed, false)) {
+            Attributes attributes = jarFile.getManifest().getAttributes(IndexV1VerifierKt.DATA_FILE_NAME);
+            assertEquals(1, attributes.size());
+            assertEquals(Base64.encodeToString(DigestUtils.sha1(indexData), Base64.NO_WRAP),
+                    attributes.getValue("SHA1-Digest"));
+            String signatureFile =
+                    new String(readFully(jarFile.getInputStream(jarFile.getEntry("META-INF/CERT.SF"))));
+            assertTrue(signatureFile.contains("SHA-256-Digest-Manifest: "));
+            assertFalse(signatureFile.contains("SHA1"));
+        }
+
+        assumeFalse("Needs SHA1 enabled in order to verify index-v1.jar",
+                TextUtils.isEmpty(System.getenv("CI")));
+        IndexV1Verifier verifier = new IndexV1Verifier(signed, null, Utils.calcFingerprint(certificate));
+        assertArrayEquals(indexData, verifier.getStreamAndVerify(IndexJarSignerTest::readFully).getSecond());
+    }
+
+    @Test
+    public void testIsSignatureRelated() {
+        assertTrue(IndexJarSigner.isSignatureRelated("META-INF/MANIFEST.MF"));
+        assertTrue(IndexJarSigner.isSignatureRelated("META-INF/CERT.SF"));
+        assertTrue(IndexJarSigner.isSignatureRelated("meta-inf/cert.rsa"));
+        assertTrue(IndexJarSigner.isSignatureRelated("META-INF/OTHER.EC"));
+        assertTrue(IndexJarSigner.isSignatureRelated("META-INF/SIG-FOO"));
+        assertFalse(IndexJarSigner.isSignatureRelated("META-INF/services/foo.RSA"));
+        assertFalse(IndexJarSigner.isSignatureRelated("META-INF/LICENSE"));
+        assertFalse(IndexJarSigner.isSignatureRelated("index-v1.json"));
+        assertFalse(IndexJarSigner.isSignatureRelated("CERT.SF"));
+    }
+
+    /**
+     * The swap index used to be signed with {@link ZipSigner}, so the jars must
+     * carry the same content as before.
+     */
+    @Test
+    public void testSameEntriesAsZipSigner() throws Exception {
+        File unsigned = writeUnsignedJar(IndexV1VerifierKt.DATA_FILE_NAME, randomBytes(1024 * 1024));
+        File zipSigned = folder.newFile();
+        ZipSigner zipSigner = new ZipSigner();
+        zipSigner.setKeys("test", certificate, privateKey, LocalRepoKeyStore.DEFAULT_SIG_ALG, null);
+        zipSigner.signZip(unsigned.getAbsolutePath(), zipSigned.getAbsolutePath());
+        File signed = sign(unsigned, IndexJarSigner.SHA1);
+
+        try (JarFile expected = new JarFile(zipSigned, false); JarFile actual = new JarFile(signed, false)) {
+            List<String> expectedNames = getUnsignedEntryNames(expected);
+            assertEquals(expectedNames, getUnsignedEntryNames(actual));
+            for (String name : expectedNames) {
+                try (InputStream e = expected.getInputStream(expected.getEntry(name));
+                     InputStream a = actual.getInputStream(actual.getEntry(name))) {
+                    assertArrayEquals(name, IOUtils.toByteArray(e), IOUtils.toByteArray(a));
+                }
+            }
+        }
+    }
+
+    private static List<String> getUnsignedEntryNames(JarFile jarFile) {
+        List<String> names = new ArrayList<>();
+        Enumeration<JarEntry> entries = jarFile.entries();
+        while (entries.hasMoreElements()) {
+            String name = entries.nextElement().getName();
+            if (!IndexJarSigner.isSignatureRelated(name)) {
+                names.add(name);
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    @Test
+    public void testManifestLinesAreWrapped() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IndexJarSigner.writeAttribute(out, "Name", LONG_NAME);
+        String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\r\n");
+        assertEquals(2, lines.length);
+        // the two bytes of the character would make the first line 73 bytes long
+        assertEquals(71, lines[0].getBytes(StandardCharsets.UTF_8).length);
+        assertTrue(lines[1].startsWith(" é"));
+        assertEquals("Name: " + LONG_NAME, lines[0] + lines[1].substring(1));
+    }
+}
@@ -56,14 +56,20 @@ import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.shadows.ShadowLog;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Synced from NanoHTTPD's {@code TestHttpServer.java}
@@ -97,6 +103,8 @@ public class LocalHTTPDTest {
         assertTrue(webRoot.mkdir());
         assertTrue(webRoot.isDirectory());
 
+        ResponseMetadataCache.get().invalidate();
+
         final File testdir = new File(webRoot, "testdir");
         assertTrue(testdir.mkdir());
         IOUtils.copy(classLoader.getResourceAsStream("test.html"),
@@ -436,6 +444,247 @@ public class LocalHTTPDTest {
         }
     }
 
+    @Test
+    public void testMultipleRanges() throws IOException {
+        String fileString = FileUtils.readFileToString(new File(webRoot, "testdir/test.html"), "UTF-8");
+        HttpURLConnection connection = null;
+        try {
+            connection = getNoKeepAliveConnection(baseUrl + "/testdir/test.html");
+            connection.addRequestProperty("range", "bytes=0-4,10-14");
+            Assert.assertEquals(206, connection.getResponseCode());
+            Assert.assertThat(connection.getContentType(), containsString("multipart/byteranges; boundary="));
+            String responseString = IOUtils.toString(connection.getInputStream(), "UTF-8");
+            Assert.assertEquals("The 'Content-Length' should be exactly the length of all parts",
+                    String.valueOf(responseString.length()), connection.getHeaderField("Content-Length"));
+            Assert.assertThat(responseString, containsString("Content-Range: bytes 0-4/84\r\n\r\n"
+                    + fileString.substring(0, 5) + "\r\n"));
+            Assert.assertThat(responseString, containsString("Content-Range: bytes 10-14/84\r\n\r\n"
+                    + fileString.substring(10, 15) + "\r\n"));
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    @Test
+    public void testIfRangeHeader() throws IOException {
+        File file = new File(webRoot, "testdir/test.html");
+        HttpURLConnection connection = null;
+        String etag;
+        try {
+            connection = getNoKeepAliveConnection(baseUrl + "/testdir/test.html");
+            connection.setRequestMethod("HEAD");
+            etag = connection.getHeaderField(HEADER_FIELD_ETAG);
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+
+        assertTrue("The ETag should be strong and quoted", etag.startsWith("\"") && etag.endsWith("\""));
+        String[] matching = {etag, " " + etag + " ", LocalHTTPD.formatDate(file.lastModified())};
+        for (String ifRange : matching) {
+            try {
+                connection = getNoKeepAliveConnection(baseUrl + "/testdir/test.html");
+                connection.addRequestProperty("range", "bytes=10-40");
+                connection.addRequestProperty("if-range", ifRange);
+                Assert.assertEquals("A matching 'if-range' header should keep the range: " + ifRange,
+                        206, connection.getResponseCode());
+                Assert.assertEquals("31", connection.getHeaderField("Content-Length"));
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        String[] notMatching = {"\"abc\"", "W/" + etag, LocalHTTPD.formatDate(file.lastModified() - 60000)};
+        for (String ifRange : notMatching) {
+            try {
+                connection = getNoKeepAliveConnection(baseUrl + "/testdir/test.html");
+                connection.addRequestProperty("range", "bytes=10-40");
+                connection.addRequestProperty("if-range", ifRange);
+                Assert.assertEquals("The whole file should be sent if the 'if-range' header does not match: " + ifRange,
+                        200, connection.getResponseCode());
+                Assert.assertEquals("84", connection.getHeaderField("Content-Length"));
+                Assert.assertNull(connection.getHeaderField("Content-Range"));
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+
+    @Test
+    public void testGzipEncoding() throws IOException {
+        StringBuilder json = new StringBuilder("{\"packages\": [");
+        for (int i = 0; i < 100; i++) {
+            json.append("{\"packageName\": \"org.example.app").append(i).append("\"},");
+        }
+        json.append("{}]}");
+        File file = new File(webRoot, "index-v1.json");
+        FileUtils.writeStringToFile(file, json.toString(), "UTF-8");
+
+        HttpURLConnection connection = getNoKeepAliveConnection(baseUrl + "/index-v1.json");
+        connection.addRequestProperty("accept-encoding", "deflate, gzip;q=0.8");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("application/json", connection.getContentType());
+        assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+        assertEquals("Accept-Encoding", connection.getHeaderField("Vary"));
+        byte[] gzipped = IOUtils.toByteArray(connection.getInputStream());
+        assertEquals(String.valueOf(gzipped.length), connection.getHeaderField("Content-Length"));
+        assertTrue(gzipped.length < file.length());
+        assertEquals(json.toString(), IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(gzipped)), "UTF-8"));
+        String gzipEtag = connection.getHeaderField(HEADER_FIELD_ETAG);
+        connection.disconnect();
+
+        connection = getNoKeepAliveConnection(baseUrl + "/index-v1.json");
+        connection.addRequestProperty("accept-encoding", "gzip;q=0, identity");
+        assertEquals(200, connection.getResponseCode());
+        Assert.assertNull(connection.getHeaderField("Content-Encoding"));
+        assertEquals(json.toString(), IOUtils.toString(connection.getInputStream(), "UTF-8"));
+        assertNotEquals("Both variants need their own ETag", gzipEtag, connection.getHeaderField(HEADER_FIELD_ETAG));
+        connection.disconnect();
+
+        // the cached gzip variant only matches the gzip ETag
+        connection = getNoKeepAliveConnection(baseUrl + "/index-v1.json");
+        connection.addRequestProperty("accept-encoding", "gzip");
+        connection.addRequestProperty("if-none-match", "\"foo\", W/" + gzipEtag);
+        assertEquals(304, connection.getResponseCode());
+        assertEquals(gzipEtag, connection.getHeaderField(HEADER_FIELD_ETAG));
+        Assert.assertNull("A 304 has no body, so no Content-Type", connection.getContentType());
+        connection.disconnect();
+
+        connection = getNoKeepAliveConnection(baseUrl + "/index-v1.json");
+        connection.addRequestProperty("if-none-match", gzipEtag);
+        assertEquals(200, connection.getResponseCode());
+        connection.disconnect();
+
+        // ranges are always about the uncompressed file
+        connection = getNoKeepAliveConnection(baseUrl + "/index-v1.json");
+        connection.addRequestProperty("accept-encoding", "gzip");
+        connection.addRequestProperty("range", "bytes=0-9");
+        assertEquals(206, connection.getResponseCode());
+        Assert.assertNull(connection.getHeaderField("Content-Encoding"));
+        assertEquals(json.substring(0, 10), IOUtils.toString(connection.getInputStream(), "UTF-8"));
+        connection.disconnect();
+    }
+
+    @Test
+    public void testGzipEncodingIsAppliedOnce() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            builder.append("Lorem ipsum dolor sit amet. ");
+        }
+        String text = builder.toString();
+        File file = new File(webRoot, "index.html");
+        FileUtils.writeStringToFile(file, text, "UTF-8");
+
+        HttpURLConnection connection = getNoKeepAliveConnection(baseUrl + "/index.html");
+        connection.addRequestProperty("accept-encoding", "gzip");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+        Assert.assertNull(connection.getHeaderField("Transfer-Encoding"));
+        byte[] body = IOUtils.toByteArray(connection.getInputStream());
+        assertEquals(String.valueOf(body.length), connection.getHeaderField("Content-Length"));
+        assertEquals(text, IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(body)), "UTF-8"));
+        connection.disconnect();
+
+        // too large to be kept compressed, so it gets served as it is, not compressed on the fly
+        byte[] large = new byte[(int) ResponseMetadataCache.MAX_COMPRESSIBLE_SIZE + 1];
+        Arrays.fill(large, (byte) 'a');
+        File largeFile = new File(webRoot, "large.txt");
+        FileUtils.writeByteArrayToFile(largeFile, large);
+        connection = getNoKeepAliveConnection(baseUrl + "/large.txt");
+        connection.addRequestProperty("accept-encoding", "gzip");
+        assertEquals(200, connection.getResponseCode());
+        Assert.assertNull(connection.getHeaderField("Content-Encoding"));
+        assertEquals(String.valueOf(large.length), connection.getHeaderField("Content-Length"));
+        Assert.assertArrayEquals(large, IOUtils.toByteArray(connection.getInputStream()));
+        connection.disconnect();
+        assertTrue(largeFile.delete());
+    }
+
+    @Test
+    public void testIfModifiedSinceHeader() throws IOException {
+        File file = new File(webRoot, "testdir/test.html");
+        HttpURLConnection connection = getNoKeepAliveConnection(baseUrl + "/testdir/test.html");
+        connection.addRequestProperty("if-modified-since", LocalHTTPD.formatDate(file.lastModified()));
+        assertEquals(304, connection.getResponseCode());
+        connection.disconnect();
+
+        connection = getNoKeepAliveConnection(baseUrl + "/testdir/test.html");
+        connection.addRequestProperty("if-modified-since", LocalHTTPD.formatDate(file.lastModified() - 60000));
+        assertEquals(200, connection.getResponseCode());
+        connection.disconnect();
+
+        // if-none-match wins over if-modified-since
+        connection = getNoKeepAliveConnection(baseUrl + "/testdir/test.html");
+        connection.addRequestProperty("if-modified-since", LocalHTTPD.formatDate(file.lastModified()));
+        connection.addRequestProperty("if-none-match", "\"foo\"");
+        assertEquals(200, connection.getResponseCode());
+        connection.disconnect();
+    }
+
+    @Test
+    public void testAcceptsGzip() {
+        assertFalse(LocalHTTPD.acceptsGzip(null));
+        assertFalse(LocalHTTPD.acceptsGzip(""));
+        assertFalse(LocalHTTPD.acceptsGzip("identity"));
+        assertFalse(LocalHTTPD.acceptsGzip("gzip;q=0"));
+        assertFalse(LocalHTTPD.acceptsGzip("*, gzip; q=0.0"));
+        assertFalse(LocalHTTPD.acceptsGzip("gzip;q=foo"));
+        assertTrue(LocalHTTPD.acceptsGzip("gzip"));
+        assertTrue(LocalHTTPD.acceptsGzip("deflate, GZIP;q=0.5"));
+        assertTrue(LocalHTTPD.acceptsGzip("x-gzip"));
+        assertTrue(LocalHTTPD.acceptsGzip("*"));
+    }
+
+    @Test
+    public void testFileLargerThan2GB() throws IOException {
+        long length = 3L * 1024 * 1024 * 1024;
+        File file = new File(webRoot, "large.bin");
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(length); // sparse, so it takes no space
+        }
+        HttpURLConnection connection = null;
+        try {
+            connection = getNoKeepAliveConnection(baseUrl + "/large.bin");
+            connection.setRequestMethod("HEAD");
+            Assert.assertEquals(200, connection.getResponseCode());
+            Assert.assertEquals(String.valueOf(length), connection.getHeaderField("Content-Length"));
+            connection.disconnect();
+
+            connection = getNoKeepAliveConnection(baseUrl + "/large.bin");
+            connection.addRequestProperty("range", "bytes=3000000000-3000000009");
+            Assert.assertEquals(206, connection.getResponseCode());
+            Assert.assertEquals("bytes 3000000000-3000000009/" + length, connection.getHeaderField("Content-Range"));
+            Assert.assertEquals(10, IOUtils.toByteArray(connection.getInputStream()).length);
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            assertTrue(file.delete());
+        }
+    }
+
+    /**
+     * A file too large to be sent in one write still arrives completely and in order.
+     */
+    @Test
+    public void testLargeFileIsServedCompletely() throws IOException {
+        byte[] data = new byte[3 * 1024 * 1024 + 17];
+        new Random(42).nextBytes(data);
+        File file = new File(webRoot, "large.bin");
+        FileUtils.writeByteArrayToFile(file, data);
+        HttpURLConnection connection = getNoKeepAliveConnection(baseUrl + "/large.bin");
+        try (InputStream inputStream = connection.getInputStream()) {
+            assertEquals(String.valueOf(data.length), connection.getHeaderField("Content-Length"));
+            Assert.assertArrayEquals(data, IOUtils.toByteArray(inputStream));
+        } finally {
+            connection.disconnect();
+        }
+        assertTrue(file.delete());
+    }
+
     private HttpURLConnection getNoKeepAliveConnection(String urlString) throws IOException {
         URL url = new URL(urlString);
         HttpURLConnection connection = (HttpURLConnection) url.openConnection();
@@ -0,0 +1,124 @@
+package org.fdroid.fdroid.nearby;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class NetworkStateMachineTest {
+
+    private static final Object WIFI = new Object();
+    private static final Object ETHERNET = new Object();
+    private static final NetworkStateMachine.Address WIFI_ADDRESS =
+            new NetworkStateMachine.Address("wlan0", "192.168.1.23", 24);
+    private static final NetworkStateMachine.Address ETHERNET_ADDRESS =
+            new NetworkStateMachine.Address("eth0", "10.0.0.5", 8);
+    private static final NetworkStateMachine.Address HOTSPOT_ADDRESS =
+            new NetworkStateMachine.Address("ap0", "192.168.43.1", 24);
+
+    private final List<NetworkStateMachine.Address> changes = new ArrayList<>();
+    private final NetworkStateMachine stateMachine = new NetworkStateMachine(changes::add);
+
+    @Test
+    public void testWifiConnectsAndDisconnects() {
+        // connected, but DHCP is not done yet
+        stateMachine.onLinkPropertiesChanged(WIFI, null);
+        assertEquals(0, changes.size());
+
+        stateMachine.onLinkPropertiesChanged(WIFI, WIFI_ADDRESS);
+        assertEquals(Arrays.asList(WIFI_ADDRESS), changes);
+        assertEquals(WIFI_ADDRESS, stateMachine.getAddress());
+
+        stateMachine.onLost(WIFI);
+        assertEquals(Arrays.asList(WIFI_ADDRESS, null), changes);
+        assertNull(stateMachine.getAddress());
+    }
+
+    @Test
+    public void testRepeatedEventsDoNotCauseChanges() {
+        stateMachine.onLinkPropertiesChanged(WIFI, WIFI_ADDRESS);
+        // like a renewed DHCP lease, or the same event sent several times
+        stateMachine.onLinkPropertiesChanged(WIFI, new NetworkStateMachine.Address("wlan0", "192.168.1.23", 24));
+        stateMachine.onLinkPropertiesChanged(WIFI, WIFI_ADDRESS);
+        stateMachine.onHotspotChanged(null);
+        stateMachine.onLost(ETHERNET);
+        assertEquals(Arrays.asList(WIFI_ADDRESS), changes);
+
+        stateMachine.onLost(WIFI);
+        stateMachine.onLost(WIFI);
+        assertEquals(Arrays.asList(WIFI_ADDRESS, null), changes);
+    }
+
+    @Test
+    public void testAddressChanges() {
+        stateMachine.onLinkPropertiesChanged(WIFI, WIFI_ADDRESS);
+        NetworkStateMachine.Address newAddress = new NetworkStateMachine.Address("wlan0", "192.168.1.42", 24);
+        stateMachine.onLinkPropertiesChanged(WIFI, newAddress);
+        NetworkStateMachine.Address newPrefix = new NetworkStateMachine.Address("wlan0", "192.168.1.42", 16);
+        stateMachine.onLinkPropertiesChanged(WIFI, newPrefix);
+        assertEquals(Arrays.asList(WIFI_ADDRESS, newAddress, newPrefix), changes);
+        assertEquals("192.168.1.42/16", stateMachine.getAddress().getCidr());
+    }
+
+    @Test
+    public void testNetworkIsPreferredOverHotspot() {
+        stateMachine.onHotspotChanged(HOTSPOT_ADDRESS);
+        assertEquals(Arrays.asList(HOTSPOT_ADDRESS), changes);
+
+        stateMachine.onLinkPropertiesChanged(WIFI, WIFI_ADDRESS);
+        assertEquals(Arrays.asList(HOTSPOT_ADDRESS, WIFI_ADDRESS), changes);
+
+        // switching Wi-Fi off goes back to the hotspot that is still on
+        stateMachine.onLost(WIFI);
+        assertEquals(Arrays.asList(HOTSPOT_ADDRESS, WIFI_ADDRESS, HOTSPOT_ADDRESS), changes);
+
+        stateMachine.onHotspotChanged(null);
+        assertEquals(Arrays.asList(HOTSPOT_ADDRESS, WIFI_ADDRESS, HOTSPOT_ADDRESS, null), changes);
+    }
+
+    @Test
+    public void testHotspotChangesWhileOnWifi() {
+        stateMachine.onLinkPropertiesChanged(WIFI, WIFI_ADDRESS);
+        stateMachine.onHotspotChanged(HOTSPOT_ADDRESS);
+        stateMachine.onHotspotChanged(null);
+        assertEquals(Arrays.asList(WIFI_ADDRESS), changes);
+    }
+
+    @Test
+    public void testFirstNetworkStays() {
+        stateMachine.onLinkPropertiesChanged(WIFI, WIFI_ADDRESS);
+        stateMachine.onLinkPropertiesChanged(ETHERNET, ETHERNET_ADDRESS);
+        assertEquals(Arrays.asList(WIFI_ADDRESS), changes);
+
+        stateMachine.onLost(WIFI);
+        assertEquals(Arrays.asList(WIFI_ADDRESS, ETHERNET_ADDRESS), changes);
+
+        // a network that reconnects comes after the ones that stayed
+        stateMachine.onLinkPropertiesChanged(WIFI, WIFI_ADDRESS);
+        assertEquals(Arrays.asList(WIFI_ADDRESS, ETHERNET_ADDRESS), changes);
+    }
+
+    @Test
+    public void testNetworkLosesItsAddress() {
+        stateMachine.onHotspotChanged(HOTSPOT_ADDRESS);
+        stateMachine.onLinkPropertiesChanged(WIFI, WIFI_ADDRESS);
+        stateMachine.onLinkPropertiesChanged(WIFI, null);
+        assertEquals(Arrays.asList(HOTSPOT_ADDRESS, WIFI_ADDRESS, HOTSPOT_ADDRESS), changes);
+    }
+
+    @Test
+    public void testIsNetworkInterface() {
+        assertFalse(stateMachine.isNetworkInterface("wlan0"));
+        stateMachine.onLinkPropertiesChanged(WIFI, WIFI_ADDRESS);
+        assertTrue(stateMachine.isNetworkInterface("wlan0"));
+        assertFalse(stateMachine.isNetworkInterface("ap0"));
+        stateMachine.onLost(WIFI);
+        assertFalse(stateMachine.isNetworkInterface("wlan0"));
+    }
+}
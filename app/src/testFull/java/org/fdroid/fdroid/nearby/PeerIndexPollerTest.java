@@ -0,0 +1,209 @@
+package org.fdroid.fdroid.nearby;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.fdroid.database.Repository;
+import org.fdroid.fdroid.FDroidApp;
+import org.fdroid.fdroid.Preferences;
+import org.fdroid.fdroid.Utils;
+import org.fdroid.index.IndexParser;
+import org.fdroid.index.IndexParserKt;
+import org.fdroid.index.v1.IndexV1;
+import org.fdroid.index.v1.IndexV1UpdaterKt;
+import org.fdroid.index.v1.IndexV1VerifierKt;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Two swap peers, each with their own {@link LocalHTTPD}, get polled independently.
+ * Signing is not what is tested here, so the index is parsed without verifying it.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PeerIndexPollerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final SwapPeer peer1 = new SwapPeer(38724);
+    private final SwapPeer peer2 = new SwapPeer(38725);
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        Preferences.setupForTests(context);
+        ResponseMetadataCache.get().invalidate();
+        peer1.start(context, folder.newFolder());
+        peer2.start(context, folder.newFolder());
+    }
+
+    @After
+    public void tearDown() {
+        peer1.httpd.stop();
+        peer2.httpd.stop();
+    }
+
+    @Test
+    public void testOnlyChangedIndexGetsVerified() throws Exception {
+        peer1.writeIndex(1_000L);
+        peer2.writeIndex(2_000L);
+        TestPoller poller1 = peer1.createPoller(folder.newFolder());
+        TestPoller poller2 = peer2.createPoller(folder.newFolder());
+
+        // the first poll always fetches the whole index
+        assertEquals(1_000L, getTimestamp(poller1.poll()));
+        assertEquals(2_000L, getTimestamp(poller2.poll()));
+        assertEquals(1, poller1.verified);
+        assertEquals(1, poller2.verified);
+        assertEquals(1, peer1.countRequests(NanoHTTPD.Method.GET));
+        assertEquals(1, peer2.countRequests(NanoHTTPD.Method.GET));
+
+        // nothing changed, so no download and no verification
+        for (int i = 0; i < 3; i++) {
+            assertNull(poller1.poll());
+            assertNull(poller2.poll());
+        }
+        assertEquals(1, poller1.verified);
+        assertEquals(1, poller2.verified);
+        assertEquals(1, peer1.countRequests(NanoHTTPD.Method.GET));
+        assertEquals(1, peer2.countRequests(NanoHTTPD.Method.GET));
+        assertEquals(4, peer1.countRequests(NanoHTTPD.Method.HEAD));
+
+        // only the second peer updates its repo
+        peer2.writeIndex(3_000L);
+        assertNull(poller1.poll());
+        assertEquals(3_000L, getTimestamp(poller2.poll()));
+        assertEquals(1, poller1.verified);
+        assertEquals(2, poller2.verified);
+        assertEquals(1, peer1.countRequests(NanoHTTPD.Method.GET));
+        assertEquals(2, peer2.countRequests(NanoHTTPD.Method.GET));
+
+        assertNull(poller2.poll());
+        assertEquals(2, poller2.verified);
+    }
+
+    @Test
+    public void testIndexThatFailedToVerifyGetsFetchedAgain() throws Exception {
+        peer1.writeIndex(1_000L);
+        TestPoller poller = peer1.createPoller(folder.newFolder());
+        poller.failVerification = true;
+        assertThrows(IllegalStateException.class, poller::poll);
+        poller.failVerification = false;
+        assertEquals(1_000L, getTimestamp(poller.poll()));
+        assertEquals(2, poller.verified);
+        assertEquals(2, peer1.countRequests(NanoHTTPD.Method.GET));
+    }
+
+    private static long getTimestamp(IndexV1 index) {
+        assertNotNull(index);
+        return index.getRepo().getTimestamp();
+    }
+
+    private static class TestPoller extends PeerIndexPoller {
+        private int verified;
+        private boolean failVerification;
+
+        TestPoller(Repository repo, File cacheDir) {
+            super(repo, "", cacheDir);
+        }
+
+        @NonNull
+        @Override
+        IndexV1 verify(File swapJarFile) {
+            verified++;
+            if (failVerification) throw new IllegalStateException("Simulated verification failure");
+            try (JarFile jarFile = new JarFile(swapJarFile, false)) {
+                JarEntry entry = jarFile.getJarEntry(IndexV1VerifierKt.DATA_FILE_NAME);
+                return IndexParserKt.parseV1(IndexParser.INSTANCE, jarFile.getInputStream(entry));
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private static class SwapPeer {
+        private final int port;
+        private final List<NanoHTTPD.Method> requests = Collections.synchronizedList(new ArrayList<>());
+        private File repoDir;
+        private LocalHTTPD httpd;
+
+        SwapPeer(int port) {
+            this.port = port;
+        }
+
+        void start(Context context, File webRoot) throws Exception {
+            assertFalse(Utils.isServerSocketInUse(port));
+            repoDir = new File(webRoot, "fdroid/repo");
+            assertTrue(repoDir.mkdirs());
+            httpd = new LocalHTTPD(context, "localhost", port, webRoot, false) {
+                @Override
+                public Response serve(IHTTPSession session) {
+                    requests.add(session.getMethod());
+                    return super.serve(session);
+                }
+            };
+            httpd.start();
+            do {
+                Thread.sleep(100);
+            } while (!Utils.isServerSocketInUse(port));
+        }
+
+        TestPoller createPoller(File cacheDir) {
+            String address = "http://localhost:" + port + "/fdroid/repo";
+            return new TestPoller(FDroidApp.createSwapRepo(address, null), cacheDir);
+        }
+
+        /**
+         * Writes an {@code index-v1.jar} like {@link LocalRepoManager} does,
+         * so it always gets a new modification time.
+         */
+        void writeIndex(long timestamp) throws IOException {
+            File jar = new File(repoDir, IndexV1UpdaterKt.SIGNED_FILE_NAME);
+            long lastModified = jar.lastModified();
+            String json = String.format(Locale.ENGLISH, "{\"repo\": {\"timestamp\": %d, "
+                    + "\"version\": 20001, \"name\": \"Swap\", \"icon\": \"swap-icon.png\", "
+                    + "\"address\": \"http://localhost:%d/fdroid/repo\", \"description\": \"A swap repo\"}}",
+                    timestamp, port);
+            try (JarOutputStream jo = new JarOutputStream(new FileOutputStream(jar))) {
+                jo.putNextEntry(new JarEntry(IndexV1VerifierKt.DATA_FILE_NAME));
+                jo.write(json.getBytes(StandardCharsets.UTF_8));
+            }
+            assertTrue(jar.setLastModified(Math.max(lastModified + 2000, System.currentTimeMillis())));
+            ResponseMetadataCache.get().invalidate();
+        }
+
+        int countRequests(NanoHTTPD.Method method) {
+            synchronized (requests) {
+                return Collections.frequency(requests, method);
+            }
+        }
+    }
+}
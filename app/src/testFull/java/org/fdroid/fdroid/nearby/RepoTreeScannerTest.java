@@ -0,0 +1,243 @@
+package org.fdroid.fdroid.nearby;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.Manifest;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Document;
+import android.provider.DocumentsProvider;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(RobolectricTestRunner.class)
+public class RepoTreeScannerTest {
+
+    private static final String AUTHORITY = "org.fdroid.fdroid.test.documents";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File root;
+    private FakeDocumentsProvider provider;
+    private Uri treeUri;
+
+    @Before
+    public void setUp() throws IOException {
+        root = folder.newFolder("usb");
+        for (String path : Arrays.asList(
+                "fdroid/repo/index-v1.jar",
+                "fdroid/repo/icons-640/org.example.app.png",
+                "fdroid/repo/org.example.app/en-US/phoneScreenshots/1.png",
+                "fdroid/archive/index-v1.jar",
+                "mirror/deep/down/repo/index-v1.jar",
+                ".hidden/fdroid/repo/index-v1.jar",
+                "LOST.DIR/repo/index-v1.jar",
+                "Android/data/org.example.app/files/repo/index-v1.jar",
+                "Music/album/index-v1.jar.txt",
+                "Music/other/album/song.ogg")) {
+            FileUtils.writeStringToFile(new File(root, path), path, "UTF-8");
+        }
+        setLastModified(root, 1_000_000L);
+
+        ProviderInfo info = new ProviderInfo();
+        info.authority = AUTHORITY;
+        info.exported = true;
+        info.grantUriPermissions = true;
+        info.readPermission = Manifest.permission.MANAGE_DOCUMENTS;
+        info.writePermission = Manifest.permission.MANAGE_DOCUMENTS;
+        provider = Robolectric.buildContentProvider(FakeDocumentsProvider.class).create(info).get();
+        treeUri = DocumentsContract.buildTreeDocumentUri(AUTHORITY, root.getAbsolutePath());
+    }
+
+    private static void setLastModified(File dir, long lastModified) {
+        for (File file : FileUtils.listFilesAndDirs(dir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE)) {
+            assertTrue(file.setLastModified(lastModified));
+        }
+    }
+
+    private Set<String> scanDocuments() throws InterruptedException {
+        RepoTreeScanner.DocumentScanner scanner = new RepoTreeScanner.DocumentScanner(
+                ApplicationProvider.getApplicationContext().getContentResolver(), treeUri);
+        return new HashSet<>(scanner.scan(Collections.singletonList(scanner.getRootDocumentId())));
+    }
+
+    private Set<String> paths(String... relativePaths) {
+        Set<String> paths = new HashSet<>();
+        for (String relativePath : relativePaths) {
+            paths.add(new File(root, relativePath).getAbsolutePath());
+        }
+        return paths;
+    }
+
+    @Test
+    public void testFindsReposAndSkipsWhatCannotHoldThem() throws InterruptedException {
+        assertEquals(paths("fdroid/repo", "fdroid/archive", "mirror/deep/down/repo"), scanDocuments());
+
+        Set<String> listed = new HashSet<>(provider.listedDirectories);
+        assertEquals("each directory is only listed once", provider.listedDirectories.size(), listed.size());
+        for (String dir : listed) {
+            assertFalse(dir, dir.contains(".hidden"));
+            assertFalse(dir, dir.contains("LOST.DIR"));
+            assertFalse(dir, dir.contains("Android"));
+            assertFalse(dir, dir.contains("fdroid/repo/"));
+        }
+        assertTrue(listed.contains(new File(root, "Music/other/album").getAbsolutePath()));
+        // a single query for the root, the rest comes with the listings
+        assertEquals(1, provider.documentQueries.get());
+    }
+
+    @Test
+    public void testUnchangedTreeIsNotListedAgain() throws IOException, InterruptedException {
+        Set<String> repos = scanDocuments();
+        provider.listedDirectories.clear();
+        provider.documentQueries.set(0);
+
+        assertEquals(repos, scanDocuments());
+        assertEquals(Collections.emptyList(), provider.listedDirectories);
+        // only the last modified time of each of the 12 directories that get searched
+        assertEquals(12, provider.documentQueries.get());
+
+        File album = new File(root, "Music/other/album");
+        FileUtils.writeStringToFile(new File(album, "repo/index-v1.jar"), "new", "UTF-8");
+        assertTrue(album.setLastModified(2_000_000L));
+        provider.listedDirectories.clear();
+
+        assertEquals(paths("fdroid/repo", "fdroid/archive", "mirror/deep/down/repo", "Music/other/album/repo"),
+                scanDocuments());
+        assertEquals(new HashSet<>(Arrays.asList(album.getAbsolutePath(), album.getAbsolutePath() + "/repo")),
+                new HashSet<>(provider.listedDirectories));
+    }
+
+    @Test
+    public void testSubtreesAreSearchedInParallel() throws IOException, InterruptedException {
+        for (int i = 0; i < 50; i++) {
+            assertTrue(new File(root, "many/dir" + i + "/sub").mkdirs());
+        }
+        provider.delayMillis = 5;
+        assertEquals(paths("fdroid/repo", "fdroid/archive", "mirror/deep/down/repo"), scanDocuments());
+        assertTrue(provider.maxConcurrentQueries.get() > 1);
+        assertTrue(provider.maxConcurrentQueries.get() <= RepoTreeScanner.MAX_THREADS);
+    }
+
+    @Test
+    public void testFileScanner() throws InterruptedException {
+        List<File> roots = new ArrayList<>();
+        Collections.addAll(roots, root.listFiles());
+        Set<String> found = new HashSet<>();
+        for (File repoDir : new RepoTreeScanner.FileScanner().scan(roots)) {
+            found.add(repoDir.getAbsolutePath());
+        }
+        // the roots get searched even if they would be skipped further down
+        assertEquals(paths("fdroid/repo", "fdroid/archive", "mirror/deep/down/repo", ".hidden/fdroid/repo",
+                "LOST.DIR/repo", "Android/data/org.example.app/files/repo"), found);
+    }
+
+    /**
+     * Serves a directory on disk, using the absolute paths as document IDs.
+     */
+    public static class FakeDocumentsProvider extends DocumentsProvider {
+        private static final String[] DEFAULT_PROJECTION = {
+                Document.COLUMN_DOCUMENT_ID,
+                Document.COLUMN_DISPLAY_NAME,
+                Document.COLUMN_MIME_TYPE,
+                Document.COLUMN_LAST_MODIFIED,
+                Document.COLUMN_SIZE,
+                Document.COLUMN_FLAGS,
+        };
+
+        final List<String> listedDirectories = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger documentQueries = new AtomicInteger();
+        final AtomicInteger maxConcurrentQueries = new AtomicInteger();
+        private final AtomicInteger concurrentQueries = new AtomicInteger();
+        volatile long delayMillis;
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public Cursor queryRoots(String[] projection) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Cursor queryDocument(String documentId, String[] projection) {
+            documentQueries.incrementAndGet();
+            MatrixCursor cursor = new MatrixCursor(projection == null ? DEFAULT_PROJECTION : projection);
+            addRow(cursor, new File(documentId));
+            return cursor;
+        }
+
+        @Override
+        public Cursor queryChildDocuments(String parentDocumentId, String[] projection, String sortOrder) {
+            int concurrent = concurrentQueries.incrementAndGet();
+            maxConcurrentQueries.accumulateAndGet(concurrent, Math::max);
+            try {
+                if (delayMillis > 0) Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                concurrentQueries.decrementAndGet();
+            }
+            listedDirectories.add(parentDocumentId);
+            MatrixCursor cursor = new MatrixCursor(projection == null ? DEFAULT_PROJECTION : projection);
+            File[] files = new File(parentDocumentId).listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    addRow(cursor, file);
+                }
+            }
+            return cursor;
+        }
+
+        private static void addRow(MatrixCursor cursor, File file) {
+            MatrixCursor.RowBuilder row = cursor.newRow();
+            row.add(Document.COLUMN_DOCUMENT_ID, file.getAbsolutePath());
+            row.add(Document.COLUMN_DISPLAY_NAME, file.getName());
+            row.add(Document.COLUMN_MIME_TYPE,
+                    file.isDirectory() ? Document.MIME_TYPE_DIR : "application/octet-stream");
+            row.add(Document.COLUMN_LAST_MODIFIED, file.lastModified());
+            row.add(Document.COLUMN_SIZE, file.length());
+            row.add(Document.COLUMN_FLAGS, 0);
+        }
+
+        @Override
+        public boolean isChildDocument(String parentDocumentId, String documentId) {
+            return documentId.startsWith(parentDocumentId + "/");
+        }
+
+        @Override
+        public ParcelFileDescriptor openDocument(String documentId, String mode, CancellationSignal signal) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
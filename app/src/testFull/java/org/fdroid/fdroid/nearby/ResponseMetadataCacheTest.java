@@ -0,0 +1,122 @@
+package org.fdroid.fdroid.nearby;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
+public class ResponseMetadataCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ResponseMetadataCache cache = new ResponseMetadataCache();
+
+    private static String getJson(int numPackages) {
+        StringBuilder json = new StringBuilder("{\"packages\": [");
+        for (int i = 0; i < numPackages; i++) {
+            json.append("{\"packageName\": \"org.example.app").append(i).append("\"},");
+        }
+        return json.append("{}]}").toString();
+    }
+
+    @Test
+    public void testEntryGetsCachedUntilFileChanges() throws IOException {
+        File file = folder.newFile("index-v1.json");
+        FileUtils.writeStringToFile(file, getJson(10), "UTF-8");
+
+        ResponseMetadataCache.Entry entry = cache.getEntry(file, "application/json");
+        assertEquals(file.length(), entry.length);
+        assertEquals(file.lastModified(), entry.lastModified);
+        assertSame(entry, cache.getEntry(file, "application/json"));
+
+        FileUtils.writeStringToFile(file, getJson(20), "UTF-8");
+        ResponseMetadataCache.Entry changed = cache.getEntry(file, "application/json");
+        assertNotSame(entry, changed);
+        assertNotEquals(entry.etag, changed.etag);
+        assertEquals(file.length(), changed.length);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntriesGetDropped() throws IOException {
+        File[] files = new File[ResponseMetadataCache.MAX_ENTRIES + 1];
+        ResponseMetadataCache.Entry[] entries = new ResponseMetadataCache.Entry[files.length];
+        for (int i = 0; i < ResponseMetadataCache.MAX_ENTRIES; i++) {
+            files[i] = folder.newFile(i + ".html");
+            entries[i] = cache.getEntry(files[i], "text/html");
+        }
+        // using the first one again makes the second one the least recently used
+        assertSame(entries[0], cache.getEntry(files[0], "text/html"));
+
+        File last = folder.newFile("last.html");
+        cache.getEntry(last, "text/html");
+        assertEquals(ResponseMetadataCache.MAX_ENTRIES, cache.size());
+        assertSame(entries[0], cache.getEntry(files[0], "text/html"));
+        assertSame(entries[2], cache.getEntry(files[2], "text/html"));
+        assertNotSame(entries[1], cache.getEntry(files[1], "text/html"));
+    }
+
+    @Test
+    public void testInvalidate() throws IOException {
+        File file = folder.newFile("index.html");
+        FileUtils.writeStringToFile(file, "<html></html>", "UTF-8");
+        ResponseMetadataCache.Entry entry = cache.getEntry(file, "text/html");
+        cache.invalidate();
+        ResponseMetadataCache.Entry fresh = cache.getEntry(file, "text/html");
+        assertNotSame(entry, fresh);
+        // the content is the same, so the ETag is too
+        assertEquals(entry.etag, fresh.etag);
+    }
+
+    @Test
+    public void testGzipVariant() throws IOException {
+        String json = getJson(100);
+        File file = folder.newFile("index-v1.json");
+        FileUtils.writeStringToFile(file, json, "UTF-8");
+
+        ResponseMetadataCache.Entry entry = cache.getEntry(file, "application/json");
+        assertNotNull(entry.gzipped);
+        assertTrue(entry.gzipped.length < file.length());
+        byte[] uncompressed = IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(entry.gzipped)));
+        assertArrayEquals(FileUtils.readFileToByteArray(file), uncompressed);
+        assertTrue(entry.etag.startsWith("\"") && entry.etag.endsWith("\""));
+        assertTrue(entry.getGzipEtag().startsWith("\"") && entry.getGzipEtag().endsWith("\""));
+        assertNotEquals(entry.etag, entry.getGzipEtag());
+    }
+
+    @Test
+    public void testNoGzipVariant() throws IOException {
+        // too small to get smaller
+        File small = folder.newFile("small.html");
+        FileUtils.writeStringToFile(small, "<b>", "UTF-8");
+        assertNull(cache.getEntry(small, "text/html").gzipped);
+
+        // already compressed
+        File icon = folder.newFile("icon.png");
+        FileUtils.writeStringToFile(icon, getJson(100), "UTF-8");
+        assertNull(cache.getEntry(icon, "image/png").gzipped);
+
+        // too big to keep in memory
+        File big = folder.newFile("big.json");
+        FileUtils.writeStringToFile(big, getJson(200_000), "UTF-8");
+        assertTrue(big.length() > ResponseMetadataCache.MAX_COMPRESSIBLE_SIZE);
+        ResponseMetadataCache.Entry entry = cache.getEntry(big, "application/json");
+        assertNull(entry.gzipped);
+        assertEquals(big.length(), entry.length);
+    }
+}
@@ -0,0 +1,227 @@
+package org.fdroid.fdroid.nearby;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.apache.commons.io.FileUtils;
+import org.fdroid.fdroid.Utils;
+import org.fdroid.index.v2.FileV1;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import vendored.org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Several swap peers, each with their own {@link LocalHTTPD}, which all have the same APK.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SwarmDownloaderTest {
+
+    private static final String APK_PATH = "/fdroid/repo/app.apk";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<SwapPeer> peers = new ArrayList<>();
+    private byte[] apk;
+    private FileV1 apkFile;
+    private File destFile;
+
+    @Before
+    public void setUp() throws IOException {
+        ResponseMetadataCache.get().invalidate();
+        // not a multiple of the chunk size, so the last chunk is shorter
+        apk = new byte[6 * ChunkManifest.DEFAULT_CHUNK_SIZE + 12_345];
+        new Random(42).nextBytes(apk);
+        apkFile = new FileV1(APK_PATH, DigestUtils.sha256Hex(apk), (long) apk.length, null);
+        destFile = new File(folder.newFolder(), "app.apk");
+    }
+
+    @After
+    public void tearDown() {
+        for (SwapPeer peer : peers) {
+            peer.httpd.stop();
+        }
+    }
+
+    private SwapPeer startPeer(int port, byte[] content) throws Exception {
+        SwapPeer peer = new SwapPeer(port);
+        peer.start(ApplicationProvider.getApplicationContext(), folder.newFolder(), content);
+        peers.add(peer);
+        return peer;
+    }
+
+    private SwarmDownloader createDownloader() {
+        List<SwarmDownloader.Source> sources = new ArrayList<>();
+        for (SwapPeer peer : peers) {
+            sources.add(new SwarmDownloader.HttpSource("http://localhost:" + peer.port + APK_PATH));
+        }
+        return new SwarmDownloader(sources, apkFile, destFile);
+    }
+
+    @Test
+    public void testChunkManifest() throws IOException {
+        File file = folder.newFile();
+        FileUtils.writeByteArrayToFile(file, apk);
+        ChunkManifest manifest = ChunkManifest.create(file, ChunkManifest.DEFAULT_CHUNK_SIZE);
+        assertEquals(DigestUtils.sha256Hex(apk), manifest.getSha256());
+        assertEquals(apk.length, manifest.getLength());
+        assertEquals(7, manifest.getChunkCount());
+        assertEquals(12_345, manifest.getChunkLength(6));
+
+        ChunkManifest parsed = ChunkManifest.parse(manifest.toString());
+        assertEquals(manifest.toString(), parsed.toString());
+        int size = ChunkManifest.DEFAULT_CHUNK_SIZE;
+        assertTrue(parsed.isValidChunk(1, Arrays.copyOfRange(apk, size, 2 * size)));
+        assertFalse(parsed.isValidChunk(2, Arrays.copyOfRange(apk, size, 2 * size)));
+        assertTrue(parsed.isValidChunk(6, Arrays.copyOfRange(apk, 6 * size, apk.length)));
+
+        String missingChunk = manifest.toString().substring(0, manifest.toString().lastIndexOf('\n',
+                manifest.toString().length() - 2));
+        assertThrows(IOException.class, () -> ChunkManifest.parse(missingChunk));
+        assertThrows(IOException.class, () -> ChunkManifest.parse("<html></html>"));
+    }
+
+    @Test
+    public void testDownloadFromAllPeers() throws Exception {
+        startPeer(38726, apk);
+        startPeer(38727, apk);
+        startPeer(38728, apk);
+        SwarmDownloader downloader = createDownloader();
+        downloader.download();
+
+        assertArrayEquals(apk, FileUtils.readFileToByteArray(destFile));
+        int chunks = 0;
+        for (SwapPeer peer : peers) {
+            assertTrue("every peer sent chunks", peer.rangeRequests.get() > 0);
+            chunks += peer.rangeRequests.get();
+        }
+        // each chunk got requested exactly once
+        assertEquals(7, chunks);
+    }
+
+    @Test
+    public void testPeerDisappears() throws Exception {
+        SwapPeer staying = startPeer(38726, apk);
+        SwapPeer leaving = startPeer(38727, apk);
+        leaving.leaveAfterRanges = 1;
+        SwarmDownloader downloader = createDownloader();
+        downloader.download();
+
+        assertArrayEquals(apk, FileUtils.readFileToByteArray(destFile));
+        // the chunk that failed came from the peer that stayed
+        assertTrue(leaving.rangeRequests.get() >= 2);
+        assertTrue(staying.rangeRequests.get() >= 6);
+    }
+
+    @Test
+    public void testInvalidChunksAreNotUsed() throws Exception {
+        startPeer(38726, apk);
+        byte[] corrupt = apk.clone();
+        corrupt[corrupt.length - 1]++;
+        for (int i = 0; i < corrupt.length; i += ChunkManifest.DEFAULT_CHUNK_SIZE) {
+            corrupt[i]++;
+        }
+        SwapPeer liar = startPeer(38727, corrupt);
+        // claims to have the right file
+        File file = folder.newFile();
+        FileUtils.writeByteArrayToFile(file, apk);
+        liar.manifest = ChunkManifest.create(file, ChunkManifest.DEFAULT_CHUNK_SIZE);
+        SwarmDownloader downloader = createDownloader();
+        downloader.download();
+
+        assertArrayEquals(apk, FileUtils.readFileToByteArray(destFile));
+        assertEquals(1, liar.rangeRequests.get());
+    }
+
+    @Test
+    public void testPeersWithoutManifest() throws Exception {
+        SwapPeer old = startPeer(38726, apk);
+        old.hasManifests = false;
+        SwapPeer other = startPeer(38727, new byte[apk.length]);
+        SwarmDownloader downloader = createDownloader();
+
+        // the manifest of the other peer does not match, so the usual downloader has to be used
+        assertFalse(downloader.findSwarm());
+        assertThrows(IOException.class, downloader::download);
+        assertFalse(destFile.exists());
+        assertEquals(0, old.rangeRequests.get());
+        assertEquals(0, other.rangeRequests.get());
+    }
+
+    @Test
+    public void testAllPeersGone() throws Exception {
+        startPeer(38726, apk).leaveAfterRanges = 2;
+        startPeer(38727, apk).leaveAfterRanges = 1;
+        SwarmDownloader downloader = createDownloader();
+        assertThrows(IOException.class, downloader::download);
+    }
+
+    @Test
+    public void testNoSwarmWithoutOtherPeers() throws InterruptedException {
+        SwarmDownloader.clearPeers();
+        assertNull(SwarmDownloader.create(Uri.parse("http://localhost:38726" + APK_PATH), apkFile, destFile));
+    }
+
+    private static class SwapPeer {
+        private final int port;
+        private final AtomicInteger rangeRequests = new AtomicInteger();
+        private volatile int leaveAfterRanges = Integer.MAX_VALUE;
+        private volatile boolean hasManifests = true;
+        private volatile ChunkManifest manifest;
+        private LocalHTTPD httpd;
+
+        SwapPeer(int port) {
+            this.port = port;
+        }
+
+        void start(Context context, File webRoot, byte[] content) throws Exception {
+            assertFalse(Utils.isServerSocketInUse(port));
+            File repoDir = new File(webRoot, "fdroid/repo");
+            FileUtils.writeByteArrayToFile(new File(repoDir, "app.apk"), content);
+            httpd = new LocalHTTPD(context, "localhost", port, webRoot, false) {
+                @Override
+                public Response serve(IHTTPSession session) {
+                    if (session.getParms().containsKey(ChunkManifest.QUERY_PARAMETER)) {
+                        if (!hasManifests) {
+                            return getNotFoundResponse();
+                        } else if (manifest != null) {
+                            return newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, manifest.toString());
+                        }
+                    } else if (session.getHeaders().containsKey("range")
+                            && rangeRequests.incrementAndGet() > leaveAfterRanges) {
+                        new Thread(this::stop).start();
+                        return newFixedLengthResponse(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT, "");
+                    }
+                    return super.serve(session);
+                }
+            };
+            httpd.start();
+            do {
+                Thread.sleep(100);
+            } while (!Utils.isServerSocketInUse(port));
+        }
+    }
+}
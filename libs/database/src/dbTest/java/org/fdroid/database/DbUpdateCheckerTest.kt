@@ -6,6 +6,7 @@ import android.content.pm.PackageManager.NameNotFoundException
 import androidx.test.ext.junit.runners.AndroidJUnit4
 import io.mockk.every
 import io.mockk.mockk
+import io.mockk.verify
 import org.fdroid.index.RELEASE_CHANNEL_BETA
 import org.fdroid.index.v2.PackageVersionV2
 import org.fdroid.index.v2.SignerV2
@@ -333,4 +334,97 @@ internal class DbUpdateCheckerTest : AppTest() {
         }
     }
 
+    @Test
+    fun testGetUpdatableAppsForPackagesMatchesFullCheck() {
+        // two repos with overlapping apps
+        val repoId2 = repoDao.insertOrReplace(getRandomRepo())
+        val repoId1 = repoDao.insertOrReplace(getRandomRepo())
+        val packageNames = listOf(packageName1, packageName2, packageName3)
+        packageNames.forEachIndexed { i, name ->
+            appDao.insert(repoId1, name, app1, locales)
+            val versions1 = mapOf(
+                "1$i" to getRandomPackageVersionV2(10L + i, null).copy(releaseChannels = emptyList())
+            )
+            versionDao.insert(repoId1, name, versions1, compatChecker)
+        }
+        appDao.insert(repoId2, packageName1, app2, locales)
+        val versions2 = mapOf(
+            "2" to getRandomPackageVersionV2(20, null).copy(releaseChannels = emptyList())
+        )
+        versionDao.insert(repoId2, packageName1, versions2, compatChecker)
+
+        // packageName1 and packageName2 are installed, packageName3 is not
+        val installedPackages = listOf(packageName1, packageName2).map { name ->
+            PackageInfo().apply {
+                packageName = name
+                versionCode = 1
+            }
+        }
+        every { packageManager.getInstalledPackages(any<Int>()) } returns installedPackages
+        every { packageManager.getPackageInfo(any<String>(), any<Int>()) } answers {
+            installedPackages.find { it.packageName == firstArg<String>() } ?: throw NameNotFoundException()
+        }
+
+        listOf(false, true).forEach { onlyFromPreferredRepo ->
+            val fullResult = updateChecker.getUpdatableApps(
+                onlyFromPreferredRepo = onlyFromPreferredRepo,
+                includeKnownVulnerabilities = true,
+            ).associateBy { it.packageName }
+            assertEquals(setOf(packageName1, packageName2), fullResult.keys)
+
+            // checking all packages gives the same result as the full check
+            val result = updateChecker.getUpdatableAppsForPackages(
+                packageNames = packageNames,
+                onlyFromPreferredRepo = onlyFromPreferredRepo,
+                includeKnownVulnerabilities = true,
+            ).associateBy { it.packageName }
+            assertEquals(fullResult, result)
+
+            // checking single packages gives the same result for those packages
+            packageNames.forEach { name ->
+                val singleResult = updateChecker.getUpdatableAppsForPackages(
+                    packageNames = listOf(name),
+                    onlyFromPreferredRepo = onlyFromPreferredRepo,
+                    includeKnownVulnerabilities = true,
+                )
+                assertEquals(listOfNotNull(fullResult[name]), singleResult)
+            }
+        }
+
+        // packages that are unknown or not installed don't cause trouble
+        assertEquals(
+            emptyList(),
+            updateChecker.getUpdatableAppsForPackages(listOf(packageName3, packageName)),
+        )
+        assertEquals(emptyList(), updateChecker.getUpdatableAppsForPackages(emptyList()))
+    }
+
+    @Test
+    fun testGetUpdatableAppsForManyPackages() {
+        streamIndexV2IntoDb("index-min-v2.json")
+        every { packageManager.getInstalledPackages(any<Int>()) } returns listOf(packageInfo)
+
+        // with many package names, all installed packages get looked at once
+        val packageNames = List(100) { i -> "org.example.app$i" } + TestDataMinV2.PACKAGE_NAME
+        val appVersions = updateChecker.getUpdatableAppsForPackages(packageNames)
+        assertEquals(updateChecker.getUpdatableApps(), appVersions)
+        verify(exactly = 0) { packageManager.getPackageInfo(any<String>(), any<Int>()) }
+    }
+
+    @Test
+    fun testGetPackageNamesInRepository() {
+        val repoId1 = repoDao.insertOrReplace(getRandomRepo())
+        val repoId2 = repoDao.insertOrReplace(getRandomRepo())
+        appDao.insert(repoId1, packageName1, app1, locales)
+        appDao.insert(repoId1, packageName2, app2, locales)
+        appDao.insert(repoId2, packageName2, app2, locales)
+
+        assertEquals(
+            setOf(packageName1, packageName2),
+            updateChecker.getPackageNamesInRepository(repoId1).toSet(),
+        )
+        assertEquals(listOf(packageName2), updateChecker.getPackageNamesInRepository(repoId2))
+        assertEquals(emptyList(), updateChecker.getPackageNamesInRepository(42L))
+    }
+
 }
@@ -174,6 +174,23 @@ internal class VersionTest : DbTest() {
         }
     }
 
+    @Test
+    fun getAppVersionsByVersionCode() {
+        val repoId = repoDao.insertOrReplace(getRandomRepo())
+        appDao.insert(repoId, packageName, getRandomMetadataV2())
+        versionDao.insert(repoId, packageName, packageVersions, compatChecker)
+
+        val versionCode1 = packageVersion1.manifest.versionCode
+        val appVersions = versionDao.getAppVersions(repoId, packageName, versionCode1)
+        assertEquals(listOf(getAppVersion1(repoId)), appVersions)
+
+        // nothing for unknown version codes, packages or repos
+        val unknownVersionCode = maxOf(versionCode1, packageVersion2.manifest.versionCode) + 1
+        assertEquals(0, versionDao.getAppVersions(repoId, packageName, unknownVersionCode).size)
+        assertEquals(0, versionDao.getAppVersions(repoId, getRandomString(), versionCode1).size)
+        assertEquals(0, versionDao.getAppVersions(repoId + 1, packageName, versionCode1).size)
+    }
+
     @Test
     fun getVersionsRespectsAppPrefsIgnore() {
         // insert one version into the repo
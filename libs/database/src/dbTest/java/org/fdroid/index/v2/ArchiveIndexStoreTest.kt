@@ -0,0 +1,204 @@
+package org.fdroid.index.v2
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.fdroid.CompatibilityChecker
+import org.fdroid.database.DbTest
+import org.fdroid.database.DbV2ArchiveStreamReceiver
+import org.fdroid.index.IndexParser
+import org.fdroid.test.TestDataMaxV2
+import org.fdroid.test.TestDataMidV2
+import org.fdroid.test.VerifierConstants.CERTIFICATE
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import java.io.File
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertNotNull
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+@RunWith(AndroidJUnit4::class)
+internal class ArchiveIndexStoreTest : DbTest() {
+
+    @get:Rule
+    var tmpFolder: TemporaryFolder = TemporaryFolder()
+
+    private val address = "https://example.org/archive"
+    private val compatibilityChecker = CompatibilityChecker { true }
+    private lateinit var storeDir: File
+    private lateinit var store: ArchiveIndexStore
+
+    @Before
+    override fun createDb() {
+        super.createDb()
+        storeDir = tmpFolder.newFolder()
+        store = ArchiveIndexStore(db, storeDir, compatibilityChecker)
+    }
+
+    /**
+     * Returns a copy of the given [index] that looks like it belongs to an archive repo.
+     */
+    private fun getArchiveIndex(index: IndexV2): IndexV2 {
+        return index.copy(repo = index.repo.copy(address = address))
+    }
+
+    private fun streamIntoStore(repoId: Long, index: IndexV2) {
+        val json = IndexParser.json.encodeToString(IndexV2.serializer(), index)
+        store.newWriter(repoId).use { writer ->
+            val receiver = DbV2ArchiveStreamReceiver(db, repoId, store, writer)
+            db.runInTransaction {
+                IndexV2FullStreamProcessor(receiver).process(42, json.byteInputStream()) {}
+            }
+            writer.commit()
+        }
+    }
+
+    @Test
+    fun testOnlyRepoGetsImported() {
+        val index = getArchiveIndex(TestDataMaxV2.index)
+        val repoId = repoDao.insertEmptyRepo(address, certificate = CERTIFICATE)
+        streamIntoStore(repoId, index)
+
+        assertTrue(store.hasIndex(repoId))
+        assertEquals(0, appDao.countApps())
+        assertEquals(0, versionDao.countAppVersions())
+        assertEquals(address, repoDao.getRepository(repoId)?.address)
+        assertEquals(index.packages.keys.sorted(), store.getPackageNames(repoId))
+        index.packages.forEach { (packageName, packageV2) ->
+            assertEquals(packageV2, store.getPackage(repoId, packageName))
+        }
+        assertNull(store.getPackage(repoId, "foo.bar"))
+    }
+
+    @Test
+    fun testLoadAllPackagesEqualsFullImport() {
+        val index = getArchiveIndex(TestDataMaxV2.index)
+        val repoId = repoDao.insertEmptyRepo(address, certificate = CERTIFICATE)
+        streamIntoStore(repoId, index)
+
+        index.packages.keys.forEach { packageName ->
+            assertTrue(store.loadPackage(packageName))
+            // loading again does nothing
+            assertFalse(store.loadPackage(packageName))
+        }
+        assertDbEquals(repoId, index)
+    }
+
+    @Test
+    fun testLoadSinglePackage() {
+        val index = getArchiveIndex(TestDataMaxV2.index)
+        val repoId = repoDao.insertEmptyRepo(address, certificate = CERTIFICATE)
+        streamIntoStore(repoId, index)
+
+        val packageName = index.packages.keys.first()
+        assertFalse(store.loadPackage("foo.bar"))
+        assertTrue(store.loadPackage(packageName))
+        assertEquals(1, appDao.countApps())
+        assertNotNull(appDao.getApp(repoId, packageName))
+    }
+
+    @Test
+    fun testDisabledArchiveRepoDoesNotLoad() {
+        val index = getArchiveIndex(TestDataMaxV2.index)
+        val repoId = repoDao.insertEmptyRepo(address, certificate = CERTIFICATE)
+        streamIntoStore(repoId, index)
+        repoDao.setRepositoryEnabled(repoId, false)
+
+        assertFalse(store.loadPackage(index.packages.keys.first()))
+        assertEquals(0, appDao.countApps())
+    }
+
+    @Test
+    fun testUpdateReloadsLoadedPackages() {
+        val midIndex = getArchiveIndex(TestDataMidV2.index)
+        val maxIndex = getArchiveIndex(TestDataMaxV2.index)
+        val repoId = repoDao.insertEmptyRepo(address, certificate = CERTIFICATE)
+        streamIntoStore(repoId, midIndex)
+        midIndex.packages.keys.forEach { packageName ->
+            assertTrue(store.loadPackage(packageName))
+        }
+
+        // after the update, only packages that were loaded before get loaded again
+        streamIntoStore(repoId, maxIndex)
+        val expectedPackages = maxIndex.packages.filterKeys { it in midIndex.packages.keys }
+        assertDbEquals(repoId, maxIndex.copy(packages = expectedPackages))
+    }
+
+    @Test
+    fun testFullImportFromBeforeGetsDropped() {
+        val index = getArchiveIndex(TestDataMaxV2.index)
+        val repoId = repoDao.insertEmptyRepo(address, certificate = CERTIFICATE)
+        // like the full import of the archive before the store existed
+        db.runInTransaction {
+            index.packages.forEach { (packageName, packageV2) ->
+                store.insert(repoId, packageName, packageV2)
+            }
+        }
+        assertEquals(index.packages.size, appDao.countApps())
+
+        streamIntoStore(repoId, index)
+        assertEquals(0, appDao.countApps())
+        assertEquals(emptyList(), store.getLoadedPackageNames(repoId))
+
+        // only what got loaded on demand since then stays after the next update
+        val packageName = index.packages.keys.first()
+        assertTrue(store.loadPackage(packageName))
+        streamIntoStore(repoId, index)
+        assertEquals(1, appDao.countApps())
+        assertNotNull(appDao.getApp(repoId, packageName))
+        assertEquals(listOf(packageName), store.getLoadedPackageNames(repoId))
+    }
+
+    @Test
+    fun testRollbackKeepsOldIndex() {
+        val midIndex = getArchiveIndex(TestDataMidV2.index)
+        val maxIndex = getArchiveIndex(TestDataMaxV2.index)
+        val repoId = repoDao.insertEmptyRepo(address, certificate = CERTIFICATE)
+        streamIntoStore(repoId, midIndex)
+        val loadedPackageName = midIndex.packages.keys.first()
+        assertTrue(store.loadPackage(loadedPackageName))
+
+        val json = IndexParser.json.encodeToString(IndexV2.serializer(), maxIndex)
+        assertFailsWith<IllegalStateException> {
+            store.newWriter(repoId).use { writer ->
+                val receiver = DbV2ArchiveStreamReceiver(db, repoId, store, writer)
+                db.runInTransaction {
+                    IndexV2FullStreamProcessor(receiver).process(42, json.byteInputStream()) {}
+                    error("rollback")
+                }
+                writer.commit()
+            }
+        }
+
+        assertEquals(midIndex.packages.keys.sorted(), store.getPackageNames(repoId))
+        midIndex.packages.forEach { (packageName, packageV2) ->
+            assertEquals(packageV2, store.getPackage(repoId, packageName))
+        }
+        assertEquals(listOf(loadedPackageName), store.getLoadedPackageNames(repoId))
+        assertEquals(1, appDao.countApps())
+        // no temporary files are left behind
+        assertEquals(
+            setOf("$repoId.packages", "$repoId.idx", "$repoId.loaded"),
+            storeDir.list()?.toSet(),
+        )
+    }
+
+    @Test
+    fun testDelete() {
+        val index = getArchiveIndex(TestDataMaxV2.index)
+        val repoId = repoDao.insertEmptyRepo(address, certificate = CERTIFICATE)
+        streamIntoStore(repoId, index)
+        assertTrue(store.hasIndex(repoId))
+        store.setLoadedPackageNames(repoId, listOf("foo.bar"))
+
+        store.delete(repoId)
+        assertFalse(store.hasIndex(repoId))
+        assertEquals(emptyList(), store.getPackageNames(repoId))
+        assertEquals(emptyList(), store.getLoadedPackageNames(repoId))
+        assertFalse(store.loadPackage(index.packages.keys.first()))
+    }
+}
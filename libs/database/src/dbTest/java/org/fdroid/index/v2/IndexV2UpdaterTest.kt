@@ -22,6 +22,7 @@ import org.fdroid.index.IndexFormatVersion.TWO
 import org.fdroid.index.IndexUpdateResult
 import org.fdroid.index.SigningException
 import org.fdroid.index.TempFileProvider
+import org.fdroid.index.getPartialIndexFile
 import org.fdroid.test.TestDataEntry
 import org.fdroid.test.TestDataMaxV2
 import org.fdroid.test.TestDataMidV2
@@ -34,6 +35,7 @@ import org.junit.rules.TemporaryFolder
 import org.junit.runner.RunWith
 import java.util.concurrent.CountDownLatch
 import kotlin.test.assertEquals
+import kotlin.test.assertFalse
 import kotlin.test.assertIs
 import kotlin.test.assertNull
 import kotlin.test.fail
@@ -238,6 +240,46 @@ internal class IndexV2UpdaterTest : DbTest() {
         assertEquals(TWO, updatedRepo.formatVersion)
     }
 
+    @Test
+    fun testPartialFileFromPreviewIsUsed() {
+        val partialDir = tmpFolder.newFolder()
+        indexUpdater = IndexV2Updater(
+            database = db,
+            tempFileProvider = tempFileProvider,
+            downloaderFactory = downloaderFactory,
+            compatibilityChecker = compatibilityChecker,
+            partialIndexDir = partialDir,
+        )
+        val repoId = repoDao.insertEmptyRepo("http://example.org", certificate = CERTIFICATE)
+        val indexFileV2 = TestDataEntry.emptyToMid.index
+        val repo = prepareUpdate(
+            repoId = repoId,
+            entryPath = "diff-empty-mid/$SIGNED_FILE_NAME",
+            jsonPath = "index-mid-v2.json",
+            indexFileV2 = indexFileV2,
+        )
+        // a preview left the first bytes of the index
+        val indexBytes = assets.open("index-mid-v2.json").use { it.readBytes() }
+        val partialFile = getPartialIndexFile(partialDir, indexFileV2.sha256)
+        partialFile.writeBytes(indexBytes.copyOf(1024))
+
+        // the downloader continues with the partial file
+        val indexDownloader: Downloader = mockk()
+        val indexUri = Uri.parse("${repo.address}/${indexFileV2.name.trimStart('/')}")
+        every {
+            downloaderFactory.createWithTryFirstMirror(repo, indexUri, indexFileV2, partialFile)
+        } returns indexDownloader
+        every { indexDownloader.download() } answers {
+            assertEquals(1024, partialFile.length())
+            partialFile.appendBytes(indexBytes.copyOfRange(1024, indexBytes.size))
+        }
+
+        val result = indexUpdater.update(repo).noError()
+        assertEquals(IndexUpdateResult.Processed, result)
+        assertDbEquals(repoId, TestDataMidV2.index)
+        assertFalse(partialFile.exists())
+    }
+
     @Test
     @OptIn(DelicateCoroutinesApi::class)
     fun concurrentUpdateTest() {
@@ -341,6 +341,12 @@ internal interface AppDaoInt : AppDao {
     @Query("SELECT * FROM ${AppMetadata.TABLE}")
     fun getAppMetadata(): List<AppMetadata>
 
+    /**
+     * Used for finding the updatable apps of a repository after it was updated.
+     */
+    @Query("SELECT packageName FROM ${AppMetadata.TABLE} WHERE repoId = :repoId")
+    fun getPackageNames(repoId: Long): List<String>
+
     /**
      * used for diffing
      */
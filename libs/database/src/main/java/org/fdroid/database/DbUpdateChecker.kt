@@ -10,6 +10,12 @@ import org.fdroid.CompatibilityCheckerImpl
 import org.fdroid.PackagePreference
 import org.fdroid.UpdateChecker
 
+/**
+ * Packages are looked up one by one for [DbUpdateChecker.getUpdatableAppsForPackages]
+ * only up to this number, because each lookup is a call to the system.
+ */
+private const val MAX_PACKAGE_LOOKUPS = 50
+
 public class DbUpdateChecker @JvmOverloads constructor(
     db: FDroidDatabase,
     private val packageManager: PackageManager,
@@ -36,10 +42,55 @@ public class DbUpdateChecker @JvmOverloads constructor(
         onlyFromPreferredRepo: Boolean = false,
         includeKnownVulnerabilities: Boolean = false,
     ): List<UpdatableApp> {
-        val updatableApps = ArrayList<UpdatableApp>()
-
         @Suppress("DEPRECATION") // we'll use this as long as it works, new one was broken
         val installedPackages = packageManager.getInstalledPackages(GET_SIGNATURES)
+        return getUpdatableApps(
+            installedPackages = installedPackages,
+            releaseChannels = releaseChannels,
+            onlyFromPreferredRepo = onlyFromPreferredRepo,
+            includeKnownVulnerabilities = includeKnownVulnerabilities,
+        )
+    }
+
+    /**
+     * Like [getUpdatableApps], but only considers the installed packages
+     * with the given [packageNames], e.g. after one of them was installed or replaced.
+     * Packages that are not installed get ignored.
+     * For a package that is part of the result here,
+     * the result is the same as in [getUpdatableApps].
+     */
+    @JvmOverloads
+    public fun getUpdatableAppsForPackages(
+        packageNames: Collection<String>,
+        releaseChannels: List<String>? = null,
+        onlyFromPreferredRepo: Boolean = false,
+        includeKnownVulnerabilities: Boolean = false,
+    ): List<UpdatableApp> {
+        if (packageNames.isEmpty()) return emptyList()
+        return getUpdatableApps(
+            installedPackages = getInstalledPackages(packageNames),
+            releaseChannels = releaseChannels,
+            onlyFromPreferredRepo = onlyFromPreferredRepo,
+            includeKnownVulnerabilities = includeKnownVulnerabilities,
+        )
+    }
+
+    /**
+     * Returns the names of all packages in the [Repository] with the given [repoId],
+     * e.g. to pass them to [getUpdatableAppsForPackages] after the repository was updated.
+     */
+    public fun getPackageNamesInRepository(repoId: Long): List<String> {
+        return appDao.getPackageNames(repoId)
+    }
+
+    private fun getUpdatableApps(
+        installedPackages: List<PackageInfo>,
+        releaseChannels: List<String>?,
+        onlyFromPreferredRepo: Boolean,
+        includeKnownVulnerabilities: Boolean,
+    ): List<UpdatableApp> {
+        val updatableApps = ArrayList<UpdatableApp>()
+
         val packageNames = installedPackages.map { it.packageName }
         val preferredRepos = appPrefsDao.getPreferredRepos(packageNames)
 
@@ -126,6 +177,28 @@ public class DbUpdateChecker @JvmOverloads constructor(
         return version.toAppVersion(versionedStrings)
     }
 
+    /**
+     * Looks up the given [packageNames] one by one,
+     * unless there are so many that getting all installed packages at once is faster.
+     */
+    @Suppress("DEPRECATION")
+    @SuppressLint("PackageManagerGetSignatures")
+    private fun getInstalledPackages(packageNames: Collection<String>): List<PackageInfo> {
+        if (packageNames.size > MAX_PACKAGE_LOOKUPS) {
+            val names = packageNames.toHashSet()
+            return packageManager.getInstalledPackages(GET_SIGNATURES).filter { packageInfo ->
+                packageInfo.packageName in names
+            }
+        }
+        return packageNames.toSet().mapNotNull { packageName ->
+            try {
+                packageManager.getPackageInfo(packageName, GET_SIGNATURES)
+            } catch (e: PackageManager.NameNotFoundException) {
+                null
+            }
+        }
+    }
+
     private fun getVersion(
         versions: List<Version>,
         packageName: String,
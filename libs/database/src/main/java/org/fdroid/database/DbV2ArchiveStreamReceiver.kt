@@ -0,0 +1,69 @@
+package org.fdroid.database
+
+import org.fdroid.index.IndexFormatVersion.TWO
+import org.fdroid.index.v2.ArchiveIndexStore
+import org.fdroid.index.v2.IndexV2StreamReceiver
+import org.fdroid.index.v2.PackageV2
+import org.fdroid.index.v2.RepoV2
+
+/**
+ * Receives a stream of IndexV2 data of an archive repo.
+ * Only the repository itself gets stored in the DB,
+ * while the packages go into the [ArchiveIndexStore]
+ * to be imported on demand with [ArchiveIndexStore.loadPackage].
+ * Packages that [ArchiveIndexStore.loadPackage] had imported get imported again from the new index,
+ * all other packages of the repo get removed from the DB,
+ * including those of a full import from before the repo used the [ArchiveIndexStore].
+ *
+ * The new packages only replace the stored ones with [ArchiveIndexStore.Writer.commit],
+ * which needs to be called after the transaction this receiver ran in.
+ *
+ * Note: This should only be used once.
+ * If you want to process a second stream, create a new instance.
+ */
+internal class DbV2ArchiveStreamReceiver(
+    private val db: FDroidDatabaseInt,
+    private val repoId: Long,
+    private val archiveIndexStore: ArchiveIndexStore,
+    private val writer: ArchiveIndexStore.Writer,
+) : IndexV2StreamReceiver {
+
+    private var loadedPackageNames: List<String>? = null
+
+    @Synchronized
+    override fun receive(repo: RepoV2, version: Long) {
+        repo.walkFiles(nonNullFileV2)
+        clearRepoDataIfNeeded()
+        db.getRepositoryDao().update(repoId, repo, version, TWO)
+    }
+
+    @Synchronized
+    override fun receive(packageName: String, p: PackageV2) {
+        p.walkFiles(nonNullFileV2)
+        clearRepoDataIfNeeded()
+        writer.add(packageName, p)
+    }
+
+    @Synchronized
+    override fun onStreamEnded() {
+        writer.finish()
+        val reloadedPackageNames = loadedPackageNames?.filter { packageName ->
+            val packageV2 = writer.getPackage(packageName) ?: return@filter false
+            archiveIndexStore.insert(repoId, packageName, packageV2)
+            true
+        } ?: emptyList()
+        writer.setLoadedPackageNames(reloadedPackageNames)
+        db.afterUpdatingRepo(repoId)
+    }
+
+    /**
+     * Remembers the packages loaded on demand from the old index and clears all repo data once.
+     */
+    private fun clearRepoDataIfNeeded() {
+        if (loadedPackageNames == null) {
+            loadedPackageNames = archiveIndexStore.getLoadedPackageNames(repoId)
+            db.getRepositoryDao().clear(repoId)
+        }
+    }
+
+}
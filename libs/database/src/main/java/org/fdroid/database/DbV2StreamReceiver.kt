@@ -9,6 +9,19 @@ import org.fdroid.index.v2.IndexV2StreamReceiver
 import org.fdroid.index.v2.PackageV2
 import org.fdroid.index.v2.RepoV2
 
+/**
+ * Ensures that a [FileV2] in an index has all the information we need to download it.
+ */
+internal val nonNullFileV2: (FileV2?) -> Unit = { fileV2 ->
+    if (fileV2 != null) {
+        if (fileV2.sha256 == null) throw SerializationException("${fileV2.name} has no sha256")
+        if (fileV2.size == null) throw SerializationException("${fileV2.name} has no size")
+        if (!fileV2.name.startsWith('/')) {
+            throw SerializationException("${fileV2.name} does not start with /")
+        }
+    }
+}
+
 /**
  * Receives a stream of IndexV2 data and stores it in the DB.
  *
@@ -23,15 +36,6 @@ internal class DbV2StreamReceiver(
 
     private val locales: LocaleListCompat = LocaleListCompat.getDefault()
     private var clearedRepoData = false
-    private val nonNullFileV2: (FileV2?) -> Unit = { fileV2 ->
-        if (fileV2 != null) {
-            if (fileV2.sha256 == null) throw SerializationException("${fileV2.name} has no sha256")
-            if (fileV2.size == null) throw SerializationException("${fileV2.name} has no size")
-            if (!fileV2.name.startsWith('/')) {
-                throw SerializationException("${fileV2.name} does not start with /")
-            }
-        }
-    }
 
     @Synchronized
     override fun receive(repo: RepoV2, version: Long) {
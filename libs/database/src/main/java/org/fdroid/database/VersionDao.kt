@@ -41,6 +41,13 @@ public interface VersionDao {
      * for the given [packageName] sorting by highest version code first.
      */
     public fun getAppVersions(repoId: Long, packageName: String): LiveData<List<AppVersion>>
+
+    /**
+     * Returns the versions with the given [versionCode] from the repo identified by the given [repoId]
+     * for the given [packageName].
+     * There can be more than one, e.g. when versions for different native code exist.
+     */
+    public fun getAppVersions(repoId: Long, packageName: String, versionCode: Long): List<AppVersion>
 }
 
 /**
@@ -187,6 +194,17 @@ internal interface VersionDaoInt : VersionDao {
         ORDER BY manifest_versionCode DESC, manifest_nativecode ASC""")
     override fun getAppVersions(repoId: Long, packageName: String): LiveData<List<AppVersion>>
 
+    @Transaction
+    @RewriteQueriesToDropUnusedColumns
+    @Query("""SELECT * FROM ${Version.TABLE}
+        WHERE repoId = :repoId AND packageName = :packageName AND manifest_versionCode = :versionCode
+        ORDER BY manifest_nativecode ASC""")
+    override fun getAppVersions(
+        repoId: Long,
+        packageName: String,
+        versionCode: Long,
+    ): List<AppVersion>
+
     @Query("""SELECT * FROM ${Version.TABLE}
         WHERE repoId = :repoId AND packageName = :packageName AND versionId = :versionId""")
     fun getVersion(repoId: Long, packageName: String, versionId: String): Version?
@@ -44,6 +44,16 @@ public fun interface TempFileProvider {
     public fun createTempFile(): File
 }
 
+/**
+ * Returns the file in the given [dir] that holds the first bytes of the index file
+ * with the given [sha256] hash, if a repo preview stopped early.
+ * The following index update continues downloading that file
+ * and verifies its hash as a whole, so the preview bytes don't need to be downloaded again.
+ */
+internal fun getPartialIndexFile(dir: File, sha256: String): File {
+    return File(dir, "dl-partial-${sha256.lowercase()}")
+}
+
 /**
  * A class to update information of a [Repository] in the database with a new downloaded index.
  */
@@ -22,8 +22,10 @@ import org.fdroid.database.Repository
 import org.fdroid.database.RepositoryDaoInt
 import org.fdroid.download.DownloaderFactory
 import org.fdroid.download.HttpManager
+import org.fdroid.index.v2.ArchiveIndexStore
 import org.fdroid.repo.AddRepoState
 import org.fdroid.repo.RepoAdder
+import org.fdroid.repo.RepoPreviewLimits
 import org.fdroid.repo.RepoUriGetter
 import java.io.File
 import java.net.Proxy
@@ -38,7 +40,13 @@ public class RepoManager @JvmOverloads constructor(
     downloaderFactory: DownloaderFactory,
     httpManager: HttpManager,
     repoUriBuilder: RepoUriBuilder = defaultRepoUriBuilder,
+    /**
+     * The store that archive repos keep their packages in, if they do.
+     * Its files for a repo get removed when the repo gets removed or disabled.
+     */
+    private val archiveIndexStore: ArchiveIndexStore? = null,
     private val coroutineContext: CoroutineContext = Dispatchers.IO,
+    previewLimits: RepoPreviewLimits = RepoPreviewLimits(),
 ) {
     private val repositoryDao = db.getRepositoryDao() as RepositoryDaoInt
     private val appPrefsDao = db.getAppPrefsDao() as AppPrefsDaoInt
@@ -53,6 +61,7 @@ public class RepoManager @JvmOverloads constructor(
         httpManager = httpManager,
         repoUriBuilder = repoUriBuilder,
         coroutineContext = coroutineContext,
+        previewLimits = previewLimits,
     )
 
     private val _repositoriesState: MutableStateFlow<List<Repository>> =
@@ -109,8 +118,10 @@ public class RepoManager @JvmOverloads constructor(
      * Data from disabled repositories is ignored in many queries.
      */
     @WorkerThread
-    public fun setRepositoryEnabled(repoId: Long, enabled: Boolean): Unit =
+    public fun setRepositoryEnabled(repoId: Long, enabled: Boolean) {
         repositoryDao.setRepositoryEnabled(repoId, enabled)
+        if (!enabled) archiveIndexStore?.delete(repoId)
+    }
 
     /**
      * Removes a Repository with the given repoId with all associated data from the database.
@@ -118,6 +129,7 @@ public class RepoManager @JvmOverloads constructor(
     @WorkerThread
     public fun deleteRepository(repoId: Long) {
         repositoryDao.deleteRepository(repoId)
+        archiveIndexStore?.delete(repoId)
         // while this gets updated automatically, getting the update may be slow,
         // so to speed up the UI, we emit the state change right away
         _repositoriesState.value = _repositoriesState.value.filter { repository ->
@@ -226,6 +238,7 @@ public class RepoManager @JvmOverloads constructor(
             }
         } else if (archiveRepoId != null) {
             repositoryDao.setRepositoryEnabled(archiveRepoId, false)
+            archiveIndexStore?.delete(archiveRepoId)
         }
         return archiveRepoId
     }
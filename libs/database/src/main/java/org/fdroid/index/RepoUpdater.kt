@@ -6,6 +6,7 @@ import org.fdroid.database.FDroidDatabase
 import org.fdroid.database.Repository
 import org.fdroid.download.DownloaderFactory
 import org.fdroid.index.v1.IndexV1Updater
+import org.fdroid.index.v2.ArchiveIndexStore
 import org.fdroid.index.v2.IndexV2Updater
 import java.io.File
 import java.io.FileNotFoundException
@@ -21,6 +22,11 @@ public class RepoUpdater(
     repoUriBuilder: RepoUriBuilder = defaultRepoUriBuilder,
     compatibilityChecker: CompatibilityChecker,
     listener: IndexUpdateListener,
+    archiveIndexStore: ArchiveIndexStore? = null,
+    /**
+     * See the parameter of [IndexV2Updater] with the same name.
+     */
+    costModelFile: File? = null,
 ) {
     private val log = KotlinLogging.logger {}
     private val tempFileProvider = TempFileProvider {
@@ -38,6 +44,9 @@ public class RepoUpdater(
             repoUriBuilder = repoUriBuilder,
             compatibilityChecker = compatibilityChecker,
             listener = listener,
+            archiveIndexStore = archiveIndexStore,
+            partialIndexDir = tempDir,
+            costModelFile = costModelFile,
         ),
         IndexV1Updater(
             database = db,
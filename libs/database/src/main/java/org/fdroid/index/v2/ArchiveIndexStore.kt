@@ -0,0 +1,335 @@
+package org.fdroid.index.v2
+
+import androidx.annotation.WorkerThread
+import androidx.core.os.LocaleListCompat
+import mu.KotlinLogging
+import org.fdroid.CompatibilityChecker
+import org.fdroid.database.FDroidDatabase
+import org.fdroid.database.FDroidDatabaseInt
+import org.fdroid.database.Repository
+import org.fdroid.index.IndexParser
+import java.io.BufferedOutputStream
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+
+/**
+ * Keeps the packages of archive repositories in a compact on-disk form
+ * instead of importing all of them into the database.
+ * Archive indexes are often larger than the main index,
+ * but users usually only need old versions of a handful of apps.
+ *
+ * The index of an archive repo still gets downloaded and verified as usual,
+ * but only the repository metadata goes into the database.
+ * Each package is written as JSON into a data file next to a small index file
+ * that maps package names to the location of their data.
+ * Call [loadPackage] when the versions of a package are needed,
+ * e.g. when showing its details or before offering a downgrade.
+ */
+public class ArchiveIndexStore(
+    database: FDroidDatabase,
+    private val dir: File,
+    private val compatibilityChecker: CompatibilityChecker,
+) {
+
+    private companion object {
+        const val DATA_SUFFIX = ".packages"
+        const val INDEX_SUFFIX = ".idx"
+        const val LOADED_SUFFIX = ".loaded"
+        const val TMP_SUFFIX = ".tmp"
+    }
+
+    private val log = KotlinLogging.logger {}
+    private val db: FDroidDatabaseInt = database as FDroidDatabaseInt
+    private val json = IndexParser.json
+    private val packageIndexes = HashMap<Long, PackageIndex>()
+
+    /**
+     * Imports the given [packageName] from all enabled archive repos into the database,
+     * unless it was imported already.
+     *
+     * @return true if the package was found in at least one archive repo
+     * and has been imported now.
+     */
+    @WorkerThread
+    public fun loadPackage(packageName: String): Boolean {
+        var loaded = false
+        db.getRepositoryDao().getRepositories().forEach { repo ->
+            if (!repo.enabled || !repo.isArchiveRepo) return@forEach
+            if (db.getAppDao().getAppMetadata(repo.repoId, packageName) != null) return@forEach
+            val packageV2 = getPackage(repo.repoId, packageName) ?: return@forEach
+            db.runInTransaction {
+                insert(repo.repoId, packageName, packageV2)
+                db.afterUpdatingRepo(repo.repoId)
+            }
+            addLoadedPackageName(repo.repoId, packageName)
+            log.info { "Loaded $packageName from archive repo ${repo.address}" }
+            loaded = true
+        }
+        return loaded
+    }
+
+    /**
+     * Returns true if there is a stored index for the [Repository] with the given [repoId].
+     */
+    public fun hasIndex(repoId: Long): Boolean {
+        return getDataFile(repoId).isFile && getIndexFile(repoId).isFile
+    }
+
+    /**
+     * Removes the stored index for the [Repository] with the given [repoId], if it exists.
+     * Call this when the repository gets removed or disabled.
+     */
+    public fun delete(repoId: Long) {
+        synchronized(packageIndexes) {
+            packageIndexes.remove(repoId)
+            getIndexFile(repoId).delete()
+            getDataFile(repoId).delete()
+            getLoadedFile(repoId).delete()
+        }
+    }
+
+    /**
+     * Returns the names of the packages that [loadPackage] imported from the given [repoId].
+     * Packages that were in the database before there was a stored index are not included,
+     * so a full import from before gets dropped with the next update.
+     */
+    internal fun getLoadedPackageNames(repoId: Long): List<String> = synchronized(packageIndexes) {
+        val loadedFile = getLoadedFile(repoId)
+        if (!loadedFile.isFile) return emptyList()
+        return try {
+            loadedFile.readLines().filter { it.isNotEmpty() }.distinct()
+        } catch (e: IOException) {
+            log.error(e) { "Error reading loaded packages for repo $repoId: " }
+            emptyList()
+        }
+    }
+
+    /**
+     * Replaces the names of the packages imported from the given [repoId],
+     * e.g. after importing them again from a new index.
+     */
+    @Throws(IOException::class)
+    internal fun setLoadedPackageNames(repoId: Long, packageNames: List<String>) {
+        synchronized(packageIndexes) {
+            if (packageNames.isEmpty()) {
+                getLoadedFile(repoId).delete()
+            } else {
+                dir.mkdirs()
+                getLoadedFile(repoId).writeText(packageNames.joinToString("\n", postfix = "\n"))
+            }
+        }
+    }
+
+    private fun addLoadedPackageName(repoId: Long, packageName: String) {
+        synchronized(packageIndexes) {
+            try {
+                getLoadedFile(repoId).appendText("$packageName\n")
+            } catch (e: IOException) {
+                // only means it does not get imported again after the next update
+                log.error(e) { "Error remembering $packageName for repo $repoId: " }
+            }
+        }
+    }
+
+    /**
+     * Returns the names of all packages in the stored index of the given [repoId].
+     */
+    internal fun getPackageNames(repoId: Long): List<String> {
+        return getPackageIndex(repoId)?.packageNames?.toList() ?: emptyList()
+    }
+
+    /**
+     * Returns the [PackageV2] with the given [packageName]
+     * from the stored index of the given [repoId] or null if it isn't in there.
+     */
+    internal fun getPackage(repoId: Long, packageName: String): PackageV2? {
+        val packageIndex = getPackageIndex(repoId) ?: return null
+        return readPackage(getDataFile(repoId), packageIndex, packageName)
+    }
+
+    private fun readPackage(
+        dataFile: File,
+        packageIndex: PackageIndex,
+        packageName: String,
+    ): PackageV2? {
+        val i = packageIndex.packageNames.binarySearch(packageName)
+        if (i < 0) return null
+        val bytes = ByteArray(packageIndex.lengths[i])
+        RandomAccessFile(dataFile, "r").use { file ->
+            file.seek(packageIndex.offsets[i])
+            file.readFully(bytes)
+        }
+        return json.decodeFromString(PackageV2.serializer(), bytes.decodeToString())
+    }
+
+    /**
+     * Inserts the given [packageV2] into the database.
+     * This needs to run inside a transaction.
+     */
+    internal fun insert(repoId: Long, packageName: String, packageV2: PackageV2) {
+        val locales = LocaleListCompat.getDefault()
+        db.getAppDao().insert(repoId, packageName, packageV2.metadata, locales)
+        db.getVersionDao().insert(repoId, packageName, packageV2.versions) {
+            compatibilityChecker.isCompatible(it.manifest)
+        }
+    }
+
+    /**
+     * Returns a new [Writer] for replacing the stored index of the given [repoId].
+     * The old index stays in place until [Writer.commit] gets called,
+     * which must happen only after the database transaction with the new repo data.
+     */
+    @Throws(IOException::class)
+    internal fun newWriter(repoId: Long): Writer = Writer(repoId)
+
+    private fun getPackageIndex(repoId: Long): PackageIndex? = synchronized(packageIndexes) {
+        packageIndexes[repoId]?.let { return it }
+        val indexFile = getIndexFile(repoId)
+        val dataFile = getDataFile(repoId)
+        if (!indexFile.isFile || !dataFile.isFile) return null
+        val packageIndex = try {
+            DataInputStream(indexFile.inputStream().buffered()).use { inputStream ->
+                val dataLength = inputStream.readLong()
+                if (dataLength != dataFile.length()) {
+                    log.error { "Data file for repo $repoId has unexpected length, ignoring." }
+                    return null
+                }
+                val size = inputStream.readInt()
+                val packageNames = Array(size) { "" }
+                val offsets = LongArray(size)
+                val lengths = IntArray(size)
+                for (i in 0 until size) {
+                    packageNames[i] = inputStream.readUTF()
+                    offsets[i] = inputStream.readLong()
+                    lengths[i] = inputStream.readInt()
+                }
+                PackageIndex(packageNames, offsets, lengths)
+            }
+        } catch (e: IOException) {
+            log.error(e) { "Error reading index for repo $repoId: " }
+            return null
+        }
+        packageIndexes[repoId] = packageIndex
+        return packageIndex
+    }
+
+    private fun getDataFile(repoId: Long) = File(dir, "$repoId$DATA_SUFFIX")
+    private fun getIndexFile(repoId: Long) = File(dir, "$repoId$INDEX_SUFFIX")
+    private fun getLoadedFile(repoId: Long) = File(dir, "$repoId$LOADED_SUFFIX")
+
+    /**
+     * The package names in sorted order with the offsets and lengths
+     * of their JSON data in the data file at the same position.
+     */
+    private class PackageIndex(
+        val packageNames: Array<String>,
+        val offsets: LongArray,
+        val lengths: IntArray,
+    )
+
+    private class IndexEntry(
+        val packageName: String,
+        val offset: Long,
+        val length: Int,
+    )
+
+    internal inner class Writer(private val repoId: Long) : Closeable {
+        private val dataFile = File(dir, "$repoId$DATA_SUFFIX$TMP_SUFFIX")
+        private val indexFile = File(dir, "$repoId$INDEX_SUFFIX$TMP_SUFFIX")
+        private val outputStream: BufferedOutputStream
+        private val entries = ArrayList<IndexEntry>()
+        private var offset = 0L
+        private var packageIndex: PackageIndex? = null
+        private var loadedPackageNames: List<String> = emptyList()
+        private var committed = false
+
+        init {
+            dir.mkdirs()
+            outputStream = FileOutputStream(dataFile).buffered()
+        }
+
+        @Throws(IOException::class)
+        fun add(packageName: String, packageV2: PackageV2) {
+            val bytes = json.encodeToString(PackageV2.serializer(), packageV2).encodeToByteArray()
+            outputStream.write(bytes)
+            entries.add(IndexEntry(packageName, offset, bytes.size))
+            offset += bytes.size
+        }
+
+        /**
+         * Writes the index of what was added to this writer next to its data.
+         * Both stay in temporary files until [commit].
+         */
+        @Throws(IOException::class)
+        fun finish() {
+            outputStream.close()
+            entries.sortBy { it.packageName }
+            DataOutputStream(FileOutputStream(indexFile).buffered()).use { out ->
+                out.writeLong(offset)
+                out.writeInt(entries.size)
+                entries.forEach { entry ->
+                    out.writeUTF(entry.packageName)
+                    out.writeLong(entry.offset)
+                    out.writeInt(entry.length)
+                }
+            }
+            packageIndex = PackageIndex(
+                packageNames = Array(entries.size) { entries[it].packageName },
+                offsets = LongArray(entries.size) { entries[it].offset },
+                lengths = IntArray(entries.size) { entries[it].length },
+            )
+        }
+
+        /**
+         * Returns the [PackageV2] with the given [packageName] from what was added to this writer
+         * or null if it isn't in there. Can only be called after [finish].
+         */
+        fun getPackage(packageName: String): PackageV2? {
+            val packageIndex = packageIndex ?: error("Writer for repo $repoId is not finished")
+            return readPackage(dataFile, packageIndex, packageName)
+        }
+
+        /**
+         * Sets the names of the packages imported from the new index,
+         * which replace the old ones with [commit].
+         */
+        fun setLoadedPackageNames(packageNames: List<String>) {
+            loadedPackageNames = packageNames
+        }
+
+        /**
+         * Replaces the currently stored index with what was added to this writer.
+         * Call this only once the database transaction with the new repo data was committed,
+         * so that a rollback keeps the old index.
+         */
+        @Throws(IOException::class)
+        fun commit() {
+            check(packageIndex != null) { "Writer for repo $repoId is not finished" }
+            synchronized(packageIndexes) {
+                packageIndexes.remove(repoId)
+                if (!dataFile.renameTo(getDataFile(repoId)) ||
+                    !indexFile.renameTo(getIndexFile(repoId))
+                ) {
+                    // the repo in the DB is already new, so the index needs to be fetched again
+                    delete(repoId)
+                    throw IOException("Could not move index files for repo $repoId into place")
+                }
+                this@ArchiveIndexStore.setLoadedPackageNames(repoId, loadedPackageNames)
+            }
+            committed = true
+        }
+
+        override fun close() {
+            outputStream.close()
+            if (!committed) {
+                dataFile.delete()
+                indexFile.delete()
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.fdroid.index.v2
+
+import mu.KotlinLogging
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+
+/**
+ * Decides whether an index update should use the diff offered by an [Entry]
+ * or rather download and process the full index.
+ *
+ * The cost of each option is estimated as the time needed to download the file
+ * plus the time needed to apply it to the database.
+ * Throughputs start with conservative defaults and get refined
+ * with the measurements reported via [recordDownload] and [recordApply].
+ * Diffs and full indexes are assumed to be equally expensive to apply per byte,
+ * until measurements on this device show otherwise.
+ * If both options are estimated to cost the same, the diff is preferred.
+ *
+ * Repo updates usually run in a fresh process, so the throughputs get saved to a [file],
+ * if one is given. Use [load] to continue with the saved throughputs.
+ */
+internal class IndexV2CostModel(
+    /**
+     * The initial assumed download throughput in bytes per millisecond.
+     */
+    downloadThroughput: Double = DEFAULT_DOWNLOAD_THROUGHPUT,
+    /**
+     * The initial assumed throughput in bytes per millisecond when processing a full index.
+     */
+    fullApplyThroughput: Double = DEFAULT_FULL_APPLY_THROUGHPUT,
+    /**
+     * The initial assumed throughput in bytes per millisecond when processing a diff.
+     */
+    diffApplyThroughput: Double = DEFAULT_DIFF_APPLY_THROUGHPUT,
+    /**
+     * If not null, where the throughputs get saved after each measurement.
+     */
+    private val file: File? = null,
+) {
+
+    internal companion object {
+        internal const val DEFAULT_DOWNLOAD_THROUGHPUT: Double = 256.0 // ~2 Mbit/s
+        internal const val DEFAULT_FULL_APPLY_THROUGHPUT: Double = 1024.0
+        internal const val DEFAULT_DIFF_APPLY_THROUGHPUT: Double = 1024.0
+
+        /**
+         * Weight given to a new measurement when updating a throughput estimate.
+         */
+        private const val SMOOTHING_FACTOR = 0.3
+
+        /**
+         * Measurements for files smaller than this are too noisy to be useful.
+         */
+        private const val MIN_MEASURED_BYTES = 16 * 1024L
+
+        private const val FILE_VERSION = 1
+
+        /**
+         * Creates a model with the throughputs saved in the given [file],
+         * or the defaults, if there are none.
+         */
+        fun load(file: File): IndexV2CostModel {
+            if (!file.isFile) return IndexV2CostModel(file = file)
+            try {
+                DataInputStream(file.inputStream().buffered()).use { input ->
+                    if (input.readInt() == FILE_VERSION) {
+                        val t = DoubleArray(3) { input.readDouble() }
+                        if (t.all { it.isFinite() && it > 0 }) {
+                            return IndexV2CostModel(t[0], t[1], t[2], file)
+                        }
+                    }
+                }
+            } catch (e: IOException) {
+                KotlinLogging.logger {}.warn(e) { "Could not read $file, using defaults." }
+            }
+            return IndexV2CostModel(file = file)
+        }
+    }
+
+    private val log = KotlinLogging.logger {}
+
+    @Volatile
+    internal var downloadThroughput: Double = downloadThroughput
+        private set
+
+    @Volatile
+    internal var fullApplyThroughput: Double = fullApplyThroughput
+        private set
+
+    @Volatile
+    internal var diffApplyThroughput: Double = diffApplyThroughput
+        private set
+
+    /**
+     * Chooses the cheapest [EntryFileV2] to bring a repository
+     * from the given local [timestamp] to the state described by [entry].
+     *
+     * @param allowDiff false, if a diff must not be used, e.g. when upgrading from a v1 repo.
+     */
+    fun choose(entry: Entry, timestamp: Long, allowDiff: Boolean = true): Decision {
+        val full = entry.index
+        val fullCost = estimateMillis(full, fullApplyThroughput)
+        val diff = if (allowDiff) entry.getDiff(timestamp) else null
+        val decision = if (diff == null) {
+            Decision(full, isDiff = false, estimatedMillis = fullCost.toLong())
+        } else {
+            val diffCost = estimateMillis(diff, diffApplyThroughput)
+            if (diffCost <= fullCost) {
+                Decision(diff, isDiff = true, estimatedMillis = diffCost.toLong())
+            } else {
+                Decision(full, isDiff = false, estimatedMillis = fullCost.toLong())
+            }
+        }
+        log.info {
+            val diffInfo = if (diff == null) {
+                "no diff for $timestamp"
+            } else {
+                "diff ${diff.name} (${diff.size} bytes, " +
+                    "~${estimateMillis(diff, diffApplyThroughput).toLong()}ms)"
+            }
+            "Using ${decision.file.name} for update to ${entry.timestamp}: " +
+                "$diffInfo, full ${full.name} (${full.size} bytes, ~${fullCost.toLong()}ms)"
+        }
+        return decision
+    }
+
+    /**
+     * Records that [bytes] were downloaded in [millis] milliseconds.
+     */
+    fun recordDownload(bytes: Long, millis: Long) {
+        if (!isUsable(bytes, millis)) return
+        downloadThroughput = smooth(downloadThroughput, bytes.toDouble() / millis)
+        save()
+    }
+
+    /**
+     * Records that [bytes] of a diff (if [isDiff] is true) or of a full index
+     * were processed into the database in [millis] milliseconds.
+     */
+    fun recordApply(isDiff: Boolean, bytes: Long, millis: Long) {
+        if (!isUsable(bytes, millis)) return
+        val throughput = bytes.toDouble() / millis
+        if (isDiff) {
+            diffApplyThroughput = smooth(diffApplyThroughput, throughput)
+        } else {
+            fullApplyThroughput = smooth(fullApplyThroughput, throughput)
+        }
+        save()
+    }
+
+    private fun save() {
+        if (file == null) return
+        val tmpFile = File(file.parentFile, "${file.name}.tmp")
+        try {
+            DataOutputStream(tmpFile.outputStream().buffered()).use { output ->
+                output.writeInt(FILE_VERSION)
+                output.writeDouble(downloadThroughput)
+                output.writeDouble(fullApplyThroughput)
+                output.writeDouble(diffApplyThroughput)
+            }
+            if (!tmpFile.renameTo(file)) log.warn { "Could not replace $file" }
+        } catch (e: IOException) {
+            log.warn(e) { "Could not save throughputs to $file" }
+        }
+    }
+
+    private fun estimateMillis(file: EntryFileV2, applyThroughput: Double): Double {
+        val size = file.size.toDouble()
+        return size / downloadThroughput + size / applyThroughput
+    }
+
+    private fun isUsable(bytes: Long, millis: Long): Boolean {
+        return bytes >= MIN_MEASURED_BYTES && millis > 0
+    }
+
+    private fun smooth(old: Double, new: Double): Double {
+        return old + SMOOTHING_FACTOR * (new - old)
+    }
+
+    internal data class Decision(
+        val file: EntryFileV2,
+        val isDiff: Boolean,
+        val estimatedMillis: Long,
+    )
+}
@@ -1,6 +1,7 @@
 package org.fdroid.index.v2
 
 import org.fdroid.CompatibilityChecker
+import org.fdroid.database.DbV2ArchiveStreamReceiver
 import org.fdroid.database.DbV2DiffStreamReceiver
 import org.fdroid.database.DbV2StreamReceiver
 import org.fdroid.database.FDroidDatabase
@@ -17,8 +18,11 @@ import org.fdroid.index.IndexUpdater
 import org.fdroid.index.RepoUriBuilder
 import org.fdroid.index.TempFileProvider
 import org.fdroid.index.defaultRepoUriBuilder
+import org.fdroid.index.getPartialIndexFile
 import org.fdroid.index.parseEntry
 import org.fdroid.index.setIndexUpdateListener
+import org.fdroid.index.v2.IndexV2CostModel.Decision
+import java.io.File
 
 public const val SIGNED_FILE_NAME: String = "entry.jar"
 
@@ -29,27 +33,67 @@ public class IndexV2Updater(
     private val repoUriBuilder: RepoUriBuilder = defaultRepoUriBuilder,
     private val compatibilityChecker: CompatibilityChecker,
     private val listener: IndexUpdateListener? = null,
+    /**
+     * If not null, archive repos will keep their packages in this store
+     * instead of importing them all into the database.
+     */
+    private val archiveIndexStore: ArchiveIndexStore? = null,
+    /**
+     * If not null, the directory where a repo preview may have left
+     * the first part of an index file, so its download can continue from there.
+     */
+    private val partialIndexDir: File? = null,
+    /**
+     * If not null, where the measured download and processing throughputs are kept,
+     * so the choice between a diff and the full index can use them in later processes.
+     */
+    costModelFile: File? = null,
 ) : IndexUpdater() {
 
     public override val formatVersion: IndexFormatVersion = TWO
     private val db: FDroidDatabaseInt = database as FDroidDatabaseInt
+    private val costModel = costModelFile?.let { IndexV2CostModel.load(it) } ?: IndexV2CostModel()
 
     override fun updateRepo(repo: Repository): IndexUpdateResult {
         val (_, entry) = getCertAndEntry(repo, repo.certificate)
+        if (repo.isArchiveRepo && archiveIndexStore != null) {
+            // the stored index is gone after disabling the repo, so it needs to be fetched again
+            if (entry.timestamp <= repo.timestamp && archiveIndexStore.hasIndex(repo.repoId)) {
+                return IndexUpdateResult.Unchanged
+            }
+            return updateArchiveRepo(repo, entry, archiveIndexStore)
+        }
         // don't process repos that we already did process in the past
         if (entry.timestamp <= repo.timestamp) return IndexUpdateResult.Unchanged
-        // get diff, if available
-        val diff = entry.getDiff(repo.timestamp)
-        return if (diff == null || repo.formatVersion == ONE) {
-            // no diff found (or this is upgrade from v1 repo), so do full index update
-            val streamReceiver = DbV2StreamReceiver(db, repo.repoId, compatibilityChecker)
-            val streamProcessor = IndexV2FullStreamProcessor(streamReceiver)
-            processStream(repo, entry.index, entry.version, streamProcessor)
-        } else {
-            // use available diff
+        // use diff only if available and cheaper than the full index (and not upgrading from v1)
+        val allowDiff = repo.formatVersion != ONE
+        val decision = costModel.choose(entry, repo.timestamp, allowDiff)
+        return if (decision.isDiff) {
             val streamReceiver = DbV2DiffStreamReceiver(db, repo.repoId, compatibilityChecker)
             val streamProcessor = IndexV2DiffStreamProcessor(streamReceiver)
-            processStream(repo, diff, entry.version, streamProcessor)
+            processStream(repo, decision, entry.version, streamProcessor)
+        } else {
+            val streamReceiver = DbV2StreamReceiver(db, repo.repoId, compatibilityChecker)
+            val streamProcessor = IndexV2FullStreamProcessor(streamReceiver)
+            processStream(repo, decision, entry.version, streamProcessor)
+        }
+    }
+
+    private fun updateArchiveRepo(
+        repo: Repository,
+        entry: Entry,
+        archiveIndexStore: ArchiveIndexStore,
+    ): IndexUpdateResult {
+        // diffs can't be applied to the stored index, so always use the full index
+        val decision = costModel.choose(entry, repo.timestamp, allowDiff = false)
+        return archiveIndexStore.newWriter(repo.repoId).use { writer ->
+            val streamReceiver =
+                DbV2ArchiveStreamReceiver(db, repo.repoId, archiveIndexStore, writer)
+            val streamProcessor = IndexV2FullStreamProcessor(streamReceiver)
+            val result = processStream(repo, decision, entry.version, streamProcessor)
+            // the transaction is done, so the new index can replace the old one now
+            writer.commit()
+            result
         }
     }
 
@@ -76,11 +120,13 @@ public class IndexV2Updater(
 
     private fun processStream(
         repo: Repository,
-        entryFile: EntryFileV2,
+        decision: Decision,
         repoVersion: Long,
         streamProcessor: IndexV2StreamProcessor,
     ): IndexUpdateResult {
-        val file = tempFileProvider.createTempFile()
+        val entryFile = decision.file
+        val file = getPartialFile(entryFile) ?: tempFileProvider.createTempFile()
+        val resumedBytes = file.length()
         val downloader = downloaderFactory.createWithTryFirstMirror(
             repo = repo,
             uri = repoUriBuilder.getUri(repo, entryFile.name.trimStart('/')),
@@ -90,7 +136,10 @@ public class IndexV2Updater(
             setIndexUpdateListener(listener, repo)
         }
         try {
+            val downloadStart = System.currentTimeMillis()
             downloader.download()
+            val applyStart = System.currentTimeMillis()
+            costModel.recordDownload(entryFile.size - resumedBytes, applyStart - downloadStart)
             file.inputStream().use { inputStream ->
                 val repoDao = db.getRepositoryDao()
                 db.runInTransaction {
@@ -112,9 +161,27 @@ public class IndexV2Updater(
                     repoDao.updateRepositoryPreferences(updatedPrefs)
                 }
             }
+            val applyMillis = System.currentTimeMillis() - applyStart
+            costModel.recordApply(decision.isDiff, entryFile.size, applyMillis)
         } finally {
             file.delete()
         }
         return IndexUpdateResult.Processed
     }
+
+    /**
+     * Returns the partially downloaded [entryFile] left by a repo preview, if there is one.
+     * The downloader resumes from it and verifies the hash of the entire file.
+     */
+    private fun getPartialFile(entryFile: EntryFileV2): File? {
+        val dir = partialIndexDir ?: return null
+        val file = getPartialIndexFile(dir, entryFile.sha256)
+        if (!file.isFile) return null
+        // a complete file would not get verified by the downloader, so don't trust it
+        if (file.length() >= entryFile.size) {
+            file.delete()
+            return null
+        }
+        return file
+    }
 }
@@ -39,6 +39,7 @@ import org.fdroid.repo.AddRepoError.ErrorType.INVALID_INDEX
 import org.fdroid.repo.AddRepoError.ErrorType.IO_ERROR
 import org.fdroid.repo.AddRepoError.ErrorType.IS_ARCHIVE_REPO
 import org.fdroid.repo.AddRepoError.ErrorType.UNKNOWN_SOURCES_DISALLOWED
+import java.io.File
 import java.io.IOException
 import java.net.Proxy
 import kotlin.coroutines.CoroutineContext
@@ -58,10 +59,16 @@ public class Fetching(
      * true if fetching is complete.
      */
     public val done: Boolean = false,
+    /**
+     * The total number of apps in the repo, if known.
+     * When the preview stopped early because of [RepoPreviewLimits],
+     * this can be larger than the number of [apps].
+     */
+    public val totalApps: Int? = null,
 ) : AddRepoState() {
     override fun toString(): String {
         return "Fetching(fetchUrl=$fetchUrl, repo=${receivedRepo?.address}, apps=${apps.size}, " +
-            "fetchResult=$fetchResult, done=$done)"
+            "totalApps=$totalApps, fetchResult=$fetchResult, done=$done)"
     }
 }
 
@@ -103,6 +110,7 @@ internal class RepoAdder(
     private val repoUriGetter: RepoUriGetter = RepoUriGetter,
     private val repoUriBuilder: RepoUriBuilder = defaultRepoUriBuilder,
     private val coroutineContext: CoroutineContext = Dispatchers.IO,
+    private val previewLimits: RepoPreviewLimits = RepoPreviewLimits(),
 ) {
     private val log = KotlinLogging.logger {}
     private val repositoryDao = db.getRepositoryDao() as RepositoryDaoInt
@@ -111,6 +119,21 @@ internal class RepoAdder(
 
     private var fetchJob: Job? = null
 
+    /**
+     * The part of the index kept by a preview that stopped early.
+     * It gets used by the index update after adding the repo,
+     * or deleted if adding the repo gets aborted.
+     */
+    @Volatile
+    private var partialIndexFile: File? = null
+
+    /**
+     * False if the preview stopped before the index could be verified,
+     * so the received repo must not be stored as it is.
+     */
+    @Volatile
+    private var isPreviewVerified: Boolean = true
+
     internal fun fetchRepository(url: String, proxy: Proxy?) {
         fetchJob = GlobalScope.launch(coroutineContext) {
             fetchRepositoryInt(url, proxy)
@@ -142,11 +165,14 @@ internal class RepoAdder(
             return
         }
         val fetchUrl = nUri.uri.toString().trimEnd('/')
+        deletePartialIndexFile()
+        isPreviewVerified = true
 
         // some plumping to receive the repo preview
         var receivedRepo: Repository? = null
         val apps = ArrayList<AppOverviewItem>()
         var fetchResult: FetchResult? = null
+        var totalApps: Int? = null
 
         val receiver = object : RepoPreviewReceiver {
             override fun onRepoReceived(repo: Repository) {
@@ -158,12 +184,33 @@ internal class RepoAdder(
                     )
                 }
                 fetchResult = getFetchResult(fetchUrl, repo)
-                addRepoState.value = Fetching(fetchUrl, receivedRepo, apps.toList(), fetchResult)
+                addRepoState.value = Fetching(
+                    fetchUrl = fetchUrl,
+                    receivedRepo = receivedRepo,
+                    apps = apps.toList(),
+                    fetchResult = fetchResult,
+                    totalApps = totalApps,
+                )
             }
 
             override fun onAppReceived(app: AppOverviewItem) {
                 apps.add(app)
-                addRepoState.value = Fetching(fetchUrl, receivedRepo, apps.toList(), fetchResult)
+                addRepoState.value = Fetching(
+                    fetchUrl = fetchUrl,
+                    receivedRepo = receivedRepo,
+                    apps = apps.toList(),
+                    fetchResult = fetchResult,
+                    totalApps = totalApps,
+                )
+            }
+
+            override fun onNumAppsKnown(numApps: Int) {
+                totalApps = numApps
+            }
+
+            override fun onPreviewStopped(partialFile: File?, isVerified: Boolean) {
+                partialIndexFile = partialFile
+                isPreviewVerified = isVerified
             }
         }
         // set a state early, so the ui can show progress animation
@@ -171,7 +218,15 @@ internal class RepoAdder(
 
         // try fetching repo with v2 format first and fallback to v1
         try {
-            fetchRepo(nUri.uri, nUri.fingerprint, proxy, nUri.username, nUri.password, receiver)
+            fetchRepo(
+                uri = nUri.uri,
+                fingerprint = nUri.fingerprint,
+                proxy = proxy,
+                username = nUri.username,
+                password = nUri.password,
+                receiver = receiver,
+                limits = previewLimits,
+            )
         } catch (e: SigningException) {
             log.error(e) { "Error verifying repo with given fingerprint." }
             addRepoState.value = AddRepoError(INVALID_FINGERPRINT, e)
@@ -194,7 +249,14 @@ internal class RepoAdder(
         if (finalRepo == null) {
             addRepoState.value = AddRepoError(INVALID_INDEX)
         } else {
-            addRepoState.value = Fetching(fetchUrl, finalRepo, apps, fetchResult, done = true)
+            addRepoState.value = Fetching(
+                fetchUrl = fetchUrl,
+                receivedRepo = finalRepo,
+                apps = apps,
+                fetchResult = fetchResult,
+                done = true,
+                totalApps = totalApps ?: apps.size,
+            )
         }
     }
 
@@ -205,12 +267,13 @@ internal class RepoAdder(
         username: String?,
         password: String?,
         receiver: RepoPreviewReceiver,
+        limits: RepoPreviewLimits? = null,
     ) {
         try {
             val repo =
                 getTempRepo(uri, IndexFormatVersion.TWO, username, password)
             val repoFetcher = RepoV2Fetcher(
-                tempFileProvider, downloaderFactory, httpManager, repoUriBuilder, proxy
+                tempFileProvider, downloaderFactory, httpManager, repoUriBuilder, proxy, limits
             )
             repoFetcher.fetchRepo(uri, repo, receiver, fingerprint)
         } catch (e: NotFoundException) {
@@ -218,7 +281,8 @@ internal class RepoAdder(
             // try to fetch v1 repo
             val repo =
                 getTempRepo(uri, IndexFormatVersion.ONE, username, password)
-            val repoFetcher = RepoV1Fetcher(tempFileProvider, downloaderFactory, repoUriBuilder)
+            val repoFetcher =
+                RepoV1Fetcher(tempFileProvider, downloaderFactory, repoUriBuilder, limits)
             repoFetcher.fetchRepo(uri, repo, receiver, fingerprint)
         }
     }
@@ -284,15 +348,30 @@ internal class RepoAdder(
             is FetchResult.IsNewRepository, is FetchResult.IsNewRepoAndNewMirror -> {
                 // reset the timestamp of the actual repo,
                 // so a following repo update will pick this up
-                val newRepo = NewRepository(
-                    name = repo.repository.name,
-                    icon = repo.repository.icon ?: emptyMap(),
-                    address = repo.address,
-                    formatVersion = repo.formatVersion,
-                    certificate = repo.certificate ?: error("Repo had no certificate"),
-                    username = repo.username,
-                    password = repo.password,
-                )
+                val certificate = repo.certificate ?: error("Repo had no certificate")
+                val newRepo = if (isPreviewVerified) {
+                    NewRepository(
+                        name = repo.repository.name,
+                        icon = repo.repository.icon ?: emptyMap(),
+                        address = repo.address,
+                        formatVersion = repo.formatVersion,
+                        certificate = certificate,
+                        username = repo.username,
+                        password = repo.password,
+                    )
+                } else {
+                    // the rest of the received repo came from the unverified part of the index,
+                    // the first update replaces this with what the verified index has
+                    NewRepository(
+                        name = mapOf("en-US" to state.fetchUrl),
+                        icon = emptyMap(),
+                        address = state.fetchUrl,
+                        formatVersion = repo.formatVersion,
+                        certificate = certificate,
+                        username = repo.username,
+                        password = repo.password,
+                    )
+                }
                 db.runInTransaction<Repository> {
                     // add the repo
                     val repoId = repositoryDao.insert(newRepo)
@@ -328,6 +407,12 @@ internal class RepoAdder(
     internal fun abortAddingRepo() {
         addRepoState.value = None
         fetchJob?.cancel()
+        deletePartialIndexFile()
+    }
+
+    private fun deletePartialIndexFile() {
+        partialIndexFile?.delete()
+        partialIndexFile = null
     }
 
     @AnyThread
@@ -6,6 +6,7 @@ import org.fdroid.database.AppOverviewItem
 import org.fdroid.database.Repository
 import org.fdroid.download.NotFoundException
 import org.fdroid.index.SigningException
+import java.io.File
 import java.io.IOException
 
 internal fun interface RepoFetcher {
@@ -26,4 +27,19 @@ internal fun interface RepoFetcher {
 internal interface RepoPreviewReceiver {
     fun onRepoReceived(repo: Repository)
     fun onAppReceived(app: AppOverviewItem)
+
+    /**
+     * Called with the total number of apps in the repo, if known before receiving them.
+     */
+    fun onNumAppsKnown(numApps: Int) {}
+
+    /**
+     * Called when the preview stopped before receiving the entire index,
+     * because one of the [RepoPreviewLimits] was reached.
+     *
+     * @param partialFile the already downloaded part of the index, if it was kept.
+     * @param isVerified true if the entire index was verified before stopping,
+     * otherwise only what came from the signed entry can be trusted.
+     */
+    fun onPreviewStopped(partialFile: File?, isVerified: Boolean) {}
 }
@@ -0,0 +1,29 @@
+package org.fdroid.repo
+
+import java.util.concurrent.TimeUnit.SECONDS
+
+/**
+ * Limits for fetching the preview of a repository that is about to be added.
+ * The preview stops streaming the index once the repository metadata was received
+ * and one of these limits has been reached.
+ * This keeps large repositories from being downloaded and held in memory entirely,
+ * just so the user can decide whether to add them.
+ *
+ * When the preview stops early, the downloaded part of the index is kept,
+ * so the index update after adding the repository can continue from there.
+ * The index gets verified only by that update in this case.
+ */
+public data class RepoPreviewLimits(
+    /**
+     * The maximum number of apps to receive for the preview.
+     */
+    public val maxApps: Int = 100,
+    /**
+     * The maximum number of index bytes to download for the preview.
+     */
+    public val maxBytes: Long = 4L * 1024 * 1024,
+    /**
+     * The maximum time in milliseconds to spend streaming the index for the preview.
+     */
+    public val maxMillis: Long = SECONDS.toMillis(10),
+)
@@ -20,6 +20,11 @@ internal class RepoV1Fetcher(
     private val tempFileProvider: TempFileProvider,
     private val downloaderFactory: DownloaderFactory,
     private val repoUriBuilder: RepoUriBuilder,
+    /**
+     * If not null, only up to [RepoPreviewLimits.maxApps] apps get passed on to the receiver.
+     * The v1 index is a single signed file, so there is nothing to gain from stopping early.
+     */
+    private val limits: RepoPreviewLimits? = null,
 ) : RepoFetcher {
 
     private val locales: LocaleListCompat = LocaleListCompat.getDefault()
@@ -58,10 +63,13 @@ internal class RepoV1Fetcher(
             username = repo.username,
             password = repo.password,
         )
+        receiver.onNumAppsKnown(indexV2.packages.size)
         receiver.onRepoReceived(receivedRepo)
-        indexV2.packages.forEach { (packageName, packageV2) ->
+        val maxApps = limits?.maxApps ?: Int.MAX_VALUE
+        indexV2.packages.entries.take(maxApps).forEach { (packageName, packageV2) ->
             val app = RepoV2StreamReceiver.getAppOverViewItem(packageName, packageV2, locales)
             receiver.onAppReceived(app)
         }
+        if (indexV2.packages.size > maxApps) receiver.onPreviewStopped(null, isVerified = true)
     }
 }
@@ -2,6 +2,7 @@ package org.fdroid.repo
 
 import android.net.Uri
 import mu.KotlinLogging
+import org.fdroid.database.AppOverviewItem
 import org.fdroid.database.Repository
 import org.fdroid.download.DownloadRequest
 import org.fdroid.download.DownloaderFactory
@@ -12,11 +13,17 @@ import org.fdroid.index.IndexParser
 import org.fdroid.index.RepoUriBuilder
 import org.fdroid.index.SigningException
 import org.fdroid.index.TempFileProvider
+import org.fdroid.index.getPartialIndexFile
 import org.fdroid.index.parseEntry
+import org.fdroid.index.v2.EntryFileV2
 import org.fdroid.index.v2.EntryVerifier
 import org.fdroid.index.v2.FileV2
 import org.fdroid.index.v2.IndexV2FullStreamProcessor
 import org.fdroid.index.v2.SIGNED_FILE_NAME
+import java.io.File
+import java.io.FilterInputStream
+import java.io.InputStream
+import java.io.OutputStream
 import java.net.Proxy
 import java.security.DigestInputStream
 import java.security.MessageDigest
@@ -27,6 +34,10 @@ internal class RepoV2Fetcher(
     private val httpManager: HttpManager,
     private val repoUriBuilder: RepoUriBuilder,
     private val proxy: Proxy? = null,
+    /**
+     * If not null, the preview stops early once one of these limits is reached.
+     */
+    private val limits: RepoPreviewLimits? = null,
 ) : RepoFetcher {
     private val log = KotlinLogging.logger {}
 
@@ -56,10 +67,10 @@ internal class RepoV2Fetcher(
         }
 
         log.info { "Downloaded entry, now streaming index..." }
+        receiver.onNumAppsKnown(entry.index.numPackages)
 
-        val streamReceiver = RepoV2StreamReceiver(receiver, cert, repo.username, repo.password)
-        val streamProcessor = IndexV2FullStreamProcessor(streamReceiver)
-        val digestInputStream = if (uri.scheme?.startsWith("http") == true) {
+        val isHttp = uri.scheme?.startsWith("http") == true
+        val digestInputStream = if (isHttp) {
             // stream index for http(s) downloads
             val indexRequest = DownloadRequest(
                 indexFile = entry.index,
@@ -82,12 +93,123 @@ internal class RepoV2Fetcher(
             val digest = MessageDigest.getInstance("SHA-256")
             DigestInputStream(indexFile.inputStream(), digest)
         }
-        digestInputStream.use { inputStream ->
-            streamProcessor.process(entry.version, inputStream) { }
+        // keep what we stream, so adding the repo can continue from there if we stop early
+        val partialFile = if (isHttp && limits != null) tempFileProvider.createTempFile() else null
+        try {
+            PreviewInputStream(digestInputStream, partialFile).use { inputStream ->
+                val previewReceiver = if (limits == null) receiver else {
+                    LimitedPreviewReceiver(receiver, limits) { inputStream.bytesRead }
+                }
+                val streamReceiver =
+                    RepoV2StreamReceiver(previewReceiver, cert, repo.username, repo.password)
+                val streamProcessor = IndexV2FullStreamProcessor(streamReceiver)
+                streamProcessor.process(entry.version, inputStream) { }
+            }
+        } catch (e: PreviewLimitReachedException) {
+            log.info { "Stopped preview early, because it ${e.message}" }
+            val keptFile = partialFile?.let { keepPartialFile(it, entry.index) }
+            receiver.onPreviewStopped(keptFile, isVerified = false)
+            return
+        } finally {
+            partialFile?.delete()
         }
         val hexDigest = digestInputStream.getDigestHex()
         if (!hexDigest.equals(entry.index.sha256, ignoreCase = true)) {
             throw SigningException("Invalid ${entry.index.name} hash: $hexDigest")
         }
     }
+
+    /**
+     * Moves the given [file] with the first bytes of [indexFile] to where
+     * [org.fdroid.index.v2.IndexV2Updater] will find it to continue the download.
+     * A complete file is not kept, because the updater would not verify it.
+     */
+    private fun keepPartialFile(file: File, indexFile: EntryFileV2): File? {
+        if (file.length() <= 0 || file.length() >= indexFile.size) return null
+        val partialFile = getPartialIndexFile(file.parentFile ?: return null, indexFile.sha256)
+        partialFile.delete()
+        return if (file.renameTo(partialFile)) partialFile else null
+    }
+}
+
+private class PreviewLimitReachedException(message: String) : Exception(message)
+
+/**
+ * Passes everything on to the given [receiver],
+ * but throws [PreviewLimitReachedException] once the repo was received
+ * and one of the given [limits] was reached.
+ */
+private class LimitedPreviewReceiver(
+    private val receiver: RepoPreviewReceiver,
+    private val limits: RepoPreviewLimits,
+    private val bytesRead: () -> Long,
+) : RepoPreviewReceiver by receiver {
+    private val startMillis = System.currentTimeMillis()
+    private var repoReceived = false
+    private var numApps = 0
+
+    override fun onRepoReceived(repo: Repository) {
+        receiver.onRepoReceived(repo)
+        repoReceived = true
+        checkLimits()
+    }
+
+    override fun onAppReceived(app: AppOverviewItem) {
+        receiver.onAppReceived(app)
+        numApps++
+        checkLimits()
+    }
+
+    private fun checkLimits() {
+        if (!repoReceived) return
+        val reason = when {
+            numApps >= limits.maxApps -> "received $numApps apps"
+            bytesRead() >= limits.maxBytes -> "read ${bytesRead()} bytes"
+            System.currentTimeMillis() - startMillis >= limits.maxMillis -> "took too long"
+            else -> return
+        }
+        throw PreviewLimitReachedException(reason)
+    }
+}
+
+/**
+ * Counts the bytes read from the given [inputStream]
+ * and copies them into the given [copyFile], if not null.
+ */
+private class PreviewInputStream(
+    inputStream: InputStream,
+    copyFile: File?,
+) : FilterInputStream(inputStream) {
+    private val outputStream: OutputStream? = copyFile?.outputStream()?.buffered()
+
+    var bytesRead: Long = 0
+        private set
+
+    override fun read(): Int {
+        val b = super.read()
+        if (b >= 0) {
+            outputStream?.write(b)
+            bytesRead++
+        }
+        return b
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        val read = super.read(b, off, len)
+        if (read > 0) {
+            outputStream?.write(b, off, read)
+            bytesRead += read
+        }
+        return read
+    }
+
+    override fun skip(n: Long): Long {
+        // skipped bytes would be missing from the copy, so read them instead
+        return read(ByteArray(minOf(n, 8192L).toInt())).toLong().coerceAtLeast(0)
+    }
+
+    override fun close() {
+        outputStream?.close()
+        super.close()
+    }
 }
@@ -0,0 +1,149 @@
+package org.fdroid.index.v2
+
+import java.io.File
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+internal class IndexV2CostModelTest {
+
+    private val index = getEntryFile("/index-v2.json", 1_000_000)
+
+    private fun getEntryFile(name: String, size: Long) = EntryFileV2(
+        name = name,
+        sha256 = "0000000000000000000000000000000000000000000000000000000000000000",
+        size = size,
+        numPackages = 42,
+    )
+
+    private fun getEntry(vararg diffs: Pair<Long, EntryFileV2>) = Entry(
+        timestamp = 1337,
+        version = 1,
+        index = index,
+        diffs = diffs.associate { (timestamp, file) -> timestamp.toString() to file },
+    )
+
+    @Test
+    fun testNoDiffUsesFullIndex() {
+        val model = IndexV2CostModel()
+        val decision = model.choose(getEntry(), 23)
+        assertFalse(decision.isDiff)
+        assertEquals(index, decision.file)
+    }
+
+    @Test
+    fun testSmallDiffIsUsed() {
+        val model = IndexV2CostModel()
+        val diff = getEntryFile("/diff/23.json", 10_000)
+        val decision = model.choose(getEntry(23L to diff), 23)
+        assertTrue(decision.isDiff)
+        assertEquals(diff, decision.file)
+    }
+
+    @Test
+    fun testDiffForOtherTimestampIsIgnored() {
+        val model = IndexV2CostModel()
+        val diff = getEntryFile("/diff/42.json", 10_000)
+        val decision = model.choose(getEntry(42L to diff), 23)
+        assertFalse(decision.isDiff)
+        assertEquals(index, decision.file)
+    }
+
+    @Test
+    fun testDiffIsNotUsedWhenNotAllowed() {
+        val model = IndexV2CostModel()
+        val diff = getEntryFile("/diff/23.json", 10_000)
+        val decision = model.choose(getEntry(23L to diff), 23, allowDiff = false)
+        assertFalse(decision.isDiff)
+        assertEquals(index, decision.file)
+    }
+
+    @Test
+    fun testDiffAsLargeAsIndexIsPreferred() {
+        val model = IndexV2CostModel()
+        val diff = getEntryFile("/diff/23.json", index.size)
+        val decision = model.choose(getEntry(23L to diff), 23)
+        assertTrue(decision.isDiff)
+    }
+
+    @Test
+    fun testDiffLargerThanIndexIsNotUsed() {
+        val model = IndexV2CostModel()
+        val diff = getEntryFile("/diff/23.json", index.size + 1)
+        val decision = model.choose(getEntry(23L to diff), 23)
+        assertFalse(decision.isDiff)
+        assertEquals(index, decision.file)
+    }
+
+    @Test
+    fun testMeasuredSlowDiffApplyAvoidsDiff() {
+        val model = IndexV2CostModel(
+            downloadThroughput = 1_000.0,
+            fullApplyThroughput = 1_000.0,
+            diffApplyThroughput = 1_000.0,
+        )
+        val diff = getEntryFile("/diff/23.json", 800_000)
+        assertTrue(model.choose(getEntry(23L to diff), 23).isDiff)
+
+        // diffs turned out to be very slow to apply on this device
+        repeat(20) { model.recordApply(isDiff = true, bytes = 100_000, millis = 10_000) }
+        assertTrue(model.diffApplyThroughput < 20.0)
+        assertFalse(model.choose(getEntry(23L to diff), 23).isDiff)
+    }
+
+    @Test
+    fun testMeasurementsUpdateEstimates() {
+        val model = IndexV2CostModel()
+        val diff = getEntryFile("/diff/23.json", 100_000)
+        val before = model.choose(getEntry(23L to diff), 23).estimatedMillis
+
+        model.recordDownload(bytes = 1_000_000, millis = 100)
+        model.recordApply(isDiff = true, bytes = 1_000_000, millis = 100)
+        assertTrue(model.downloadThroughput > IndexV2CostModel.DEFAULT_DOWNLOAD_THROUGHPUT)
+        assertTrue(model.diffApplyThroughput > IndexV2CostModel.DEFAULT_DIFF_APPLY_THROUGHPUT)
+
+        val after = model.choose(getEntry(23L to diff), 23).estimatedMillis
+        assertTrue(after < before, "$after < $before")
+    }
+
+    @Test
+    fun testMeasurementsGetLoadedAgain() {
+        val file = File.createTempFile("cost-model", null)
+        try {
+            assertTrue(file.delete())
+            val defaults = IndexV2CostModel.load(file)
+            assertEquals(
+                IndexV2CostModel.DEFAULT_DIFF_APPLY_THROUGHPUT,
+                defaults.diffApplyThroughput,
+            )
+
+            val model = IndexV2CostModel.load(file)
+            model.recordDownload(bytes = 1_000_000, millis = 100)
+            model.recordApply(isDiff = true, bytes = 100_000, millis = 10_000)
+
+            // e.g. in the next process
+            val loaded = IndexV2CostModel.load(file)
+            assertEquals(model.downloadThroughput, loaded.downloadThroughput)
+            assertEquals(model.fullApplyThroughput, loaded.fullApplyThroughput)
+            assertEquals(model.diffApplyThroughput, loaded.diffApplyThroughput)
+            assertTrue(loaded.diffApplyThroughput < IndexV2CostModel.DEFAULT_DIFF_APPLY_THROUGHPUT)
+
+            file.writeText("broken")
+            val broken = IndexV2CostModel.load(file)
+            assertEquals(IndexV2CostModel.DEFAULT_DOWNLOAD_THROUGHPUT, broken.downloadThroughput)
+        } finally {
+            file.delete()
+        }
+    }
+
+    @Test
+    fun testTinyOrInstantMeasurementsAreIgnored() {
+        val model = IndexV2CostModel()
+        model.recordDownload(bytes = 100, millis = 1)
+        model.recordDownload(bytes = 1_000_000, millis = 0)
+        model.recordApply(isDiff = false, bytes = 100, millis = 1)
+        assertEquals(IndexV2CostModel.DEFAULT_DOWNLOAD_THROUGHPUT, model.downloadThroughput)
+        assertEquals(IndexV2CostModel.DEFAULT_FULL_APPLY_THROUGHPUT, model.fullApplyThroughput)
+    }
+}
@@ -53,10 +53,12 @@ import org.junit.Test
 import org.junit.rules.TemporaryFolder
 import org.junit.runner.RunWith
 import java.io.ByteArrayInputStream
+import java.io.File
 import java.io.IOException
 import java.security.DigestInputStream
 import java.security.MessageDigest
 import java.util.concurrent.Callable
+import kotlin.test.assertContentEquals
 import kotlin.test.assertEquals
 import kotlin.test.assertFailsWith
 import kotlin.test.assertFalse
@@ -745,6 +747,118 @@ internal class RepoAdderTest {
         }
     }
 
+    /**
+     * Fetches a preview of the max repo from [url] that stops after the first app.
+     */
+    private suspend fun fetchPreviewThatStopsEarly(url: String): RepoAdder {
+        val repoAdder = RepoAdder(
+            context = context,
+            db = db,
+            tempFileProvider = tempFileProvider,
+            downloaderFactory = downloaderFactory,
+            httpManager = httpManager,
+            previewLimits = RepoPreviewLimits(maxApps = 1),
+        )
+        val jarFile = folder.newFile()
+        val index = assets.open("index-max-v2.json").use { it.readBytes() }
+        // hand out the index in small chunks, like a slow network would
+        val indexStream = object : DigestInputStream(ByteArrayInputStream(index), digest) {
+            override fun read(b: ByteArray, off: Int, len: Int): Int {
+                return super.read(b, off, minOf(len, 512))
+            }
+
+            override fun available(): Int = 0
+        }
+
+        every { tempFileProvider.createTempFile() } returns jarFile
+        every {
+            downloaderFactory.create(
+                repo = match {
+                    it.address == url && it.formatVersion == IndexFormatVersion.TWO
+                },
+                uri = Uri.parse("$url/entry.jar"),
+                indexFile = any(),
+                destFile = jarFile,
+            )
+        } returns downloader
+        every { downloader.download() } answers {
+            jarFile.outputStream().use { outputStream ->
+                assets.open("diff-empty-max/entry.jar").use { inputStream ->
+                    inputStream.copyTo(outputStream)
+                }
+            }
+        }
+        coEvery {
+            httpManager.getDigestInputStream(match {
+                it.indexFile.name == "../index-max-v2.json"
+            })
+        } returns indexStream
+
+        // repo not in DB
+        every { repoDao.getRepository(any<String>()) } returns null
+
+        repoAdder.addRepoState.test {
+            assertIs<None>(awaitItem())
+
+            repoAdder.fetchRepository(url = url, proxy = null)
+
+            var state = assertIs<Fetching>(awaitItem())
+            while (!state.done) state = assertIs<Fetching>(awaitItem())
+            assertEquals("https://max-v1.org", state.receivedRepo?.address)
+            assertEquals(1, state.apps.size)
+            assertEquals(3, state.totalApps)
+        }
+        return repoAdder
+    }
+
+    @Test
+    fun testPreviewStopsEarlyAndKeepsPartialIndex() = runTest {
+        val repoAdder = fetchPreviewThatStopsEarly("https://example.org/repo")
+        val index = assets.open("index-max-v2.json").use { it.readBytes() }
+        // the index hash can't be checked, because we did not download all of it
+        verify(exactly = 0) { digest.digest() }
+
+        // what was downloaded is kept for continuing the download after adding the repo
+        val partialFile = File(
+            folder.root,
+            "dl-partial-36cbdb2f3134d94a210e457332e1945a237d8b8e642ae1276ffa419a9375665a",
+        )
+        assertTrue(partialFile.isFile)
+        val partialBytes = partialFile.readBytes()
+        assertTrue(partialBytes.size < index.size)
+        assertContentEquals(index.copyOf(partialBytes.size), partialBytes)
+
+        // aborting removes the partial index
+        repoAdder.abortAddingRepo()
+        assertFalse(partialFile.exists())
+    }
+
+    @Test
+    fun testAddingRepoAfterPreviewStoppedEarly() = runTest {
+        val url = "https://example.org/repo"
+        val repoAdder = fetchPreviewThatStopsEarly(url)
+
+        val newRepo: Repository = mockk()
+        val txnSlot = slot<Callable<Repository>>()
+        every { db.runInTransaction(capture(txnSlot)) } answers {
+            txnSlot.captured.call()
+        }
+        // the index was not verified, so nothing from it must be stored
+        every {
+            repoDao.insert(match<NewRepository> {
+                it.address == url &&
+                    it.name == mapOf("en-US" to url) &&
+                    it.icon.isEmpty() &&
+                    it.formatVersion == IndexFormatVersion.TWO
+            })
+        } returns 42L
+        every { repoDao.getRepository(42L) } returns newRepo
+        every { repoDao.updateUserMirrors(42L, listOf(url)) } just Runs
+
+        assertEquals(newRepo, repoAdder.addFetchedRepository())
+        verify { repoDao.insert(any<NewRepository>()) }
+    }
+
     @Test
     fun testAddingMinRepoWithBasicAuth() = runTest {
         val username = getRandomString()
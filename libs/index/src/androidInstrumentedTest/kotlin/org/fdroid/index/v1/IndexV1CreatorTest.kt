@@ -13,6 +13,7 @@ import java.io.File
 import kotlin.random.Random
 import kotlin.test.Test
 import kotlin.test.assertEquals
+import kotlin.test.assertFalse
 import kotlin.test.assertTrue
 
 @RunWith(AndroidJUnit4::class)
@@ -38,4 +39,55 @@ internal class IndexV1CreatorTest {
         val indexStr = indexFile.readBytes().decodeToString()
         assertEquals(indexV1, IndexParser.parseV1(indexStr))
     }
+
+    private fun getUserPackageNames(): List<String> {
+        return context.packageManager.getInstalledPackages(0).filter {
+            it.applicationInfo!!.flags and FLAG_SYSTEM == 0
+        }.map { it.packageName }.sorted()
+    }
+
+    @Test
+    fun testAddingAndRemovingAppsWithCache() {
+        val repoDir = tmpFolder.newFolder()
+        val repo = TestDataMinV1.repo
+        val cache = IndexV1Creator.Cache()
+        val allPackageNames = (getUserPackageNames().take(3) + context.packageName).distinct()
+        val first = allPackageNames.take(allPackageNames.size - 1).toSet()
+
+        val index1 = IndexV1Creator(context.packageManager, repoDir, first, repo, cache).createRepo()
+        assertEquals(first.size, cache.size)
+        assertEquals(first, index1.apps.map { it.packageName }.toSet())
+        // mark the existing icons, so we can see whether they get re-created,
+        // APKs are symlinks to the installed APKs, so those can't be marked
+        val files = File(repoDir, "icons").listFiles()!!.toList()
+        assertEquals(first.size, files.size)
+        files.forEach { assertTrue(it.setLastModified(0)) }
+
+        // adding an app only creates the files of the new app
+        val added = allPackageNames.toSet()
+        val index2 = IndexV1Creator(context.packageManager, repoDir, added, repo, cache).createRepo()
+        assertEquals(added.size, cache.size)
+        files.forEach { assertEquals(0, it.lastModified(), "$it got re-created") }
+        val freshIndex =
+            IndexV1Creator(context.packageManager, tmpFolder.newFolder(), added, repo).createRepo()
+        assertEquals(freshIndex, index2)
+
+        // removing an app deletes its files, but keeps all others
+        val removedPackageName = first.first()
+        val removed = added - removedPackageName
+        val index3 = IndexV1Creator(context.packageManager, repoDir, removed, repo, cache).createRepo()
+        assertEquals(removed.size, cache.size)
+        assertEquals(removed, index3.apps.map { it.packageName }.toSet())
+        assertFalse(removedPackageName in index3.packages)
+        repoDir.walk().filter { it.isFile }.forEach { file ->
+            assertFalse(file.name.startsWith("${removedPackageName}_"), "$file was not removed")
+        }
+        files.filter { !it.name.startsWith("${removedPackageName}_") }.forEach { file ->
+            assertTrue(file.exists(), "$file got removed")
+            assertEquals(0, file.lastModified(), "$file got re-created")
+        }
+
+        val indexFile = File(repoDir, DATA_FILE_NAME)
+        assertEquals(index3, IndexParser.parseV1(indexFile.readBytes().decodeToString()))
+    }
 }
@@ -0,0 +1,75 @@
+package org.fdroid.apk
+
+import java.io.File
+import java.io.IOException
+
+/**
+ * Thrown by [ApkFileVerifier] when an APK file does not match what we expected.
+ */
+public open class ApkMismatchException(message: String) : Exception(message)
+
+/**
+ * Thrown by [ApkFileVerifier] when an APK file requests [extraPermissions] that were not expected.
+ */
+public class ApkPermissionMismatchException(
+    public val extraPermissions: Set<String>,
+) : ApkMismatchException(extraPermissions.joinToString(" "))
+
+/**
+ * Verifies that a downloaded APK file corresponds to the information that was displayed to the user
+ * before it gets handed to the system for installation.
+ * This reads as little of the APK as possible, see [ApkParser].
+ *
+ * @param sdkInt the SDK version of the device the APK will be installed on,
+ * used to figure out whether the APK can be installed at all and which permissions it will request.
+ */
+public class ApkFileVerifier(private val sdkInt: Int) {
+
+    /**
+     * Checks that the given [file] has the given [packageName] and [targetSdkVersion],
+     * is signed by the given [signer] and requests no permissions other than [requestedPermissions].
+     * Its minSdkVersion must not be higher than [sdkInt].
+     * Having fewer permissions than expected is fine.
+     *
+     * @param targetSdkVersion the expected target SDK or null, if it should not be checked.
+     * @param signer the expected SHA-256 fingerprint of the signing certificate
+     * or null, if it should not be checked.
+     *
+     * @return the [ApkInfo] of the verified [file].
+     * @throws ApkFormatException if the [file] could not be parsed.
+     */
+    @Throws(IOException::class, ApkMismatchException::class)
+    public fun verify(
+        file: File,
+        packageName: String,
+        targetSdkVersion: Int?,
+        requestedPermissions: Collection<String>?,
+        signer: String?,
+    ): ApkInfo {
+        val apkInfo = ApkParser.parse(file)
+        if (apkInfo.packageName != packageName) {
+            throw ApkMismatchException("Apk file has unexpected packageName! ${apkInfo.packageName}")
+        }
+        if (apkInfo.versionCode < 0) {
+            throw ApkMismatchException("Apk file has no valid versionCode!")
+        }
+        val minSdkVersion = apkInfo.minSdkVersion ?: 1
+        if (minSdkVersion > sdkInt) {
+            throw ApkMismatchException(
+                "MinSdkVersion of apk file ($minSdkVersion) is higher than the SDK of this device ($sdkInt)!"
+            )
+        }
+        if (targetSdkVersion != null && apkInfo.effectiveTargetSdkVersion != targetSdkVersion) {
+            throw ApkMismatchException(
+                "TargetSdkVersion of apk file (${apkInfo.effectiveTargetSdkVersion}) " +
+                    "is not the expected targetSdkVersion ($targetSdkVersion)!"
+            )
+        }
+        if (signer != null && !apkInfo.signers.contains(signer.lowercase())) {
+            throw ApkMismatchException("Apk file has unexpected signer! ${apkInfo.signers}")
+        }
+        val extraPermissions = apkInfo.getRequestedPermissions(sdkInt) - (requestedPermissions ?: emptySet()).toSet()
+        if (extraPermissions.isNotEmpty()) throw ApkPermissionMismatchException(extraPermissions)
+        return apkInfo
+    }
+}
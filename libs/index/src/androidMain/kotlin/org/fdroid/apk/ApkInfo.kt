@@ -0,0 +1,49 @@
+package org.fdroid.apk
+
+import org.fdroid.index.v2.PermissionV2
+
+/**
+ * The information about an APK file that [ApkParser] reads
+ * from its binary `AndroidManifest.xml` and its signatures.
+ */
+public data class ApkInfo(
+    val packageName: String,
+    /**
+     * The full version code, including `versionCodeMajor` in the upper 32 bits.
+     */
+    val versionCode: Long,
+    val versionName: String?,
+    val minSdkVersion: Int?,
+    val targetSdkVersion: Int?,
+    val usesPermission: List<PermissionV2>,
+    val usesPermissionSdk23: List<PermissionV2>,
+    /**
+     * The lowercase SHA-256 fingerprints of the signing certificates,
+     * see [org.fdroid.index.IndexUtils.getPackageSigner].
+     * These come from the APK Signing Block (v3.1, v3 and v2 in that order),
+     * or from the JAR signature (v1), if the APK has no APK Signing Block.
+     */
+    val signers: List<String>,
+) {
+    /**
+     * The target SDK the way Android sees it, which defaults to [minSdkVersion] if not given.
+     */
+    public val effectiveTargetSdkVersion: Int
+        get() = targetSdkVersion ?: minSdkVersion ?: 1
+
+    /**
+     * Returns the names of the permissions that this APK requests on a device with [sdkInt].
+     * Other than [org.fdroid.index.v2.ManifestV2] based permission lists,
+     * this does not include implied or split permissions.
+     */
+    public fun getRequestedPermissions(sdkInt: Int): Set<String> {
+        val permissions = HashSet<String>()
+        usesPermission.forEach { permission ->
+            if (sdkInt <= (permission.maxSdkVersion ?: Int.MAX_VALUE)) permissions.add(permission.name)
+        }
+        if (sdkInt >= 23) usesPermissionSdk23.forEach { permission ->
+            if (sdkInt <= (permission.maxSdkVersion ?: Int.MAX_VALUE)) permissions.add(permission.name)
+        }
+        return permissions
+    }
+}
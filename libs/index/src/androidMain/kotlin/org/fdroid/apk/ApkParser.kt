@@ -0,0 +1,280 @@
+package org.fdroid.apk
+
+import org.fdroid.index.IndexUtils.getPackageSigner
+import java.io.ByteArrayInputStream
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder.LITTLE_ENDIAN
+import java.security.cert.CertificateException
+import java.security.cert.CertificateFactory
+import java.security.cert.X509Certificate
+import java.util.zip.DataFormatException
+import java.util.zip.Inflater
+
+/**
+ * Thrown by [ApkParser] when the given file is not a valid APK,
+ * or uses features that [ApkParser] does not support, such as ZIP64.
+ */
+public class ApkFormatException(message: String, cause: Throwable? = null) : IOException(message, cause)
+
+/**
+ * Reads the [ApkInfo] of an APK file without reading the entire file.
+ * Only the ZIP central directory, `AndroidManifest.xml`
+ * and the APK Signing Block (or the JAR signature block for v1-only APKs) get read,
+ * everything else such as `resources.arsc` or `classes.dex` gets skipped.
+ *
+ * This does **not** verify the signatures or file digests, Android does this when installing.
+ * The signers only say which keys the APK claims to be signed with,
+ * so they can be compared to the expected signer before handing the APK to the system.
+ *
+ * @see <a href="https://source.android.com/docs/security/features/apksigning/v2#apk-signing-block">APK Signing Block</a>
+ */
+public object ApkParser {
+
+    private const val EOCD_SIGNATURE = 0x06054b50
+    private const val EOCD_SIZE = 22
+    private const val CD_ENTRY_SIGNATURE = 0x02014b50
+    private const val CD_ENTRY_SIZE = 46
+    private const val LOCAL_HEADER_SIGNATURE = 0x04034b50
+    private const val LOCAL_HEADER_SIZE = 30
+    private const val METHOD_STORED = 0
+    private const val METHOD_DEFLATED = 8
+
+    private const val SIGNING_BLOCK_MAGIC = "APK Sig Block 42"
+    private const val SIGNING_BLOCK_FOOTER_SIZE = 24
+    private const val SIGNATURE_SCHEME_V2_BLOCK_ID = 0x7109871a
+    private const val SIGNATURE_SCHEME_V3_BLOCK_ID = 0xf05368c0.toInt()
+    private const val SIGNATURE_SCHEME_V31_BLOCK_ID = 0x1b93ad61
+
+    private const val MANIFEST_NAME = "AndroidManifest.xml"
+    private val v1SignatureBlockRegex = Regex("META-INF/[^/]+\\.(RSA|DSA|EC)")
+
+    /**
+     * Guards against reading huge amounts of data into memory for a broken or malicious APK.
+     */
+    private const val MAX_READ_SIZE = 16 * 1024 * 1024
+
+    @JvmStatic
+    @Throws(IOException::class)
+    public fun parse(file: File): ApkInfo = RandomAccessFile(file, "r").use { raf ->
+        try {
+            parse(raf)
+        } catch (e: BufferUnderflowException) {
+            throw ApkFormatException("Truncated APK", e)
+        } catch (e: IndexOutOfBoundsException) {
+            throw ApkFormatException("Truncated APK", e)
+        }
+    }
+
+    private fun parse(raf: RandomAccessFile): ApkInfo {
+        val centralDirectory = readCentralDirectory(raf)
+        val manifestEntry = centralDirectory.entries.find { it.name == MANIFEST_NAME }
+            ?: throw ApkFormatException("No $MANIFEST_NAME in APK")
+        val apkInfo = BinaryManifestParser.parse(readEntry(raf, manifestEntry))
+        val signers = readSigningBlockSigners(raf, centralDirectory.offset)
+            ?: readV1Signers(raf, centralDirectory.entries)
+        return apkInfo.copy(signers = signers)
+    }
+
+    private class CentralDirectory(val offset: Long, val entries: List<Entry>)
+
+    private class Entry(
+        val name: String,
+        val method: Int,
+        val compressedSize: Long,
+        val size: Long,
+        val localHeaderOffset: Long,
+    )
+
+    /**
+     * Reads the central directory, but only keeps the entries that we are interested in.
+     */
+    private fun readCentralDirectory(raf: RandomAccessFile): CentralDirectory {
+        val fileSize = raf.length()
+        if (fileSize < EOCD_SIZE) throw ApkFormatException("File too small")
+        // the end of central directory record is followed by a comment of up to 65535 bytes
+        val tailSize = minOf(fileSize, EOCD_SIZE + 0xffffL).toInt()
+        val tail = raf.readBuffer(fileSize - tailSize, tailSize)
+        var eocd = -1
+        for (i in tailSize - EOCD_SIZE downTo 0) {
+            if (tail.getInt(i) == EOCD_SIGNATURE && tail.getUInt16(i + 20) == tailSize - i - EOCD_SIZE) {
+                eocd = i
+                break
+            }
+        }
+        if (eocd == -1) throw ApkFormatException("No end of central directory found")
+        val eocdOffset = fileSize - tailSize + eocd
+        val numEntries = tail.getUInt16(eocd + 10)
+        val cdSize = tail.getInt(eocd + 12).toLong() and 0xffffffffL
+        val cdOffset = tail.getInt(eocd + 16).toLong() and 0xffffffffL
+        if (cdOffset + cdSize > eocdOffset) throw ApkFormatException("Invalid central directory, ZIP64?")
+        if (cdSize > MAX_READ_SIZE) throw ApkFormatException("Central directory too large")
+
+        val cd = raf.readBuffer(cdOffset, cdSize.toInt())
+        val entries = ArrayList<Entry>()
+        var position = 0
+        repeat(numEntries) {
+            if (cd.getInt(position) != CD_ENTRY_SIGNATURE) {
+                throw ApkFormatException("Invalid central directory entry at $position")
+            }
+            val nameLength = cd.getUInt16(position + 28)
+            val nameBytes = ByteArray(nameLength)
+            for (i in 0 until nameLength) nameBytes[i] = cd.get(position + CD_ENTRY_SIZE + i)
+            val name = String(nameBytes, Charsets.UTF_8)
+            if (name == MANIFEST_NAME || v1SignatureBlockRegex.matches(name)) entries.add(
+                Entry(
+                    name = name,
+                    method = cd.getUInt16(position + 10),
+                    compressedSize = cd.getInt(position + 20).toLong() and 0xffffffffL,
+                    size = cd.getInt(position + 24).toLong() and 0xffffffffL,
+                    localHeaderOffset = cd.getInt(position + 42).toLong() and 0xffffffffL,
+                )
+            )
+            position += CD_ENTRY_SIZE + nameLength + cd.getUInt16(position + 30) +
+                cd.getUInt16(position + 32)
+        }
+        return CentralDirectory(cdOffset, entries)
+    }
+
+    private fun readEntry(raf: RandomAccessFile, entry: Entry): ByteArray {
+        if (entry.size > MAX_READ_SIZE || entry.compressedSize > MAX_READ_SIZE) {
+            throw ApkFormatException("${entry.name} too large")
+        }
+        val header = raf.readBuffer(entry.localHeaderOffset, LOCAL_HEADER_SIZE)
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw ApkFormatException("Invalid local header for ${entry.name}")
+        }
+        val dataOffset = entry.localHeaderOffset + LOCAL_HEADER_SIZE +
+            header.getUInt16(26) + header.getUInt16(28)
+        return when (entry.method) {
+            METHOD_STORED -> {
+                if (entry.compressedSize != entry.size) throw ApkFormatException("Invalid size of ${entry.name}")
+                raf.readBytes(dataOffset, entry.size.toInt())
+            }
+            METHOD_DEFLATED -> inflate(raf.readBytes(dataOffset, entry.compressedSize.toInt()), entry)
+            else -> throw ApkFormatException("Unsupported compression method ${entry.method}")
+        }
+    }
+
+    private fun inflate(input: ByteArray, entry: Entry): ByteArray {
+        val output = ByteArray(entry.size.toInt())
+        val inflater = Inflater(true)
+        try {
+            inflater.setInput(input)
+            var length = 0
+            while (length < output.size) {
+                val read = inflater.inflate(output, length, output.size - length)
+                if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break
+                length += read
+            }
+            if (length != output.size) throw ApkFormatException("Invalid size of ${entry.name}")
+        } catch (e: DataFormatException) {
+            throw ApkFormatException("Could not inflate ${entry.name}", e)
+        } finally {
+            inflater.end()
+        }
+        return output
+    }
+
+    /**
+     * Returns the signers from the APK Signing Block right before the central directory,
+     * or null if there is no such block.
+     */
+    private fun readSigningBlockSigners(raf: RandomAccessFile, cdOffset: Long): List<String>? {
+        if (cdOffset < SIGNING_BLOCK_FOOTER_SIZE + 8) return null
+        val footer = raf.readBuffer(cdOffset - SIGNING_BLOCK_FOOTER_SIZE, SIGNING_BLOCK_FOOTER_SIZE)
+        val magic = ByteArray(16).also { for (i in it.indices) it[i] = footer.get(8 + i) }
+        if (String(magic, Charsets.US_ASCII) != SIGNING_BLOCK_MAGIC) return null
+        // the size does not include the size field at the start of the block
+        val blockSize = footer.getLong(0)
+        if (blockSize < SIGNING_BLOCK_FOOTER_SIZE || blockSize > cdOffset - 8 || blockSize > MAX_READ_SIZE) {
+            throw ApkFormatException("Invalid APK Signing Block size $blockSize")
+        }
+        val block = raf.readBuffer(cdOffset - blockSize - 8, blockSize.toInt() + 8)
+        if (block.getLong(0) != blockSize) throw ApkFormatException("APK Signing Block sizes differ")
+
+        val certificates = HashMap<Int, List<ByteArray>>()
+        val pairs = block.sliceAt(8, block.limit() - SIGNING_BLOCK_FOOTER_SIZE - 8)
+        while (pairs.hasRemaining()) {
+            val length = pairs.getLong()
+            if (length < 4 || length > pairs.remaining()) throw ApkFormatException("Invalid ID-value pair")
+            val id = pairs.getInt()
+            val value = pairs.sliceAt(pairs.position(), length.toInt() - 4)
+            pairs.position(pairs.position() + length.toInt() - 4)
+            if (id == SIGNATURE_SCHEME_V2_BLOCK_ID || id == SIGNATURE_SCHEME_V3_BLOCK_ID ||
+                id == SIGNATURE_SCHEME_V31_BLOCK_ID
+            ) {
+                certificates[id] = getSignerCertificates(value)
+            }
+        }
+        // there are other blocks like verity padding, so only count the ones with signers
+        if (certificates.isEmpty()) return null
+        return listOf(SIGNATURE_SCHEME_V31_BLOCK_ID, SIGNATURE_SCHEME_V3_BLOCK_ID, SIGNATURE_SCHEME_V2_BLOCK_ID)
+            .flatMap { id -> certificates[id] ?: emptyList() }
+            .map { getPackageSigner(it) }
+            .distinct()
+    }
+
+    /**
+     * Returns the first certificate of each signer in a v2 or v3 signature scheme block.
+     * The layout of both is the same up to the certificates.
+     */
+    private fun getSignerCertificates(value: ByteBuffer): List<ByteArray> {
+        val certificates = ArrayList<ByteArray>()
+        val signers = value.getLengthPrefixed()
+        while (signers.hasRemaining()) {
+            val signer = signers.getLengthPrefixed()
+            val signedData = signer.getLengthPrefixed()
+            signedData.getLengthPrefixed() // digests
+            val signerCertificates = signedData.getLengthPrefixed()
+            if (signerCertificates.hasRemaining()) {
+                val certificate = signerCertificates.getLengthPrefixed()
+                certificates.add(ByteArray(certificate.remaining()).also { certificate.get(it) })
+            }
+        }
+        return certificates
+    }
+
+    private fun readV1Signers(raf: RandomAccessFile, entries: List<Entry>): List<String> {
+        val certificateFactory = CertificateFactory.getInstance("X.509")
+        return entries.filter { v1SignatureBlockRegex.matches(it.name) }.mapNotNull { entry ->
+            val certificates = try {
+                certificateFactory.generateCertificates(ByteArrayInputStream(readEntry(raf, entry)))
+            } catch (e: CertificateException) {
+                throw ApkFormatException("Invalid signature block ${entry.name}", e)
+            }
+            (certificates.firstOrNull() as? X509Certificate)?.let { getPackageSigner(it.encoded) }
+        }.distinct()
+    }
+
+    private fun RandomAccessFile.readBytes(offset: Long, length: Int): ByteArray {
+        if (offset < 0 || offset + length > length()) throw ApkFormatException("Read beyond end of file")
+        val bytes = ByteArray(length)
+        seek(offset)
+        readFully(bytes)
+        return bytes
+    }
+
+    private fun RandomAccessFile.readBuffer(offset: Long, length: Int): ByteBuffer {
+        return ByteBuffer.wrap(readBytes(offset, length)).order(LITTLE_ENDIAN)
+    }
+
+    private fun ByteBuffer.sliceAt(start: Int, length: Int): ByteBuffer {
+        if (start < 0 || length < 0 || start + length > limit()) throw ApkFormatException("Invalid slice")
+        val copy = duplicate()
+        copy.position(start)
+        copy.limit(start + length)
+        return copy.slice().order(LITTLE_ENDIAN)
+    }
+
+    private fun ByteBuffer.getLengthPrefixed(): ByteBuffer {
+        val length = getInt()
+        if (length < 0 || length > remaining()) throw ApkFormatException("Invalid length $length")
+        val slice = sliceAt(position(), length)
+        position(position() + length)
+        return slice
+    }
+}
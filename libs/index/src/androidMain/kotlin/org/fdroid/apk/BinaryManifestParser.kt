@@ -0,0 +1,239 @@
+package org.fdroid.apk
+
+import org.fdroid.index.v2.PermissionV2
+import java.nio.ByteBuffer
+import java.nio.ByteOrder.LITTLE_ENDIAN
+
+/**
+ * Reads the few things we need from a compiled, binary `AndroidManifest.xml`
+ * without building a DOM or resolving any resources.
+ *
+ * Attributes in the android namespace are recognized by their resource ID,
+ * so this also works for manifests where the attribute names were obfuscated.
+ *
+ * @see <a href="https://android.googlesource.com/platform/frameworks/base/+/refs/heads/main/libs/androidfw/include/androidfw/ResourceTypes.h">ResourceTypes.h</a>
+ */
+internal object BinaryManifestParser {
+
+    private const val RES_STRING_POOL_TYPE = 0x0001
+    private const val RES_XML_TYPE = 0x0003
+    private const val RES_XML_START_ELEMENT_TYPE = 0x0102
+    private const val RES_XML_END_ELEMENT_TYPE = 0x0103
+    private const val RES_XML_RESOURCE_MAP_TYPE = 0x0180
+
+    private const val UTF8_FLAG = 1 shl 8
+    private const val NO_ENTRY = -1
+
+    private const val TYPE_STRING = 0x03
+    private const val TYPE_FIRST_INT = 0x10
+    private const val TYPE_LAST_INT = 0x1f
+
+    private const val ATTR_NAME = 0x01010003
+    private const val ATTR_MIN_SDK_VERSION = 0x0101020c
+    private const val ATTR_VERSION_CODE = 0x0101021b
+    private const val ATTR_VERSION_NAME = 0x0101021c
+    private const val ATTR_TARGET_SDK_VERSION = 0x01010270
+    private const val ATTR_MAX_SDK_VERSION = 0x01010271
+    private const val ATTR_VERSION_CODE_MAJOR = 0x01010576
+
+    /**
+     * Parses the given binary manifest.
+     * The [ApkInfo.signers] of the result are always empty.
+     */
+    @Throws(ApkFormatException::class)
+    fun parse(bytes: ByteArray): ApkInfo = try {
+        Parser(ByteBuffer.wrap(bytes).order(LITTLE_ENDIAN)).parse()
+    } catch (e: IndexOutOfBoundsException) {
+        throw ApkFormatException("Truncated AndroidManifest.xml", e)
+    }
+
+    private class Attribute(val nameIndex: Int, val rawValue: Int, val dataType: Int, val data: Int)
+
+    private class Parser(private val buffer: ByteBuffer) {
+        private var stringPool: StringPool? = null
+        private var resourceIds = IntArray(0)
+
+        private var packageName: String? = null
+        private var versionCode: Long? = null
+        private var versionName: String? = null
+        private var minSdkVersion: Int? = null
+        private var targetSdkVersion: Int? = null
+        private val usesPermission = ArrayList<PermissionV2>()
+        private val usesPermissionSdk23 = ArrayList<PermissionV2>()
+
+        fun parse(): ApkInfo {
+            if (buffer.getUInt16(0) != RES_XML_TYPE) throw ApkFormatException("Not a binary XML file")
+            val end = minOf(buffer.getInt(4).toLong() and 0xffffffffL, buffer.limit().toLong()).toInt()
+            var position = buffer.getUInt16(2)
+            var depth = 0
+            while (position + 8 <= end) {
+                val type = buffer.getUInt16(position)
+                val headerSize = buffer.getUInt16(position + 2)
+                val size = buffer.getInt(position + 4)
+                if (headerSize < 8 || size < headerSize || size > end - position) {
+                    throw ApkFormatException("Invalid chunk at $position")
+                }
+                when (type) {
+                    RES_STRING_POOL_TYPE -> stringPool = StringPool(buffer, position, headerSize)
+                    RES_XML_RESOURCE_MAP_TYPE -> resourceIds = IntArray((size - headerSize) / 4) { i ->
+                        buffer.getInt(position + headerSize + i * 4)
+                    }
+                    RES_XML_START_ELEMENT_TYPE -> {
+                        depth++
+                        onStartElement(position + headerSize, depth)
+                    }
+                    RES_XML_END_ELEMENT_TYPE -> depth--
+                }
+                position += size
+            }
+            return ApkInfo(
+                packageName = packageName ?: throw ApkFormatException("No package name in manifest"),
+                versionCode = versionCode ?: 0,
+                versionName = versionName,
+                minSdkVersion = minSdkVersion,
+                targetSdkVersion = targetSdkVersion,
+                usesPermission = usesPermission,
+                usesPermissionSdk23 = usesPermissionSdk23,
+                signers = emptyList(),
+            )
+        }
+
+        private fun onStartElement(position: Int, depth: Int) {
+            val name = getString(buffer.getInt(position + 4))
+            if (depth == 1 && name != "manifest") throw ApkFormatException("Root element is $name")
+            // we only care about the root element and its direct children
+            if (depth > 2) return
+            val attributes = getAttributes(position)
+            when {
+                depth == 1 -> {
+                    var versionCodeMajor = 0
+                    var versionCodeMinor = 0
+                    attributes.forEach { attribute ->
+                        when {
+                            attribute.isNamed(0, "package") -> packageName = getStringValue(attribute)
+                            attribute.isNamed(ATTR_VERSION_CODE, "versionCode") ->
+                                versionCodeMinor = getIntValue(attribute) ?: 0
+                            attribute.isNamed(ATTR_VERSION_CODE_MAJOR, "versionCodeMajor") ->
+                                versionCodeMajor = getIntValue(attribute) ?: 0
+                            attribute.isNamed(ATTR_VERSION_NAME, "versionName") ->
+                                versionName = getStringValue(attribute)
+                        }
+                    }
+                    versionCode = (versionCodeMajor.toLong() shl 32) or
+                        (versionCodeMinor.toLong() and 0xffffffffL)
+                }
+                name == "uses-sdk" -> attributes.forEach { attribute ->
+                    when {
+                        attribute.isNamed(ATTR_MIN_SDK_VERSION, "minSdkVersion") ->
+                            minSdkVersion = getIntValue(attribute)
+                        attribute.isNamed(ATTR_TARGET_SDK_VERSION, "targetSdkVersion") ->
+                            targetSdkVersion = getIntValue(attribute)
+                    }
+                }
+                name == "uses-permission" -> getPermission(attributes)?.let { usesPermission.add(it) }
+                name == "uses-permission-sdk-23" || name == "uses-permission-sdk-m" ->
+                    getPermission(attributes)?.let { usesPermissionSdk23.add(it) }
+            }
+        }
+
+        private fun getPermission(attributes: List<Attribute>): PermissionV2? {
+            var name: String? = null
+            var maxSdkVersion: Int? = null
+            attributes.forEach { attribute ->
+                when {
+                    attribute.isNamed(ATTR_NAME, "name") -> name = getStringValue(attribute)
+                    attribute.isNamed(ATTR_MAX_SDK_VERSION, "maxSdkVersion") ->
+                        maxSdkVersion = getIntValue(attribute)
+                }
+            }
+            return name?.let { PermissionV2(it, maxSdkVersion) }
+        }
+
+        private fun getAttributes(position: Int): List<Attribute> {
+            val attributeStart = buffer.getUInt16(position + 8)
+            val attributeSize = buffer.getUInt16(position + 10)
+            val attributeCount = buffer.getUInt16(position + 12)
+            return List(attributeCount) { i ->
+                val attributePosition = position + attributeStart + i * attributeSize
+                Attribute(
+                    nameIndex = buffer.getInt(attributePosition + 4),
+                    rawValue = buffer.getInt(attributePosition + 8),
+                    dataType = buffer.get(attributePosition + 15).toInt() and 0xff,
+                    data = buffer.getInt(attributePosition + 16),
+                )
+            }
+        }
+
+        /**
+         * Attributes with a resource ID are identified by it, all others by their name.
+         */
+        private fun Attribute.isNamed(resourceId: Int, name: String): Boolean {
+            val id = if (nameIndex in resourceIds.indices) resourceIds[nameIndex] else 0
+            return if (id != 0) id == resourceId else getString(nameIndex) == name
+        }
+
+        private fun getStringValue(attribute: Attribute): String? = when {
+            attribute.rawValue != NO_ENTRY -> getString(attribute.rawValue)
+            attribute.dataType == TYPE_STRING -> getString(attribute.data)
+            else -> null
+        }
+
+        private fun getIntValue(attribute: Attribute): Int? = when (attribute.dataType) {
+            in TYPE_FIRST_INT..TYPE_LAST_INT -> attribute.data
+            TYPE_STRING -> getStringValue(attribute)?.toIntOrNull()
+            else -> null
+        }
+
+        private fun getString(index: Int): String? {
+            if (index == NO_ENTRY) return null
+            val pool = stringPool ?: throw ApkFormatException("No string pool before first element")
+            return pool[index]
+        }
+    }
+
+    /**
+     * Decodes strings from a string pool chunk only when they are needed.
+     */
+    private class StringPool(private val buffer: ByteBuffer, private val position: Int, headerSize: Int) {
+        private val count = buffer.getInt(position + 8)
+        private val isUtf8 = buffer.getInt(position + 16) and UTF8_FLAG != 0
+        private val stringsStart = position + buffer.getInt(position + 20)
+        private val offsetsStart = position + headerSize
+        private val cache = HashMap<Int, String>()
+
+        operator fun get(index: Int): String {
+            if (index < 0 || index >= count) throw ApkFormatException("Invalid string index $index")
+            return cache.getOrPut(index) {
+                val offset = stringsStart + buffer.getInt(offsetsStart + index * 4)
+                if (isUtf8) decodeUtf8(offset) else decodeUtf16(offset)
+            }
+        }
+
+        private fun decodeUtf8(start: Int): String {
+            var offset = start
+            // skip the length in UTF-16 code units, we need the length in bytes
+            if (buffer.get(offset++).toInt() and 0x80 != 0) offset++
+            var length = buffer.get(offset++).toInt() and 0xff
+            if (length and 0x80 != 0) {
+                length = ((length and 0x7f) shl 8) or (buffer.get(offset++).toInt() and 0xff)
+            }
+            val bytes = ByteArray(length)
+            for (i in 0 until length) bytes[i] = buffer.get(offset + i)
+            return String(bytes, Charsets.UTF_8)
+        }
+
+        private fun decodeUtf16(start: Int): String {
+            var offset = start
+            var length = buffer.getUInt16(offset)
+            offset += 2
+            if (length and 0x8000 != 0) {
+                length = ((length and 0x7fff) shl 16) or buffer.getUInt16(offset)
+                offset += 2
+            }
+            val chars = CharArray(length) { i -> buffer.getChar(offset + i * 2) }
+            return String(chars)
+        }
+    }
+}
+
+internal fun ByteBuffer.getUInt16(index: Int): Int = getShort(index).toInt() and 0xffff
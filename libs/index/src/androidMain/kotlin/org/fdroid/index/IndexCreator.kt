@@ -2,20 +2,35 @@ package org.fdroid.index
 
 import android.content.pm.PackageInfo
 import android.content.pm.PackageManager
-import android.graphics.Bitmap
 import android.graphics.Bitmap.CompressFormat.PNG
-import android.graphics.Bitmap.Config.ARGB_8888
-import android.graphics.Canvas
-import android.graphics.drawable.BitmapDrawable
+import android.graphics.drawable.Drawable
 import android.system.Os.symlink
 import androidx.core.content.pm.PackageInfoCompat
+import androidx.core.graphics.drawable.toBitmap
 import org.fdroid.index.IndexUtils.toHex
 import java.io.File
 import java.io.IOException
+import java.io.InterruptedIOException
 import java.security.MessageDigest
 import java.security.NoSuchAlgorithmException
-import java.util.jar.JarFile
-import java.util.regex.Pattern
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.zip.ZipFile
+import kotlin.math.max
+import kotlin.math.roundToInt
+
+/**
+ * The most threads used for processing apps in parallel.
+ * Each one hashes an APK or encodes an icon, so more would mostly compete for storage and memory.
+ */
+private const val MAX_THREADS = 4
+
+/**
+ * The width and height of the largest icons, those in `icons-640`, which is 48dp at 640 dpi.
+ * Larger icons only take longer to encode and download.
+ */
+private const val MAX_ICON_SIZE = 192
 
 public abstract class IndexCreator<T>(
     protected val packageManager: PackageManager,
@@ -23,10 +38,9 @@ public abstract class IndexCreator<T>(
     protected val packageNames: Set<String>,
 ) {
 
-    private val iconDir = File(repoDir, "icons")
+    protected val iconDir: File = File(repoDir, "icons")
     private val iconDirs =
         listOf("icons-120", "icons-160", "icons-240", "icons-320", "icons-480", "icons-640")
-    private val nativeCodePattern = Pattern.compile("^lib/([a-z0-9-]+)/.*")
 
     init {
         require(repoDir.isDirectory) { "$repoDir is not a directory" }
@@ -52,23 +66,26 @@ public abstract class IndexCreator<T>(
         val packageName = packageInfo.packageName
         val versionCode = PackageInfoCompat.getLongVersionCode(packageInfo)
         val drawable = packageInfo.applicationInfo?.loadIcon(packageManager) ?: return null
-        val bitmap: Bitmap
-        if (drawable is BitmapDrawable) {
-            bitmap = drawable.bitmap
-        } else {
-            bitmap =
-                Bitmap.createBitmap(drawable.intrinsicWidth, drawable.intrinsicHeight, ARGB_8888)
-            val canvas = Canvas(bitmap)
-            drawable.setBounds(0, 0, canvas.width, canvas.height)
-            drawable.draw(canvas)
-        }
+        val bitmap = drawable.toIconBitmap()
         val iconName = "${packageName}_$versionCode.png"
-        File(iconDir, iconName).outputStream().use { outputStream ->
+        File(iconDir, iconName).outputStream().buffered().use { outputStream ->
+            // PNG is lossless, so the quality gets ignored, only the size makes a difference
             bitmap.compress(PNG, 100, outputStream)
         }
         return iconName
     }
 
+    private fun Drawable.toIconBitmap() = if (intrinsicWidth <= 0 || intrinsicHeight <= 0) {
+        // e.g. a ColorDrawable
+        toBitmap(MAX_ICON_SIZE, MAX_ICON_SIZE)
+    } else {
+        val scale = minOf(1f, MAX_ICON_SIZE.toFloat() / max(intrinsicWidth, intrinsicHeight))
+        toBitmap(
+            width = max(1, (intrinsicWidth * scale).roundToInt()),
+            height = max(1, (intrinsicHeight * scale).roundToInt()),
+        )
+    }
+
     /**
      * Symlinks the APK to the repo. Does not support split APKs.
      * @return the name of the linked/copied APK file or null if no file exists.
@@ -110,18 +127,64 @@ public abstract class IndexCreator<T>(
 
     protected fun parseNativeCode(packageInfo: PackageInfo): List<String> {
         val appInfo = packageInfo.applicationInfo ?: return emptyList()
-        val apkJar = JarFile(appInfo.publicSourceDir)
-        val abis = HashSet<String>()
-        val jarEntries = apkJar.entries()
-        while (jarEntries.hasMoreElements()) {
-            val jarEntry = jarEntries.nextElement()
-            val matcher = nativeCodePattern.matcher(jarEntry.name)
-            if (matcher.matches()) {
-                val group = matcher.group(1)
-                if (group != null) abis.add(group)
+        return getNativeCode(File(appInfo.publicSourceDir))
+    }
+
+    /**
+     * Runs [block] for each of the [packageNames] on a bounded pool of threads,
+     * because the steps for each app are independent of each other.
+     *
+     * @return the results in the same order as the [packageNames], without nulls.
+     */
+    @Throws(IOException::class)
+    protected fun <R : Any> processApps(
+        packageNames: List<String>,
+        block: (String) -> R?,
+    ): List<R> {
+        val numThreads =
+            minOf(MAX_THREADS, Runtime.getRuntime().availableProcessors(), packageNames.size)
+        if (numThreads <= 1) return packageNames.mapNotNull(block)
+        val executor = Executors.newFixedThreadPool(numThreads)
+        try {
+            val futures = packageNames.map { packageName ->
+                executor.submit(Callable { block(packageName) })
+            }
+            return futures.mapNotNull { future ->
+                try {
+                    future.get()
+                } catch (e: ExecutionException) {
+                    throw e.cause ?: e
+                }
             }
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            throw InterruptedIOException("Interrupted while processing apps")
+        } finally {
+            executor.shutdownNow()
         }
-        return abis.toList()
     }
 
 }
+
+/**
+ * Gets the ABIs of the native libraries in the given APK from the names of its `lib/` entries.
+ * Only the names in the central directory are looked at, and only checked for their prefix.
+ *
+ * @return the sorted ABIs.
+ */
+internal fun getNativeCode(apkFile: File): List<String> {
+    val abis = HashSet<String>()
+    ZipFile(apkFile).use { zipFile ->
+        val entries = zipFile.entries()
+        while (entries.hasMoreElements()) {
+            val name = entries.nextElement().name
+            if (!name.startsWith("lib/")) continue
+            val slash = name.indexOf('/', 4)
+            if (slash <= 4) continue
+            val abi = name.substring(4, slash)
+            if (abi in abis) continue
+            if (abi.all { it in 'a'..'z' || it in '0'..'9' || it == '-' || it == '_' }) abis.add(abi)
+        }
+    }
+    return abis.sorted()
+}
@@ -23,14 +23,78 @@ import java.io.IOException
  * Attention: While [createRepo] creates `index-v1.json`,
  * it does **not** create a signed `index-v1.jar`.
  * The caller needs to handle this last signing step themselves.
+ *
+ * If a [cache] is given, apps that were already processed in an earlier run
+ * and were not updated since get re-used including their icon and APK in the [repoDir].
+ * Icons and APKs of apps that are no longer in [packageNames] get removed.
  */
-public class IndexV1Creator(
+public class IndexV1Creator @JvmOverloads constructor(
     packageManager: PackageManager,
     repoDir: File,
     packageNames: Set<String>,
     private val repo: RepoV1,
+    private val cache: Cache? = null,
 ) : IndexCreator<IndexV1>(packageManager, repoDir, packageNames) {
 
+    /**
+     * Remembers the index entries generated for each app, keyed by package name
+     * and only valid for the same [PackageInfo.lastUpdateTime].
+     * Keep one instance around for as long as the files in the repo dir stay,
+     * and [clear] it when deleting them.
+     */
+    public class Cache {
+        private val entries = HashMap<String, Entry>()
+
+        internal class Entry(
+            val lastUpdateTime: Long,
+            val app: AppV1,
+            val packageV1: PackageV1?,
+            val files: List<File>,
+        )
+
+        @Synchronized
+        internal operator fun get(packageName: String): Entry? = entries[packageName]
+
+        /**
+         * Remembers the given [entry] and deletes the files of the one it replaces.
+         */
+        @Synchronized
+        internal fun put(packageName: String, entry: Entry) {
+            entries.put(packageName, entry)?.files?.forEach { file ->
+                if (file !in entry.files) file.delete()
+            }
+        }
+
+        /**
+         * Forgets all apps not in [packageNames] and deletes their files.
+         * @return the number of removed apps.
+         */
+        @Synchronized
+        internal fun retainAll(packageNames: Set<String>): Int {
+            val iterator = entries.iterator()
+            var removed = 0
+            while (iterator.hasNext()) {
+                val (packageName, entry) = iterator.next()
+                if (packageName in packageNames) continue
+                entry.files.forEach { it.delete() }
+                iterator.remove()
+                removed++
+            }
+            return removed
+        }
+
+        /**
+         * The number of apps in the cache.
+         */
+        public val size: Int
+            @Synchronized get() = entries.size
+
+        @Synchronized
+        public fun clear() {
+            entries.clear()
+        }
+    }
+
     @Throws(IOException::class)
     @OptIn(ExperimentalSerializationApi::class)
     public override fun createRepo(): IndexV1 {
@@ -44,10 +108,15 @@ public class IndexV1Creator(
     }
 
     private fun createIndex(): IndexV1 {
-        val apps = ArrayList<AppV1>(packageNames.size)
-        val packages = HashMap<String, List<PackageV1>>(packageNames.size)
-        for (packageName in packageNames) {
-            addApp(packageName, apps, packages)
+        val results = processApps(packageNames.sorted()) { packageName -> getApp(packageName) }
+        val apps = ArrayList<AppV1>(results.size)
+        val packages = LinkedHashMap<String, List<PackageV1>>(results.size)
+        for ((app, p) in results) {
+            apps.add(app)
+            if (p != null) packages[app.packageName] = listOf(p)
+        }
+        cache?.retainAll(packageNames)?.let { removed ->
+            if (removed > 0) Log.d("IndexV1Creator", "Removed $removed apps from repo")
         }
         return IndexV1(
             repo = repo,
@@ -56,29 +125,52 @@ public class IndexV1Creator(
         )
     }
 
-    private fun addApp(
-        packageName: String,
-        apps: ArrayList<AppV1>,
-        packages: HashMap<String, List<PackageV1>>,
-    ) {
+    /**
+     * Gets the [AppV1] and [PackageV1] for the given [packageName], with its icon and APK in the
+     * repo.  This gets called in parallel for different apps.
+     *
+     * @return null, if the app is not installed (anymore).
+     */
+    private fun getApp(packageName: String): Pair<AppV1, PackageV1?>? {
         @Suppress("DEPRECATION")
         val flags = GET_SIGNATURES or GET_PERMISSIONS
 
         try {
+            val cached = cache?.get(packageName)
+            if (cached != null && cached.lastUpdateTime == getLastUpdateTime(packageName) &&
+                cached.files.all { it.exists() }
+            ) {
+                return Pair(cached.app, cached.packageV1)
+            }
             @Suppress("PackageManagerGetSignatures")
             val packageInfo = packageManager.getPackageInfo(packageName, flags)
-            apps.add(getApp(packageInfo))
+            val app = getApp(packageInfo)
             val p = getPackage(packageInfo)
-            if (p == null) {
-                Log.w("IndexV1Creator", "Got no package for $packageName")
-                return
-            }
-            packages[packageName] = listOf(p)
+            cache?.put(
+                packageName,
+                Cache.Entry(
+                    lastUpdateTime = packageInfo.lastUpdateTime,
+                    app = app,
+                    packageV1 = p,
+                    files = listOfNotNull(
+                        app.icon?.let { File(iconDir, it) },
+                        p?.apkName?.let { File(repoDir, it) },
+                    ),
+                ),
+            )
+            if (p == null) Log.w("IndexV1Creator", "Got no package for $packageName")
+            return Pair(app, p)
         } catch (e: PackageManager.NameNotFoundException) {
-            Log.i("IndexV1Creator", "app disappeared during addApp: ", e)
+            Log.i("IndexV1Creator", "app disappeared while adding it: ", e)
+            return null
         }
     }
 
+    private fun getLastUpdateTime(packageName: String): Long {
+        // much cheaper than getting the signatures and permissions
+        return packageManager.getPackageInfo(packageName, 0).lastUpdateTime
+    }
+
     private fun getApp(packageInfo: PackageInfo): AppV1 {
         val icon = copyIconToRepo(packageInfo)
         return AppV1(
@@ -0,0 +1,231 @@
+package org.fdroid.apk
+
+import org.fdroid.index.IndexUtils.getPackageSigner
+import org.fdroid.index.v2.PermissionV2
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder.LITTLE_ENDIAN
+import java.util.zip.ZipEntry
+import java.util.zip.ZipException
+import java.util.zip.ZipFile
+import java.util.zip.ZipInputStream
+import java.util.zip.ZipOutputStream
+import kotlin.random.Random
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+
+private const val URZIP_PATH = "../../app/src/test/assets/urzip.apk"
+private const val MIN_MAX_PATH = "../../app/src/androidTest/assets/org.fdroid.permissions.minmax.apk"
+private const val URZIP_SIGNER = "7eabd8c15de883d1e82b5df2fd4f7f769e498078e9ad6dc901f0e96db77ceac3"
+private const val MIN_MAX_SIGNER = "4afcfbda41d180fb013771be693264009bfb37b4ebacab1150b179c2fa7511f4"
+
+private const val READ_CALENDAR = "android.permission.READ_CALENDAR"
+private const val WRITE_EXTERNAL_STORAGE = "android.permission.WRITE_EXTERNAL_STORAGE"
+private const val ACCESS_FINE_LOCATION = "android.permission.ACCESS_FINE_LOCATION"
+
+internal class ApkParserTest {
+
+    @get:Rule
+    var tmpFolder: TemporaryFolder = TemporaryFolder()
+
+    private val urzip = File(URZIP_PATH)
+    private val minMax = File(MIN_MAX_PATH)
+
+    @Test
+    fun testUrzip() {
+        val expected = ApkInfo(
+            packageName = "info.guardianproject.urzip",
+            versionCode = 100,
+            versionName = "0.1",
+            minSdkVersion = 4,
+            targetSdkVersion = 18,
+            usesPermission = emptyList(),
+            usesPermissionSdk23 = emptyList(),
+            signers = listOf(URZIP_SIGNER),
+        )
+        assertEquals(expected, ApkParser.parse(urzip))
+    }
+
+    @Test
+    fun testPermissions() {
+        val apkInfo = ApkParser.parse(minMax)
+        assertEquals("org.fdroid.permissions.minmax", apkInfo.packageName)
+        assertEquals(24, apkInfo.effectiveTargetSdkVersion)
+        assertEquals(
+            listOf(PermissionV2(READ_CALENDAR), PermissionV2(WRITE_EXTERNAL_STORAGE, 18)),
+            apkInfo.usesPermission,
+        )
+        assertEquals(listOf(PermissionV2(ACCESS_FINE_LOCATION)), apkInfo.usesPermissionSdk23)
+        assertEquals(listOf(MIN_MAX_SIGNER), apkInfo.signers)
+
+        assertEquals(setOf(READ_CALENDAR, WRITE_EXTERNAL_STORAGE), apkInfo.getRequestedPermissions(18))
+        assertEquals(setOf(READ_CALENDAR), apkInfo.getRequestedPermissions(22))
+        assertEquals(setOf(READ_CALENDAR, ACCESS_FINE_LOCATION), apkInfo.getRequestedPermissions(23))
+    }
+
+    @Test
+    fun testV2SignerIsPreferredOverV1() {
+        val certificate = Random.nextBytes(512)
+        val file = getApkWithSigningBlock(urzip, mapOf(0x7109871a to certificate))
+
+        val apkInfo = ApkParser.parse(file)
+        assertEquals("info.guardianproject.urzip", apkInfo.packageName)
+        assertEquals(listOf(getPackageSigner(certificate)), apkInfo.signers)
+    }
+
+    @Test
+    fun testV3SignerComesBeforeV2() {
+        val v2Certificate = Random.nextBytes(512)
+        val v3Certificate = Random.nextBytes(768)
+        val blocks = mapOf(0x7109871a to v2Certificate, 0xf05368c0.toInt() to v3Certificate)
+        val file = getApkWithSigningBlock(urzip, blocks)
+
+        val signers = listOf(getPackageSigner(v3Certificate), getPackageSigner(v2Certificate))
+        assertEquals(signers, ApkParser.parse(file).signers)
+    }
+
+    @Test
+    fun testNotAnApk() {
+        val file = tmpFolder.newFile()
+        file.writeBytes(Random.nextBytes(4096))
+        assertFailsWith<ApkFormatException> {
+            ApkParser.parse(file)
+        }
+    }
+
+    @Test
+    fun testTruncatedApk() {
+        val bytes = urzip.readBytes()
+        val file = tmpFolder.newFile()
+        file.writeBytes(bytes.copyOf(bytes.size - 100))
+        assertFailsWith<ApkFormatException> {
+            ApkParser.parse(file)
+        }
+    }
+
+    @Test
+    fun testVerify() {
+        val verifier = ApkFileVerifier(23)
+        val permissions = listOf(READ_CALENDAR, WRITE_EXTERNAL_STORAGE, ACCESS_FINE_LOCATION)
+        verifier.verify(minMax, "org.fdroid.permissions.minmax", 24, permissions, MIN_MAX_SIGNER)
+        // having fewer permissions than expected is fine, checks can be skipped
+        verifier.verify(minMax, "org.fdroid.permissions.minmax", null, permissions + "foo", null)
+        // the signer can be given in upper case
+        verifier.verify(minMax, "org.fdroid.permissions.minmax", 24, permissions, MIN_MAX_SIGNER.uppercase())
+    }
+
+    @Test
+    fun testVerifyMismatches() {
+        val verifier = ApkFileVerifier(18)
+        val permissions = listOf(READ_CALENDAR, WRITE_EXTERNAL_STORAGE)
+        assertFailsWith<ApkMismatchException> {
+            verifier.verify(minMax, "org.example", 24, permissions, MIN_MAX_SIGNER)
+        }
+        assertFailsWith<ApkMismatchException> {
+            verifier.verify(minMax, "org.fdroid.permissions.minmax", 23, permissions, MIN_MAX_SIGNER)
+        }
+        assertFailsWith<ApkMismatchException> {
+            verifier.verify(minMax, "org.fdroid.permissions.minmax", 24, permissions, URZIP_SIGNER)
+        }
+        val e = assertFailsWith<ApkPermissionMismatchException> {
+            verifier.verify(minMax, "org.fdroid.permissions.minmax", 24, listOf(READ_CALENDAR), null)
+        }
+        assertEquals(setOf(WRITE_EXTERNAL_STORAGE), e.extraPermissions)
+        // ACCESS_FINE_LOCATION is only requested from SDK 23 on
+        ApkFileVerifier(22).verify(minMax, "org.fdroid.permissions.minmax", 24, listOf(READ_CALENDAR), null)
+    }
+
+    @Test
+    fun testVerifyMinSdkVersion() {
+        // urzip has a minSdkVersion of 4
+        ApkFileVerifier(4).verify(urzip, "info.guardianproject.urzip", 18, emptyList(), URZIP_SIGNER)
+        val e = assertFailsWith<ApkMismatchException> {
+            ApkFileVerifier(3).verify(urzip, "info.guardianproject.urzip", 18, emptyList(), URZIP_SIGNER)
+        }
+        assertEquals("MinSdkVersion of apk file (4) is higher than the SDK of this device (3)!", e.message)
+    }
+
+    @Test
+    fun testVerifyLargeApkWithoutInflatingIt() {
+        val file = getApkWithCorruptEntry(urzip, 4 * 1024 * 1024)
+        // the big entry really can't be read anymore
+        assertFailsWith<ZipException> {
+            ZipInputStream(file.inputStream()).use { inputStream ->
+                while (inputStream.nextEntry != null) inputStream.readBytes()
+            }
+        }
+
+        assertEquals(ApkParser.parse(urzip), ApkParser.parse(file))
+        ApkFileVerifier(4).verify(file, "info.guardianproject.urzip", 18, emptyList(), URZIP_SIGNER)
+        assertFailsWith<ApkMismatchException> {
+            ApkFileVerifier(3).verify(file, "info.guardianproject.urzip", 18, emptyList(), URZIP_SIGNER)
+        }
+    }
+
+    /**
+     * Returns a copy of the given [apk] with an additional compressed entry of [size] bytes,
+     * which is corrupted in the middle, so it fails if anything tries to inflate it.
+     */
+    private fun getApkWithCorruptEntry(apk: File, size: Int): File {
+        val file = tmpFolder.newFile()
+        ZipOutputStream(file.outputStream()).use { outputStream ->
+            ZipFile(apk).use { zipFile ->
+                zipFile.entries().asSequence().forEach { entry ->
+                    outputStream.putNextEntry(ZipEntry(entry.name))
+                    zipFile.getInputStream(entry).use { it.copyTo(outputStream) }
+                }
+            }
+            outputStream.putNextEntry(ZipEntry("resources.arsc.big"))
+            outputStream.write(Random(size).nextBytes(size))
+        }
+        RandomAccessFile(file, "rw").use { raf ->
+            raf.seek(raf.length() - 22 + 16) // the offset of the central directory
+            val cdOffset = Integer.reverseBytes(raf.readInt()).toLong()
+            // random data hardly compresses, so the entry's data ends just before it
+            raf.seek(cdOffset - size / 2)
+            raf.write(ByteArray(64 * 1024) { 0x55 })
+        }
+        return file
+    }
+
+    /**
+     * Returns a copy of the given [apk] with an APK Signing Block inserted before its central directory.
+     * The block has a signature scheme block for each of the given [blocks],
+     * containing a single signer with the given certificate, but no valid signatures.
+     */
+    private fun getApkWithSigningBlock(apk: File, blocks: Map<Int, ByteArray>): File {
+        val bytes = apk.readBytes()
+        val eocd = bytes.size - 22 // the test APKs have no comment
+        val cdOffset = ByteBuffer.wrap(bytes).order(LITTLE_ENDIAN).getInt(eocd + 16)
+
+        val pairs = blocks.map { (id, certificate) ->
+            val signedData = lengthPrefixed(ByteArray(0)) + // digests
+                lengthPrefixed(lengthPrefixed(certificate)) + // certificates
+                lengthPrefixed(ByteArray(0)) // additional attributes
+            val signer = lengthPrefixed(signedData) +
+                lengthPrefixed(ByteArray(0)) + // signatures
+                lengthPrefixed(ByteArray(0)) // public key
+            val value = lengthPrefixed(lengthPrefixed(signer))
+            ByteBuffer.allocate(12).order(LITTLE_ENDIAN).putLong(value.size + 4L).putInt(id).array() + value
+        }.reduce { acc, pair -> acc + pair }
+        val blockSize = pairs.size + 24L
+        val block = ByteBuffer.allocate(pairs.size + 32).order(LITTLE_ENDIAN)
+            .putLong(blockSize)
+            .put(pairs)
+            .putLong(blockSize)
+            .put("APK Sig Block 42".encodeToByteArray())
+            .array()
+
+        val result = bytes.copyOfRange(0, cdOffset) + block + bytes.copyOfRange(cdOffset, bytes.size)
+        ByteBuffer.wrap(result).order(LITTLE_ENDIAN).putInt(result.size - 22 + 16, cdOffset + block.size)
+        return tmpFolder.newFile().apply { writeBytes(result) }
+    }
+
+    private fun lengthPrefixed(bytes: ByteArray): ByteArray {
+        return ByteBuffer.allocate(4).order(LITTLE_ENDIAN).putInt(bytes.size).array() + bytes
+    }
+}
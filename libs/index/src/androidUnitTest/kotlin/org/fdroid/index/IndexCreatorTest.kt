@@ -0,0 +1,167 @@
+package org.fdroid.index
+
+import android.content.pm.ApplicationInfo
+import android.content.pm.PackageInfo
+import android.content.pm.PackageManager
+import android.content.pm.PackageManager.NameNotFoundException
+import android.content.pm.Signature
+import io.mockk.every
+import io.mockk.mockk
+import org.fdroid.index.IndexUtils.getPackageSigner
+import org.fdroid.index.IndexUtils.sha256
+import org.fdroid.index.IndexUtils.toHex
+import org.fdroid.index.v1.DATA_FILE_NAME
+import org.fdroid.index.v1.IndexV1Creator
+import org.fdroid.index.v1.RepoV1
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+import kotlin.random.Random
+import kotlin.test.Test
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+
+internal class IndexCreatorTest {
+
+    @get:Rule
+    var tmpFolder: TemporaryFolder = TemporaryFolder()
+
+    private val abis = listOf("arm64-v8a", "armeabi-v7a", "x86", "x86_64")
+    private val repo = RepoV1(
+        timestamp = 1_700_000_000_000,
+        version = 20001,
+        maxAge = 7,
+        name = "Test Repo",
+        icon = "swap-icon.png",
+        address = "http://192.168.0.1:8888/fdroid/repo",
+        description = "A repo for testing",
+    )
+    private val signerBytes = Random(1).nextBytes(512)
+    private val signature: Signature = mockk {
+        every { toByteArray() } returns signerBytes
+    }
+
+    /**
+     * Writes a fake APK with a dex file, resources and native libraries for the given [abis].
+     */
+    private fun writeApk(file: File, abis: List<String>, random: Random) {
+        ZipOutputStream(file.outputStream()).use { zip ->
+            zip.putNextEntry(ZipEntry("AndroidManifest.xml"))
+            zip.write(random.nextBytes(512))
+            zip.putNextEntry(ZipEntry("classes.dex"))
+            zip.write(random.nextBytes(4096))
+            for (i in 0 until 100) {
+                zip.putNextEntry(ZipEntry("res/drawable/image_$i.png"))
+                zip.write(random.nextBytes(64))
+            }
+            // looks like native code, but isn't
+            zip.putNextEntry(ZipEntry("lib/README.md"))
+            zip.putNextEntry(ZipEntry("lib/Not_An_ABI/libfoo.so"))
+            zip.putNextEntry(ZipEntry("assets/lib/x86/libbar.so"))
+            for (abi in abis) {
+                zip.putNextEntry(ZipEntry("lib/$abi/"))
+                for (i in 0 until 10) {
+                    zip.putNextEntry(ZipEntry("lib/$abi/libnative$i.so"))
+                    zip.write(random.nextBytes(128))
+                }
+            }
+        }
+    }
+
+    private fun getAbis(i: Int): List<String> = abis.filterIndexed { index, _ ->
+        i and (1 shl index) != 0
+    }
+
+    /**
+     * Creates [numApps] fixture APKs and a [PackageManager] that knows about them.
+     */
+    @Suppress("DEPRECATION")
+    private fun getPackageManager(numApps: Int): Pair<PackageManager, List<String>> {
+        val apkDir = tmpFolder.newFolder()
+        val random = Random(42)
+        val packageInfos = HashMap<String, PackageInfo>()
+        for (i in 0 until numApps) {
+            val packageName = "org.example.app$i"
+            val apk = File(apkDir, "$packageName.apk")
+            writeApk(apk, getAbis(i), random)
+            val appInfo: ApplicationInfo = mockk {
+                every { loadLabel(any()) } returns "App $i"
+                every { loadIcon(any()) } returns null
+            }
+            appInfo.publicSourceDir = apk.absolutePath
+            appInfo.targetSdkVersion = 33
+            packageInfos[packageName] = PackageInfo().apply {
+                this.packageName = packageName
+                versionCode = i + 1
+                versionName = "1.$i"
+                lastUpdateTime = 1_000L + i
+                applicationInfo = appInfo
+                signatures = arrayOf(signature)
+                requestedPermissions = arrayOf("android.permission.INTERNET")
+            }
+        }
+        val packageManager: PackageManager = mockk {
+            every { getPackageInfo(any<String>(), any<Int>()) } answers {
+                packageInfos[firstArg()] ?: throw NameNotFoundException()
+            }
+        }
+        // shuffled, so the order of the result does not come from the input
+        return Pair(packageManager, packageInfos.keys.shuffled(Random(23)))
+    }
+
+    @Test
+    fun testNativeCode() {
+        val random = Random(0)
+        for (i in 0 until 16) {
+            val apk = tmpFolder.newFile()
+            writeApk(apk, getAbis(i).reversed(), random)
+            assertEquals(getAbis(i).sorted(), getNativeCode(apk))
+        }
+    }
+
+    @Test
+    fun testManyAppsInParallel() {
+        val numApps = 64
+        val (packageManager, packageNames) = getPackageManager(numApps)
+        val repoDir = tmpFolder.newFolder()
+        val creator = IndexV1Creator(packageManager, repoDir, packageNames.toSet(), repo)
+        val index = creator.createRepo()
+
+        assertEquals(numApps, index.apps.size)
+        assertEquals(packageNames.sorted(), index.apps.map { it.packageName })
+        assertEquals(packageNames.sorted(), index.packages.keys.toList())
+        for (app in index.apps) {
+            val i = app.packageName.removePrefix("org.example.app").toInt()
+            assertEquals("App $i", app.name)
+            assertNull(app.icon)
+            val p = index.packages[app.packageName]!!.single()
+            assertEquals(i + 1L, p.versionCode)
+            assertEquals(getAbis(i), p.nativeCode)
+            assertEquals(getPackageSigner(signerBytes), p.signer)
+            val apk = File(repoDir, p.apkName)
+            assertEquals(apk.length(), p.size)
+            assertEquals(sha256(apk.readBytes()).toHex(), p.hash)
+        }
+
+        // the same apps in a different order give exactly the same index
+        val otherRepoDir = tmpFolder.newFolder()
+        val otherPackageNames = packageNames.reversed().toSet()
+        IndexV1Creator(packageManager, otherRepoDir, otherPackageNames, repo).createRepo()
+        assertContentEquals(
+            File(repoDir, DATA_FILE_NAME).readBytes(),
+            File(otherRepoDir, DATA_FILE_NAME).readBytes(),
+        )
+    }
+
+    @Test
+    fun testMissingAppsGetSkipped() {
+        val (packageManager, packageNames) = getPackageManager(8)
+        val repoDir = tmpFolder.newFolder()
+        val withMissing = packageNames.toSet() + "org.example.missing"
+        val index = IndexV1Creator(packageManager, repoDir, withMissing, repo).createRepo()
+        assertEquals(packageNames.sorted(), index.apps.map { it.packageName })
+    }
+}